@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.benchmarks;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreFactory;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Opens a store of the benchmarked backend, filled with <code>keyCount</code> payloads of
+ * <code>payloadSize</code> bytes before the measurements.
+ * <p>
+ * The number of keys is reduced so that the prefilled payloads do not exceed
+ * {@link #MAX_PREFILLED_BYTES}, which keeps the largest payloads within a default heap.
+ * </p>
+ */
+public abstract class AbstractStoreBenchmark {
+
+    static final long MAX_PREFILLED_BYTES = 256L * 1024 * 1024;
+
+    @Param({"100", "10240", "1048576"})
+    public int payloadSize;
+
+    @Param({"1000", "100000"})
+    public int keyCount;
+
+    protected StoreFactory factory;
+    protected Store store;
+    protected byte[] payload;
+    protected String[] keys;
+    private File directory;
+
+    /**
+     * @return the name of the benchmarked backend, as known by {@link Backends}
+     */
+    protected abstract String getBackend();
+
+    /**
+     * @return the timeout of the entries, for the backends supporting one
+     */
+    protected long getTimeout() {
+        return 60 * 60 * 1000;
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Backends.createDirectory(getBackend());
+        factory = Backends.create(getBackend(), directory, getTimeout());
+        store = factory.open("benchmark");
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        int count = (int) Math.max(1, Math.min(keyCount, MAX_PREFILLED_BYTES / payloadSize));
+        keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = "key-" + i;
+            store.store(keys[i], payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        factory.close(store);
+        Backends.delete(directory);
+    }
+
+    /**
+     * The random generator of each benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final Random random = new Random();
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.benchmarks;
+
+import java.io.File;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.apache.servicemix.store.StoreFactory;
+import org.apache.servicemix.store.ehcache.EhCacheStoreFactory;
+import org.apache.servicemix.store.file.FileStoreFactory;
+import org.apache.servicemix.store.file.SyncPolicy;
+import org.apache.servicemix.store.jdbc.JdbcStoreFactory;
+import org.apache.servicemix.store.krati.KratiStoreFactory;
+import org.apache.servicemix.store.memory.MemoryStoreFactory;
+import org.hsqldb.jdbc.jdbcDataSource;
+
+/**
+ * Creates the {@link StoreFactory} of each benchmarked backend.  All of them run in the
+ * benchmark process and keep their files in a temporary directory.
+ */
+final class Backends {
+
+    static final String MEMORY = "memory";
+    static final String TIMEOUT = "timeout";
+    static final String TIMEOUT_SWEEP = "timeout-sweep";
+    static final String OFF_HEAP = "offheap";
+    static final String JDBC_HSQLDB = "jdbc-hsqldb";
+    static final String JDBC_DERBY = "jdbc-derby";
+    static final String KRATI = "krati";
+    static final String EHCACHE = "ehcache";
+    static final String FILE = "file";
+
+    private Backends() {
+    }
+
+    /**
+     * @param backend the name of the backend
+     * @param directory the directory of the files of the backend
+     * @param timeout the timeout of the entries of the backends supporting one, in milliseconds
+     */
+    static StoreFactory create(String backend, File directory, long timeout) {
+        if (MEMORY.equals(backend)) {
+            return new MemoryStoreFactory();
+        } else if (TIMEOUT.equals(backend) || TIMEOUT_SWEEP.equals(backend)) {
+            MemoryStoreFactory factory = new MemoryStoreFactory();
+            factory.setTimeout(timeout);
+            if (TIMEOUT_SWEEP.equals(backend)) {
+                factory.setSweepInterval(Math.max(1, timeout / 2));
+            }
+            return factory;
+        } else if (OFF_HEAP.equals(backend)) {
+            MemoryStoreFactory factory = new MemoryStoreFactory();
+            factory.setOffHeap(true);
+            return factory;
+        } else if (JDBC_HSQLDB.equals(backend)) {
+            jdbcDataSource dataSource = new jdbcDataSource();
+            dataSource.setDatabase("jdbc:hsqldb:mem:" + directory.getName());
+            dataSource.setUser("sa");
+            JdbcStoreFactory factory = new JdbcStoreFactory();
+            factory.setDataSource(dataSource);
+            return factory;
+        } else if (JDBC_DERBY.equals(backend)) {
+            EmbeddedDataSource dataSource = new EmbeddedDataSource();
+            dataSource.setDatabaseName(new File(directory, "derby").getPath());
+            dataSource.setCreateDatabase("create");
+            JdbcStoreFactory factory = new JdbcStoreFactory();
+            factory.setDataSource(dataSource);
+            return factory;
+        } else if (KRATI.equals(backend)) {
+            KratiStoreFactory factory = new KratiStoreFactory();
+            factory.setStoreDirectory(new File(directory, "krati").getPath());
+            if (timeout > 0) {
+                factory.setTimeout(timeout);
+            }
+            return factory;
+        } else if (EHCACHE.equals(backend)) {
+            return new EhCacheStoreFactory();
+        } else if (FILE.equals(backend)) {
+            FileStoreFactory factory = new FileStoreFactory();
+            factory.setDirectory(new File(directory, "file"));
+            factory.setSyncPolicy(SyncPolicy.PERIODIC);
+            return factory;
+        }
+        throw new IllegalArgumentException("Unknown backend " + backend);
+    }
+
+    static File createDirectory(String backend) {
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                "servicemix-store-benchmarks/" + backend + "-" + System.nanoTime());
+        directory.mkdirs();
+        return directory;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A mix of peeks and of store/load round trips, where <code>loadRatio</code> is the
+ * fraction of operations being round trips.  It models exchanges which are peeked several
+ * times before being completed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixedWorkloadBenchmark extends AbstractStoreBenchmark {
+
+    @Param({Backends.MEMORY, Backends.TIMEOUT, Backends.OFF_HEAP, Backends.JDBC_HSQLDB,
+            Backends.JDBC_DERBY, Backends.KRATI, Backends.EHCACHE, Backends.FILE})
+    public String backend;
+
+    @Param({"0.1", "0.5", "0.9"})
+    public double loadRatio;
+
+    protected String getBackend() {
+        return backend;
+    }
+
+    @Benchmark
+    public Object mixed(ThreadState state) throws IOException {
+        if (state.random.nextDouble() < loadRatio) {
+            String id = store.store(payload);
+            return store.load(id);
+        }
+        return store.peek(keys[state.random.nextInt(keys.length)]);
+    }
+
+}
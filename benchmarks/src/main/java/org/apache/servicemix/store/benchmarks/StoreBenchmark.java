@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency distribution of each store operation on every backend.
+ * <p>
+ * <code>peek</code> reads a random prefilled entry, and <code>storeAndLoad</code> stores
+ * a new entry and loads it back, which keeps the size of the store constant.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark extends AbstractStoreBenchmark {
+
+    @Param({Backends.MEMORY, Backends.TIMEOUT, Backends.OFF_HEAP, Backends.JDBC_HSQLDB,
+            Backends.JDBC_DERBY, Backends.KRATI, Backends.EHCACHE, Backends.FILE})
+    public String backend;
+
+    protected String getBackend() {
+        return backend;
+    }
+
+    @Benchmark
+    public Object peek(ThreadState state) throws IOException {
+        return store.peek(keys[state.random.nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    public Object storeAndLoad() throws IOException {
+        String id = store.store(payload);
+        return store.load(id);
+    }
+
+}
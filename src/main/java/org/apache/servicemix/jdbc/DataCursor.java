@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+
+/**
+ * A forward-only cursor over rows of the store table, reading the rows from the
+ * database as it moves forward.  The cursor holds a statement open until it is closed.
+ */
+public interface DataCursor {
+
+    /**
+     * Moves to the next row.
+     * @return <code>false</code> if there are no more rows
+     */
+    boolean next() throws SQLException;
+
+    /**
+     * @return the id of the current row
+     */
+    String getId() throws SQLException;
+
+    /**
+     * @return the data of the current row, which is only available on cursors opened with data
+     */
+    byte[] getData() throws SQLException, IOException;
+
+    /**
+     * @return a stream over the data of the current row, which is only available on cursors
+     *         opened with data and must be read before moving to the next row
+     */
+    InputStream getDataStream() throws SQLException, IOException;
+
+    /**
+     * Closes the result set and the statement of the cursor.
+     */
+    void close();
+
+}
@@ -28,14 +28,75 @@ public interface JDBCAdapter {
     void doDropTables(Connection connection) throws SQLException, IOException;
     
     byte[] doLoadData(Connection connection, String id) throws SQLException, IOException;
+
+    /**
+     * Loads a row, passing a stream over its data to <code>reader</code>.  Like the other
+     * methods reading rows, it skips the expired rows if the table has an <code>EXPIRES</code>
+     * column.
+     * @return the object read, or <code>null</code> if there is no such row
+     */
+    <T> T doLoadData(Connection connection, String id, DataReader<T> reader) throws SQLException, IOException;
+
+    /**
+     * Loads and deletes a row, so that concurrent calls for the same id, from this node or
+     * another one sharing the table, return its data at most once.
+     * @return the data of the row, or <code>null</code> if there is no such row or it has
+     *         been deleted by a concurrent call
+     */
+    byte[] doLoadAndRemoveData(Connection connection, String id) throws SQLException, IOException;
+
+    /**
+     * Loads and deletes a row like {@link #doLoadAndRemoveData(Connection, String)}, passing
+     * a stream over its data to <code>reader</code>.
+     * @return the object read, or <code>null</code> if there is no such row or it has
+     *         been deleted by a concurrent call
+     */
+    <T> T doLoadAndRemoveData(Connection connection, String id, DataReader<T> reader) throws SQLException, IOException;
     
     byte[][] doLoadData(Connection connection, String[] ids) throws SQLException, IOException;
+
+    /**
+     * Loads and deletes rows like {@link #doLoadAndRemoveData(Connection, String)}, so that
+     * concurrent calls return the data of each row at most once.
+     * @return the ids and data of the rows deleted by this call, in the order of the ids
+     */
+    Map<String, byte[]> doLoadAndRemoveData(Connection connection, String[] ids) throws SQLException, IOException;
     
     Map<String, byte[]> doLoadData(Connection connection) throws SQLException, IOException;
     
     void doStoreData(Connection connection, String id, byte[] data) throws SQLException, IOException;
     
+    void doStoreData(Connection connection, String[] ids, byte[][] data) throws SQLException, IOException;
+
+    /**
+     * Inserts a row whose data is written by <code>writer</code>, streaming it to the
+     * database when the adapter can.
+     */
+    void doStoreData(Connection connection, String id, DataWriter writer) throws SQLException, IOException;
+
+    /**
+     * Inserts a row like {@link #doStoreData(Connection, String, DataWriter)}, which expires at
+     * <code>expires</code>, in milliseconds since the epoch, or never if it is not positive.
+     * The expiration time is ignored unless the table has an <code>EXPIRES</code> column.
+     */
+    void doStoreData(Connection connection, String id, DataWriter writer, long expires) throws SQLException, IOException;
+
+    /**
+     * Inserts rows like {@link #doStoreData(Connection, String[], byte[][])}, which expire at
+     * <code>expires</code>, in milliseconds since the epoch, or never if it is not positive.
+     * The expiration time is ignored unless the table has an <code>EXPIRES</code> column.
+     */
+    void doStoreData(Connection connection, String[] ids, byte[][] data, long expires) throws SQLException, IOException;
+
+    /**
+     * Sets the expiration time of the rows which have none.  The table must have an
+     * <code>EXPIRES</code> column.
+     */
+    void doUpdateExpires(Connection connection, long expires) throws SQLException, IOException;
+    
     void doUpdateData(Connection connection, String id, byte[] data) throws SQLException, IOException;
+
+    void doUpdateData(Connection connection, String[] ids, byte[][] data) throws SQLException, IOException;
     
     void doRemoveData(Connection connection, String id) throws SQLException, IOException;
     
@@ -45,8 +106,38 @@ public interface JDBCAdapter {
     
     String[] doGetIds(Connection connection) throws SQLException, IOException;
     
+    /**
+     * @deprecated reads all the ids before <code>fromIndex</code>, use
+     *             {@link #doGetIds(Connection, String, int)} to page through the ids
+     */
     String[] doGetIds(Connection connection, int fromIndex, int toIndex) throws SQLException, IOException;
+
+    /**
+     * Returns, in order, at most <code>maxIds</code> ids greater than <code>afterId</code>,
+     * or the first ids if <code>afterId</code> is <code>null</code>.  Paging through the ids
+     * by passing the last id of the previous page reads one page of the index per call.
+     */
+    String[] doGetIds(Connection connection, String afterId, int maxIds) throws SQLException, IOException;
+
+    /**
+     * Opens a cursor over the rows whose id is between <code>fromId</code>, inclusive, and
+     * <code>toId</code>, exclusive, fetching <code>fetchSize</code> rows at a time.
+     * The connection must stay open until the cursor is closed.
+     */
+    DataCursor doOpenCursor(Connection connection, String fromId, String toId, boolean withData,
+                            int fetchSize) throws SQLException, IOException;
     
+    /**
+     * Deletes at most <code>maxRows</code> rows whose id is between <code>fromId</code>,
+     * inclusive, and <code>toId</code>, exclusive, and which expired before
+     * <code>now</code>.  The table must have an <code>EXPIRES</code> column.
+     * @param withData whether to read the data of the rows, which is otherwise not selected
+     * @return the ids and data, or <code>null</code> values without data, of the rows deleted
+     *         by this call, rows deleted concurrently by another call being left out
+     */
+    Map<String, byte[]> doRemoveExpiredData(Connection connection, String fromId, String toId,
+                                            long now, int maxRows, boolean withData) throws SQLException, IOException;
+
     Statements getStatements();
     
     void setStatements(Statements statements);
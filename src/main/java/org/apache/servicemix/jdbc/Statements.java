@@ -24,31 +24,81 @@ package org.apache.servicemix.jdbc;
  */
 public class Statements {
 
+    /**
+     * The default maximum number of ids of an <code>IN</code> list.
+     */
+    public static final int DEFAULT_MAX_IN_LIST_SIZE = 500;
+
+    /**
+     * The default maximum number of rows of a JDBC batch.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
     protected String storeTableName = "SM_STORE";
     protected String binaryDataType = "BLOB";
     protected String idDataType = "VARCHAR(255)";
+    protected String expiresDataType = "BIGINT";
+    private boolean expiresColumn;
     private String tablePrefix = "";
     private String storeDataStatement;
     private String updateDataStatement;
     private String removeDataStatement;
     private String findDataStatement;
+    private String loadAndRemoveDataStatement;
     private String findAllIdsStatement;
     private String findAllDataStatement;
+    private String findIdsInRangeStatement;
+    private String findIdsPageStatement;
+    private String findDataInRangeStatement;
     private String countStatement;
     private String[] createSchemaStatements;
     private String[] dropSchemaStatements;
+    private String[] upgradeSchemaStatements;
+    private String updateExpiresStatement;
+    private String findExpiredDataStatement;
+    private String removeExpiredDataStatement;
+    private int maxInListSize = DEFAULT_MAX_IN_LIST_SIZE;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
 
     public String[] getCreateSchemaStatements() {
         if (createSchemaStatements == null) {
-            createSchemaStatements = new String[] {
-                "CREATE TABLE " + getFullStoreTableName() + "(" + "ID " + idDataType + " NOT NULL"
-                            + ", DATA " + binaryDataType
-                            + ", PRIMARY KEY ( ID ) )",
-            };
+            if (expiresColumn) {
+                createSchemaStatements = new String[] {
+                    "CREATE TABLE " + getFullStoreTableName() + "(" + "ID " + idDataType + " NOT NULL"
+                                + ", DATA " + binaryDataType
+                                + ", EXPIRES " + expiresDataType
+                                + ", PRIMARY KEY ( ID ) )",
+                    getCreateExpiresIndexStatement(),
+                };
+            } else {
+                createSchemaStatements = new String[] {
+                    "CREATE TABLE " + getFullStoreTableName() + "(" + "ID " + idDataType + " NOT NULL"
+                                + ", DATA " + binaryDataType
+                                + ", PRIMARY KEY ( ID ) )",
+                };
+            }
         }
         return createSchemaStatements;
     }
 
+    /**
+     * @return the statements adding the <code>EXPIRES</code> column and its index to a table
+     *         created without them
+     */
+    public String[] getUpgradeSchemaStatements() {
+        if (upgradeSchemaStatements == null) {
+            upgradeSchemaStatements = new String[] {
+                "ALTER TABLE " + getFullStoreTableName() + " ADD EXPIRES " + expiresDataType,
+                getCreateExpiresIndexStatement(),
+            };
+        }
+        return upgradeSchemaStatements;
+    }
+
+    private String getCreateExpiresIndexStatement() {
+        return "CREATE INDEX " + getStoreTableName() + "_EXPIRES ON " + getFullStoreTableName() + " (EXPIRES)";
+    }
+
     public String[] getDropSchemaStatements() {
         if (dropSchemaStatements == null) {
             dropSchemaStatements = new String[] { 
@@ -60,8 +110,13 @@ public class Statements {
 
     public String getStoreDataStatement() {
         if (storeDataStatement == null) {
-            storeDataStatement = "INSERT INTO " + getFullStoreTableName()
-                    + "(ID, DATA) VALUES (?, ?)";
+            if (expiresColumn) {
+                storeDataStatement = "INSERT INTO " + getFullStoreTableName()
+                        + "(ID, DATA, EXPIRES) VALUES (?, ?, ?)";
+            } else {
+                storeDataStatement = "INSERT INTO " + getFullStoreTableName()
+                        + "(ID, DATA) VALUES (?, ?)";
+            }
         }
         return storeDataStatement;
     }
@@ -82,11 +137,103 @@ public class Statements {
 
     public String getFindDataStatement() {
         if (findDataStatement == null) {
-            findDataStatement = "SELECT DATA FROM " + getFullStoreTableName() + " WHERE ID=?";
+            findDataStatement = "SELECT DATA FROM " + getFullStoreTableName() + " WHERE ID=?"
+                    + getUnexpiredCondition();
         }
         return findDataStatement;
     }
 
+    /**
+     * @return the statement deleting a row and returning its data at once, or <code>null</code>
+     *         if the database has none, in which case the row is selected then deleted
+     */
+    public String getLoadAndRemoveDataStatement() {
+        return loadAndRemoveDataStatement;
+    }
+
+    /**
+     * @param size the number of ids of the <code>IN</code> list
+     * @return the statement selecting the ids and data of the rows whose id is in the list
+     */
+    public String getFindDataInListStatement(int size) {
+        return "SELECT ID, DATA FROM " + getFullStoreTableName() + " WHERE ID IN (" + getParameters(size) + ")"
+                + getUnexpiredCondition();
+    }
+
+    /**
+     * @param size the number of ids of the <code>IN</code> list
+     * @return the statement deleting the rows whose id is in the list
+     */
+    public String getRemoveDataInListStatement(int size) {
+        return "DELETE FROM " + getFullStoreTableName() + " WHERE ID IN (" + getParameters(size) + ")";
+    }
+
+    private static String getParameters(int size) {
+        StringBuilder sb = new StringBuilder(size * 3);
+        for (int i = 0; i < size; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the condition appended to the statements reading rows, so that they skip the
+     *         expired rows not deleted yet, taking the current time as last parameter, or an
+     *         empty string if the table has no <code>EXPIRES</code> column
+     */
+    public String getUnexpiredCondition() {
+        return expiresColumn ? " AND (EXPIRES IS NULL OR EXPIRES >= ?)" : "";
+    }
+
+    /**
+     * @return the statement setting the expiration time of the rows which have none
+     */
+    public String getUpdateExpiresStatement() {
+        if (updateExpiresStatement == null) {
+            updateExpiresStatement = "UPDATE " + getFullStoreTableName() + " SET EXPIRES=? WHERE EXPIRES IS NULL";
+        }
+        return updateExpiresStatement;
+    }
+
+    /**
+     * @param size the maximum number of rows to select
+     * @param withData whether to select the data of the rows along with their ids
+     * @return the statement selecting the ids, and the data if asked, of the rows whose id is
+     *         in a range and which expired before a time, taking the range and the time as
+     *         parameters
+     */
+    public String getFindExpiredDataStatement(int size, boolean withData) {
+        String format = findExpiredDataStatement != null ? findExpiredDataStatement
+                : "SELECT %3$s FROM %1$s WHERE ID >= ? AND ID < ? AND EXPIRES < ?";
+        return String.format(format, getFullStoreTableName(), size, withData ? "ID, DATA" : "ID");
+    }
+
+    public String getFindExpiredDataStatement() {
+        return findExpiredDataStatement;
+    }
+
+    /**
+     * Sets the format of the statement selecting expired rows, with the table name as first
+     * argument, the maximum number of rows as second argument and the selected columns, the
+     * id followed by the data if it is needed, as third argument.  Like the statement
+     * selecting a page of ids, adapters set it to limit the rows with the syntax of their
+     * database.
+     */
+    public void setFindExpiredDataStatement(String findExpiredDataStatement) {
+        this.findExpiredDataStatement = findExpiredDataStatement;
+    }
+
+    public String getRemoveExpiredDataStatement() {
+        if (removeExpiredDataStatement == null) {
+            removeExpiredDataStatement = "DELETE FROM " + getFullStoreTableName() + " WHERE ID=? AND EXPIRES < ?";
+        }
+        return removeExpiredDataStatement;
+    }
+
+    public void setRemoveExpiredDataStatement(String removeExpiredDataStatement) {
+        this.removeExpiredDataStatement = removeExpiredDataStatement;
+    }
+
     public String getFindAllIdsStatement() {
         if (findAllIdsStatement == null) {
             findAllIdsStatement = "SELECT ID FROM " + getFullStoreTableName() 
@@ -103,6 +250,47 @@ public class Statements {
         return findAllDataStatement;
     }
 
+    public String getFindIdsInRangeStatement() {
+        if (findIdsInRangeStatement == null) {
+            findIdsInRangeStatement = "SELECT ID FROM " + getFullStoreTableName()
+                    + " WHERE ID >= ? AND ID < ?" + getUnexpiredCondition();
+        }
+        return findIdsInRangeStatement;
+    }
+
+    /**
+     * @param first <code>true</code> for the first page, which has no lower bound
+     * @param size the maximum number of ids of the page
+     * @return the statement selecting, in order, the ids of a page of the table, taking the
+     *         last id of the previous page as parameter unless it is the first page
+     */
+    public String getFindIdsPageStatement(boolean first, int size) {
+        String format = findIdsPageStatement != null ? findIdsPageStatement : "SELECT ID FROM %1$s%2$s ORDER BY ID";
+        return String.format(format, getFullStoreTableName(), first ? "" : " WHERE ID > ?", size);
+    }
+
+    public String getFindIdsPageStatement() {
+        return findIdsPageStatement;
+    }
+
+    /**
+     * Sets the format of the statement selecting a page of ids, with the table name as first
+     * argument, the condition on the previous page as second argument and the page size as
+     * third argument.  Adapters set it to limit the rows with the syntax of their database,
+     * the default statement relying on {@link java.sql.Statement#setMaxRows(int)}.
+     */
+    public void setFindIdsPageStatement(String findIdsPageStatement) {
+        this.findIdsPageStatement = findIdsPageStatement;
+    }
+
+    public String getFindDataInRangeStatement() {
+        if (findDataInRangeStatement == null) {
+            findDataInRangeStatement = "SELECT ID, DATA FROM " + getFullStoreTableName()
+                    + " WHERE ID >= ? AND ID < ?" + getUnexpiredCondition();
+        }
+        return findDataInRangeStatement;
+    }
+
     public String getCountStatement() {
         if (countStatement == null) {
             countStatement = "SELECT COUNT(ID) FROM " + getFullStoreTableName();
@@ -159,6 +347,36 @@ public class Statements {
         this.idDataType = msgIdDataType;
     }
 
+    public String getExpiresDataType() {
+        return expiresDataType;
+    }
+
+    /**
+     * Sets the type of the <code>EXPIRES</code> column, which holds the time the row expires
+     * in milliseconds since the epoch.
+     */
+    public void setExpiresDataType(String expiresDataType) {
+        this.expiresDataType = expiresDataType;
+    }
+
+    public boolean isExpiresColumn() {
+        return expiresColumn;
+    }
+
+    /**
+     * Sets whether the table has an <code>EXPIRES</code> column holding the time rows expire,
+     * or <code>NULL</code> for rows which do not, with an index, so that expired rows can be
+     * deleted.  A table created without it is upgraded with the
+     * {@link #getUpgradeSchemaStatements() upgrade statements}.
+     * <p>
+     * The statements reading rows then end with the {@link #getUnexpiredCondition() condition}
+     * skipping expired rows, and take the current time as last parameter, which statements
+     * set explicitly must do too.  It must be set before the statements are first used.
+     */
+    public void setExpiresColumn(boolean expiresColumn) {
+        this.expiresColumn = expiresColumn;
+    }
+
     /**
      * @return Returns the tablePrefix.
      */
@@ -186,6 +404,10 @@ public class Statements {
         this.dropSchemaStatements = dropSchemaStatments;
     }
 
+    public void setUpgradeSchemaStatements(String[] upgradeSchemaStatements) {
+        this.upgradeSchemaStatements = upgradeSchemaStatements;
+    }
+
     public void setFindAllDataStatement(String findAllMessagesStatment) {
         this.findAllDataStatement = findAllMessagesStatment;
     }
@@ -198,6 +420,17 @@ public class Statements {
         this.removeDataStatement = removeMessageStatment;
     }
 
+    /**
+     * Sets a statement deleting the row whose id is its first parameter and returning its data
+     * as the first column of its result set, such as
+     * <code>DELETE FROM SM_STORE OUTPUT DELETED.DATA WHERE ID=?</code> on SQL Server.  With an
+     * <code>EXPIRES</code> column, it must end with the {@link #getUnexpiredCondition() condition}
+     * skipping expired rows.
+     */
+    public void setLoadAndRemoveDataStatement(String loadAndRemoveDataStatement) {
+        this.loadAndRemoveDataStatement = loadAndRemoveDataStatement;
+    }
+
     public void setUpdateDataStatement(String updateMessageStatment) {
         this.updateDataStatement = updateMessageStatment;
     }
@@ -206,8 +439,47 @@ public class Statements {
         this.findAllIdsStatement = findAllIdsStatement;
     }
 
+    public void setFindIdsInRangeStatement(String findIdsInRangeStatement) {
+        this.findIdsInRangeStatement = findIdsInRangeStatement;
+    }
+
+    public void setFindDataInRangeStatement(String findDataInRangeStatement) {
+        this.findDataInRangeStatement = findDataInRangeStatement;
+    }
+
     public void setCountStatement(String getCountStatement) {
         this.countStatement = getCountStatement;
     }
 
+    /**
+     * @return the maximum number of ids of an <code>IN</code> list
+     */
+    public int getMaxInListSize() {
+        return maxInListSize;
+    }
+
+    /**
+     * Sets the maximum number of ids of an <code>IN</code> list.  Operations on more ids are
+     * split into several statements.  Adapters lower it for databases limiting the size of
+     * <code>IN</code> lists or the number of parameters of a statement.
+     */
+    public void setMaxInListSize(int maxInListSize) {
+        this.maxInListSize = maxInListSize;
+    }
+
+    /**
+     * @return the maximum number of rows inserted or updated by a JDBC batch
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of rows inserted or updated by a JDBC batch.  Operations on more
+     * rows execute several batches.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
 }
@@ -16,20 +16,35 @@
  */
 package org.apache.servicemix.jdbc.adapter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 
+import org.apache.servicemix.jdbc.DataWriter;
 
 /**
  * This JDBCAdapter inserts and extracts BLOB data using the 
- * getBlob()/setBlob() operations.  This is a little more involved
- * since to insert a blob you have to:
- * 
- *  1: insert empty blob.
- *  2: select the blob 
- *  3: finally update the blob with data value. 
+ * getBlob()/setBlob() operations.  Streamed data is buffered
+ * and inserted using setBytes() up to the blob threshold.
+ * Larger data is written to a temporary Blob created by the
+ * connection, which is then set on the insert statement, so
+ * that it is sent to the database without being held in memory.
+ * <p/>
+ * Temporary Blobs are created with Connection.createBlob() and
+ * released with Blob.free(), which need a JDBC 4 driver.  With
+ * an older driver, set the blob threshold to a negative value
+ * so that streamed data is always buffered.
  * 
  * The databases/JDBC drivers that use this adapter are:
  * <ul>
- * <li></li> 
+ * <li>Informix</li> 
+ * <li>Oracle</li> 
  * </ul>
  * 
  * @org.apache.xbean.XBean element="blobJDBCAdapter"
@@ -37,5 +52,130 @@ package org.apache.servicemix.jdbc.adapter;
  * @version $Revision: 1.2 $
  */
 public class BlobJDBCAdapter extends DefaultJDBCAdapter {
-    
+
+    private int blobThreshold = 1024 * 1024;
+
+    /**
+     * @return the size in bytes above which streamed data is written to a temporary Blob
+     */
+    public int getBlobThreshold() {
+        return blobThreshold;
+    }
+
+    /**
+     * Sets the size in bytes above which streamed data is written to a temporary Blob
+     * instead of being inserted with setBytes().  A negative value never creates
+     * temporary Blobs, for drivers which do not support JDBC 4.
+     */
+    public void setBlobThreshold(int blobThreshold) {
+        this.blobThreshold = blobThreshold;
+    }
+
+    protected byte[] getBinaryData(ResultSet rs, int index) throws SQLException {
+        Blob blob = rs.getBlob(index);
+        if (blob == null) {
+            return null;
+        }
+        return blob.getBytes(1, (int) blob.length());
+    }
+
+    protected InputStream getBinaryStream(ResultSet rs, int index) throws SQLException {
+        Blob blob = rs.getBlob(index);
+        return blob != null ? blob.getBinaryStream() : null;
+    }
+
+    /**
+     * Buffers the data up to the blob threshold, and writes it to a temporary Blob,
+     * which is freed once inserted, when it grows larger.
+     */
+    public void doStoreData(Connection connection, String id, DataWriter writer, long expires) throws SQLException, IOException {
+        if (blobThreshold < 0) {
+            super.doStoreData(connection, id, writer, expires);
+            return;
+        }
+        BlobOutputStream out = new BlobOutputStream(connection, blobThreshold);
+        PreparedStatement s = null;
+        try {
+            try {
+                writer.write(out);
+            } finally {
+                out.close();
+            }
+            s = connection.prepareStatement(statements.getStoreDataStatement());
+            s.setString(1, id);
+            if (out.getBlob() != null) {
+                s.setBlob(2, out.getBlob());
+            } else {
+                setBinaryData(s, 2, out.toByteArray());
+            }
+            setExpires(s, expires);
+            if (s.executeUpdate() != 1) {
+                throw new SQLException("Failed to insert data");
+            }
+        } finally {
+            close(s);
+            out.free();
+        }
+    }
+
+    /**
+     * Buffers the data until it grows larger than the threshold, then moves it
+     * to a temporary Blob and writes the remaining data to the Blob.
+     */
+    private static class BlobOutputStream extends OutputStream {
+
+        private final Connection connection;
+        private final int threshold;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private Blob blob;
+        private OutputStream out;
+
+        BlobOutputStream(Connection connection, int threshold) {
+            this.connection = connection;
+            this.threshold = threshold;
+        }
+
+        public void write(int b) throws IOException {
+            getStream(1).write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            getStream(len).write(b, off, len);
+        }
+
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        Blob getBlob() {
+            return blob;
+        }
+
+        byte[] toByteArray() {
+            return buffer.toByteArray();
+        }
+
+        void free() throws SQLException {
+            if (blob != null) {
+                blob.free();
+            }
+        }
+
+        private OutputStream getStream(int len) throws IOException {
+            if (out == null && buffer.size() + len > threshold) {
+                try {
+                    blob = connection.createBlob();
+                    out = blob.setBinaryStream(1);
+                } catch (SQLException e) {
+                    throw (IOException) new IOException("Unable to create a temporary Blob").initCause(e);
+                }
+                buffer.writeTo(out);
+                buffer = null;
+            }
+            return out != null ? out : buffer;
+        }
+    }
+
 }
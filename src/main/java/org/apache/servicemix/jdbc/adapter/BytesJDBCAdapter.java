@@ -16,6 +16,8 @@
  */
 package org.apache.servicemix.jdbc.adapter;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -46,4 +48,13 @@ public class BytesJDBCAdapter extends DefaultJDBCAdapter {
         s.setBytes(index, data);
     }
 
+    /**
+     * Reads the column with getBytes(), as the types of these databases are not all
+     * readable as streams.
+     */
+    protected InputStream getBinaryStream(ResultSet rs, int index) throws SQLException {
+        byte[] data = getBinaryData(rs, index);
+        return data != null ? new ByteArrayInputStream(data) : null;
+    }
+
 }
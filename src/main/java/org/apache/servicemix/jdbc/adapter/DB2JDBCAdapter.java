@@ -20,6 +20,8 @@ import java.sql.Blob;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import org.apache.servicemix.jdbc.Statements;
+
 /**
  *
  * @org.apache.xbean.XBean element="db2JDBCAdapter"
@@ -28,6 +30,21 @@ import java.sql.SQLException;
  */
 public class DB2JDBCAdapter extends DefaultJDBCAdapter {
 
+    public void setStatements(Statements statements) {
+        if (statements.getFindIdsPageStatement() == null) {
+            // lets the optimizer stop reading the index after the page
+            statements.setFindIdsPageStatement("SELECT ID FROM %1$s%2$s ORDER BY ID FETCH FIRST %3$d ROWS ONLY");
+        }
+        if (statements.getFindExpiredDataStatement() == null) {
+            statements.setFindExpiredDataStatement("SELECT %3$s FROM %1$s WHERE ID >= ? AND ID < ? AND EXPIRES < ? FETCH FIRST %2$d ROWS ONLY");
+        }
+        if (statements.getLoadAndRemoveDataStatement() == null) {
+            statements.setLoadAndRemoveDataStatement("SELECT DATA FROM OLD TABLE (DELETE FROM "
+                    + statements.getFullStoreTableName() + " WHERE ID=?" + statements.getUnexpiredCondition() + ")");
+        }
+        super.setStatements(statements);
+    }
+
     protected byte[] getBinaryData(ResultSet rs, int index) throws SQLException {
         // Get as a BLOB
         Blob aBlob = rs.getBlob(index);
@@ -16,17 +16,25 @@
  */
 package org.apache.servicemix.jdbc.adapter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.servicemix.jdbc.DataCursor;
+import org.apache.servicemix.jdbc.DataReader;
+import org.apache.servicemix.jdbc.DataWriter;
 import org.apache.servicemix.jdbc.JDBCAdapter;
 import org.apache.servicemix.jdbc.JDBCAdapterFactory;
 import org.apache.servicemix.jdbc.Statements;
@@ -54,6 +62,17 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
 
     protected Statements statements;
 
+    private static final DataReader<byte[]> BYTES_READER = new DataReader<byte[]>() {
+        public byte[] read(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    };
+
     protected void setBinaryData(PreparedStatement s, int index, byte data[]) throws SQLException {
         s.setBytes(index, data);
     }
@@ -62,6 +81,68 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
         return rs.getBytes(index);
     }
 
+    /**
+     * Sets a parameter to the data written by <code>writer</code>.  The data is buffered
+     * and set with {@link #setBinaryData(PreparedStatement, int, byte[])}, adapters which
+     * can stream it to the database override this method.
+     */
+    protected void setBinaryData(PreparedStatement s, int index, DataWriter writer) throws SQLException, IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writer.write(buffer);
+        setBinaryData(s, index, buffer.toByteArray());
+    }
+
+    /**
+     * @return a stream over a binary column, or <code>null</code> if it is null
+     */
+    protected InputStream getBinaryStream(ResultSet rs, int index) throws SQLException {
+        return rs.getBinaryStream(index);
+    }
+
+    /**
+     * Sets the expiration time parameter of the insert statement if the table has an
+     * <code>EXPIRES</code> column, to <code>NULL</code> if <code>expires</code> is not positive.
+     */
+    protected void setExpires(PreparedStatement s, long expires) throws SQLException {
+        if (statements.isExpiresColumn()) {
+            if (expires > 0) {
+                s.setLong(3, expires);
+            } else {
+                s.setNull(3, Types.BIGINT);
+            }
+        }
+    }
+
+    /**
+     * Sets the current time parameter of the {@link Statements#getUnexpiredCondition() condition}
+     * skipping expired rows if the table has an <code>EXPIRES</code> column.
+     * @return the index of the next parameter
+     */
+    protected int setUnexpired(PreparedStatement s, int index) throws SQLException {
+        if (statements.isExpiresColumn()) {
+            s.setLong(index++, System.currentTimeMillis());
+        }
+        return index;
+    }
+
+    /**
+     * Reads a binary column with <code>reader</code>, then closes the stream.
+     */
+    protected <T> T readBinaryData(ResultSet rs, int index, DataReader<T> reader) throws SQLException, IOException {
+        return read(getBinaryStream(rs, index), reader);
+    }
+
+    protected static <T> T read(InputStream in, DataReader<T> reader) throws IOException {
+        if (in == null) {
+            return null;
+        }
+        try {
+            return reader.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
     public void doCreateTables(Connection connection) throws SQLException, IOException {
         Statement s = null;
         try {
@@ -86,6 +167,9 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
             // an exception will make the connection unusable.
             // So if the table already exists, do not try to re-create them
             if (alreadyExists) {
+                if (statements.isExpiresColumn()) {
+                    doUpgradeTables(connection);
+                }
                 return;
             }
 
@@ -115,6 +199,47 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
         }
     }
 
+    /**
+     * Adds the <code>EXPIRES</code> column and its index to a table created without them.
+     * The rows already in the table do not expire.
+     */
+    protected void doUpgradeTables(Connection connection) throws SQLException, IOException {
+        ResultSet rs = null;
+        try {
+            rs = connection.getMetaData().getColumns(null, null, statements.getFullStoreTableName(), null);
+            while (rs.next()) {
+                if ("EXPIRES".equalsIgnoreCase(rs.getString("COLUMN_NAME"))) {
+                    return;
+                }
+            }
+        } finally {
+            close(rs);
+        }
+        LOG.info("Adding the EXPIRES column to table " + statements.getFullStoreTableName());
+        Statement s = null;
+        try {
+            s = connection.createStatement();
+            String[] upgradeStatements = statements.getUpgradeSchemaStatements();
+            for (int i = 0; i < upgradeStatements.length; i++) {
+                LOG.debug("Executing SQL: " + upgradeStatements[i]);
+                s.execute(upgradeStatements[i]);
+            }
+        } finally {
+            close(s);
+        }
+    }
+
+    public void doUpdateExpires(Connection connection, long expires) throws SQLException, IOException {
+        PreparedStatement s = null;
+        try {
+            s = connection.prepareStatement(statements.getUpdateExpiresStatement());
+            s.setLong(1, expires);
+            s.executeUpdate();
+        } finally {
+            close(s);
+        }
+    }
+
     public void doDropTables(Connection connection) throws SQLException, IOException {
         Statement s = null;
         try {
@@ -145,6 +270,26 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
             }
             s.setString(1, id);
             setBinaryData(s, 2, data);
+            setExpires(s, 0);
+            if (s.executeUpdate() != 1) {
+                throw new SQLException("Failed to insert data");
+            }
+        } finally {
+            close(s);
+        }
+    }
+
+    public void doStoreData(Connection connection, String id, DataWriter writer) throws SQLException, IOException {
+        doStoreData(connection, id, writer, 0);
+    }
+
+    public void doStoreData(Connection connection, String id, DataWriter writer, long expires) throws SQLException, IOException {
+        PreparedStatement s = null;
+        try {
+            s = connection.prepareStatement(statements.getStoreDataStatement());
+            s.setString(1, id);
+            setBinaryData(s, 2, writer);
+            setExpires(s, expires);
             if (s.executeUpdate() != 1) {
                 throw new SQLException("Failed to insert data");
             }
@@ -153,17 +298,96 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
         }
     }
 
+    public void doStoreData(Connection connection, String[] ids, byte[][] data) throws SQLException, IOException {
+        doStoreData(connection, ids, data, 0);
+    }
+
+    public void doStoreData(Connection connection, String[] ids, byte[][] data, long expires) throws SQLException, IOException {
+        PreparedStatement s = null;
+        try {
+            s = connection.prepareStatement(statements.getStoreDataStatement());
+            int batched = 0;
+            for (int i = 0; i < ids.length; i++) {
+                s.setString(1, ids[i]);
+                setBinaryData(s, 2, data[i]);
+                setExpires(s, expires);
+                s.addBatch();
+                if (++batched == statements.getMaxBatchSize() || i == ids.length - 1) {
+                    checkBatch(s.executeBatch(), "Failed to insert data");
+                    batched = 0;
+                }
+            }
+        } finally {
+            close(s);
+        }
+    }
+
+    private static void checkBatch(int[] counts, String message) throws SQLException {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO) {
+                throw new SQLException(message);
+            }
+        }
+    }
+
     public byte[] doLoadData(Connection connection, String id) throws SQLException, IOException {
+        return doLoadData(connection, id, BYTES_READER);
+    }
+
+    public <T> T doLoadData(Connection connection, String id, DataReader<T> reader) throws SQLException, IOException {
         PreparedStatement s = null;
         ResultSet rs = null;
         try {
             s = connection.prepareStatement(statements.getFindDataStatement());
             s.setString(1, id);
+            setUnexpired(s, 2);
             rs = s.executeQuery();
             if (!rs.next()) {
                 return null;
             }
-            return getBinaryData(rs, 1);
+            return readBinaryData(rs, 1, reader);
+        } finally {
+            close(rs);
+            close(s);
+        }
+    }
+
+    public byte[] doLoadAndRemoveData(Connection connection, String id) throws SQLException, IOException {
+        return doLoadAndRemoveData(connection, id, BYTES_READER);
+    }
+
+    /**
+     * Runs the load and remove statement if the database has one.  Otherwise, selects the row
+     * then deletes it, and only returns its data if the delete removed it, as a concurrent
+     * call may have deleted it in between.
+     */
+    public <T> T doLoadAndRemoveData(Connection connection, String id, DataReader<T> reader) throws SQLException, IOException {
+        String sql = statements.getLoadAndRemoveDataStatement();
+        if (sql == null) {
+            T data = doLoadData(connection, id, reader);
+            if (data == null) {
+                return null;
+            }
+            PreparedStatement s = null;
+            try {
+                s = connection.prepareStatement(statements.getRemoveDataStatement());
+                s.setString(1, id);
+                return s.executeUpdate() == 1 ? data : null;
+            } finally {
+                close(s);
+            }
+        }
+        PreparedStatement s = null;
+        ResultSet rs = null;
+        try {
+            s = connection.prepareStatement(sql);
+            s.setString(1, id);
+            setUnexpired(s, 2);
+            rs = s.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            return readBinaryData(rs, 1, reader);
         } finally {
             close(rs);
             close(s);
@@ -186,6 +410,25 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
         }
     }
 
+    public void doUpdateData(Connection connection, String[] ids, byte[][] data) throws SQLException, IOException {
+        PreparedStatement s = null;
+        try {
+            s = connection.prepareStatement(statements.getUpdateDataStatement());
+            int batched = 0;
+            for (int i = 0; i < ids.length; i++) {
+                s.setString(2, ids[i]);
+                setBinaryData(s, 1, data[i]);
+                s.addBatch();
+                if (++batched == statements.getMaxBatchSize() || i == ids.length - 1) {
+                    checkBatch(s.executeBatch(), "Failed to update data");
+                    batched = 0;
+                }
+            }
+        } finally {
+            close(s);
+        }
+    }
+
     public void doRemoveData(Connection connection, String id) throws SQLException, IOException {
         PreparedStatement s = null;
         try {
@@ -199,7 +442,55 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
         }
     }
 
-    private static void close(Statement s) {
+    public DataCursor doOpenCursor(Connection connection, String fromId, String toId, boolean withData,
+                                   int fetchSize) throws SQLException, IOException {
+        String sql = withData ? statements.getFindDataInRangeStatement() : statements.getFindIdsInRangeStatement();
+        PreparedStatement s = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            s.setFetchSize(fetchSize);
+            s.setString(1, fromId);
+            s.setString(2, toId);
+            setUnexpired(s, 3);
+            return new ResultSetCursor(s, s.executeQuery());
+        } catch (SQLException e) {
+            close(s);
+            throw e;
+        }
+    }
+
+    private class ResultSetCursor implements DataCursor {
+
+        private final Statement statement;
+        private final ResultSet resultSet;
+
+        ResultSetCursor(Statement statement, ResultSet resultSet) {
+            this.statement = statement;
+            this.resultSet = resultSet;
+        }
+
+        public boolean next() throws SQLException {
+            return resultSet.next();
+        }
+
+        public String getId() throws SQLException {
+            return resultSet.getString(1);
+        }
+
+        public byte[] getData() throws SQLException {
+            return getBinaryData(resultSet, 2);
+        }
+
+        public InputStream getDataStream() throws SQLException {
+            return getBinaryStream(resultSet, 2);
+        }
+
+        public void close() {
+            DefaultJDBCAdapter.close(resultSet);
+            DefaultJDBCAdapter.close(statement);
+        }
+    }
+
+    protected static void close(Statement s) {
         try {
             if (s != null) {
                 s.close();
@@ -209,7 +500,7 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
         }
     }
 
-    private static void close(ResultSet rs) {
+    protected static void close(ResultSet rs) {
         try {
             if (rs != null) {
                 rs.close();
@@ -219,6 +510,54 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
         }
     }
 
+    /**
+     * Selects the expired rows, then deletes them one by one in a batch, so that rows deleted
+     * in between by another node are not returned.
+     */
+    public Map<String, byte[]> doRemoveExpiredData(Connection connection, String fromId, String toId,
+                                                   long now, int maxRows, boolean withData) throws SQLException, IOException {
+        Map<String, byte[]> expired = new LinkedHashMap<String, byte[]>();
+        PreparedStatement s = null;
+        ResultSet rs = null;
+        try {
+            s = connection.prepareStatement(statements.getFindExpiredDataStatement(maxRows, withData));
+            s.setMaxRows(maxRows);
+            s.setString(1, fromId);
+            s.setString(2, toId);
+            s.setLong(3, now);
+            rs = s.executeQuery();
+            while (rs.next()) {
+                expired.put(rs.getString(1), withData ? getBinaryData(rs, 2) : null);
+            }
+        } finally {
+            close(rs);
+            close(s);
+        }
+        if (expired.isEmpty()) {
+            return expired;
+        }
+        s = null;
+        try {
+            s = connection.prepareStatement(statements.getRemoveExpiredDataStatement());
+            for (String id : expired.keySet()) {
+                s.setString(1, id);
+                s.setLong(2, now);
+                s.addBatch();
+            }
+            int[] counts = s.executeBatch();
+            Iterator<String> it = expired.keySet().iterator();
+            for (int i = 0; i < counts.length; i++) {
+                it.next();
+                if (counts[i] == 0) {
+                    it.remove();
+                }
+            }
+        } finally {
+            close(s);
+        }
+        return expired;
+    }
+
     public Statements getStatements() {
         return statements;
     }
@@ -227,35 +566,142 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
         this.statements = statements;
     }
 
+    /**
+     * Selects the rows with <code>IN</code> lists of at most {@link Statements#getMaxInListSize()} ids.
+     */
     public byte[][] doLoadData(Connection connection, String[] ids) throws SQLException, IOException {
-        PreparedStatement s = null;
+        Map<String, byte[]> found = new HashMap<String, byte[]>();
+        for (int from = 0; from < ids.length;) {
+            int count = Math.min(ids.length - from, statements.getMaxInListSize());
+            PreparedStatement s = null;
+            ResultSet rs = null;
+            try {
+                s = prepareInList(connection, false, ids, from, count);
+                rs = s.executeQuery();
+                while (rs.next()) {
+                    found.put(rs.getString(1), getBinaryData(rs, 2));
+                }
+            } finally {
+                close(rs);
+                close(s);
+            }
+            from += count;
+        }
         byte[][] datas = new byte[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            datas[i] = found.get(ids[i]);
+        }
+        return datas;
+    }
+
+    /**
+     * Runs the load and remove statement for each row if the database has one.  Otherwise,
+     * selects the rows with <code>IN</code> lists, then deletes them one by one in batches,
+     * and only returns the rows deleted by this call, as a concurrent call may have deleted
+     * some of them in between.  Adapters whose driver does not report the update counts of
+     * batches should load and remove the rows one by one instead.
+     */
+    public Map<String, byte[]> doLoadAndRemoveData(Connection connection, String[] ids) throws SQLException, IOException {
+        if (statements.getLoadAndRemoveDataStatement() != null) {
+            return doLoadAndRemoveEach(connection, ids);
+        }
+        Map<String, byte[]> removed = new LinkedHashMap<String, byte[]>();
+        byte[][] datas = doLoadData(connection, ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (datas[i] != null) {
+                removed.put(ids[i], datas[i]);
+            }
+        }
+        if (removed.isEmpty()) {
+            return removed;
+        }
+        PreparedStatement s = null;
         try {
-            s = connection.prepareStatement(statements.getFindDataStatement());
-            for (int i = 0; i < ids.length; i++) {
-                s.setString(1, ids[i]);
-                ResultSet rs = s.executeQuery();
-                if (rs.next()) {
-                    datas[i] = getBinaryData(rs, 1);
+            s = connection.prepareStatement(statements.getRemoveDataStatement());
+            List<String> batch = new ArrayList<String>();
+            for (Iterator<String> it = new ArrayList<String>(removed.keySet()).iterator(); it.hasNext();) {
+                String id = it.next();
+                s.setString(1, id);
+                s.addBatch();
+                batch.add(id);
+                if (batch.size() == statements.getMaxBatchSize() || !it.hasNext()) {
+                    int[] counts = s.executeBatch();
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] == 0) {
+                            removed.remove(batch.get(i));
+                        }
+                    }
+                    batch.clear();
                 }
-                close(rs);
             }
-            return datas;
         } finally {
             close(s);
         }
+        return removed;
     }
 
+    /**
+     * Loads and deletes the rows one by one with {@link #doLoadAndRemoveData(Connection, String)}.
+     */
+    protected Map<String, byte[]> doLoadAndRemoveEach(Connection connection, String[] ids) throws SQLException, IOException {
+        Map<String, byte[]> removed = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < ids.length; i++) {
+            byte[] data = doLoadAndRemoveData(connection, ids[i]);
+            if (data != null) {
+                removed.put(ids[i], data);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Deletes the rows with <code>IN</code> lists of at most {@link Statements#getMaxInListSize()} ids.
+     */
     public void doRemoveData(Connection connection, String[] ids) throws SQLException, IOException {
-        PreparedStatement s = null;
-        try {
-            s = connection.prepareStatement(statements.getRemoveDataStatement());
-            for (int i = 0; i < ids.length; i++) {
-                s.setString(1, ids[i]);
+        for (int from = 0; from < ids.length;) {
+            int count = Math.min(ids.length - from, statements.getMaxInListSize());
+            PreparedStatement s = null;
+            try {
+                s = prepareInList(connection, true, ids, from, count);
                 s.executeUpdate();
+            } finally {
+                close(s);
             }
-        } finally {
+            from += count;
+        }
+    }
+
+    /**
+     * Rounds the size of an <code>IN</code> list up to a power of two, within the maximum size,
+     * so that a few statement shapes are prepared and cached by the driver and the database.
+     */
+    private int getInListSize(int count) {
+        int size = Integer.highestOneBit(count);
+        if (size < count) {
+            size <<= 1;
+        }
+        return Math.min(size, statements.getMaxInListSize());
+    }
+
+    /**
+     * Prepares an <code>IN</code> list statement, repeating the last id in its extra parameters.
+     */
+    private PreparedStatement prepareInList(Connection connection, boolean delete, String[] ids,
+                                            int from, int count) throws SQLException {
+        int size = getInListSize(count);
+        PreparedStatement s = connection.prepareStatement(delete
+            ? statements.getRemoveDataInListStatement(size) : statements.getFindDataInListStatement(size));
+        try {
+            for (int i = 0; i < size; i++) {
+                s.setString(i + 1, ids[from + Math.min(i, count - 1)]);
+            }
+            if (!delete) {
+                setUnexpired(s, size + 1);
+            }
+            return s;
+        } catch (SQLException e) {
             close(s);
+            throw e;
         }
     }
 
@@ -290,19 +736,23 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
         }
     }
 
+    /**
+     * Reads the ids with a forward only result set limited to <code>toIndex</code> rows.
+     */
+    @Deprecated
     public String[] doGetIds(Connection connection, int fromIndex, int toIndex) throws SQLException, IOException {
-        Statement s = null;
+        PreparedStatement s = null;
         ResultSet rs = null;
         try {
-            s = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+            s = connection.prepareStatement(statements.getFindIdsPageStatement(true, toIndex),
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            s.setMaxRows(toIndex);
             s.setFetchSize(toIndex - fromIndex);
-            rs = s.executeQuery(statements.getFindAllIdsStatement());
-            rs.absolute(fromIndex + 1);
+            rs = s.executeQuery();
             String[] ids = new String[toIndex - fromIndex];
-            for (int row = 0; row < toIndex - fromIndex; row++) {
-                ids[row] = rs.getString(1);
-                if (!rs.next()) {
-                    break;
+            for (int row = 0; row < toIndex && rs.next(); row++) {
+                if (row >= fromIndex) {
+                    ids[row - fromIndex] = rs.getString(1);
                 }
             }
             return ids;
@@ -311,6 +761,29 @@ public class DefaultJDBCAdapter implements JDBCAdapter {
             close(s);
         }
     }
+
+    public String[] doGetIds(Connection connection, String afterId, int maxIds) throws SQLException, IOException {
+        PreparedStatement s = null;
+        ResultSet rs = null;
+        try {
+            s = connection.prepareStatement(statements.getFindIdsPageStatement(afterId == null, maxIds),
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            s.setMaxRows(maxIds);
+            s.setFetchSize(maxIds);
+            if (afterId != null) {
+                s.setString(1, afterId);
+            }
+            rs = s.executeQuery();
+            List<String> ids = new ArrayList<String>(maxIds);
+            while (rs.next()) {
+                ids.add(rs.getString(1));
+            }
+            return ids.toArray(new String[ids.size()]);
+        } finally {
+            close(rs);
+            close(s);
+        }
+    }
     
     public Map<String, byte[]> doLoadData(Connection connection) throws SQLException, IOException {
         Statement s = null;
@@ -25,6 +25,13 @@ import org.apache.servicemix.jdbc.Statements;
 public class HsqldbJDBCAdapter extends BytesJDBCAdapter {
 
     public void setStatements(Statements statements) {
+        if (statements.getFindIdsPageStatement() == null) {
+            // HSQLDB 1.7 has no trailing LIMIT clause
+            statements.setFindIdsPageStatement("SELECT TOP %3$d ID FROM %1$s%2$s ORDER BY ID");
+        }
+        if (statements.getFindExpiredDataStatement() == null) {
+            statements.setFindExpiredDataStatement("SELECT TOP %2$d %3$s FROM %1$s WHERE ID >= ? AND ID < ? AND EXPIRES < ?");
+        }
         statements.setBinaryDataType("OTHER");
         super.setStatements(statements);
     }
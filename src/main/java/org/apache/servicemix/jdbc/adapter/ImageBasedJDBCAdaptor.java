@@ -32,8 +32,21 @@ import org.apache.servicemix.jdbc.Statements;
  */
 public class ImageBasedJDBCAdaptor extends DefaultJDBCAdapter {
 
+    /**
+     * MS SQL limits a statement to 2100 parameters, Sybase to 2048.
+     */
+    private static final int MAX_IN_LIST_SIZE = 2000;
+
     public void setStatements(Statements statements) {
+        if (statements.getFindIdsPageStatement() == null) {
+            // TOP is supported by MS SQL and Sybase ASE 12.5.3 onwards
+            statements.setFindIdsPageStatement("SELECT TOP %3$d ID FROM %1$s%2$s ORDER BY ID");
+        }
+        if (statements.getFindExpiredDataStatement() == null) {
+            statements.setFindExpiredDataStatement("SELECT TOP %2$d %3$s FROM %1$s WHERE ID >= ? AND ID < ? AND EXPIRES < ?");
+        }
         statements.setBinaryDataType("IMAGE");
+        statements.setMaxInListSize(Math.min(statements.getMaxInListSize(), MAX_IN_LIST_SIZE));
         super.setStatements(statements);
     }
     
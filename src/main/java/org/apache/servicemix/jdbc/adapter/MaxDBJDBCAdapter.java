@@ -26,6 +26,7 @@ public class MaxDBJDBCAdapter extends DefaultJDBCAdapter {
     public void setStatements(Statements statements) {
         statements.setBinaryDataType("LONG BYTE");
         statements.setIdDataType("VARCHAR(250) ASCII");
+        statements.setExpiresDataType("FIXED(19)");
         super.setStatements(statements);
     }
 
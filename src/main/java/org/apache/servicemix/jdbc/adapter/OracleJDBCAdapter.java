@@ -16,9 +16,16 @@
  */
 package org.apache.servicemix.jdbc.adapter;
 
+import java.io.IOException;
 import java.sql.Blob;
-import java.sql.ResultSet;
+import java.sql.CallableStatement;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Map;
+
+import org.apache.servicemix.jdbc.DataReader;
+import org.apache.servicemix.jdbc.Statements;
 
 /**
  * Implements all the default JDBC operations that are used
@@ -28,8 +35,10 @@ import java.sql.SQLException;
  * implementation of methods to account for differences
  * in JDBC Driver implementations.
  * <p/>
- * The JDBCAdapter inserts and extracts BLOB data using the
- * getBytes()/setBytes() operations.
+ * The JDBCAdapter inserts BLOB data using the setBytes() operation,
+ * or a temporary Blob when streamed data is larger than the blob
+ * threshold, and extracts it using the getBlob() operation.
+ * Temporary Blobs need a JDBC 4 driver, see {@link BlobJDBCAdapter}.
  * <p/>
  * The databases/JDBC drivers that use this adapter are:
  * <ul>
@@ -40,14 +49,57 @@ import java.sql.SQLException;
  *
  * @version $Revision: 1.2 $
  */
-public class OracleJDBCAdapter extends DefaultJDBCAdapter {
+public class OracleJDBCAdapter extends BlobJDBCAdapter {
+
+    /**
+     * Oracle rejects <code>IN</code> lists of more than 1000 expressions.
+     */
+    private static final int MAX_IN_LIST_SIZE = 1000;
 
-    protected byte[] getBinaryData(ResultSet rs, int index) throws SQLException {
-        // Get as a BLOB
-        Blob aBlob = rs.getBlob(index);
-        if (aBlob == null) {
-            return null;
+    public void setStatements(Statements statements) {
+        statements.setExpiresDataType("NUMBER(19)");
+        if (statements.getFindIdsPageStatement() == null) {
+            // ROWNUM is assigned before ORDER BY, hence the sub-query
+            statements.setFindIdsPageStatement("SELECT ID FROM (SELECT ID FROM %1$s%2$s ORDER BY ID) WHERE ROWNUM <= %3$d");
+        }
+        if (statements.getFindExpiredDataStatement() == null) {
+            statements.setFindExpiredDataStatement("SELECT %3$s FROM %1$s WHERE ID >= ? AND ID < ? AND EXPIRES < ? AND ROWNUM <= %2$d");
         }
-        return aBlob.getBytes(1, (int) aBlob.length());
+        statements.setMaxInListSize(Math.min(statements.getMaxInListSize(), MAX_IN_LIST_SIZE));
+        super.setStatements(statements);
+    }
+
+    /**
+     * Deletes the row and returns its data with a <code>RETURNING INTO</code> clause, which
+     * Oracle only supports in PL/SQL, unless another load and remove statement has been set.
+     */
+    public <T> T doLoadAndRemoveData(Connection connection, String id, DataReader<T> reader) throws SQLException, IOException {
+        if (statements.getLoadAndRemoveDataStatement() != null) {
+            return super.doLoadAndRemoveData(connection, id, reader);
+        }
+        CallableStatement s = null;
+        try {
+            s = connection.prepareCall("BEGIN DELETE FROM " + statements.getFullStoreTableName()
+                    + " WHERE ID=?" + statements.getUnexpiredCondition() + " RETURNING DATA INTO ?; END;");
+            s.setString(1, id);
+            int out = setUnexpired(s, 2);
+            s.registerOutParameter(out, Types.BLOB);
+            s.execute();
+            Blob aBlob = s.getBlob(out);
+            if (aBlob == null) {
+                return null;
+            }
+            return read(aBlob.getBinaryStream(), reader);
+        } finally {
+            close(s);
+        }
+    }
+
+    /**
+     * Loads and deletes the rows one by one, as older Oracle drivers do not report the update
+     * counts of batches.
+     */
+    public Map<String, byte[]> doLoadAndRemoveData(Connection connection, String[] ids) throws SQLException, IOException {
+        return doLoadAndRemoveEach(connection, ids);
     }
 }
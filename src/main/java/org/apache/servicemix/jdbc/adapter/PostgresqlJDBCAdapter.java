@@ -40,7 +40,18 @@ import org.apache.servicemix.jdbc.Statements;
 public class PostgresqlJDBCAdapter extends BytesJDBCAdapter {
 
     public void setStatements(Statements statements) {
+        if (statements.getFindIdsPageStatement() == null) {
+            // the LIMIT lets the planner read the page from the primary key index
+            statements.setFindIdsPageStatement("SELECT ID FROM %1$s%2$s ORDER BY ID LIMIT %3$d");
+        }
+        if (statements.getFindExpiredDataStatement() == null) {
+            statements.setFindExpiredDataStatement("SELECT %3$s FROM %1$s WHERE ID >= ? AND ID < ? AND EXPIRES < ? LIMIT %2$d");
+        }
         statements.setBinaryDataType("BYTEA");
+        if (statements.getLoadAndRemoveDataStatement() == null) {
+            statements.setLoadAndRemoveDataStatement("DELETE FROM " + statements.getFullStoreTableName()
+                    + " WHERE ID=?" + statements.getUnexpiredCondition() + " RETURNING DATA");
+        }
         super.setStatements(statements);
     }
 
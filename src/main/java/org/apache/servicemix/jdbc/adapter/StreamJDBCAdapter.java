@@ -16,17 +16,37 @@
  */
 package org.apache.servicemix.jdbc.adapter;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import org.apache.servicemix.jdbc.DataWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This JDBCAdapter inserts and extracts BLOB data using the 
  * setBinaryStream()/getBinaryStream() operations.
+ * <p/>
+ * Data is inserted using the JDBC 4 setBinaryStream() operation
+ * without a length.  Drivers which do not support it are given
+ * the length of the data instead.
+ * <p/>
+ * As the insert statement reads the stream once the data has been
+ * written, streamed data is buffered in memory up to the spill
+ * threshold, and spilled to a temporary file, which is deleted
+ * once inserted, when it grows larger.
  * 
  * The databases/JDBC drivers that use this adapter are:
  * <ul>
@@ -39,21 +59,41 @@ import java.sql.SQLException;
  */
 public class StreamJDBCAdapter extends DefaultJDBCAdapter {
 
+    private static final Logger LOG = LoggerFactory.getLogger(StreamJDBCAdapter.class);
+
+    private volatile boolean lengthRequired;
+    private int spillThreshold = 1024 * 1024;
+
+    /**
+     * @return the size in bytes above which streamed data is spilled to a temporary file
+     */
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Sets the size in bytes above which streamed data is spilled to a temporary file
+     * instead of being buffered in memory.  A negative value always buffers it in memory.
+     */
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
     /**
      * @see org.apache.activemq.store.jdbc.adapter.DefaultJDBCAdapter#getBinaryData(java.sql.ResultSet, int)
      */
     protected byte[] getBinaryData(ResultSet rs, int index) throws SQLException {
-
+        InputStream is = rs.getBinaryStream(index);
+        if (is == null) {
+            return null;
+        }
         try {
-            InputStream is = rs.getBinaryStream(index);
             ByteArrayOutputStream os = new ByteArrayOutputStream(1024 * 4);
-            int ch = is.read();
-            while (ch >= 0) {
-                os.write(ch);
-                ch = is.read();
+            byte[] buffer = new byte[1024 * 4];
+            for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+                os.write(buffer, 0, n);
             }
             is.close();
-            os.close();
             return os.toByteArray();
         } catch (IOException e) {
             throw (SQLException) new SQLException("Error reading binary parameter: " + index).initCause(e);
@@ -64,7 +104,132 @@ public class StreamJDBCAdapter extends DefaultJDBCAdapter {
      * @see org.apache.activemq.store.jdbc.adapter.DefaultJDBCAdapter#setBinaryData(java.sql.PreparedStatement, int, byte[])
      */
     protected void setBinaryData(PreparedStatement s, int index, byte[] data) throws SQLException {
-        s.setBinaryStream(index, new ByteArrayInputStream(data), data.length);
+        setBinaryStream(s, index, new ByteArrayInputStream(data), data.length);
+    }
+
+    /**
+     * Buffers the data up to the spill threshold, and spills it to a temporary file,
+     * which is deleted once inserted, when it grows larger.  The data is then streamed
+     * from the buffer or the file, without being copied.
+     */
+    public void doStoreData(Connection connection, String id, DataWriter writer, long expires) throws SQLException, IOException {
+        SpillOutputStream out = new SpillOutputStream(spillThreshold);
+        PreparedStatement s = null;
+        try {
+            try {
+                writer.write(out);
+            } finally {
+                out.close();
+            }
+            s = connection.prepareStatement(statements.getStoreDataStatement());
+            s.setString(1, id);
+            setBinaryStream(s, 2, out.getInputStream(), out.size());
+            setExpires(s, expires);
+            if (s.executeUpdate() != 1) {
+                throw new SQLException("Failed to insert data");
+            }
+        } finally {
+            close(s);
+            out.delete();
+        }
+    }
+
+    /**
+     * Sets the stream without its length, unless the driver does not support JDBC 4,
+     * which is remembered for the next statements.
+     */
+    protected void setBinaryStream(PreparedStatement s, int index, InputStream is, int length) throws SQLException {
+        if (!lengthRequired) {
+            try {
+                s.setBinaryStream(index, is);
+                return;
+            } catch (AbstractMethodError e) {
+                lengthRequired = true;
+            } catch (SQLFeatureNotSupportedException e) {
+                lengthRequired = true;
+            }
+        }
+        s.setBinaryStream(index, is, length);
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(1024 * 4);
+        }
+
+        InputStream getInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * Buffers the data until it grows larger than the threshold, then moves it
+     * to a temporary file and writes the remaining data to the file.
+     */
+    private static class SpillOutputStream extends OutputStream {
+
+        private final int threshold;
+        private Buffer buffer = new Buffer();
+        private File file;
+        private OutputStream out;
+        private InputStream in;
+        private int size;
+
+        SpillOutputStream(int threshold) {
+            this.threshold = threshold;
+        }
+
+        public void write(int b) throws IOException {
+            getStream(1).write(b);
+            size++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            getStream(len).write(b, off, len);
+            size += len;
+        }
+
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        InputStream getInputStream() throws IOException {
+            in = file != null ? new FileInputStream(file) : buffer.getInputStream();
+            return in;
+        }
+
+        void delete() {
+            if (file == null) {
+                return;
+            }
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // Do nothing
+            }
+            if (!file.delete()) {
+                LOG.warn("Unable to delete temporary file " + file);
+                file.deleteOnExit();
+            }
+        }
+
+        private OutputStream getStream(int len) throws IOException {
+            if (out == null && threshold >= 0 && buffer.size() + len > threshold) {
+                file = File.createTempFile("servicemix-store", ".tmp");
+                out = new BufferedOutputStream(new FileOutputStream(file));
+                buffer.writeTo(out);
+                buffer = null;
+            }
+            return out != null ? out : buffer;
+        }
     }
 
 }
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store;
+
+import java.util.concurrent.Future;
+
+/**
+ * A non-blocking view of a {@link Store}.
+ * <p>
+ * Each operation returns immediately with a {@link Future} completed once the
+ * operation has been performed by the underlying store.  Errors are reported by the
+ * future as an {@link java.util.concurrent.ExecutionException} wrapping the
+ * {@link java.io.IOException} thrown by the store.
+ * </p>
+ */
+public interface AsyncStore {
+
+    /**
+     * Returns the blocking store this view operates on.
+     * @return the underlying store
+     */
+    Store getStore();
+
+    /**
+     * Put an object in the store under the given id.
+     *
+     * @param id the id of the object to store
+     * @param data the object to store
+     * @return a future completed once the object has been stored
+     * @see Store#store(String, Object)
+     */
+    Future<Void> store(String id, Object data);
+
+    /**
+     * Put an object into the store.
+     *
+     * @param data the object to store
+     * @return a future giving the id of the object stored
+     * @see Store#store(Object)
+     */
+    Future<String> store(Object data);
+
+    /**
+     * Loads and removes an object from the store.
+     *
+     * @param id the id of the object
+     * @return a future giving the object, or <code>null</code> if the object could not be found
+     * @see Store#load(String)
+     */
+    Future<Object> load(String id);
+
+    /**
+     * Loads an object from the store without removing it.
+     *
+     * @param id the id of the object
+     * @return a future giving the object, or <code>null</code> if the object could not be found
+     * @see Store#peek(String)
+     */
+    Future<Object> peek(String id);
+
+}
@@ -19,29 +19,65 @@ package org.apache.servicemix.store;
 import java.io.Serializable;
 
 /**
+ * An object stored along with its creation time and, optionally, its own expiration time.
  *
  * @author iocanel
  */
 public class Entry implements Serializable {
 
+    // entries written before the expiration was added are read with no expiration
+    private static final long serialVersionUID = 3757149763017901223L;
+
     private final long time = System.currentTimeMillis();
     private final Object data;
+    private final long expiration;
 
     public Entry(Object data) {
+        this(data, -1);
+    }
+
+    /**
+     * @param data the stored object
+     * @param ttl the time to live of the entry in milliseconds, or a negative value if the
+     *            entry expires according to the timeout of the store
+     */
+    public Entry(Object data, long ttl) {
         this.data = data;
+        this.expiration = ttl > 0 ? time + ttl : 0;
     }
 
     public long getTime() {
         return time;
     }
 
+    /**
+     * @return the time after which the entry is expired, or <code>0</code> if the entry
+     *         expires according to the timeout of the store
+     */
+    public long getExpiration() {
+        return expiration;
+    }
+
+    /**
+     * Checks whether the entry is expired, using its own expiration time if it has one
+     * and the given timeout otherwise.
+     * @param now the current time in milliseconds
+     * @param timeout the timeout of the store, or a negative value if entries do not time out
+     */
+    public boolean isExpired(long now, long timeout) {
+        if (expiration > 0) {
+            return now > expiration;
+        }
+        return timeout > 0 && now - time > timeout;
+    }
+
     public Object getData() {
         return data;
     }
 
     @Override
     public String toString() {
-        return "Entry{" + "time=" + time + ", data=" + data + '}';
+        return "Entry{" + "time=" + time + ", expiration=" + expiration + ", data=" + data + '}';
     }
 
     @Override
@@ -53,7 +89,7 @@ public class Entry implements Serializable {
             return false;
         }
         final Entry other = (Entry) obj;
-        if (this.time != other.time) {
+        if (this.time != other.time || this.expiration != other.expiration) {
             return false;
         }
         if (this.data != other.data && (this.data == null || !this.data.equals(other.data))) {
@@ -66,6 +102,7 @@ public class Entry implements Serializable {
     public int hashCode() {
         int hash = 7;
         hash = 53 * hash + (int) (this.time ^ (this.time >>> 32));
+        hash = 53 * hash + (int) (this.expiration ^ (this.expiration >>> 32));
         hash = 53 * hash + (this.data != null ? this.data.hashCode() : 0);
         return hash;
     }
@@ -17,7 +17,9 @@
 package org.apache.servicemix.store;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -55,7 +57,22 @@ public interface Store  {
      * @throws IOException if an error occurs
      */
     void store(String id, Object data) throws IOException;
-    
+
+    /**
+     * Put an object in the store under the given id, for at most the given time.
+     * The time to live of the object overrides the timeout of the store, if any.
+     * Expired objects are never returned, but stores relying on the native expiry
+     * of their backend may not notify listeners when they are evicted.
+     *
+     * @param id the id of the object to store
+     * @param data the object to store
+     * @param ttl the time to live of the object in milliseconds, or a negative value
+     *            to use the timeout of the store
+     * @throws IOException if an error occurs, or if the store does not support
+     *         expiration of individual objects
+     */
+    void store(String id, Object data, long ttl) throws IOException;
+
     /**
      * Put an object into the store and return the unique id that
      * may be used at a later time to retrieve the object.
@@ -86,7 +103,56 @@ public interface Store  {
      */
     Object peek(String id) throws IOException;
 
+    /**
+     * Put several objects in the store, each one under its id.
+     * Stores usually implement it with fewer round trips than individual
+     * calls to {@link #store(String, Object)}, and listeners are notified
+     * of each added object.
+     *
+     * @param entries the objects to store, keyed by their ids
+     * @throws IOException if an error occurs
+     */
+    void storeAll(Map<String, Object> entries) throws IOException;
 
+    /**
+     * Loads several objects that have been previously stored.
+     * The objects are removed from the store.
+     *
+     * @param ids the ids of the objects
+     * @return the objects found, keyed by their ids; ids that could not be
+     *         found are not present in the map
+     * @throws IOException if an error occurs
+     */
+    Map<String, Object> loadAll(Collection<String> ids) throws IOException;
+
+    /**
+     * Loads several objects that have been previously stored.
+     * The objects are not removed from the store.
+     *
+     * @param ids the ids of the objects
+     * @return the objects found, keyed by their ids; ids that could not be
+     *         found are not present in the map
+     * @throws IOException if an error occurs
+     */
+    Map<String, Object> peekAll(Collection<String> ids) throws IOException;
+
+    /**
+     * Opens a cursor over the ids of the objects in the store.
+     * Ids of expired objects which have not been evicted yet may be returned.
+     *
+     * @return a cursor which must be closed once done with
+     * @throws IOException if an error occurs
+     */
+    StoreCursor<String> openIdCursor() throws IOException;
+
+    /**
+     * Opens a cursor over the objects in the store, keyed by their ids.
+     * The objects are not removed from the store.
+     *
+     * @return a cursor which must be closed once done with
+     * @throws IOException if an error occurs
+     */
+    StoreCursor<Map.Entry<String, Object>> openEntryCursor() throws IOException;
 
     /***
      * Registers a {@link StoreListener}.
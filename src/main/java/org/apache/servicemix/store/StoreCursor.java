@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store;
+
+import java.io.IOException;
+
+/**
+ * A forward-only cursor over the content of a {@link Store}.
+ * <p>
+ * Backends fetch the elements as the cursor moves forward, so that the content of the
+ * store does not need to fit in memory.  Objects stored or removed while the cursor is
+ * open may or may not be returned, and a cursor must be closed to release the resources
+ * it holds in the backend, such as a connection or a server-side cursor.
+ * </p>
+ *
+ * @param <T> the type of the elements
+ */
+public interface StoreCursor<T> {
+
+    /**
+     * @return <code>true</code> if the cursor has more elements
+     * @throws IOException if an error occurs
+     */
+    boolean hasNext() throws IOException;
+
+    /**
+     * @return the next element
+     * @throws IOException if an error occurs
+     * @throws java.util.NoSuchElementException if the cursor has no more elements
+     */
+    T next() throws IOException;
+
+    /**
+     * Releases the resources held by the cursor.
+     * @throws IOException if an error occurs
+     */
+    void close() throws IOException;
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts the objects put in a {@link Store} to and from bytes.
+ * <p>
+ * Stores that keep their data outside of the java heap use a serializer configured on
+ * their {@link StoreFactory}.  Implementations must be thread-safe.
+ * </p>
+ */
+public interface StoreSerializer {
+
+    /**
+     * Serializes an object.
+     * @param object the object to serialize, may be <code>null</code>
+     * @return the serialized object
+     * @throws IOException if the object can not be serialized
+     */
+    byte[] serialize(Object object) throws IOException;
+
+    /**
+     * Serializes an object to a stream.  The stream is not closed.
+     * @param object the object to serialize, may be <code>null</code>
+     * @param out the stream to write to
+     * @throws IOException if the object can not be serialized
+     */
+    void serialize(Object object, OutputStream out) throws IOException;
+
+    /**
+     * Deserializes an object.
+     * @param data the bytes produced by {@link #serialize(Object)}
+     * @return the deserialized object
+     * @throws IOException if the object can not be deserialized
+     */
+    Object deserialize(byte[] data) throws IOException;
+
+    /**
+     * Deserializes an object from a stream.  The stream is not closed.
+     * @param in the stream to read from
+     * @return the deserialized object
+     * @throws IOException if the object can not be deserialized
+     */
+    Object deserialize(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.servicemix.store.StoreCursor;
+
+/**
+ * Base class of the {@link StoreCursor}s, fetching one element ahead.
+ *
+ * @param <T> the type of the elements
+ */
+public abstract class AbstractStoreCursor<T> implements StoreCursor<T> {
+
+    private T next;
+    private boolean exhausted;
+
+    /**
+     * Fetches the next element.
+     * @return the next element, or <code>null</code> if there are no more elements
+     * @throws IOException if an error occurs
+     */
+    protected abstract T fetch() throws IOException;
+
+    public boolean hasNext() throws IOException {
+        if (next == null && !exhausted) {
+            next = fetch();
+            exhausted = next == null;
+        }
+        return next != null;
+    }
+
+    public T next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T result = next;
+        next = null;
+        return result;
+    }
+
+    public void close() throws IOException {
+    }
+
+    /**
+     * Creates a cursor over the elements of an iterator, for the backends which do not
+     * have a native cursor or which keep their ids in memory anyway.
+     * @param iterator the elements, which must not be <code>null</code>
+     */
+    public static <T> StoreCursor<T> of(final Iterator<? extends T> iterator) {
+        return new AbstractStoreCursor<T>() {
+            protected T fetch() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+        };
+    }
+
+}
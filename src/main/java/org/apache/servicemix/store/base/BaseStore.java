@@ -16,19 +16,141 @@
  */
 package org.apache.servicemix.store.base;
 
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.store.AsyncStore;
 import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreCursor;
 import org.apache.servicemix.store.StoreListener;
+import org.apache.servicemix.store.StoreSerializer;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * @author: iocanel
  */
 public abstract class BaseStore implements Store, Serializable {
 
-    protected final Set<StoreListener> storeListeners = new LinkedHashSet<StoreListener>();
+    protected final Set<StoreListener> storeListeners = new CopyOnWriteArraySet<StoreListener>();
+
+    protected transient StoreEventDispatcher eventDispatcher;
+
+    protected StoreSerializer serializer = new JavaStoreSerializer();
+
+    /**
+     * The number of objects read at once by the default {@link #openEntryCursor()}.
+     */
+    protected static final int CURSOR_BATCH_SIZE = 100;
+
+    /**
+     * Stores the object with {@link #store(String, Object)} when no time to live is given.
+     * Backends supporting the expiration of individual objects override it.
+     * @param id
+     * @param data
+     * @param ttl
+     * @throws IOException if a time to live is given
+     */
+    public void store(String id, Object data, long ttl) throws IOException {
+        if (ttl > 0) {
+            throw new IOException("Expiration of individual objects is not supported by " + getClass().getName());
+        }
+        store(id, data);
+    }
+
+    /**
+     * Stores each entry with {@link #store(String, Object)}.
+     * Backends override it with a native batch operation when they have one.
+     * @param entries
+     * @throws IOException
+     */
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            store(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Loads each object with {@link #load(String)}.
+     * Backends override it with a native batch operation when they have one.
+     * @param ids
+     * @throws IOException
+     */
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (String id : ids) {
+            Object data = load(id);
+            if (data != null) {
+                result.put(id, data);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Peeks each object with {@link #peek(String)}.
+     * Backends override it with a native batch operation when they have one.
+     * @param ids
+     * @throws IOException
+     */
+    public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (String id : ids) {
+            Object data = peek(id);
+            if (data != null) {
+                result.put(id, data);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Walks the ids returned by {@link #openIdCursor()} and peeks the objects in batches with
+     * {@link #peekAll(Collection)}.
+     * Backends override it when they can read the ids and the objects at once.
+     */
+    public StoreCursor<Map.Entry<String, Object>> openEntryCursor() throws IOException {
+        final StoreCursor<String> ids = openIdCursor();
+        return new AbstractStoreCursor<Map.Entry<String, Object>>() {
+            private Iterator<Map.Entry<String, Object>> batch =
+                Collections.<String, Object>emptyMap().entrySet().iterator();
+
+            protected Map.Entry<String, Object> fetch() throws IOException {
+                while (!batch.hasNext()) {
+                    if (!ids.hasNext()) {
+                        return null;
+                    }
+                    List<String> next = new ArrayList<String>(CURSOR_BATCH_SIZE);
+                    while (next.size() < CURSOR_BATCH_SIZE && ids.hasNext()) {
+                        next.add(ids.next());
+                    }
+                    batch = peekAll(next).entrySet().iterator();
+                }
+                return batch.next();
+            }
+
+            public void close() throws IOException {
+                ids.close();
+            }
+        };
+    }
+
+    /**
+     * Creates a non-blocking view of this store, running the operations on the given executor.
+     * Stores with native batch operations return a {@link BatchingAsyncStore}.
+     * @param executor
+     */
+    public AsyncStore createAsyncStore(Executor executor) {
+        return new ExecutorAsyncStore(this, executor);
+    }
 
     /**
      * Notify all registered {@link StoreListener}s that an item has been added.
@@ -36,8 +158,13 @@ public abstract class BaseStore implements Store, Serializable {
      * @param data
      */
     public void fireAddedEvent(String id, Object data) {
+        StoreEventDispatcher dispatcher = eventDispatcher;
         for(StoreListener listener:storeListeners) {
-            listener.onAdd(id,data);
+            if (dispatcher != null) {
+                dispatcher.fireAddedEvent(listener, id, data);
+            } else {
+                listener.onAdd(id,data);
+            }
         }
     }
 
@@ -47,8 +174,13 @@ public abstract class BaseStore implements Store, Serializable {
      * @param data
      */
     public void fireRemovedEvent(String id, Object data) {
+        StoreEventDispatcher dispatcher = eventDispatcher;
         for(StoreListener listener:storeListeners) {
-            listener.onRemove(id, data);
+            if (dispatcher != null) {
+                dispatcher.fireRemovedEvent(listener, id, data);
+            } else {
+                listener.onRemove(id, data);
+            }
         }
     }
 
@@ -58,8 +190,13 @@ public abstract class BaseStore implements Store, Serializable {
      * @param data
      */
     public void fireEvictedEvent(String id, Object data) {
+        StoreEventDispatcher dispatcher = eventDispatcher;
         for(StoreListener listener:storeListeners) {
-            listener.onEvict(id, data);
+            if (dispatcher != null) {
+                dispatcher.fireEvictedEvent(listener, id, data);
+            } else {
+                listener.onEvict(id, data);
+            }
         }
     }
 
@@ -77,6 +214,28 @@ public abstract class BaseStore implements Store, Serializable {
      */
     public void removeListener(StoreListener listener) {
         storeListeners.remove(listener);
+        StoreEventDispatcher dispatcher = eventDispatcher;
+        if (dispatcher != null) {
+            dispatcher.release(listener);
+        }
+    }
+
+    /**
+     * Registers a {@link StoreListener} notified of the changes made to the store by other
+     * nodes or processes sharing the same backend.  Such listeners may also be notified of
+     * local changes, and usually receive <code>null</code> data.
+     * @param listener
+     * @return <code>false</code> if the backend can not report remote changes
+     */
+    public boolean addRemoteListener(StoreListener listener) {
+        return false;
+    }
+
+    /**
+     * Unregisters a {@link StoreListener} added with {@link #addRemoteListener(StoreListener)}.
+     * @param listener
+     */
+    public void removeRemoteListener(StoreListener listener) {
     }
 
     /***
@@ -85,4 +244,36 @@ public abstract class BaseStore implements Store, Serializable {
     public Set<StoreListener> getStoreListeners() {
         return storeListeners;
     }
+
+    /**
+     * Returns the {@link StoreEventDispatcher} notifying the listeners, or <code>null</code>
+     * if they are notified by the thread changing the store.
+     */
+    public StoreEventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    /**
+     * Sets the {@link StoreEventDispatcher} notifying the listeners asynchronously.
+     * The dispatcher is not serialized with the store.
+     * @param eventDispatcher the dispatcher, or <code>null</code> to notify listeners synchronously
+     */
+    public void setEventDispatcher(StoreEventDispatcher eventDispatcher) {
+        this.eventDispatcher = eventDispatcher;
+    }
+
+    /**
+     * Returns the {@link StoreSerializer} used to convert the stored objects to bytes.
+     */
+    public StoreSerializer getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Sets the {@link StoreSerializer} used to convert the stored objects to bytes.
+     * @param serializer
+     */
+    public void setSerializer(StoreSerializer serializer) {
+        this.serializer = serializer;
+    }
 }
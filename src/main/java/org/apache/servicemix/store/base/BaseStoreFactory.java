@@ -16,10 +16,21 @@
  */
 package org.apache.servicemix.store.base;
 
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.executors.ExecutorFactory;
+import org.apache.servicemix.executors.impl.ExecutorFactoryImpl;
+import org.apache.servicemix.store.AsyncStore;
+import org.apache.servicemix.store.Store;
 import org.apache.servicemix.store.StoreFactory;
 import org.apache.servicemix.store.StoreListener;
+import org.apache.servicemix.store.StoreSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -27,8 +38,229 @@ import java.util.Set;
  */
 public abstract class BaseStoreFactory implements StoreFactory {
 
+    private static final Logger LOG = LoggerFactory.getLogger(BaseStoreFactory.class);
+
+    private static final String OBJECT_NAME_PREFIX = "org.apache.servicemix:ContainerName=ServiceMix,Name=Stores,Type=";
+    private static final String OBJECT_NAME_POSTFIX = ",SubType=";
+
+    public static final int DEFAULT_BLOOM_FILTER_EXPECTED_ENTRIES = 100000;
+    public static final double DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+
     protected Set<StoreListener> storeListeners = new LinkedHashSet<StoreListener>();
 
+    protected StoreSerializer serializer = new JavaStoreSerializer();
+
+    protected ExecutorFactory executorFactory;
+
+    private Executor asyncExecutor;
+
+    protected boolean asyncListeners;
+
+    protected int listenerQueueSize = StoreEventDispatcher.DEFAULT_QUEUE_SIZE;
+
+    private StoreEventDispatcher eventDispatcher;
+
+    protected boolean statisticsEnabled;
+
+    protected boolean bloomFilterEnabled;
+
+    protected int bloomFilterExpectedEntries = DEFAULT_BLOOM_FILTER_EXPECTED_ENTRIES;
+
+    protected double bloomFilterFalsePositiveRate = DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE;
+
+    private javax.management.MBeanServer mbeanServer;
+    private org.fusesource.commons.management.ManagementStrategy managementStrategy;
+
+    private Map<String, BloomFilterStore> filteredStores = new HashMap<String, BloomFilterStore>();
+    private Map<String, InstrumentedStore> instrumentedStores = new HashMap<String, InstrumentedStore>();
+    private Map<InstrumentedStore, javax.management.ObjectName> storeNames = new HashMap<InstrumentedStore, javax.management.ObjectName>();
+
+    /**
+     * Opens a store and returns a non-blocking view of it.
+     * <p>
+     * The operations are performed by an executor created through the {@link ExecutorFactory}
+     * of this factory, with the id <code>store.</code> followed by the simple name of the
+     * factory class.  It is shared by all the asynchronous stores opened by this factory.
+     * </p>
+     * @param name the name of the store
+     * @return the non-blocking view of the store
+     * @throws IOException if the store can not be opened
+     */
+    public synchronized AsyncStore openAsync(String name) throws IOException {
+        Store store = open(name);
+        if (asyncExecutor == null) {
+            ExecutorFactory factory = executorFactory != null ? executorFactory : new ExecutorFactoryImpl();
+            asyncExecutor = factory.createDaemonExecutor("store." + getClass().getSimpleName());
+        }
+        if (store instanceof BaseStore) {
+            return ((BaseStore) store).createAsyncStore(asyncExecutor);
+        }
+        return new ExecutorAsyncStore(store, asyncExecutor);
+    }
+
+    /**
+     * Shuts down the executors of the asynchronous stores and of the asynchronous listener
+     * notifications of this factory.  The stores already opened then notify their listeners
+     * synchronously, while the stores opened afterwards get a new dispatcher.
+     */
+    public synchronized void shutdownAsyncExecutor() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
+        if (eventDispatcher != null) {
+            eventDispatcher.shutdown();
+            eventDispatcher = null;
+        }
+    }
+
+    /**
+     * Returns the {@link StoreEventDispatcher} to set on the stores opened by this factory,
+     * or <code>null</code> if listeners are notified synchronously.
+     * <p>
+     * The dispatcher uses an executor created through the {@link ExecutorFactory} of this
+     * factory, with the id <code>store.</code> followed by the simple name of the factory
+     * class and <code>.listeners</code>.
+     * </p>
+     */
+    protected synchronized StoreEventDispatcher getEventDispatcher() {
+        if (!asyncListeners) {
+            return null;
+        }
+        if (eventDispatcher == null) {
+            ExecutorFactory factory = executorFactory != null ? executorFactory : new ExecutorFactoryImpl();
+            Executor executor = factory.createDaemonExecutor("store." + getClass().getSimpleName() + ".listeners");
+            eventDispatcher = new StoreEventDispatcher(executor, listenerQueueSize);
+        }
+        return eventDispatcher;
+    }
+
+    /**
+     * @return the number of listener notifications dropped because a listener could not keep up
+     */
+    public synchronized long getDroppedEventCount() {
+        return eventDispatcher != null ? eventDispatcher.getDroppedEventCount() : 0;
+    }
+
+    /**
+     * Wraps a store opened by this factory in a {@link BloomFilterStore} when the Bloom filter
+     * is enabled, and in an {@link InstrumentedStore} when statistics are enabled, registering
+     * its MBean.  Subclasses call it on the store returned by {@link #open(String)}; the same
+     * wrappers are returned for a given name until they are released.
+     * @param name the name of the store
+     * @param store the store opened
+     * @return the store to return from {@link #open(String)}
+     */
+    protected synchronized Store instrument(String name, Store store) {
+        if (store == null) {
+            return store;
+        }
+        if (bloomFilterEnabled) {
+            store = filter(name, store);
+        }
+        if (!statisticsEnabled) {
+            return store;
+        }
+        InstrumentedStore instrumented = instrumentedStores.get(name);
+        if (instrumented == null) {
+            instrumented = new InstrumentedStore(name, store);
+            instrumentedStores.put(name, instrumented);
+            try {
+                registerMBean(instrumented);
+            } catch (Exception e) {
+                LOG.warn("Unable to register MBean for store " + name, e);
+            }
+        }
+        return instrumented;
+    }
+
+    /**
+     * Unwraps a store returned by {@link #instrument(String, Store)} and unregisters its MBean.
+     * Subclasses call it at the beginning of {@link #close(Store)}.
+     * @param store the store being closed
+     * @return the store opened by this factory
+     */
+    protected synchronized Store release(Store store) {
+        if (store instanceof InstrumentedStore) {
+            InstrumentedStore instrumented = (InstrumentedStore) store;
+            if (instrumentedStores.get(instrumented.getName()) == instrumented) {
+                instrumentedStores.remove(instrumented.getName());
+            }
+            instrumented.detach();
+            try {
+                unregisterMBean(instrumented);
+            } catch (Exception e) {
+                LOG.warn("Unable to unregister MBean for store " + instrumented.getName(), e);
+            }
+            store = instrumented.getDelegate();
+        }
+        if (store instanceof BloomFilterStore) {
+            BloomFilterStore filtered = (BloomFilterStore) store;
+            filteredStores.values().remove(filtered);
+            filtered.detach();
+            store = filtered.getDelegate();
+        }
+        return store;
+    }
+
+    private Store filter(String name, Store store) {
+        BloomFilterStore filtered = filteredStores.get(name);
+        if (filtered == null || filtered.getDelegate() != store) {
+            try {
+                filtered = new BloomFilterStore(store, bloomFilterExpectedEntries, bloomFilterFalsePositiveRate);
+            } catch (IOException e) {
+                LOG.warn("Unable to build the Bloom filter of store " + name + ", lookups will not be filtered", e);
+                return store;
+            }
+            filteredStores.put(name, filtered);
+        }
+        return filtered;
+    }
+
+    private void registerMBean(InstrumentedStore store) throws Exception {
+        ManagedStore mbean = new ManagedStore(store);
+        javax.management.ObjectName oName = new javax.management.ObjectName(String.format("%s%s%s%s",
+                OBJECT_NAME_PREFIX, sanitize(getClass().getSimpleName()), OBJECT_NAME_POSTFIX, sanitize(store.getName())));
+        if (this.managementStrategy != null) {
+            // SMX 4 - ManagementStrategy
+            this.managementStrategy.manageNamedObject(mbean, oName);
+        } else if (this.mbeanServer != null) {
+            // SMX 3 - MBeanServer
+            this.mbeanServer.registerMBean(mbean, oName);
+        } else {
+            // no possibility to insert the mbean
+            return;
+        }
+        this.storeNames.put(store, oName);
+    }
+
+    private void unregisterMBean(InstrumentedStore store) throws Exception {
+        javax.management.ObjectName oName = this.storeNames.remove(store);
+        if (oName == null) {
+            return;
+        }
+        if (this.managementStrategy != null) {
+            // SMX 4 - ManagementStrategy
+            this.managementStrategy.unmanageNamedObject(oName);
+        } else if (this.mbeanServer != null) {
+            // SMX 3 - MBeanServer
+            this.mbeanServer.unregisterMBean(oName);
+        }
+    }
+
+    private String sanitize(String in) {
+        String result = null;
+        if (in != null) {
+            result = in.replace(':', '_');
+            result = result.replace('/', '_');
+            result = result.replace('\\', '_');
+            result = result.replace('?', '_');
+            result = result.replace('=', '_');
+            result = result.replace(',', '_');
+        }
+        return result;
+    }
+
     public Set<StoreListener> getStoreListeners() {
         return storeListeners;
     }
@@ -36,4 +268,126 @@ public abstract class BaseStoreFactory implements StoreFactory {
     public void setStoreListeners(Set<StoreListener> storeListeners) {
         this.storeListeners = storeListeners;
     }
+
+    public StoreSerializer getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Sets the {@link StoreSerializer} of the stores opened by this factory.
+     * It must be set before any store is opened.
+     * @param serializer
+     */
+    public void setSerializer(StoreSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    public ExecutorFactory getExecutorFactory() {
+        return executorFactory;
+    }
+
+    /**
+     * Sets the {@link ExecutorFactory} used to create the executor of the asynchronous stores.
+     * Defaults to an {@link ExecutorFactoryImpl} with its default configuration.
+     * @param executorFactory
+     */
+    public void setExecutorFactory(ExecutorFactory executorFactory) {
+        this.executorFactory = executorFactory;
+    }
+
+    public boolean isAsyncListeners() {
+        return asyncListeners;
+    }
+
+    /**
+     * Notifies the listeners of the stores opened by this factory from a separate executor,
+     * so that slow listeners do not delay store operations.  Each listener receives its events
+     * in order, but events are dropped when too many are waiting for the same listener.
+     * @param asyncListeners
+     */
+    public void setAsyncListeners(boolean asyncListeners) {
+        this.asyncListeners = asyncListeners;
+    }
+
+    public int getListenerQueueSize() {
+        return listenerQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of events waiting for each listener when listeners are
+     * notified asynchronously.
+     * @param listenerQueueSize
+     */
+    public void setListenerQueueSize(int listenerQueueSize) {
+        this.listenerQueueSize = listenerQueueSize;
+    }
+
+    public boolean isStatisticsEnabled() {
+        return statisticsEnabled;
+    }
+
+    /**
+     * Enables the collection of statistics on the stores opened by this factory.
+     * The statistics are published as MBeans when an MBean server or a management
+     * strategy is set.
+     * @param statisticsEnabled
+     */
+    public void setStatisticsEnabled(boolean statisticsEnabled) {
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
+    public boolean isBloomFilterEnabled() {
+        return bloomFilterEnabled;
+    }
+
+    /**
+     * Puts a {@link BloomFilterStore} in front of the stores opened by this factory, so that
+     * lookups of missing ids do not go to the backend.  The filter is built from the ids of
+     * the store when it is opened.  It must only be enabled when the stores are not written
+     * by other processes or nodes.
+     * @param bloomFilterEnabled
+     */
+    public void setBloomFilterEnabled(boolean bloomFilterEnabled) {
+        this.bloomFilterEnabled = bloomFilterEnabled;
+    }
+
+    public int getBloomFilterExpectedEntries() {
+        return bloomFilterExpectedEntries;
+    }
+
+    /**
+     * Sets the number of objects expected in each store at once, which sizes the Bloom filter.
+     * @param bloomFilterExpectedEntries
+     */
+    public void setBloomFilterExpectedEntries(int bloomFilterExpectedEntries) {
+        this.bloomFilterExpectedEntries = bloomFilterExpectedEntries;
+    }
+
+    public double getBloomFilterFalsePositiveRate() {
+        return bloomFilterFalsePositiveRate;
+    }
+
+    /**
+     * Sets the probability of false positives of the Bloom filter at the expected size.
+     * @param bloomFilterFalsePositiveRate
+     */
+    public void setBloomFilterFalsePositiveRate(double bloomFilterFalsePositiveRate) {
+        this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+    }
+
+    public javax.management.MBeanServer getMbeanServer() {
+        return mbeanServer;
+    }
+
+    public void setMbeanServer(javax.management.MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    public org.fusesource.commons.management.ManagementStrategy getManagementStrategy() {
+        return managementStrategy;
+    }
+
+    public void setManagementStrategy(org.fusesource.commons.management.ManagementStrategy managementStrategy) {
+        this.managementStrategy = managementStrategy;
+    }
 }
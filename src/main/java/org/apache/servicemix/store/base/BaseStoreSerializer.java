@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.apache.servicemix.store.StoreSerializer;
+
+/**
+ * Base class for {@link StoreSerializer}s.
+ * <p>
+ * {@link #serialize(Object)} writes into an output buffer pooled per thread, so that
+ * serializing an object only allocates the resulting array.  Buffers that grew beyond
+ * {@link #MAX_POOLED_BUFFER_SIZE} are not kept, to avoid pinning memory after a large object.
+ * </p>
+ */
+public abstract class BaseStoreSerializer implements StoreSerializer, Serializable {
+
+    public static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private static final ThreadLocal<PooledBuffer> BUFFERS = new ThreadLocal<PooledBuffer>();
+
+    public byte[] serialize(Object object) throws IOException {
+        PooledBuffer buffer = BUFFERS.get();
+        if (buffer == null || buffer.inUse) {
+            // first use on this thread, or a nested serialization
+            buffer = new PooledBuffer();
+            if (BUFFERS.get() == null) {
+                BUFFERS.set(buffer);
+            }
+        }
+        buffer.inUse = true;
+        try {
+            serialize(object, buffer);
+            return buffer.toByteArray();
+        } finally {
+            buffer.inUse = false;
+            if (buffer.capacity() > MAX_POOLED_BUFFER_SIZE) {
+                BUFFERS.remove();
+            } else {
+                buffer.reset();
+            }
+        }
+    }
+
+    public Object deserialize(byte[] data) throws IOException {
+        return deserialize(new ByteArrayInputStream(data));
+    }
+
+    private static class PooledBuffer extends ByteArrayOutputStream {
+        private boolean inUse;
+
+        PooledBuffer() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+}
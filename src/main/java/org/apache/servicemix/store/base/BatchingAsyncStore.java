@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.store.AsyncStore;
+import org.apache.servicemix.store.Store;
+
+/**
+ * {@link AsyncStore} coalescing pending operations into the batch operations of
+ * the underlying {@link Store}.
+ * <p>
+ * Operations are queued, and a single task of the {@link Executor} drains the queue:
+ * consecutive operations of the same kind are performed with one call to
+ * {@link Store#storeAll(java.util.Map)}, {@link Store#loadAll(java.util.Collection)} or
+ * {@link Store#peekAll(java.util.Collection)}.  With stores implementing these methods
+ * with a single round trip, any number of operations can be in flight while only one
+ * thread is blocked on I/O.
+ * </p>
+ * <p>
+ * Operations are performed in the order they were submitted.  A batch is closed when an
+ * operation of another kind or on an id already in the batch is found, or when it reaches
+ * {@link #getMaxBatchSize()} operations.
+ * </p>
+ */
+public class BatchingAsyncStore implements AsyncStore {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    private static final int STORE = 0;
+    private static final int STORE_NEW = 1;
+    private static final int LOAD = 2;
+    private static final int PEEK = 3;
+
+    private static final Runnable NOOP = new Runnable() {
+        public void run() {
+        }
+    };
+
+    private final Store store;
+    private final Executor executor;
+    private final int maxBatchSize;
+
+    private final Queue<Request<?>> requests = new ConcurrentLinkedQueue<Request<?>>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Runnable drainer = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    public BatchingAsyncStore(Store store, Executor executor) {
+        this(store, executor, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public BatchingAsyncStore(Store store, Executor executor, int maxBatchSize) {
+        this.store = store;
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public Store getStore() {
+        return store;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public Future<Void> store(String id, Object data) {
+        return submit(new Request<Void>(STORE, id, data));
+    }
+
+    public Future<String> store(Object data) {
+        return submit(new Request<String>(STORE_NEW, null, data));
+    }
+
+    public Future<Object> load(String id) {
+        return submit(new Request<Object>(LOAD, id, null));
+    }
+
+    public Future<Object> peek(String id) {
+        return submit(new Request<Object>(PEEK, id, null));
+    }
+
+    private <T> Future<T> submit(Request<T> request) {
+        requests.add(request);
+        schedule();
+        return request;
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainer);
+            } catch (RuntimeException e) {
+                draining.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            List<Request<?>> batch = new ArrayList<Request<?>>();
+            Set<String> ids = new HashSet<String>();
+            Request<?> request;
+            while ((request = requests.poll()) != null) {
+                if (!batch.isEmpty()
+                        && (batch.get(0).type != request.type || batch.size() >= maxBatchSize
+                            || request.type == STORE_NEW || !ids.add(request.id))) {
+                    perform(batch);
+                    batch.clear();
+                    ids.clear();
+                    ids.add(request.id);
+                } else if (batch.isEmpty()) {
+                    ids.add(request.id);
+                }
+                batch.add(request);
+            }
+            if (!batch.isEmpty()) {
+                perform(batch);
+            }
+        } finally {
+            draining.set(false);
+            // a request may have been queued after the last poll
+            if (!requests.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    private void perform(List<Request<?>> batch) {
+        try {
+            int type = batch.get(0).type;
+            if (type == STORE_NEW) {
+                batch.get(0).complete(store.store(batch.get(0).data));
+            } else if (type == STORE) {
+                Map<String, Object> entries = new LinkedHashMap<String, Object>();
+                for (Request<?> request : batch) {
+                    entries.put(request.id, request.data);
+                }
+                store.storeAll(entries);
+                for (Request<?> request : batch) {
+                    request.complete(null);
+                }
+            } else {
+                List<String> ids = new ArrayList<String>(batch.size());
+                for (Request<?> request : batch) {
+                    ids.add(request.id);
+                }
+                Map<String, Object> result = type == LOAD ? store.loadAll(ids) : store.peekAll(ids);
+                for (Request<?> request : batch) {
+                    request.complete(result.get(request.id));
+                }
+            }
+        } catch (Throwable t) {
+            for (Request<?> request : batch) {
+                request.fail(t);
+            }
+        }
+    }
+
+    /**
+     * A pending operation, completed by the drainer.
+     */
+    private static class Request<T> extends FutureTask<T> {
+        private final int type;
+        private final String id;
+        private final Object data;
+
+        Request(int type, String id, Object data) {
+            super(NOOP, null);
+            this.type = type;
+            this.id = id;
+            this.data = data;
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete(Object value) {
+            set((T) value);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+    }
+
+}
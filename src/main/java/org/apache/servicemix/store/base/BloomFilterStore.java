@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.StoreListener;
+
+/**
+ * A {@link Store} decorator answering lookups of ids that were never stored, or have already
+ * been removed, without going to the decorated store.
+ * <p>
+ * The ids present in the decorated store are kept in a {@link CountingBloomFilter}, filled
+ * from {@link Store#openIdCursor()} when the decorator is created, and then maintained as
+ * objects are stored and loaded through this store or evicted by the decorated store.
+ * Ids the filter has definitely not seen are reported missing; the other lookups go to
+ * the decorated store.
+ * </p>
+ * <p>
+ * The filter only knows the objects stored through this decorator, so it must not be used
+ * on a store written by other processes or nodes.
+ * </p>
+ */
+public class BloomFilterStore extends DelegatingStore {
+
+    private final CountingBloomFilter filter;
+    private final StoreListener evictionListener = new EvictionListener();
+    private final StripedCounter skipped = new StripedCounter();
+    private final StripedCounter falsePositives = new StripedCounter();
+
+    /**
+     * @param delegate the decorated store
+     * @param expectedEntries the number of objects expected in the store at once
+     * @param falsePositiveRate the probability of false positives at the expected size
+     * @throws IOException if the ids of the decorated store can not be read
+     */
+    public BloomFilterStore(Store delegate, int expectedEntries, double falsePositiveRate) throws IOException {
+        super(delegate);
+        this.filter = new CountingBloomFilter(expectedEntries, falsePositiveRate);
+        rebuild();
+        // ids evicted before the listener is added stay in the filter, which is only a false positive
+        delegate.addListener(evictionListener);
+    }
+
+    /**
+     * Fills the filter again from the ids of the decorated store.
+     * @throws IOException if the ids of the decorated store can not be read
+     */
+    public void rebuild() throws IOException {
+        filter.clear();
+        StoreCursor<String> ids = delegate.openIdCursor();
+        try {
+            while (ids.hasNext()) {
+                filter.add(ids.next());
+            }
+        } finally {
+            ids.close();
+        }
+    }
+
+    /**
+     * Stops listening to the evictions of the decorated store.
+     */
+    public void detach() {
+        delegate.removeListener(evictionListener);
+    }
+
+    public void store(String id, Object data) throws IOException {
+        filter.add(id);
+        delegate.store(id, data);
+    }
+
+    public void store(String id, Object data, long ttl) throws IOException {
+        filter.add(id);
+        delegate.store(id, data, ttl);
+    }
+
+    public String store(Object data) throws IOException {
+        String id = delegate.store(data);
+        filter.add(id);
+        return id;
+    }
+
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        for (String id : entries.keySet()) {
+            filter.add(id);
+        }
+        delegate.storeAll(entries);
+    }
+
+    public Object load(String id) throws IOException {
+        if (!filter.mightContain(id)) {
+            skipped.increment();
+            return null;
+        }
+        Object data = delegate.load(id);
+        if (data != null) {
+            filter.remove(id);
+        } else {
+            falsePositives.increment();
+        }
+        return data;
+    }
+
+    public Object peek(String id) throws IOException {
+        if (!filter.mightContain(id)) {
+            skipped.increment();
+            return null;
+        }
+        Object data = delegate.peek(id);
+        if (data == null) {
+            falsePositives.increment();
+        }
+        return data;
+    }
+
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        List<String> candidates = candidates(ids);
+        Map<String, Object> result = delegate.loadAll(candidates);
+        for (String id : result.keySet()) {
+            filter.remove(id);
+        }
+        falsePositives.add(candidates.size() - result.size());
+        return result;
+    }
+
+    public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+        List<String> candidates = candidates(ids);
+        Map<String, Object> result = delegate.peekAll(candidates);
+        falsePositives.add(candidates.size() - result.size());
+        return result;
+    }
+
+    /**
+     * @return the number of lookups answered without going to the decorated store
+     */
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return the number of lookups of missing ids the filter did not rule out
+     */
+    public long getFalsePositiveCount() {
+        return falsePositives.sum();
+    }
+
+    /**
+     * @return the proportion of lookups of missing ids the filter did not rule out, between 0 and 1
+     */
+    public double getFalsePositiveRate() {
+        long fp = falsePositives.sum();
+        long total = fp + skipped.sum();
+        return total == 0 ? 0.0 : (double) fp / total;
+    }
+
+    /**
+     * @return the false positive rate expected from the current load of the filter, between 0 and 1
+     */
+    public double getExpectedFalsePositiveRate() {
+        return filter.getExpectedFalsePositiveRate();
+    }
+
+    private List<String> candidates(Collection<String> ids) {
+        List<String> candidates = new ArrayList<String>(ids.size());
+        for (String id : ids) {
+            if (filter.mightContain(id)) {
+                candidates.add(id);
+            } else {
+                skipped.increment();
+            }
+        }
+        return candidates;
+    }
+
+    private class EvictionListener implements StoreListener {
+
+        public void onAdd(String id, Object data) {
+        }
+
+        public void onRemove(String id, Object data) {
+            // objects loaded through this store are removed from the filter by the load
+        }
+
+        public void onEvict(String id, Object data) {
+            filter.remove(id);
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.servicemix.store.Entry;
+
+/**
+ * {@link org.apache.servicemix.store.StoreSerializer} producing a more compact output
+ * than plain java serialization.
+ * <p>
+ * Strings, byte arrays and boxed primitives are written with a one byte type tag followed
+ * by their raw value.  Other objects go through java serialization, without the stream
+ * header, and with the class descriptors of registered classes replaced by their
+ * registration number: only the class name of unregistered classes is written.
+ * </p>
+ * <p>
+ * As the class descriptors are not written, the classes must be identical when objects are
+ * written and read, and classes must be registered in the same order on both sides.
+ * Registration must be done before the serializer is used.
+ * </p>
+ */
+public class CompactStoreSerializer extends BaseStoreSerializer {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte BYTES = 2;
+    private static final byte INTEGER = 3;
+    private static final byte LONG = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte OBJECT = 7;
+
+    private static final int UNREGISTERED = 0;
+
+    private static final Class[] DEFAULT_CLASSES = {
+        Entry.class, String.class, Integer.class, Long.class, Boolean.class, Double.class,
+        Number.class, Date.class, ArrayList.class, HashMap.class, LinkedHashMap.class,
+        byte[].class, Object[].class
+    };
+
+    private final List<Class> classes = new ArrayList<Class>();
+    private final Map<Class, Integer> ids = new ConcurrentHashMap<Class, Integer>();
+
+    public CompactStoreSerializer() {
+        for (Class clazz : DEFAULT_CLASSES) {
+            register(clazz);
+        }
+    }
+
+    /**
+     * Registers a class so that its descriptor is written as a number.
+     * Classes already registered are ignored.
+     * @param clazz the class to register
+     */
+    public synchronized void register(Class clazz) {
+        if (!ids.containsKey(clazz)) {
+            classes.add(clazz);
+            ids.put(clazz, classes.size());
+        }
+    }
+
+    /**
+     * Registers classes by name, in the given order.
+     * @param classNames the names of the classes to register
+     * @throws ClassNotFoundException if a class can not be loaded
+     */
+    public void setRegisteredClasses(List<String> classNames) throws ClassNotFoundException {
+        for (String name : classNames) {
+            register(Class.forName(name, false, getClassLoader()));
+        }
+    }
+
+    public synchronized List<String> getRegisteredClasses() {
+        List<String> names = new ArrayList<String>(classes.size());
+        for (Class clazz : classes) {
+            names.add(clazz.getName());
+        }
+        return names;
+    }
+
+    public void serialize(Object object, OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        if (object == null) {
+            dos.writeByte(NULL);
+        } else if (object instanceof String) {
+            byte[] bytes = ((String) object).getBytes("UTF-8");
+            dos.writeByte(STRING);
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        } else if (object instanceof byte[]) {
+            byte[] bytes = (byte[]) object;
+            dos.writeByte(BYTES);
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        } else if (object instanceof Integer) {
+            dos.writeByte(INTEGER);
+            dos.writeInt((Integer) object);
+        } else if (object instanceof Long) {
+            dos.writeByte(LONG);
+            dos.writeLong((Long) object);
+        } else if (object instanceof Boolean) {
+            dos.writeByte(BOOLEAN);
+            dos.writeBoolean((Boolean) object);
+        } else if (object instanceof Double) {
+            dos.writeByte(DOUBLE);
+            dos.writeDouble((Double) object);
+        } else {
+            dos.writeByte(OBJECT);
+            ObjectOutputStream oos = new CompactObjectOutputStream(dos);
+            oos.writeObject(object);
+            oos.flush();
+        }
+        dos.flush();
+    }
+
+    public Object deserialize(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        byte tag = dis.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return new String(readBytes(dis), "UTF-8");
+        case BYTES:
+            return readBytes(dis);
+        case INTEGER:
+            return dis.readInt();
+        case LONG:
+            return dis.readLong();
+        case BOOLEAN:
+            return dis.readBoolean();
+        case DOUBLE:
+            return dis.readDouble();
+        case OBJECT:
+            ObjectInputStream ois = new CompactObjectInputStream(dis);
+            try {
+                return ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Could not load object from store", e);
+            }
+        default:
+            throw new IOException("Unknown type tag " + tag + " in serialized data");
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    private synchronized Class getRegisteredClass(int id) throws IOException {
+        if (id < 1 || id > classes.size()) {
+            throw new IOException("Unknown registered class id " + id + " in serialized data");
+        }
+        return classes.get(id - 1);
+    }
+
+    private static ClassLoader getClassLoader() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return classLoader != null ? classLoader : CompactStoreSerializer.class.getClassLoader();
+    }
+
+    private class CompactObjectOutputStream extends ObjectOutputStream {
+
+        CompactObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader() throws IOException {
+            // the type tag is enough to identify the stream
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            Integer id = ids.get(desc.forClass());
+            if (id != null) {
+                writeInt(id);
+            } else {
+                writeInt(UNREGISTERED);
+                writeUTF(desc.getName());
+            }
+        }
+    }
+
+    private class CompactObjectInputStream extends ObjectInputStream {
+
+        CompactObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected void readStreamHeader() throws IOException {
+            // no header has been written
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            int id = readInt();
+            Class clazz;
+            if (id == UNREGISTERED) {
+                clazz = resolve(readUTF());
+            } else {
+                clazz = getRegisteredClass(id);
+            }
+            return ObjectStreamClass.lookupAny(clazz);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            Class clazz = desc.forClass();
+            return clazz != null ? clazz : resolve(desc.getName());
+        }
+
+        private Class resolve(String name) throws ClassNotFoundException {
+            try {
+                return Class.forName(name, false, getClassLoader());
+            } catch (ClassNotFoundException e) {
+                return Class.forName(name, false, CompactStoreSerializer.class.getClassLoader());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counting Bloom filter of strings, telling whether a string may have been added.
+ * <p>
+ * Each slot is a 4-bit counter, so that strings can be removed as well as added.
+ * Sixteen counters are packed in each long and updated with compare-and-set, so the
+ * filter is thread-safe without locking.  A counter reaching 15 sticks there and is never
+ * decremented again, which can only cause false positives, not false negatives.
+ * </p>
+ * <p>
+ * Removing a string that has not been added corrupts the filter: callers only remove
+ * strings they know to be present.
+ * </p>
+ */
+public class CountingBloomFilter {
+
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray counters;
+    private final int slots;
+    private final int hashes;
+
+    /**
+     * Sizes the filter for the expected number of strings and false positive probability.
+     * @param expectedEntries the number of strings expected to be present at once
+     * @param falsePositiveRate the probability of false positives at the expected size
+     */
+    public CountingBloomFilter(int expectedEntries, double falsePositiveRate) {
+        if (expectedEntries <= 0) {
+            throw new IllegalArgumentException("expectedEntries must be > 0");
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+        }
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.slots = (int) Math.min(Math.max(m, 16), Integer.MAX_VALUE - 16);
+        this.hashes = Math.max(1, (int) Math.round((double) slots / expectedEntries * ln2));
+        this.counters = new AtomicLongArray((slots + 15) / 16);
+    }
+
+    /**
+     * Adds a string to the filter.
+     * @param s the string to add
+     */
+    public void add(String s) {
+        int h1 = s.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < hashes; i++) {
+            update(slot(h1, h2, i), 1);
+        }
+    }
+
+    /**
+     * Removes a string previously added to the filter.
+     * @param s the string to remove
+     */
+    public void remove(String s) {
+        int h1 = s.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < hashes; i++) {
+            update(slot(h1, h2, i), -1);
+        }
+    }
+
+    /**
+     * @param s the string to check
+     * @return <code>false</code> if the string has definitely not been added
+     */
+    public boolean mightContain(String s) {
+        int h1 = s.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < hashes; i++) {
+            if (count(slot(h1, h2, i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Empties the filter.
+     */
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    /**
+     * Estimates the probability of false positives from the proportion of non-zero counters.
+     * @return the expected false positive rate, between 0 and 1
+     */
+    public double getExpectedFalsePositiveRate() {
+        long used = 0;
+        for (int i = 0; i < counters.length(); i++) {
+            long word = counters.get(i);
+            for (int shift = 0; shift < 64; shift += 4) {
+                if (((word >>> shift) & MAX_COUNT) != 0) {
+                    used++;
+                }
+            }
+        }
+        return Math.pow((double) used / slots, hashes);
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    private int slot(int h1, int h2, int i) {
+        int combined = h1 + i * h2;
+        return (combined & Integer.MAX_VALUE) % slots;
+    }
+
+    private int count(int slot) {
+        return (int) ((counters.get(slot >>> 4) >>> ((slot & 15) << 2)) & MAX_COUNT);
+    }
+
+    private void update(int slot, int delta) {
+        int index = slot >>> 4;
+        int shift = (slot & 15) << 2;
+        while (true) {
+            long word = counters.get(index);
+            int count = (int) ((word >>> shift) & MAX_COUNT);
+            if (count == MAX_COUNT || (delta < 0 && count == 0)) {
+                return;
+            }
+            long updated = (word & ~((long) MAX_COUNT << shift)) | ((long) (count + delta) << shift);
+            if (counters.compareAndSet(index, word, updated)) {
+                return;
+            }
+        }
+    }
+
+    // second hash for double hashing, from the finalizer of MurmurHash3
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import org.apache.servicemix.store.StoreSerializer;
+
+/**
+ * A {@link StoreSerializer} counting the bytes produced and consumed by another one.
+ */
+class CountingStoreSerializer implements StoreSerializer, Serializable {
+
+    private final StoreSerializer delegate;
+    private final StoreStatistics statistics;
+
+    CountingStoreSerializer(StoreSerializer delegate, StoreStatistics statistics) {
+        this.delegate = delegate;
+        this.statistics = statistics;
+    }
+
+    StoreSerializer getDelegate() {
+        return delegate;
+    }
+
+    public byte[] serialize(Object object) throws IOException {
+        byte[] data = delegate.serialize(object);
+        statistics.recordBytesWritten(data.length);
+        return data;
+    }
+
+    public void serialize(Object object, OutputStream out) throws IOException {
+        CountingOutputStream counting = new CountingOutputStream(out);
+        delegate.serialize(object, counting);
+        statistics.recordBytesWritten(counting.count);
+    }
+
+    public Object deserialize(byte[] data) throws IOException {
+        statistics.recordBytesRead(data.length);
+        return delegate.deserialize(data);
+    }
+
+    public Object deserialize(InputStream in) throws IOException {
+        CountingInputStream counting = new CountingInputStream(in);
+        try {
+            return delegate.deserialize(counting);
+        } finally {
+            statistics.recordBytesRead(counting.count);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.store.AsyncStore;
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.StoreListener;
+import org.apache.servicemix.store.StoreSerializer;
+
+/**
+ * Base class for decorators of a {@link Store}, forwarding every call to the decorated store.
+ * Listeners are registered on the decorated store, which fires all the events.
+ */
+public abstract class DelegatingStore extends BaseStore {
+
+    protected final Store delegate;
+
+    protected DelegatingStore(Store delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the decorated store
+     */
+    public Store getDelegate() {
+        return delegate;
+    }
+
+    public boolean hasFeature(String name) {
+        return delegate.hasFeature(name);
+    }
+
+    public void store(String id, Object data) throws IOException {
+        delegate.store(id, data);
+    }
+
+    public void store(String id, Object data, long ttl) throws IOException {
+        delegate.store(id, data, ttl);
+    }
+
+    public String store(Object data) throws IOException {
+        return delegate.store(data);
+    }
+
+    public Object load(String id) throws IOException {
+        return delegate.load(id);
+    }
+
+    public Object peek(String id) throws IOException {
+        return delegate.peek(id);
+    }
+
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        delegate.storeAll(entries);
+    }
+
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        return delegate.loadAll(ids);
+    }
+
+    public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+        return delegate.peekAll(ids);
+    }
+
+    public StoreCursor<String> openIdCursor() throws IOException {
+        return delegate.openIdCursor();
+    }
+
+    public StoreCursor<Map.Entry<String, Object>> openEntryCursor() throws IOException {
+        return delegate.openEntryCursor();
+    }
+
+    /**
+     * Uses the same kind of {@link AsyncStore} as the decorated store, on top of this store.
+     */
+    public AsyncStore createAsyncStore(Executor executor) {
+        if (delegate instanceof BaseStore
+                && ((BaseStore) delegate).createAsyncStore(executor) instanceof BatchingAsyncStore) {
+            return new BatchingAsyncStore(this, executor);
+        }
+        return new ExecutorAsyncStore(this, executor);
+    }
+
+    public StoreSerializer getSerializer() {
+        return delegate instanceof BaseStore ? ((BaseStore) delegate).getSerializer() : serializer;
+    }
+
+    public void setSerializer(StoreSerializer serializer) {
+        if (delegate instanceof BaseStore) {
+            ((BaseStore) delegate).setSerializer(serializer);
+        } else {
+            this.serializer = serializer;
+        }
+    }
+
+    public StoreEventDispatcher getEventDispatcher() {
+        return delegate instanceof BaseStore ? ((BaseStore) delegate).getEventDispatcher() : eventDispatcher;
+    }
+
+    public void setEventDispatcher(StoreEventDispatcher eventDispatcher) {
+        if (delegate instanceof BaseStore) {
+            ((BaseStore) delegate).setEventDispatcher(eventDispatcher);
+        } else {
+            this.eventDispatcher = eventDispatcher;
+        }
+    }
+
+    public void fireAddedEvent(String id, Object data) {
+        if (delegate instanceof BaseStore) {
+            ((BaseStore) delegate).fireAddedEvent(id, data);
+        }
+    }
+
+    public void fireRemovedEvent(String id, Object data) {
+        if (delegate instanceof BaseStore) {
+            ((BaseStore) delegate).fireRemovedEvent(id, data);
+        }
+    }
+
+    public void fireEvictedEvent(String id, Object data) {
+        if (delegate instanceof BaseStore) {
+            ((BaseStore) delegate).fireEvictedEvent(id, data);
+        }
+    }
+
+    public void addListener(StoreListener listener) {
+        delegate.addListener(listener);
+    }
+
+    public void removeListener(StoreListener listener) {
+        delegate.removeListener(listener);
+    }
+
+    public boolean addRemoteListener(StoreListener listener) {
+        return delegate instanceof BaseStore && ((BaseStore) delegate).addRemoteListener(listener);
+    }
+
+    public void removeRemoteListener(StoreListener listener) {
+        if (delegate instanceof BaseStore) {
+            ((BaseStore) delegate).removeRemoteListener(listener);
+        }
+    }
+
+    public Set<StoreListener> getStoreListeners() {
+        return delegate.getStoreListeners();
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.store.AsyncStore;
+import org.apache.servicemix.store.Store;
+
+/**
+ * {@link AsyncStore} running each operation of a blocking {@link Store} as a task
+ * of an {@link Executor}.
+ */
+public class ExecutorAsyncStore implements AsyncStore {
+
+    private final Store store;
+    private final Executor executor;
+
+    public ExecutorAsyncStore(Store store, Executor executor) {
+        this.store = store;
+        this.executor = executor;
+    }
+
+    public Store getStore() {
+        return store;
+    }
+
+    public Future<Void> store(final String id, final Object data) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                store.store(id, data);
+                return null;
+            }
+        });
+    }
+
+    public Future<String> store(final Object data) {
+        return submit(new Callable<String>() {
+            public String call() throws Exception {
+                return store.store(data);
+            }
+        });
+    }
+
+    public Future<Object> load(final String id) {
+        return submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                return store.load(id);
+            }
+        });
+    }
+
+    public Future<Object> peek(final String id) {
+        return submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                return store.peek(id);
+            }
+        });
+    }
+
+    private <T> Future<T> submit(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        executor.execute(task);
+        return task;
+    }
+
+}
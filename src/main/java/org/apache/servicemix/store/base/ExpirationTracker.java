@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the expiration time of the ids stored with a time to live, for stores which can not
+ * keep it along with their objects.
+ * <p>
+ * Expired ids are found through an {@link ExpiryIndex}, so looking for them costs nothing
+ * until one has actually expired.  Stores without any id stored with a time to live only
+ * pay for an emptiness check.
+ * </p>
+ */
+public class ExpirationTracker {
+
+    private final ConcurrentMap<String, Long> expirations = new ConcurrentHashMap<String, Long>();
+    private final ExpiryIndex index;
+
+    public ExpirationTracker() {
+        this(ExpiryIndex.DEFAULT_RESOLUTION);
+    }
+
+    public ExpirationTracker(long resolution) {
+        this.index = new ExpiryIndex(resolution);
+    }
+
+    /**
+     * Tracks an id until the given time, replacing its previous expiration time if any.
+     * @param id the id to track
+     * @param expiration the time, in milliseconds, after which the id is expired
+     */
+    public void track(String id, long expiration) {
+        Long previous = expirations.put(id, expiration);
+        if (previous != null) {
+            index.remove(id, previous);
+        }
+        index.add(id, expiration);
+    }
+
+    /**
+     * Stops tracking an id, because it has been removed or stored again without a time to live.
+     * @param id the id to forget
+     */
+    public void untrack(String id) {
+        if (expirations.isEmpty()) {
+            return;
+        }
+        Long previous = expirations.remove(id);
+        if (previous != null) {
+            index.remove(id, previous);
+        }
+    }
+
+    /**
+     * @param id the id to check
+     * @param now the current time in milliseconds
+     * @return <code>true</code> if the id is tracked and expired at the given time
+     */
+    public boolean isExpired(String id, long now) {
+        if (expirations.isEmpty()) {
+            return false;
+        }
+        Long expiration = expirations.get(id);
+        return expiration != null && now > expiration;
+    }
+
+    /**
+     * Stops tracking the ids expired at the given time and returns them.
+     * Ids may be returned up to the resolution of the index late.
+     * @param now the current time in milliseconds
+     * @return the expired ids, never <code>null</code>
+     */
+    public List<String> expire(long now) {
+        if (!index.hasExpired(now)) {
+            return Collections.emptyList();
+        }
+        List<String> expired = new ArrayList<String>();
+        for (String id : index.expire(now)) {
+            Long expiration = expirations.get(id);
+            // the id may have been tracked again with a later expiration
+            if (expiration != null && now > expiration && expirations.remove(id, expiration)) {
+                expired.add(id);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return the number of tracked ids
+     */
+    public int size() {
+        return expirations.size();
+    }
+
+}
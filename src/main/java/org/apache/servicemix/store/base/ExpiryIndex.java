@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A time-bucketed index of ids ordered by expiration time.
+ * <p>
+ * Ids are grouped in buckets of <code>resolution</code> milliseconds, so finding
+ * the expired ids only touches the buckets that have fully elapsed instead of
+ * scanning the whole store.  Expiration may therefore be detected up to
+ * <code>resolution</code> milliseconds late.
+ * </p>
+ * <p>
+ * The index only holds ids: callers are expected to check the actual age of the
+ * entry before evicting it, as an id may have been removed and stored again
+ * since it was indexed.
+ * </p>
+ */
+public class ExpiryIndex {
+
+    public static final long DEFAULT_RESOLUTION = 100L;
+
+    private final ConcurrentSkipListMap<Long, Set<String>> buckets = new ConcurrentSkipListMap<Long, Set<String>>();
+    private final long resolution;
+
+    public ExpiryIndex() {
+        this(DEFAULT_RESOLUTION);
+    }
+
+    public ExpiryIndex(long resolution) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("resolution must be > 0");
+        }
+        this.resolution = resolution;
+    }
+
+    /**
+     * Indexes an id under the given expiration time.
+     * @param id the id to index
+     * @param expiration the time, in milliseconds, after which the id is expired
+     */
+    public void add(String id, long expiration) {
+        Long bucket = bucket(expiration);
+        Set<String> ids = buckets.get(bucket);
+        if (ids == null) {
+            Set<String> newIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            ids = buckets.putIfAbsent(bucket, newIds);
+            if (ids == null) {
+                ids = newIds;
+            }
+        }
+        ids.add(id);
+    }
+
+    /**
+     * Removes an id previously indexed under the given expiration time.
+     * @param id the id to remove
+     * @param expiration the expiration time used when the id was indexed
+     */
+    public void remove(String id, long expiration) {
+        Set<String> ids = buckets.get(bucket(expiration));
+        if (ids != null) {
+            ids.remove(id);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if at least one bucket has fully elapsed at the given time.
+     * This is a constant time check that can safely be run on every store access.
+     * @param now the current time in milliseconds
+     */
+    public boolean hasExpired(long now) {
+        Map.Entry<Long, Set<String>> first = buckets.firstEntry();
+        return first != null && isElapsed(first.getKey(), now);
+    }
+
+    /**
+     * Removes and returns the ids of all the buckets that have fully elapsed at the given time.
+     * @param now the current time in milliseconds
+     * @return the candidate ids for eviction, never <code>null</code>
+     */
+    public List<String> expire(long now) {
+        List<String> expired = null;
+        ConcurrentNavigableMap<Long, Set<String>> elapsed = buckets.headMap(bucket(now));
+        for (Map.Entry<Long, Set<String>> entry = elapsed.pollFirstEntry(); entry != null; entry = elapsed.pollFirstEntry()) {
+            if (expired == null) {
+                expired = new ArrayList<String>(entry.getValue());
+            } else {
+                expired.addAll(entry.getValue());
+            }
+        }
+        return expired != null ? expired : Collections.<String>emptyList();
+    }
+
+    /**
+     * Removes all the ids from the index.
+     */
+    public void clear() {
+        buckets.clear();
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    private Long bucket(long time) {
+        return time / resolution;
+    }
+
+    private boolean isElapsed(long bucket, long now) {
+        return (bucket + 1) * resolution <= now;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.servicemix.store.Store;
+
+/**
+ * A {@link Store} decorator recording the count, errors and latency of each operation
+ * in {@link StoreStatistics}.
+ * <p>
+ * The statistics also listen to the events of the decorated store, to count live entries
+ * and evictions, and the serializer of the store, if any, is wrapped to count the
+ * serialized bytes.  {@link #detach()} undoes both.
+ * </p>
+ */
+public class InstrumentedStore extends DelegatingStore {
+
+    private final String name;
+    private final StoreStatistics statistics;
+
+    public InstrumentedStore(String name, Store delegate) {
+        super(delegate);
+        this.name = name;
+        this.statistics = new StoreStatistics();
+        delegate.addListener(statistics);
+        if (delegate instanceof BaseStore) {
+            BaseStore store = (BaseStore) delegate;
+            store.setSerializer(new CountingStoreSerializer(store.getSerializer(), statistics));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public StoreStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Stops collecting statistics from the events and the serializer of the decorated store.
+     */
+    public void detach() {
+        delegate.removeListener(statistics);
+        if (delegate instanceof BaseStore) {
+            BaseStore store = (BaseStore) delegate;
+            if (store.getSerializer() instanceof CountingStoreSerializer) {
+                store.setSerializer(((CountingStoreSerializer) store.getSerializer()).getDelegate());
+            }
+        }
+    }
+
+    public void store(String id, Object data) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.store(id, data);
+        } catch (IOException e) {
+            statistics.getStores().recordError();
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.getStores().recordError();
+            throw e;
+        }
+        statistics.getStores().record(System.nanoTime() - start, 1);
+    }
+
+    public void store(String id, Object data, long ttl) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.store(id, data, ttl);
+        } catch (IOException e) {
+            statistics.getStores().recordError();
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.getStores().recordError();
+            throw e;
+        }
+        statistics.getStores().record(System.nanoTime() - start, 1);
+    }
+
+    public String store(Object data) throws IOException {
+        long start = System.nanoTime();
+        String id;
+        try {
+            id = delegate.store(data);
+        } catch (IOException e) {
+            statistics.getStores().recordError();
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.getStores().recordError();
+            throw e;
+        }
+        statistics.getStores().record(System.nanoTime() - start, 1);
+        return id;
+    }
+
+    public Object load(String id) throws IOException {
+        long start = System.nanoTime();
+        Object data;
+        try {
+            data = delegate.load(id);
+        } catch (IOException e) {
+            statistics.getLoads().recordError();
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.getLoads().recordError();
+            throw e;
+        }
+        statistics.getLoads().record(System.nanoTime() - start, 1);
+        return data;
+    }
+
+    public Object peek(String id) throws IOException {
+        long start = System.nanoTime();
+        Object data;
+        try {
+            data = delegate.peek(id);
+        } catch (IOException e) {
+            statistics.getPeeks().recordError();
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.getPeeks().recordError();
+            throw e;
+        }
+        statistics.getPeeks().record(System.nanoTime() - start, 1);
+        return data;
+    }
+
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.storeAll(entries);
+        } catch (IOException e) {
+            statistics.getStores().recordError();
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.getStores().recordError();
+            throw e;
+        }
+        statistics.getStores().record(System.nanoTime() - start, entries.size());
+    }
+
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        long start = System.nanoTime();
+        Map<String, Object> result;
+        try {
+            result = delegate.loadAll(ids);
+        } catch (IOException e) {
+            statistics.getLoads().recordError();
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.getLoads().recordError();
+            throw e;
+        }
+        statistics.getLoads().record(System.nanoTime() - start, ids.size());
+        return result;
+    }
+
+    public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+        long start = System.nanoTime();
+        Map<String, Object> result;
+        try {
+            result = delegate.peekAll(ids);
+        } catch (IOException e) {
+            statistics.getPeeks().recordError();
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.getPeeks().recordError();
+            throw e;
+        }
+        statistics.getPeeks().record(System.nanoTime() - start, ids.size());
+        return result;
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+public class ManagedStore extends javax.management.StandardMBean implements ManagedStoreMBean {
+
+    private final InstrumentedStore store;
+
+    public ManagedStore(InstrumentedStore store) throws javax.management.NotCompliantMBeanException {
+        super(ManagedStoreMBean.class);
+        this.store = store;
+    }
+
+    public InstrumentedStore getStore() {
+        return store;
+    }
+
+    public String getName() {
+        return store.getName();
+    }
+
+    public long getStoreCount() {
+        return store.getStatistics().getStores().getCount();
+    }
+
+    public long getStoreErrorCount() {
+        return store.getStatistics().getStores().getErrorCount();
+    }
+
+    public double getStoreMeanLatency() {
+        return store.getStatistics().getStores().getMeanLatency();
+    }
+
+    public long getStoreLatency99thPercentile() {
+        return store.getStatistics().getStores().getLatencyPercentile(99);
+    }
+
+    public long[] getStoreLatencyHistogram() {
+        return store.getStatistics().getStores().getLatencyHistogram();
+    }
+
+    public long getLoadCount() {
+        return store.getStatistics().getLoads().getCount();
+    }
+
+    public long getLoadErrorCount() {
+        return store.getStatistics().getLoads().getErrorCount();
+    }
+
+    public double getLoadMeanLatency() {
+        return store.getStatistics().getLoads().getMeanLatency();
+    }
+
+    public long getLoadLatency99thPercentile() {
+        return store.getStatistics().getLoads().getLatencyPercentile(99);
+    }
+
+    public long[] getLoadLatencyHistogram() {
+        return store.getStatistics().getLoads().getLatencyHistogram();
+    }
+
+    public long getPeekCount() {
+        return store.getStatistics().getPeeks().getCount();
+    }
+
+    public long getPeekErrorCount() {
+        return store.getStatistics().getPeeks().getErrorCount();
+    }
+
+    public double getPeekMeanLatency() {
+        return store.getStatistics().getPeeks().getMeanLatency();
+    }
+
+    public long getPeekLatency99thPercentile() {
+        return store.getStatistics().getPeeks().getLatencyPercentile(99);
+    }
+
+    public long[] getPeekLatencyHistogram() {
+        return store.getStatistics().getPeeks().getLatencyHistogram();
+    }
+
+    public long getLiveEntries() {
+        return store.getStatistics().getLiveEntries();
+    }
+
+    public long getEvictionCount() {
+        return store.getStatistics().getEvictionCount();
+    }
+
+    public long getSerializedBytesWritten() {
+        return store.getStatistics().getSerializedBytesWritten();
+    }
+
+    public long getSerializedBytesRead() {
+        return store.getStatistics().getSerializedBytesRead();
+    }
+
+    public long getBloomFilterSkippedCount() {
+        return store.getDelegate() instanceof BloomFilterStore
+                ? ((BloomFilterStore) store.getDelegate()).getSkippedCount() : 0;
+    }
+
+    public double getBloomFilterFalsePositiveRate() {
+        return store.getDelegate() instanceof BloomFilterStore
+                ? ((BloomFilterStore) store.getDelegate()).getFalsePositiveRate() : 0.0;
+    }
+
+    public void reset() {
+        store.getStatistics().reset();
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+/**
+ * Management interface of an {@link InstrumentedStore}.
+ * Latencies are in microseconds, and histograms count operations per power-of-two
+ * microsecond bucket.
+ */
+public interface ManagedStoreMBean {
+
+    String getName();
+
+    long getStoreCount();
+
+    long getStoreErrorCount();
+
+    double getStoreMeanLatency();
+
+    long getStoreLatency99thPercentile();
+
+    long[] getStoreLatencyHistogram();
+
+    long getLoadCount();
+
+    long getLoadErrorCount();
+
+    double getLoadMeanLatency();
+
+    long getLoadLatency99thPercentile();
+
+    long[] getLoadLatencyHistogram();
+
+    long getPeekCount();
+
+    long getPeekErrorCount();
+
+    double getPeekMeanLatency();
+
+    long getPeekLatency99thPercentile();
+
+    long[] getPeekLatencyHistogram();
+
+    long getLiveEntries();
+
+    long getEvictionCount();
+
+    long getSerializedBytesWritten();
+
+    long getSerializedBytesRead();
+
+    /**
+     * @return the number of lookups answered by the Bloom filter of the store, or 0 if it has none
+     */
+    long getBloomFilterSkippedCount();
+
+    /**
+     * @return the proportion of lookups of missing ids the Bloom filter of the store did not
+     *         rule out, or 0 if it has none
+     */
+    double getBloomFilterFalsePositiveRate();
+
+    void reset();
+}
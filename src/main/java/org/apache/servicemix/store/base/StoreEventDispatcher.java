@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.store.StoreListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers {@link StoreListener} events on an {@link Executor} instead of the thread
+ * changing the store.
+ * <p>
+ * Each listener has its own bounded queue, drained by at most one task at a time, so
+ * that a listener receives its events in order while a slow listener does not delay
+ * the others.  Events are dropped and counted when the queue of their listener is full.
+ * Every dropped eviction is logged as a warning, as the owner of the evicted object will
+ * not hear of it, while other dropped events are reported once each time a queue overflows.
+ * </p>
+ * <p>
+ * Once the dispatcher is {@link #shutdown() shut down}, the stores still using it notify
+ * their listeners synchronously, after the events still queued for them.
+ * </p>
+ */
+public class StoreEventDispatcher {
+
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StoreEventDispatcher.class);
+
+    private static final int ADDED = 0;
+    private static final int REMOVED = 1;
+    private static final int EVICTED = 2;
+
+    private final Executor executor;
+    private final int queueSize;
+    private final ConcurrentMap<StoreListener, ListenerQueue> queues =
+        new ConcurrentHashMap<StoreListener, ListenerQueue>();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean shutdown;
+
+    public StoreEventDispatcher(Executor executor) {
+        this(executor, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param executor the executor notifying the listeners
+     * @param queueSize the maximum number of events waiting for each listener
+     */
+    public StoreEventDispatcher(Executor executor, int queueSize) {
+        this.executor = executor;
+        this.queueSize = queueSize;
+    }
+
+    public void fireAddedEvent(StoreListener listener, String id, Object data) {
+        dispatch(listener, new Event(ADDED, id, data));
+    }
+
+    public void fireRemovedEvent(StoreListener listener, String id, Object data) {
+        dispatch(listener, new Event(REMOVED, id, data));
+    }
+
+    public void fireEvictedEvent(StoreListener listener, String id, Object data) {
+        dispatch(listener, new Event(EVICTED, id, data));
+    }
+
+    /**
+     * Forgets the queue of a listener which is not registered anymore, once all its events
+     * have been delivered.
+     * @param listener
+     */
+    public void release(StoreListener listener) {
+        ListenerQueue queue = queues.get(listener);
+        if (queue != null && queue.queue.isEmpty() && !queue.scheduled.get()) {
+            queues.remove(listener, queue);
+        }
+    }
+
+    /**
+     * Shuts down the executor.  Events dispatched from now on are delivered on the calling
+     * thread, so that stores keeping this dispatcher still notify their listeners.
+     */
+    public void shutdown() {
+        shutdown = true;
+        executor.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * @return the number of events dropped because the queue of their listener was full
+     */
+    public long getDroppedEventCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    public int getPendingEventCount() {
+        int count = 0;
+        for (ListenerQueue queue : queues.values()) {
+            count += queue.queue.size();
+        }
+        return count;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    private void dispatch(StoreListener listener, Event event) {
+        ListenerQueue queue = queues.get(listener);
+        if (queue == null) {
+            queue = new ListenerQueue(listener);
+            ListenerQueue existing = queues.putIfAbsent(listener, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        if (shutdown) {
+            queue.deliverNow(event);
+            return;
+        }
+        if (!queue.queue.offer(event)) {
+            dropped.incrementAndGet();
+            if (event.type == EVICTED) {
+                LOG.warn("Dropping eviction event for object with id " + event.id + ": listener queue is full");
+            } else if (queue.overflowing.compareAndSet(false, true)) {
+                LOG.warn("Dropping events for store listener " + listener + ": its queue of "
+                         + queueSize + " events is full");
+            } else {
+                LOG.debug("Dropping event for object with id " + event.id + ": listener queue is full");
+            }
+        }
+        queue.schedule();
+    }
+
+    private static final class Event {
+        final int type;
+        final String id;
+        final Object data;
+
+        Event(int type, String id, Object data) {
+            this.type = type;
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private final class ListenerQueue implements Runnable {
+        final StoreListener listener;
+        final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(queueSize);
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // set once an overflow has been reported, until the queue is drained
+        final AtomicBoolean overflowing = new AtomicBoolean();
+
+        ListenerQueue(StoreListener listener) {
+            this.listener = listener;
+        }
+
+        void schedule() {
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    if (shutdown) {
+                        deliverNow(null);
+                    } else {
+                        // the events stay queued until the next dispatch
+                        LOG.debug("Unable to schedule store listener notification", e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Delivers the queued events and then the given one, if any, on the calling thread.
+         */
+        synchronized void deliverNow(Event event) {
+            for (Event queued = queue.poll(); queued != null; queued = queue.poll()) {
+                deliver(queued);
+            }
+            if (event != null) {
+                deliver(event);
+            }
+        }
+
+        public void run() {
+            try {
+                synchronized (this) {
+                    // drain at most one queue length per run, to share the executor with other listeners
+                    for (int i = 0; i < queueSize; i++) {
+                        Event event = queue.poll();
+                        if (event == null) {
+                            break;
+                        }
+                        deliver(event);
+                    }
+                }
+            } finally {
+                overflowing.set(false);
+                scheduled.set(false);
+            }
+            schedule();
+        }
+
+        private void deliver(Event event) {
+            try {
+                switch (event.type) {
+                case ADDED:
+                    listener.onAdd(event.id, event.data);
+                    break;
+                case REMOVED:
+                    listener.onRemove(event.id, event.data);
+                    break;
+                default:
+                    listener.onEvict(event.id, event.data);
+                    break;
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Store listener failed to handle event for object with id " + event.id, e);
+            }
+        }
+    }
+
+}
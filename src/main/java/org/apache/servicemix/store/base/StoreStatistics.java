@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.io.Serializable;
+
+import org.apache.servicemix.store.StoreListener;
+
+/**
+ * Statistics of a store, collected by an {@link InstrumentedStore}.
+ * <p>
+ * All counters are striped, so recording an operation never takes a lock.  Live entries
+ * and evictions are counted from the events of the store, which this class listens to.
+ * </p>
+ */
+public class StoreStatistics implements StoreListener, Serializable {
+
+    private final Operation stores = new Operation();
+    private final Operation loads = new Operation();
+    private final Operation peeks = new Operation();
+    private final StripedCounter liveEntries = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+    private final StripedCounter bytesRead = new StripedCounter();
+
+    public Operation getStores() {
+        return stores;
+    }
+
+    public Operation getLoads() {
+        return loads;
+    }
+
+    public Operation getPeeks() {
+        return peeks;
+    }
+
+    /**
+     * @return the number of entries added minus the number of entries removed or evicted
+     */
+    public long getLiveEntries() {
+        return liveEntries.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getSerializedBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getSerializedBytesRead() {
+        return bytesRead.sum();
+    }
+
+    void recordBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    void recordBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void onAdd(String id, Object data) {
+        liveEntries.increment();
+    }
+
+    public void onRemove(String id, Object data) {
+        liveEntries.add(-1);
+    }
+
+    public void onEvict(String id, Object data) {
+        liveEntries.add(-1);
+        evictions.increment();
+    }
+
+    /**
+     * Resets the operation and byte counters.  The live entries are left unchanged.
+     */
+    public void reset() {
+        stores.reset();
+        loads.reset();
+        peeks.reset();
+        evictions.reset();
+        bytesWritten.reset();
+        bytesRead.reset();
+    }
+
+    /**
+     * Statistics of one kind of operation.  Batch operations are accounted per entry,
+     * the latency of the call being spread evenly over its entries.
+     */
+    public static class Operation implements Serializable {
+
+        private final StripedCounter count = new StripedCounter();
+        private final StripedCounter errors = new StripedCounter();
+        private final StripedCounter nanos = new StripedCounter();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        void record(long elapsed, int entries) {
+            if (entries > 0) {
+                count.add(entries);
+                nanos.add(elapsed);
+                histogram.record(elapsed / entries, entries);
+            }
+        }
+
+        void recordError() {
+            errors.increment();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getErrorCount() {
+            return errors.sum();
+        }
+
+        /**
+         * @return the mean latency in microseconds
+         */
+        public double getMeanLatency() {
+            long n = count.sum();
+            return n > 0 ? nanos.sum() / 1000.0 / n : 0;
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100
+         * @return an upper bound of the latency percentile in microseconds
+         */
+        public long getLatencyPercentile(double percentile) {
+            return histogram.getPercentile(percentile);
+        }
+
+        /**
+         * @return the number of operations per power-of-two microsecond latency bucket
+         */
+        public long[] getLatencyHistogram() {
+            return histogram.getCounts();
+        }
+
+        void reset() {
+            count.reset();
+            errors.reset();
+            nanos.reset();
+            histogram.reset();
+        }
+    }
+
+}
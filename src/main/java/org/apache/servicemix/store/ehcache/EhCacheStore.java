@@ -23,15 +23,15 @@ import net.sf.ehcache.Element;
 import net.sf.ehcache.event.CacheEventListener;
 import org.apache.servicemix.id.IdGenerator;
 import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
 import org.apache.servicemix.store.base.BaseStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * EhCache Store.
@@ -86,12 +86,7 @@ public class EhCacheStore extends BaseStore implements CacheEventListener {
     public void store(String id, Object data) throws IOException {
         LOG.debug("Storing object with id: " + id);
         try {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream(buffer);
-            out.writeObject(data);
-            out.close();
-
-            Element element = new Element(id, buffer.toByteArray());
+            Element element = new Element(id, serializer.serialize(data));
             cache.put(element);
         } catch (Exception e) {
             throw new IOException(e);
@@ -99,6 +94,34 @@ public class EhCacheStore extends BaseStore implements CacheEventListener {
 
     }
 
+    /**
+     * <p>
+     * Put an object in the store under the given id, as an element with its own time to
+     * live, so that EhCache expires it.  EhCache counts times to live in seconds, so the
+     * given time is rounded up to the next second.
+     * </p>
+     *
+     * @param id   the id of the object to store
+     * @param data the object to store
+     * @param ttl  the time to live of the object in milliseconds, or a negative value to
+     *             use the configuration of the cache
+     * @throws IOException if an error occurs
+     */
+    public void store(String id, Object data, long ttl) throws IOException {
+        if (ttl <= 0) {
+            store(id, data);
+            return;
+        }
+        LOG.debug("Storing object with id: " + id + " for " + ttl + " ms");
+        try {
+            Element element = new Element(id, serializer.serialize(data));
+            element.setTimeToLive((int) Math.min(Integer.MAX_VALUE, (ttl + 999) / 1000));
+            cache.put(element);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
     /**
      * <p>
      * Put an object into the store and return the unique id that may be used at
@@ -166,17 +189,29 @@ public class EhCacheStore extends BaseStore implements CacheEventListener {
         }
     }
 
-    private Object readObject(byte[] data) throws IOException, ClassNotFoundException {
-        Object result = null;
-        if (data != null) {
-            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-            try {
-                result = ois.readObject();
-            } finally {
-                ois.close();
+    /**
+     * <p>
+     * Opens a cursor over the keys of the cache.  EhCache returns all its keys at once,
+     * so they are held in memory while the cursor is open.
+     * </p>
+     *
+     * @return the cursor
+     * @throws IOException if an error occurs
+     */
+    public StoreCursor<String> openIdCursor() throws IOException {
+        try {
+            List<String> keys = new ArrayList<String>();
+            for (Object key : cache.getKeysWithExpiryCheck()) {
+                keys.add((String) key);
             }
+            return AbstractStoreCursor.of(keys.iterator());
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error listing the keys of the cache").initCause(e);
         }
-        return result;
+    }
+
+    private Object readObject(byte[] data) throws IOException {
+        return data != null ? serializer.deserialize(data) : null;
     }
 
 
@@ -187,8 +222,6 @@ public class EhCacheStore extends BaseStore implements CacheEventListener {
             fireAddedEvent(id, readObject(data));
         } catch (IOException e) {
             throw new CacheException(e);
-        } catch (ClassNotFoundException e) {
-            throw new CacheException(e);
         }
     }
 
@@ -200,14 +233,10 @@ public class EhCacheStore extends BaseStore implements CacheEventListener {
 
         String id = (String) element.getKey();
         byte[] bytes = (byte[]) element.getObjectValue();
-        Object data = null;
         try {
-            data = readObject(bytes);
             fireEvictedEvent(id, readObject(bytes));
         } catch (IOException e) {
             LOG.error("Error reading expired element",e);
-        } catch (ClassNotFoundException e) {
-           LOG.error("Error reading expired element",e);
         }
         cache.removeQuiet(id);
     }
@@ -219,8 +248,6 @@ public class EhCacheStore extends BaseStore implements CacheEventListener {
                 fireEvictedEvent(id, readObject(data));
             } catch (IOException e) {
                 throw new CacheException(e);
-            } catch (ClassNotFoundException e) {
-                throw new CacheException(e);
             }
     }
 
@@ -246,8 +273,6 @@ public class EhCacheStore extends BaseStore implements CacheEventListener {
             }
         } catch (IOException e) {
            throw new CacheException(e);
-        } catch (ClassNotFoundException e) {
-            throw new CacheException(e);
         }
     }
 
@@ -67,15 +67,18 @@ public class EhCacheStoreFactory extends BaseStoreFactory{
             }
             store = new EhCacheStore(cache,idGenerator, name);
 
+            store.setSerializer(serializer);
+            store.setEventDispatcher(getEventDispatcher());
             for(StoreListener listener:storeListeners) {
                 store.addListener(listener);
             }
             stores.put(name, store);
         }
-        return store;
+        return instrument(name, store);
     }
 
     public synchronized void close(Store store) throws IOException {
+        store = release(store);
         EhCacheStore ehCacheStore = (EhCacheStore) store;
         try {
             ehCacheStore.destroy();
@@ -0,0 +1,472 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.file;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
+import org.apache.servicemix.store.base.BaseStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent store keeping its objects in an append-only log of memory-mapped segment files.
+ * <p>
+ * Storing an object appends a record to the active segment, and loading it appends a
+ * tombstone; an in-memory index maps each id to the segment and offset of its record.
+ * When the active segment is full, it is sealed: a hint file listing the last record of
+ * each of its ids is written, and a new segment is started.  On restart, the index is
+ * rebuilt from the hint files, and only the segment which was active is scanned.
+ * </p>
+ * <p>
+ * {@link #compact()} rewrites the live records of the sealed segments holding mostly
+ * removed objects to the active segment, and deletes them.  Their tombstones are only
+ * rewritten while an older segment still holds a record of the removed object.
+ * </p>
+ */
+public class FileStore extends BaseStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileStore.class);
+
+    private final File directory;
+    private final IdGenerator idGenerator;
+    private final int segmentSize;
+    private final SyncPolicy syncPolicy;
+    private final double compactionThreshold;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private final Object syncLock = new Object();
+    private Map<String, int[]> activeRecords = new LinkedHashMap<String, int[]>();
+    private Segment active;
+    private long writes;
+    private long synced;
+    private boolean closed;
+
+    /**
+     * Opens the store kept in the given directory, creating it if needed.
+     * @param directory the directory of the segment files
+     * @param idGenerator the generator of the ids of new objects
+     * @param segmentSize the size in bytes of the segment files
+     * @param syncPolicy when writes are forced to disk
+     * @param compactionThreshold the ratio of removed bytes above which a sealed segment is compacted
+     * @throws IOException if the segments can not be read
+     */
+    public FileStore(File directory, IdGenerator idGenerator, int segmentSize, SyncPolicy syncPolicy,
+                     double compactionThreshold) throws IOException {
+        this.directory = directory;
+        this.idGenerator = idGenerator;
+        this.segmentSize = segmentSize;
+        this.syncPolicy = syncPolicy;
+        this.compactionThreshold = compactionThreshold;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create store directory " + directory);
+        }
+        recover();
+    }
+
+    public boolean hasFeature(String name) {
+        return PERSISTENT.equals(name);
+    }
+
+    public void store(String id, Object data) throws IOException {
+        LOG.debug("Storing object with id: " + id);
+        byte[] bytes = serializer.serialize(data);
+        long write;
+        synchronized (this) {
+            checkOpen();
+            put(id, bytes);
+            write = ++writes;
+        }
+        sync(write);
+        fireAddedEvent(id, data);
+    }
+
+    public String store(Object data) throws IOException {
+        String id = idGenerator.generateId();
+        store(id, data);
+        return id;
+    }
+
+    public Object load(String id) throws IOException {
+        LOG.debug("Loading/Removing object with id: " + id);
+        byte[] bytes;
+        long write;
+        synchronized (this) {
+            checkOpen();
+            bytes = remove(id);
+            if (bytes == null) {
+                return null;
+            }
+            write = ++writes;
+        }
+        sync(write);
+        Object data = serializer.deserialize(bytes);
+        fireRemovedEvent(id, data);
+        return data;
+    }
+
+    public Object peek(String id) throws IOException {
+        LOG.debug("Peeking object with id: " + id);
+        byte[] bytes;
+        synchronized (this) {
+            checkOpen();
+            Location location = index.get(id);
+            if (location == null) {
+                return null;
+            }
+            bytes = location.segment.readData(location.offset);
+        }
+        return serializer.deserialize(bytes);
+    }
+
+    /**
+     * The ids are copied from the in-memory index when the cursor is opened, the objects
+     * are read from the segments as the cursor moves forward.
+     */
+    public synchronized StoreCursor<String> openIdCursor() throws IOException {
+        checkOpen();
+        return AbstractStoreCursor.of(new ArrayList<String>(index.keySet()).iterator());
+    }
+
+    /**
+     * Appends all the objects before a single sync.
+     */
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        LOG.debug("Storing " + entries.size() + " objects");
+        Map<String, byte[]> serialized = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            serialized.put(entry.getKey(), serializer.serialize(entry.getValue()));
+        }
+        long write;
+        synchronized (this) {
+            checkOpen();
+            for (Map.Entry<String, byte[]> entry : serialized.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            write = ++writes;
+        }
+        sync(write);
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            fireAddedEvent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Appends the tombstones of all the objects before a single sync.
+     */
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        LOG.debug("Loading/Removing " + ids.size() + " objects");
+        Map<String, byte[]> removed = new LinkedHashMap<String, byte[]>();
+        long write;
+        synchronized (this) {
+            checkOpen();
+            for (String id : ids) {
+                byte[] bytes = remove(id);
+                if (bytes != null) {
+                    removed.put(id, bytes);
+                }
+            }
+            write = ++writes;
+        }
+        sync(write);
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, byte[]> entry : removed.entrySet()) {
+            result.put(entry.getKey(), serializer.deserialize(entry.getValue()));
+        }
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            fireRemovedEvent(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Forces all the writes made so far to disk.
+     */
+    public void sync() {
+        long write;
+        Segment segment;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            write = writes;
+            segment = active;
+        }
+        synchronized (syncLock) {
+            if (synced < write) {
+                segment.force();
+                synced = write;
+            }
+        }
+    }
+
+    /**
+     * Compacts the sealed segments whose ratio of removed bytes exceeds the compaction threshold.
+     * Each segment is compacted while holding the lock of the store.
+     * @return the number of segments compacted
+     * @throws IOException if a segment can not be rewritten
+     */
+    public int compact() throws IOException {
+        List<Segment> candidates = new ArrayList<Segment>();
+        synchronized (this) {
+            checkOpen();
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.getPosition() > 0
+                        && segment.getPosition() - segment.getLiveBytes() >= compactionThreshold * segment.getPosition()) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        int compacted = 0;
+        for (Segment segment : candidates) {
+            synchronized (this) {
+                if (closed || segments.get(segment.getSequence()) != segment) {
+                    continue;
+                }
+                compact(segment);
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Writes the hint file of the active segment and closes all the segments.
+     * @throws IOException if the hint file can not be written
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        active.force();
+        active.writeHint(activeRecords);
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    /**
+     * @return the number of objects in the store
+     */
+    public synchronized int getSize() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    private void put(String id, byte[] bytes) throws IOException {
+        byte[] key = Segment.encode(id);
+        int size = Segment.sizeOf(key, bytes);
+        Segment segment = roomFor(size);
+        int offset = segment.append(Segment.PUT, key, bytes);
+        activeRecords.put(id, new int[] {offset, size});
+        index(id, new Location(segment, offset, size));
+    }
+
+    private byte[] remove(String id) throws IOException {
+        Location location = index.get(id);
+        if (location == null) {
+            return null;
+        }
+        byte[] bytes = location.segment.readData(location.offset);
+        tombstone(id);
+        return bytes;
+    }
+
+    private void tombstone(String id) throws IOException {
+        byte[] key = Segment.encode(id);
+        int size = Segment.sizeOf(key, null);
+        Segment segment = roomFor(size);
+        segment.append(Segment.TOMBSTONE, key, null);
+        activeRecords.put(id, new int[] {-1, size});
+        index(id, null);
+    }
+
+    private void index(String id, Location location) {
+        Location previous = location != null ? index.put(id, location) : index.remove(id);
+        if (previous != null) {
+            previous.segment.addLiveBytes(-previous.size);
+            previous.segment.addSuperseded(id);
+        }
+        if (location != null) {
+            location.segment.addLiveBytes(location.size);
+        }
+    }
+
+    /**
+     * Returns the active segment, sealing it and starting a new one if it can not hold a
+     * record of the given size.
+     */
+    private Segment roomFor(int size) throws IOException {
+        if (!active.hasRoom(size)) {
+            active.force();
+            active.writeHint(activeRecords);
+            active = new Segment(directory, active.getSequence() + 1, Math.max(segmentSize, size));
+            segments.put(active.getSequence(), active);
+            activeRecords = new LinkedHashMap<String, int[]>();
+        }
+        return active;
+    }
+
+    private void compact(final Segment segment) throws IOException {
+        LOG.debug("Compacting segment " + segment.getFile());
+        final List<String> live = new ArrayList<String>();
+        final List<String> removed = new ArrayList<String>();
+        segment.scan(new Segment.RecordVisitor() {
+            public void visit(byte type, String id, int offset, int size) {
+                if (type == Segment.PUT) {
+                    Location location = index.get(id);
+                    if (location != null && location.segment == segment && location.offset == offset) {
+                        live.add(id);
+                    }
+                } else if (!index.containsKey(id) && hidesOlderPut(segment, id)) {
+                    removed.add(id);
+                }
+            }
+        });
+        for (String id : live) {
+            Location location = index.get(id);
+            put(id, location.segment.readData(location.offset));
+        }
+        for (String id : removed) {
+            tombstone(id);
+        }
+        active.force();
+        segments.remove(segment.getSequence());
+        segment.delete();
+    }
+
+    /**
+     * Checks whether a segment older than the given one still holds a put of the id, which a
+     * tombstone of the given segment hides and must keep hiding once rewritten.
+     */
+    private boolean hidesOlderPut(Segment segment, String id) {
+        for (Segment older : segments.headMap(segment.getSequence()).values()) {
+            if (older.isSuperseded(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("segment-") && name.endsWith(Segment.SEGMENT_SUFFIX);
+            }
+        });
+        for (File file : files) {
+            long sequence = Segment.sequenceOf(file.getName());
+            segments.put(sequence, new Segment(directory, sequence, 0));
+        }
+        if (segments.isEmpty()) {
+            active = new Segment(directory, 0, segmentSize);
+            segments.put(active.getSequence(), active);
+            return;
+        }
+        active = segments.get(segments.lastKey());
+        for (final Segment segment : segments.values()) {
+            Map<String, int[]> records = segment.readHint();
+            if (records == null) {
+                LOG.debug("Scanning segment " + segment.getFile());
+                final Map<String, int[]> scanned = new LinkedHashMap<String, int[]>();
+                segment.scan(new Segment.RecordVisitor() {
+                    public void visit(byte type, String id, int offset, int size) {
+                        scanned.put(id, new int[] {type == Segment.PUT ? offset : -1, size});
+                    }
+                });
+                records = scanned;
+                if (segment != active) {
+                    segment.writeHint(records);
+                }
+            }
+            for (Map.Entry<String, int[]> record : records.entrySet()) {
+                int[] location = record.getValue();
+                index(record.getKey(), location[0] >= 0 ? new Location(segment, location[0], location[1]) : null);
+            }
+            if (segment == active) {
+                segment.deleteHint();
+                activeRecords = records;
+            }
+        }
+        LOG.debug("Recovered " + index.size() + " objects from " + segments.size() + " segments in " + directory);
+    }
+
+    private void sync(long write) {
+        if (syncPolicy == SyncPolicy.PERIODIC) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncPolicy == SyncPolicy.GROUP && synced >= write) {
+                // another thread has already synced this write
+                return;
+            }
+            long latest;
+            Segment segment;
+            synchronized (this) {
+                latest = writes;
+                segment = active;
+            }
+            segment.force();
+            synced = Math.max(synced, latest);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Store " + directory + " has been closed");
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int size;
+
+        Location(Segment segment, int offset, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreFactory;
+import org.apache.servicemix.store.StoreListener;
+import org.apache.servicemix.store.base.BaseStoreFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link StoreFactory} creating {@link FileStore}s, each one in a sub-directory of the
+ * configured directory named after the store.
+ * <p>
+ * A background timer compacts the stores at the configured interval and, with the
+ * {@link SyncPolicy#PERIODIC} policy, forces their writes to disk.
+ * </p>
+ */
+public class FileStoreFactory extends BaseStoreFactory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileStoreFactory.class);
+
+    public static final String DEFAULT_DIRECTORY = "data/stores";
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private IdGenerator idGenerator = new IdGenerator();
+    private Map<String, FileStore> stores = new HashMap<String, FileStore>();
+    private Map<FileStore, List<TimerTask>> tasks = new HashMap<FileStore, List<TimerTask>>();
+    private File directory = new File(DEFAULT_DIRECTORY);
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private SyncPolicy syncPolicy = SyncPolicy.GROUP;
+    private long syncInterval = 1000;
+    private double compactionThreshold = 0.5;
+    private long compactionInterval = 60000;
+    private Timer timer;
+
+    public synchronized Store open(String name) throws IOException {
+        FileStore store = stores.get(name);
+        if (store == null) {
+            store = new FileStore(new File(directory, name), idGenerator, segmentSize, syncPolicy, compactionThreshold);
+            store.setSerializer(serializer);
+            store.setEventDispatcher(getEventDispatcher());
+            for (StoreListener listener : storeListeners) {
+                store.addListener(listener);
+            }
+            schedule(store);
+            stores.put(name, store);
+        }
+        return instrument(name, store);
+    }
+
+    public synchronized void close(Store store) throws IOException {
+        store = release(store);
+        for (Iterator<FileStore> it = stores.values().iterator(); it.hasNext();) {
+            if (it.next() == store) {
+                it.remove();
+            }
+        }
+        List<TimerTask> storeTasks = tasks.remove(store);
+        if (storeTasks != null) {
+            for (TimerTask task : storeTasks) {
+                task.cancel();
+            }
+        }
+        if (tasks.isEmpty() && timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        if (store instanceof FileStore) {
+            ((FileStore) store).close();
+        }
+    }
+
+    private void schedule(final FileStore store) {
+        List<TimerTask> storeTasks = new ArrayList<TimerTask>();
+        if (syncPolicy == SyncPolicy.PERIODIC && syncInterval > 0) {
+            storeTasks.add(new TimerTask() {
+                public void run() {
+                    try {
+                        store.sync();
+                    } catch (Exception e) {
+                        LOG.warn("Unable to sync store " + store.getDirectory(), e);
+                    }
+                }
+            });
+            timer().schedule(storeTasks.get(storeTasks.size() - 1), syncInterval, syncInterval);
+        }
+        if (compactionInterval > 0) {
+            storeTasks.add(new TimerTask() {
+                public void run() {
+                    try {
+                        store.compact();
+                    } catch (Exception e) {
+                        // a failure must not kill the timer shared by all the stores
+                        LOG.warn("Unable to compact store " + store.getDirectory(), e);
+                    }
+                }
+            });
+            timer().schedule(storeTasks.get(storeTasks.size() - 1), compactionInterval, compactionInterval);
+        }
+        if (!storeTasks.isEmpty()) {
+            tasks.put(store, storeTasks);
+        }
+    }
+
+    private Timer timer() {
+        if (timer == null) {
+            timer = new Timer("FileStoreFactory maintenance", true);
+        }
+        return timer;
+    }
+
+    public IdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    public void setIdGenerator(IdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param directory the parent directory of the store directories
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @param segmentSize the size in bytes of the segment files, larger objects getting
+     *                    a segment of their own
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * @param syncPolicy when writes are forced to disk, {@link SyncPolicy#GROUP} by default
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * @param syncInterval the interval in milliseconds between syncs with the
+     *                     {@link SyncPolicy#PERIODIC} policy
+     */
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    /**
+     * @param compactionThreshold the ratio, between 0 and 1, of removed bytes above which
+     *                            a sealed segment is compacted
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public long getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    /**
+     * @param compactionInterval the interval in milliseconds between compactions, or a
+     *                           negative value to disable background compaction
+     */
+    public void setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A memory-mapped file of a {@link FileStore} log, holding records appended one after the other.
+ * <p>
+ * A record is made of its length, a CRC32 checksum of the rest of the record, its type,
+ * the length of its id, its id in UTF-8 and its data.  The unwritten part of a segment is
+ * filled with zeros, so a zero length marks the end of the records.
+ * </p>
+ * <p>
+ * When a segment is sealed, the final state of each of its ids is written to a hint file
+ * next to it, so that the store can rebuild its index without reading sealed segments.
+ * </p>
+ */
+class Segment {
+
+    static final byte PUT = 1;
+    static final byte TOMBSTONE = 2;
+
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String HINT_SUFFIX = ".hint";
+
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 4;
+    private static final int HINT_MAGIC = 0x534D5848;
+
+    private final long sequence;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private int position;
+    private long liveBytes;
+    private final Set<String> supersededIds = new HashSet<String>();
+
+    Segment(File directory, long sequence, int capacity) throws IOException {
+        this.sequence = sequence;
+        this.file = new File(directory, name(sequence) + SEGMENT_SUFFIX);
+        this.raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < capacity) {
+            raf.setLength(capacity);
+        }
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+
+    static String name(long sequence) {
+        return "segment-" + String.format("%016d", sequence);
+    }
+
+    static long sequenceOf(String fileName) {
+        return Long.parseLong(fileName.substring("segment-".length(), fileName.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    static int sizeOf(byte[] id, byte[] data) {
+        return HEADER_SIZE + id.length + (data != null ? data.length : 0);
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    File getHintFile() {
+        return new File(file.getParentFile(), name(sequence) + HINT_SUFFIX);
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    int getCapacity() {
+        return buffer.capacity();
+    }
+
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    void addLiveBytes(long bytes) {
+        liveBytes += bytes;
+    }
+
+    /**
+     * Records that a put of the given id in this segment has been superseded by a later record,
+     * so that a tombstone hiding it must be kept as long as this segment exists.
+     */
+    void addSuperseded(String id) {
+        supersededIds.add(id);
+    }
+
+    boolean isSuperseded(String id) {
+        return supersededIds.contains(id);
+    }
+
+    boolean hasRoom(int size) {
+        return position + size <= buffer.capacity();
+    }
+
+    /**
+     * Appends a record at the end of the segment.
+     * @return the offset of the record
+     */
+    int append(byte type, byte[] id, byte[] data) {
+        int size = sizeOf(id, data);
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(size - 4);
+        record.putInt(0);
+        record.put(type);
+        record.putInt(id.length);
+        record.put(id);
+        if (data != null) {
+            record.put(data);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, size - 8);
+        record.putInt(4, (int) crc.getValue());
+        int offset = position;
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(record.array());
+        position += size;
+        return offset;
+    }
+
+    /**
+     * Reads the data of the record at the given offset.
+     */
+    byte[] readData(int offset) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        int length = source.getInt();
+        source.getInt();
+        source.get();
+        int idLength = source.getInt();
+        source.position(source.position() + idLength);
+        byte[] data = new byte[length - 4 - 1 - 4 - idLength];
+        source.get(data);
+        return data;
+    }
+
+    /**
+     * Reads the records of the segment from the start, stopping at the first missing or
+     * corrupted record, which becomes the end of the segment.
+     * @param visitor the visitor called with each valid record
+     */
+    void scan(RecordVisitor visitor) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        int offset = 0;
+        while (offset + HEADER_SIZE <= source.capacity()) {
+            source.position(offset);
+            int length = source.getInt();
+            if (length < HEADER_SIZE - 4 || offset + 4 + length > source.capacity()) {
+                break;
+            }
+            int checksum = source.getInt();
+            byte[] body = new byte[length - 4];
+            source.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body);
+            byte type = record.get();
+            int idLength = record.getInt();
+            if (idLength < 0 || idLength > body.length - 5) {
+                break;
+            }
+            String id = new String(body, 5, idLength, "UTF-8");
+            visitor.visit(type, id, offset, 4 + length);
+            offset += 4 + length;
+        }
+        position = offset;
+        // clear what follows the last valid record, so that records appended later can not
+        // be followed by leftovers of an interrupted write
+        for (int i = offset; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Writes the hint file of the segment.
+     * @param records the offset and size of the last record of each id, a negative offset
+     *                meaning that the last record of the id is a tombstone
+     */
+    void writeHint(Map<String, int[]> records) throws IOException {
+        File hint = getHintFile();
+        File tmp = new File(hint.getParentFile(), hint.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(HINT_MAGIC);
+            out.writeInt(position);
+            out.writeInt(records.size());
+            for (Map.Entry<String, int[]> record : records.entrySet()) {
+                out.writeUTF(record.getKey());
+                out.writeInt(record.getValue()[0]);
+                out.writeInt(record.getValue()[1]);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(hint)) {
+            throw new IOException("Unable to write hint file " + hint);
+        }
+    }
+
+    /**
+     * Reads the hint file of the segment, if any.
+     * @return the records of the hint file, or <code>null</code> if it is missing or invalid
+     */
+    Map<String, int[]> readHint() {
+        File hint = getHintFile();
+        if (!hint.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hint)));
+            try {
+                if (in.readInt() != HINT_MAGIC) {
+                    return null;
+                }
+                int end = in.readInt();
+                int count = in.readInt();
+                Map<String, int[]> records = new LinkedHashMap<String, int[]>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    String id = in.readUTF();
+                    records.put(id, new int[] {in.readInt(), in.readInt()});
+                }
+                position = end;
+                return records;
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    void deleteHint() {
+        getHintFile().delete();
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        deleteHint();
+        if (!file.delete()) {
+            throw new IOException("Unable to delete segment " + file);
+        }
+    }
+
+    static byte[] encode(String id) {
+        try {
+            return id.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    interface RecordVisitor {
+        void visit(byte type, String id, int offset, int size) throws IOException;
+    }
+
+}
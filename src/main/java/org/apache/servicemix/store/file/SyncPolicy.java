@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.file;
+
+/**
+ * When a {@link FileStore} forces its writes to disk.
+ */
+public enum SyncPolicy {
+
+    /**
+     * Every write is forced to disk before the operation returns.
+     */
+    ALWAYS,
+
+    /**
+     * Every write is forced to disk before the operation returns, but a single sync
+     * covers all the writes made concurrently by other threads.
+     */
+    GROUP,
+
+    /**
+     * Writes are forced to disk at a fixed interval, and may be lost if the machine fails.
+     */
+    PERIODIC
+
+}
@@ -17,18 +17,43 @@
 
 package org.apache.servicemix.store.hazelcast;
 
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
 import com.hazelcast.core.IdGenerator;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.store.AsyncStore;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
 import org.apache.servicemix.store.base.BaseStore;
+import org.apache.servicemix.store.base.BatchingAsyncStore;
 import org.apache.servicemix.store.Entry;
+import org.apache.servicemix.store.StoreListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * A store based on a Hazelcast distributed map.
+ * <p>
+ * Objects are put in the map with the timeout of the store, or their own time to live, so
+ * that Hazelcast evicts them.  Once listeners are registered, the store listens to the
+ * evictions of the map and notifies its listeners of those of the entries owned by its member,
+ * so that every eviction is reported once in the cluster.  Expired entries are no longer returned, but they are only
+ * evicted, and reported, by the periodic cleanup of the map, which runs every
+ * <code>hazelcast.map.cleanup.delay.seconds</code>.
+ * </p>
  *
  * @author iocanel
  */
@@ -36,11 +61,14 @@ public class HazelcastStore extends BaseStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(HazelcastStore.class);
 
-    private Map<String, Entry> datas;
+    private IMap<String, Entry> datas;
+    private final Map<StoreListener, EntryListener<String, Entry>> remoteListeners =
+        new HashMap<StoreListener, EntryListener<String, Entry>>();
 
     private HazelcastInstance hazelcastInstance;
     private IdGenerator idGenerator;
     private final long timeout;
+    private EntryListener<String, Entry> evictionListener;
 
     /**
      * Constructor
@@ -105,7 +133,31 @@ public class HazelcastStore extends BaseStore {
      */
     public void store(String id, Object data) throws IOException {
         LOG.debug("Storing object with id: " + id);
-        datas.put(id, new Entry(data));
+        if (timeout > 0) {
+            datas.put(id, new Entry(data), timeout, TimeUnit.MILLISECONDS);
+        } else {
+            datas.put(id, new Entry(data));
+        }
+        fireAddedEvent(id,data);
+    }
+
+    /**
+     * <p>
+     * Put an object in the store under the given id, with a time to live given to the
+     * distributed map, so that Hazelcast evicts it.
+     * </p>
+     * @param id the id of the object to store
+     * @param data the object to store
+     * @param ttl the time to live of the object in milliseconds, or a negative value to use the timeout
+     * @throws IOException if an error occurs
+     */
+    public void store(String id, Object data, long ttl) throws IOException {
+        if (ttl <= 0) {
+            store(id, data);
+            return;
+        }
+        LOG.debug("Storing object with id: " + id + " for " + ttl + " ms");
+        datas.put(id, new Entry(data, ttl), ttl, TimeUnit.MILLISECONDS);
         fireAddedEvent(id,data);
     }
 
@@ -135,9 +187,6 @@ public class HazelcastStore extends BaseStore {
      */
     public Object load(String id) throws IOException {
         LOG.debug("Loading/Removing object with id: " + id);
-        if(timeout > 0) {
-            evict();
-        }
         Entry entry = datas.remove(id);
         if(entry != null) {
           fireRemovedEvent(id,entry.getData());
@@ -161,19 +210,179 @@ public class HazelcastStore extends BaseStore {
         return entry != null ? entry.getData() : null;
     }
     
-    private void evict() {
-        long now = System.currentTimeMillis();
-        for (String key : datas.keySet()) {
-            long age = now - datas.get(key).getTime();
-            if (age > timeout) {
-                LOG.debug("Removing object with id " + key + " from store after " + age + " ms");
-                Entry entry = datas.get(key);
-                datas.remove(key);
-
-                if(entry != null) {
-                    fireEvictedEvent(key,entry.getData());
-                }
+    /**
+     * <p>
+     * Put several objects in the store with a single <code>putAll</code> on the distributed map,
+     * or with one put per object when the store has a timeout, as <code>putAll</code> does not
+     * take a time to live.
+     * </p>
+     * @param entries the objects to store, keyed by their ids
+     * @throws IOException if an error occurs
+     */
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        LOG.debug("Storing " + entries.size() + " objects");
+        Map<String, Entry> values = new HashMap<String, Entry>(entries.size() * 2);
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            values.put(entry.getKey(), new Entry(entry.getValue()));
+        }
+        if (timeout > 0) {
+            for (Map.Entry<String, Entry> value : values.entrySet()) {
+                datas.put(value.getKey(), value.getValue(), timeout, TimeUnit.MILLISECONDS);
             }
+        } else {
+            datas.putAll(values);
+        }
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            fireAddedEvent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * <p>
+     * Loads and removes several objects.  The removals are sent asynchronously
+     * so that they are processed in parallel by the members owning the entries.
+     * </p>
+     * @param ids the ids of the objects
+     * @return the objects found, keyed by their ids
+     * @throws IOException if an error occurs
+     */
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        LOG.debug("Loading/Removing " + ids.size() + " objects");
+        Map<String, Future<Entry>> removals = new LinkedHashMap<String, Future<Entry>>();
+        for (String id : ids) {
+            removals.put(id, datas.removeAsync(id));
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Future<Entry>> removal : removals.entrySet()) {
+            Entry entry = waitFor(removal.getValue());
+            if (entry != null) {
+                result.put(removal.getKey(), entry.getData());
+            }
+        }
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            fireRemovedEvent(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Pending asynchronous operations are coalesced into <code>putAll</code> and <code>getAll</code> calls on the distributed map.
+     */
+    public AsyncStore createAsyncStore(Executor executor) {
+        return new BatchingAsyncStore(this, executor);
+    }
+
+    /**
+     * <p>
+     * Loads several objects with a single <code>getAll</code> on the distributed map.
+     * </p>
+     * @param ids the ids of the objects
+     * @return the objects found, keyed by their ids
+     * @throws IOException if an error occurs
+     */
+    public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+        LOG.debug("Peeking " + ids.size() + " objects");
+        Map<String, Entry> entries = datas.getAll(new HashSet<String>(ids));
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (String id : ids) {
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                result.put(id, entry.getData());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * Opens a cursor over the keys of the distributed map.  The keys are fetched from all the
+     * members when the cursor is opened, the objects are then read in batches of <code>getAll</code>.
+     * </p>
+     * @return the cursor
+     */
+    public StoreCursor<String> openIdCursor() throws IOException {
+        return AbstractStoreCursor.of(datas.keySet().iterator());
+    }
+
+    /**
+     * Remote listeners are backed by Hazelcast entry listeners, which report the changes made
+     * by every member of the cluster, without their data.
+     */
+    public synchronized boolean addRemoteListener(final StoreListener listener) {
+        if (remoteListeners.containsKey(listener)) {
+            return true;
+        }
+        EntryListener<String, Entry> entryListener = new EntryListener<String, Entry>() {
+            public void entryAdded(EntryEvent<String, Entry> event) {
+                listener.onAdd(event.getKey(), null);
+            }
+            public void entryUpdated(EntryEvent<String, Entry> event) {
+                listener.onAdd(event.getKey(), null);
+            }
+            public void entryRemoved(EntryEvent<String, Entry> event) {
+                listener.onRemove(event.getKey(), null);
+            }
+            public void entryEvicted(EntryEvent<String, Entry> event) {
+                listener.onEvict(event.getKey(), null);
+            }
+        };
+        remoteListeners.put(listener, entryListener);
+        datas.addEntryListener(entryListener, false);
+        return true;
+    }
+
+    public synchronized void removeRemoteListener(StoreListener listener) {
+        EntryListener<String, Entry> entryListener = remoteListeners.remove(listener);
+        if (entryListener != null) {
+            datas.removeEntryListener(entryListener);
+        }
+    }
+
+    /**
+     * Listens to the evictions of the map once a listener is registered.  A local entry listener
+     * would be simpler, but it keeps the entry listeners added later from being registered on
+     * the other members, which breaks {@link #addRemoteListener(StoreListener)}.
+     */
+    public synchronized void addListener(StoreListener listener) {
+        super.addListener(listener);
+        if (evictionListener == null) {
+            evictionListener = new EntryListener<String, Entry>() {
+                public void entryAdded(EntryEvent<String, Entry> event) {
+                }
+                public void entryUpdated(EntryEvent<String, Entry> event) {
+                }
+                public void entryRemoved(EntryEvent<String, Entry> event) {
+                }
+                public void entryEvicted(EntryEvent<String, Entry> event) {
+                    // every member is told of the eviction, only the owner of the entry reports it
+                    if (!event.getMember().localMember()) {
+                        return;
+                    }
+                    Entry entry = event.getValue();
+                    LOG.debug("Object with id " + event.getKey() + " evicted from store");
+                    fireEvictedEvent(event.getKey(), entry != null ? entry.getData() : null);
+                }
+            };
+            datas.addEntryListener(evictionListener, true);
+        }
+    }
+
+    public synchronized void removeListener(StoreListener listener) {
+        super.removeListener(listener);
+        if (storeListeners.isEmpty() && evictionListener != null) {
+            datas.removeEntryListener(evictionListener);
+            evictionListener = null;
+        }
+    }
+
+    private static Entry waitFor(Future<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new IOException("Interrupted while removing object").initCause(e);
+        } catch (ExecutionException e) {
+            throw (IOException) new IOException("Error removing object").initCause(e.getCause());
         }
     }
 }
@@ -17,11 +17,14 @@
 
 package org.apache.servicemix.store.hazelcast;
 
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.NearCacheConfig;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
-import com.hazelcast.core.IdGenerator;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.servicemix.store.Store;
@@ -30,14 +33,36 @@ import org.apache.servicemix.store.base.BaseStoreFactory;
 
 
 /**
+ * Creates {@link HazelcastStore}s, each one backed by a distributed map named after the store.
+ * <p>
+ * The backup count, near cache and in-memory format given to the factory are applied to the
+ * maps of the stores it opens, unless the Hazelcast configuration already has an explicit
+ * map configuration for them.  As Hazelcast reads the map configuration when a map is created,
+ * the same settings should be given to all the members.
+ * </p>
+ *
  * @author iocanel
  */
 public class HazelcastStoreFactory extends BaseStoreFactory {
 
-    private Map<String, HazelcastStore> stores;
+    /**
+     * Keeps values in their serialized form only.
+     */
+    public static final String BINARY = "BINARY";
+
+    /**
+     * Also keeps the deserialized values, speeding up repeated local reads.
+     */
+    public static final String OBJECT = "OBJECT";
+
+    private Map<String, HazelcastStore> stores = new HashMap<String, HazelcastStore>();
 
     private HazelcastInstance hazelcastInstance;
     private long timeout = -1;
+    private int backupCount = -1;
+    private boolean nearCache;
+    private int nearCacheMaxSize = NearCacheConfig.DEFAULT_MAX_SIZE;
+    private String inMemoryFormat;
 
     public static final String STORE_PREFIX = "org.apache.servicemix.stores";
 
@@ -45,30 +70,65 @@ public class HazelcastStoreFactory extends BaseStoreFactory {
         if (hazelcastInstance == null) {
             hazelcastInstance = Hazelcast.newHazelcastInstance(null);
         }
-        stores = hazelcastInstance.getMap(STORE_PREFIX);
         HazelcastStore store = stores.get(name);
         String storeName = STORE_PREFIX + "." + name;
         if (store == null) {
-            IdGenerator idGenerator = hazelcastInstance.getIdGenerator(storeName);
+            configure(storeName);
             if (timeout <= 0) {
                 store = new HazelcastStore(hazelcastInstance, storeName);
             } else {
                 store = new HazelcastStore(hazelcastInstance, storeName, timeout);
             }
 
+            store.setEventDispatcher(getEventDispatcher());
             for(StoreListener listener:storeListeners) {
                 store.addListener(listener);
             }
             stores.put(name, store);
         }
-        return store;
+        return instrument(name, store);
     }
 
     /* (non-Javadoc)
     * @see org.apache.servicemix.store.ExchangeStoreFactory#release(org.apache.servicemix.store.ExchangeStore)
     */
     public synchronized void close(Store store) throws IOException {
-        stores.remove(store);
+        store = release(store);
+        stores.values().remove(store);
+    }
+
+    /**
+     * Adds the configuration of the map of a store, if the factory has map settings and the
+     * Hazelcast configuration has none for this map.
+     */
+    protected void configure(String storeName) throws IOException {
+        if (backupCount < 0 && !nearCache && inMemoryFormat == null) {
+            return;
+        }
+        Config config = hazelcastInstance.getConfig();
+        if (config.getMapConfigs().containsKey(storeName)) {
+            return;
+        }
+        MapConfig mapConfig = new MapConfig(storeName);
+        if (backupCount >= 0) {
+            mapConfig.setBackupCount(backupCount);
+        }
+        if (nearCache) {
+            NearCacheConfig nearCacheConfig = new NearCacheConfig();
+            nearCacheConfig.setMaxSize(nearCacheMaxSize);
+            nearCacheConfig.setInvalidateOnChange(true);
+            mapConfig.setNearCacheConfig(nearCacheConfig);
+        }
+        if (inMemoryFormat != null) {
+            if (BINARY.equalsIgnoreCase(inMemoryFormat)) {
+                mapConfig.setCacheValue(false);
+            } else if (OBJECT.equalsIgnoreCase(inMemoryFormat)) {
+                mapConfig.setCacheValue(true);
+            } else {
+                throw new IOException("Unknown in-memory format " + inMemoryFormat);
+            }
+        }
+        config.addMapConfig(mapConfig);
     }
 
     public long getTimeout() {
@@ -79,6 +139,53 @@ public class HazelcastStoreFactory extends BaseStoreFactory {
         this.timeout = timeout;
     }
 
+    public int getBackupCount() {
+        return backupCount;
+    }
+
+    /**
+     * @param backupCount the number of synchronous backups of each entry, or a negative value
+     *                    to use the Hazelcast default
+     */
+    public void setBackupCount(int backupCount) {
+        this.backupCount = backupCount;
+    }
+
+    public boolean isNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * @param nearCache <code>true</code> to cache the entries read by each member locally,
+     *                  invalidated when they change on another member
+     */
+    public void setNearCache(boolean nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    public int getNearCacheMaxSize() {
+        return nearCacheMaxSize;
+    }
+
+    /**
+     * @param nearCacheMaxSize the maximum number of entries of the near cache of each member
+     */
+    public void setNearCacheMaxSize(int nearCacheMaxSize) {
+        this.nearCacheMaxSize = nearCacheMaxSize;
+    }
+
+    public String getInMemoryFormat() {
+        return inMemoryFormat;
+    }
+
+    /**
+     * @param inMemoryFormat {@link #BINARY} or {@link #OBJECT}, or <code>null</code> to use
+     *                       the Hazelcast default
+     */
+    public void setInMemoryFormat(String inMemoryFormat) {
+        this.inMemoryFormat = inMemoryFormat;
+    }
+
     public HazelcastInstance getHazelcastInstance() {
         return hazelcastInstance;
     }
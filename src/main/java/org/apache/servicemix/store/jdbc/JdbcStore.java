@@ -16,23 +16,66 @@
  */
 package org.apache.servicemix.store.jdbc;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.jdbc.DataCursor;
+import org.apache.servicemix.jdbc.DataReader;
+import org.apache.servicemix.jdbc.DataWriter;
+import org.apache.servicemix.store.AsyncStore;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
 import org.apache.servicemix.store.base.BaseStore;
+import org.apache.servicemix.store.base.BatchingAsyncStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * A store keeping its objects in a database table.
+ * <p>
+ * When the table has an <code>EXPIRES</code> column, the expiration time of each object is
+ * kept in it: the time to live given when storing it or, failing that, the timeout of the
+ * factory.  Reads skip the expired rows, which are deleted by a background sweep notifying
+ * the listeners of their eviction, so every node sharing the table sees the same expiration
+ * times.  Without the column, objects can not be stored with a time to live.
+ * </p>
+ * <p>
+ * Loads delete the row and read its data at once when the database can, and otherwise only
+ * return the data if their delete removed the row, so that an object is loaded once even
+ * when several nodes share the table.  Loading several objects selects them at once, then
+ * deletes their rows in a batch, and likewise only returns the rows it deleted.
+ * </p>
+ * <p>
+ * Cursors select the rows of the store with a range on the id column and read them with
+ * a forward-only result set, fetching a few rows at a time.  A cursor holds a connection
+ * until it is closed.
+ * </p>
+ * <p>
+ * Single objects are serialized to and deserialized from streams given by the adapter, so
+ * that adapters which stream binary data, like the {@link org.apache.servicemix.jdbc.adapter.BlobJDBCAdapter},
+ * do not hold the whole serialized object in memory.  Batches of objects are still converted
+ * to and from byte arrays.
+ * </p>
+ */
 public class JdbcStore extends BaseStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(JdbcStore.class);
 
     private JdbcStoreFactory factory;
     private String name;
+    private final DataReader<Object> reader = new DataReader<Object>() {
+        public Object read(InputStream in) throws IOException {
+            return serializer.deserialize(in);
+        }
+    };
     
     public JdbcStore(JdbcStoreFactory factory, String name) {
         this.factory = factory;
@@ -46,15 +89,30 @@ public class JdbcStore extends BaseStore {
     }
 
     public void store(String id, Object data) throws IOException {
+        doStore(id, data, expires(factory.getTimeout()));
+    }
+
+    public void store(String id, Object data, long ttl) throws IOException {
+        if (ttl <= 0) {
+            store(id, data);
+            return;
+        }
+        if (!factory.getAdapter().getStatements().isExpiresColumn()) {
+            throw new IOException("A time to live can not be used without an EXPIRES column");
+        }
+        doStore(id, data, expires(ttl));
+    }
+
+    private void doStore(String id, final Object data, long expires) throws IOException {
         LOG.debug("Storing object with id: " + id);
         Connection connection = null;
         try {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream(buffer);
-            out.writeObject(data);
-            out.close();
             connection = factory.getDataSource().getConnection();
-            factory.getAdapter().doStoreData(connection, name + ":" + id, buffer.toByteArray());
+            factory.getAdapter().doStoreData(connection, name + ":" + id, new DataWriter() {
+                public void write(OutputStream out) throws IOException {
+                    serializer.serialize(data, out);
+                }
+            }, expires);
             fireAddedEvent(id,data);
         } catch (Exception e) {
             throw (IOException) new IOException("Error storing object").initCause(e);
@@ -74,13 +132,9 @@ public class JdbcStore extends BaseStore {
         Connection connection = null;
         try {
             connection = factory.getDataSource().getConnection();
-            byte[] data = factory.getAdapter().doLoadData(connection, name + ":" + id);
-            Object result = null;
-            if (data != null) {
-                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-                result = ois.readObject();
-                factory.getAdapter().doRemoveData(connection, name + ":" + id);
-                fireRemovedEvent(id, data);
+            Object result = factory.getAdapter().doLoadAndRemoveData(connection, name + ":" + id, reader);
+            if (result != null) {
+                fireRemovedEvent(id, result);
             }
             return result;
         } catch (Exception e) {
@@ -95,13 +149,7 @@ public class JdbcStore extends BaseStore {
         Connection connection = null;
         try {
             connection = factory.getDataSource().getConnection();
-            byte[] data = factory.getAdapter().doLoadData(connection, name + ":" + id);
-            Object result = null;
-            if (data != null) {
-                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-                result = ois.readObject();
-            }
-            return result;
+            return factory.getAdapter().doLoadData(connection, name + ":" + id, reader);
         } catch (Exception e) {
             throw (IOException) new IOException("Error loading object").initCause(e);
         } finally {
@@ -109,6 +157,238 @@ public class JdbcStore extends BaseStore {
         }
     }
 
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        LOG.debug("Storing " + entries.size() + " objects");
+        if (entries.isEmpty()) {
+            return;
+        }
+        Connection connection = null;
+        try {
+            String[] keys = new String[entries.size()];
+            byte[][] datas = new byte[entries.size()][];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                keys[i] = name + ":" + entry.getKey();
+                datas[i++] = serializer.serialize(entry.getValue());
+            }
+            connection = factory.getDataSource().getConnection();
+            factory.getAdapter().doStoreData(connection, keys, datas, expires(factory.getTimeout()));
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                fireAddedEvent(entry.getKey(), entry.getValue());
+            }
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error storing objects").initCause(e);
+        } finally {
+            close(connection);
+        }
+    }
+
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        LOG.debug("Loading " + ids.size() + " objects");
+        Connection connection = null;
+        try {
+            connection = factory.getDataSource().getConnection();
+            Map<String, byte[]> removed = factory.getAdapter().doLoadAndRemoveData(connection, keys(ids));
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            for (Map.Entry<String, byte[]> entry : removed.entrySet()) {
+                result.put(entry.getKey().substring(name.length() + 1), serializer.deserialize(entry.getValue()));
+            }
+            for (Map.Entry<String, Object> entry : result.entrySet()) {
+                fireRemovedEvent(entry.getKey(), entry.getValue());
+            }
+            return result;
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error loading objects").initCause(e);
+        } finally {
+            close(connection);
+        }
+    }
+
+    /**
+     * Pending asynchronous operations share a connection and are sent as JDBC batches.
+     */
+    public AsyncStore createAsyncStore(Executor executor) {
+        return new BatchingAsyncStore(this, executor);
+    }
+
+    public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+        LOG.debug("Peeking " + ids.size() + " objects");
+        Connection connection = null;
+        try {
+            connection = factory.getDataSource().getConnection();
+            return doLoadAll(connection, ids);
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error loading objects").initCause(e);
+        } finally {
+            close(connection);
+        }
+    }
+
+    public StoreCursor<String> openIdCursor() throws IOException {
+        RowCursor<String> cursor = new RowCursor<String>() {
+            protected String read(String id, DataCursor rows) {
+                return id;
+            }
+        };
+        cursor.open(false);
+        return cursor;
+    }
+
+    public StoreCursor<Map.Entry<String, Object>> openEntryCursor() throws IOException {
+        RowCursor<Map.Entry<String, Object>> cursor = new RowCursor<Map.Entry<String, Object>>() {
+            protected Map.Entry<String, Object> read(String id, DataCursor rows) throws Exception {
+                InputStream in = rows.getDataStream();
+                Object value = null;
+                if (in != null) {
+                    try {
+                        value = serializer.deserialize(in);
+                    } finally {
+                        in.close();
+                    }
+                }
+                return new AbstractMap.SimpleImmutableEntry<String, Object>(id, value);
+            }
+        };
+        cursor.open(true);
+        return cursor;
+    }
+
+    /**
+     * Deletes the expired objects of the store and notifies the listeners of their eviction.
+     * Does nothing if the table has no <code>EXPIRES</code> column.
+     */
+    public void sweep() throws IOException {
+        if (!factory.getAdapter().getStatements().isExpiresColumn()) {
+            return;
+        }
+        Connection connection = null;
+        try {
+            connection = factory.getDataSource().getConnection();
+            evict(connection);
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error sweeping expired objects").initCause(e);
+        } finally {
+            close(connection);
+        }
+    }
+
+    /**
+     * Deletes the rows of the store whose expiration time has passed, in batches of at most
+     * {@link org.apache.servicemix.jdbc.Statements#getMaxBatchSize()} rows, and notifies the
+     * listeners of their eviction.
+     */
+    private void evict(Connection connection) throws Exception {
+        long now = System.currentTimeMillis();
+        int batchSize = factory.getAdapter().getStatements().getMaxBatchSize();
+        // the data is only read when listeners are notified of it
+        boolean withData = !storeListeners.isEmpty();
+        Map<String, byte[]> expired;
+        do {
+            expired = factory.getAdapter().doRemoveExpiredData(connection, name + ":", name + ";", now,
+                                                               batchSize, withData);
+            for (Map.Entry<String, byte[]> entry : expired.entrySet()) {
+                String id = entry.getKey().substring(name.length() + 1);
+                LOG.debug("Removing expired object with id " + id + " from store");
+                byte[] data = entry.getValue();
+                fireEvictedEvent(id, data != null ? serializer.deserialize(data) : null);
+            }
+        } while (!expired.isEmpty());
+    }
+
+    /**
+     * @return the expiration time of an object stored now with the given time to live,
+     *         or <code>0</code> if it does not expire
+     */
+    private static long expires(long ttl) {
+        return ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+    }
+
+    private String[] keys(Collection<String> ids) {
+        String[] keys = new String[ids.size()];
+        int i = 0;
+        for (String id : ids) {
+            keys[i++] = name + ":" + id;
+        }
+        return keys;
+    }
+
+    private Map<String, Object> doLoadAll(Connection connection, Collection<String> ids) throws Exception {
+        byte[][] datas = factory.getAdapter().doLoadData(connection, keys(ids));
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        int i = 0;
+        for (String id : ids) {
+            byte[] data = datas[i++];
+            if (data != null) {
+                result.put(id, serializer.deserialize(data));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A cursor over the rows of this store, whose ids are the ones starting with the name of
+     * the store followed by a colon, or in other words the ids between <code>name + ":"</code>
+     * and <code>name + ";"</code>.
+     */
+    private abstract class RowCursor<T> extends AbstractStoreCursor<T> {
+
+        private Connection connection;
+        private DataCursor rows;
+        private boolean autoCommitDisabled;
+
+        protected abstract T read(String id, DataCursor rows) throws Exception;
+
+        void open(boolean withData) throws IOException {
+            try {
+                connection = factory.getDataSource().getConnection();
+                // drivers such as PostgreSQL only honour the fetch size outside of auto-commit mode
+                if (!factory.isTransactional() && connection.getAutoCommit()) {
+                    connection.setAutoCommit(false);
+                    autoCommitDisabled = true;
+                }
+                rows = factory.getAdapter().doOpenCursor(connection, name + ":", name + ";", withData,
+                                                         factory.getCursorFetchSize());
+            } catch (Exception e) {
+                release();
+                throw (IOException) new IOException("Error opening cursor").initCause(e);
+            }
+        }
+
+        protected T fetch() throws IOException {
+            try {
+                if (rows.next()) {
+                    return read(rows.getId().substring(name.length() + 1), rows);
+                }
+                return null;
+            } catch (Exception e) {
+                throw (IOException) new IOException("Error reading objects").initCause(e);
+            }
+        }
+
+        public void close() throws IOException {
+            if (rows != null) {
+                rows.close();
+                rows = null;
+            }
+            release();
+        }
+
+        private void release() throws IOException {
+            try {
+                if (autoCommitDisabled) {
+                    autoCommitDisabled = false;
+                    connection.commit();
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                throw (IOException) new IOException("Error closing cursor").initCause(e);
+            } finally {
+                JdbcStore.this.close(connection);
+                connection = null;
+            }
+        }
+    }
+
     protected void close(Connection connection) throws IOException {
         if (connection != null) {
             try {
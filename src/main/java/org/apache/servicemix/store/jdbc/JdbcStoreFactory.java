@@ -21,6 +21,8 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.sql.DataSource;
 
@@ -31,9 +33,25 @@ import org.apache.servicemix.jdbc.Statements;
 import org.apache.servicemix.store.Store;
 import org.apache.servicemix.store.StoreListener;
 import org.apache.servicemix.store.base.BaseStoreFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * A store factory keeping the objects of its stores in a database table.
+ * <p>
+ * When a timeout is set, or objects are to be stored with a time to live, the table has an
+ * <code>EXPIRES</code> column holding the time each object expires, which is added to an
+ * existing table when the database is created, and a background timer deletes the expired
+ * objects from the open stores, notifying their listeners.  Objects expire after the time to
+ * live given when storing them or, failing that, after the timeout.  When a timeout is set,
+ * the objects stored without one until then are given one too.  Otherwise, the table is left
+ * as it is and objects do not expire.
+ * </p>
+ */
 public class JdbcStoreFactory extends BaseStoreFactory {
 
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcStoreFactory.class);
+
     private boolean transactional;
     private boolean clustered;
     private DataSource dataSource;
@@ -41,6 +59,14 @@ public class JdbcStoreFactory extends BaseStoreFactory {
     private Map<String, JdbcStore> stores = new HashMap<String, JdbcStore>();
     private String tableName = "SM_STORE";
     private boolean createDataBase = true;
+    private int cursorFetchSize = 100;
+    private int maxInListSize = Statements.DEFAULT_MAX_IN_LIST_SIZE;
+    private int maxBatchSize = Statements.DEFAULT_MAX_BATCH_SIZE;
+    private long timeout = -1;
+    private long sweepInterval = 60000;
+    private boolean expiresColumn;
+    private Map<JdbcStore, TimerTask> sweepers = new HashMap<JdbcStore, TimerTask>();
+    private Timer timer;
     private JDBCAdapter adapter;
     private Statements statements;
     
@@ -56,11 +82,17 @@ public class JdbcStoreFactory extends BaseStoreFactory {
                 if (statements == null) {
                     statements = new Statements();
                     statements.setStoreTableName(tableName);
+                    statements.setMaxInListSize(maxInListSize);
+                    statements.setMaxBatchSize(maxBatchSize);
+                    statements.setExpiresColumn(expiresColumn || timeout > 0);
                 }
                 adapter.setStatements(statements);
                 if (createDataBase) {
                     adapter.doCreateTables(connection);
                 }
+                if (timeout > 0 && statements.isExpiresColumn()) {
+                    adapter.doUpdateExpires(connection, System.currentTimeMillis() + timeout);
+                }
                 if (!connection.getAutoCommit())
                     connection.commit();
             } catch (SQLException e) {
@@ -78,19 +110,50 @@ public class JdbcStoreFactory extends BaseStoreFactory {
         JdbcStore store = stores.get(name);
         if (store == null) {
             store = new JdbcStore(this, name);
+            store.setSerializer(serializer);
+            store.setEventDispatcher(getEventDispatcher());
             for(StoreListener listener:storeListeners) {
                 store.addListener(listener);
             }
             stores.put(name, store);
+            if (adapter.getStatements().isExpiresColumn()) {
+                schedule(store);
+            }
         }
-        return store;
+        return instrument(name, store);
     }
 
     /* (non-Javadoc)
      * @see org.apache.servicemix.store.ExchangeStoreFactory#release(org.apache.servicemix.store.ExchangeStore)
      */
     public synchronized void close(Store store) throws IOException {
-        stores.remove(store);
+        store = release(store);
+        stores.values().remove(store);
+        TimerTask sweeper = sweepers.remove(store);
+        if (sweeper != null) {
+            sweeper.cancel();
+        }
+        if (sweepers.isEmpty() && timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private void schedule(final JdbcStore store) {
+        if (timer == null) {
+            timer = new Timer("JdbcStoreFactory sweeper", true);
+        }
+        TimerTask sweeper = new TimerTask() {
+            public void run() {
+                try {
+                    store.sweep();
+                } catch (Exception e) {
+                    LOG.warn("Error evicting expired objects", e);
+                }
+            }
+        };
+        timer.schedule(sweeper, sweepInterval, sweepInterval);
+        sweepers.put(store, sweeper);
     }
     
     /**
@@ -183,5 +246,94 @@ public class JdbcStoreFactory extends BaseStoreFactory {
     public void setCreateDataBase(boolean createDataBase) {
         this.createDataBase = createDataBase;
     }
+
+    /**
+     * @return Returns the number of rows fetched at once by the cursors of the stores.
+     */
+    public int getCursorFetchSize() {
+        return cursorFetchSize;
+    }
+
+    /**
+     * @param cursorFetchSize The number of rows fetched at once by the cursors of the stores.
+     */
+    public void setCursorFetchSize(int cursorFetchSize) {
+        this.cursorFetchSize = cursorFetchSize;
+    }
+
+    /**
+     * @return Returns the maximum number of ids queried or deleted by a single statement.
+     */
+    public int getMaxInListSize() {
+        return maxInListSize;
+    }
+
+    /**
+     * @param maxInListSize The maximum number of ids queried or deleted by a single statement.
+     *                      The adapter may lower it to the limit of the database.
+     */
+    public void setMaxInListSize(int maxInListSize) {
+        this.maxInListSize = maxInListSize;
+    }
+
+    /**
+     * @return Returns the maximum number of rows inserted or updated by a single JDBC batch.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize The maximum number of rows inserted or updated by a single JDBC batch.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return Returns the time in milliseconds after which stored objects expire.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout The time in milliseconds after which objects stored without a time to
+     *                live expire and are deleted, or a negative value to keep them until loaded.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return Returns whether the table has an <code>EXPIRES</code> column without a timeout.
+     */
+    public boolean isExpiresColumn() {
+        return expiresColumn;
+    }
+
+    /**
+     * @param expiresColumn Whether the table has an <code>EXPIRES</code> column even if no
+     *                      timeout is set, so that objects can be stored with a time to live.
+     *                      The column is added to the table if needed when the database is
+     *                      created, and must exist otherwise.
+     */
+    public void setExpiresColumn(boolean expiresColumn) {
+        this.expiresColumn = expiresColumn;
+    }
+
+    /**
+     * @return Returns the interval in milliseconds between sweeps of the expired objects.
+     */
+    public long getSweepInterval() {
+        return sweepInterval;
+    }
+
+    /**
+     * @param sweepInterval The interval in milliseconds between sweeps of the expired objects.
+     */
+    public void setSweepInterval(long sweepInterval) {
+        this.sweepInterval = sweepInterval;
+    }
     
 }
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.krati;
+
+import java.io.File;
+
+import krati.core.StoreConfig;
+import krati.core.StoreFactory;
+import krati.core.StoreParams;
+import krati.core.segment.ChannelSegmentFactory;
+import krati.core.segment.MappedSegmentFactory;
+import krati.core.segment.MemorySegmentFactory;
+import krati.core.segment.Segment;
+import krati.core.segment.SegmentFactory;
+import krati.core.segment.WriteBufferSegmentFactory;
+import krati.store.DataStore;
+
+/**
+ * Creates the Krati {@link DataStore}s used by the {@link KratiStoreFactory} and the
+ * {@link KratiPersistenceProvider}.
+ * <p>
+ * The segments holding the values are kept on the heap by the {@link #MEMORY} segment
+ * factory, which is the default.  The {@link #MAPPED}, {@link #CHANNEL} and
+ * {@link #WRITE_BUFFER} factories keep them on disk, trading reads for heap space.
+ * Updates are written in batches of <code>batchSize</code> and synced to disk every
+ * <code>numSyncBatches</code> batches.
+ * </p>
+ */
+public final class KratiDataStores {
+
+    public static final String MEMORY = "memory";
+    public static final String MAPPED = "mapped";
+    public static final String CHANNEL = "channel";
+    public static final String WRITE_BUFFER = "write-buffer";
+
+    public static final String DEFAULT_SEGMENT_FACTORY = MEMORY;
+    public static final int DEFAULT_SEGMENT_FILE_SIZE_MB = Segment.minSegmentFileSizeMB;
+    public static final int DEFAULT_BATCH_SIZE = StoreParams.BATCH_SIZE_DEFAULT;
+    public static final int DEFAULT_NUM_SYNC_BATCHES = StoreParams.NUM_SYNC_BATCHES_DEFAULT;
+
+    private KratiDataStores() {
+    }
+
+    /**
+     * Creates, or opens if it exists, a dynamic data store.
+     * @param directory the home directory of the store
+     * @param initCapacity the initial capacity of the store
+     * @param segmentFactory the name of the segment factory
+     * @param segmentFileSizeMB the size of the segment files in MB
+     * @param batchSize the number of updates written in a batch
+     * @param numSyncBatches the number of batches written between syncs
+     * @return the data store
+     * @throws Exception if the store can not be created
+     */
+    public static DataStore<byte[], byte[]> createDynamicDataStore(File directory, int initCapacity,
+                                                                  String segmentFactory, int segmentFileSizeMB,
+                                                                  int batchSize, int numSyncBatches) throws Exception {
+        StoreConfig config = new StoreConfig(directory, initCapacity);
+        config.setSegmentFactory(createSegmentFactory(segmentFactory));
+        config.setSegmentFileSizeMB(segmentFileSizeMB);
+        config.setBatchSize(batchSize);
+        config.setNumSyncBatches(numSyncBatches);
+        return StoreFactory.createDynamicDataStore(config);
+    }
+
+    /**
+     * @param name one of {@link #MEMORY}, {@link #MAPPED}, {@link #CHANNEL} or {@link #WRITE_BUFFER}
+     * @return the segment factory
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static SegmentFactory createSegmentFactory(String name) {
+        if (MEMORY.equals(name)) {
+            return new MemorySegmentFactory();
+        } else if (MAPPED.equals(name)) {
+            return new MappedSegmentFactory();
+        } else if (CHANNEL.equals(name)) {
+            return new ChannelSegmentFactory();
+        } else if (WRITE_BUFFER.equals(name)) {
+            return new WriteBufferSegmentFactory();
+        }
+        throw new IllegalArgumentException("Unknown Krati segment factory: " + name);
+    }
+
+}
@@ -16,27 +16,31 @@
  */
 package org.apache.servicemix.store.krati;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import com.hazelcast.core.MapLoader;
 import com.hazelcast.core.MapStore;
-import krati.core.StoreConfig;
-import krati.core.StoreFactory;
-import krati.core.segment.MemorySegmentFactory;
-import krati.core.segment.Segment;
 import krati.store.DataStore;
+import org.apache.servicemix.store.StoreSerializer;
+import org.apache.servicemix.store.base.JavaStoreSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * A Hazelcast {@link MapStore} persisting the entries of a map in a Krati {@link DataStore}.
+ * <p>
+ * The data store is opened by {@link #init()}, which is called by the constructors taking
+ * the store directory, or on first use when the provider is built with the default
+ * constructor and configured through its setters.
+ * </p>
+ */
 public class KratiPersistenceProvider implements MapLoader<String, Object>, MapStore<String, Object>{
 	
 	private static final Logger LOG = LoggerFactory.getLogger(KratiPersistenceProvider.class);
@@ -44,17 +48,19 @@ public class KratiPersistenceProvider implements MapLoader<String, Object>, MapS
 	private static final String DEFAULT_STORE_DIRECTORY = "/tmp/krati/";
 	private static final Integer INIT_CAPACITY = 10000;
 	
-	private DataStore<byte[], byte[]> datas;
+	private volatile DataStore<byte[], byte[]> datas;
 	private String storeDirectory = DEFAULT_STORE_DIRECTORY;
     private int initCapacity = INIT_CAPACITY; 
-    private int segmentFileSizeMB = Segment.minSegmentFileSizeMB;
+    private int segmentFileSizeMB = KratiDataStores.DEFAULT_SEGMENT_FILE_SIZE_MB;
+    private String segmentFactory = KratiDataStores.DEFAULT_SEGMENT_FACTORY;
+    private int batchSize = KratiDataStores.DEFAULT_BATCH_SIZE;
+    private int numSyncBatches = KratiDataStores.DEFAULT_NUM_SYNC_BATCHES;
+    private StoreSerializer serializer = new JavaStoreSerializer();
     
+    /**
+     * Creates a provider configured through its setters, whose data store is opened on first use.
+     */
     public KratiPersistenceProvider(){
-    	try {
-			init();
-		} catch (Exception e) {
-			LOG.error("Error during initialization",e);
-		}
     }
     
 	
@@ -95,63 +101,135 @@ public class KratiPersistenceProvider implements MapLoader<String, Object>, MapS
 		}
 	}
 
+	/**
+	 * @param storeDirectory
+	 * @param initCapacity
+	 * @param segmentFileSizeMB
+	 * @param segmentFactory the kind of segments holding the values, see {@link KratiDataStores}
+	 * @param batchSize the number of updates written in a batch
+	 * @param numSyncBatches the number of batches written between syncs
+	 */
+	public KratiPersistenceProvider(String storeDirectory, int initCapacity, int segmentFileSizeMB,
+                                    String segmentFactory, int batchSize, int numSyncBatches) {
+		super();
+		this.storeDirectory = storeDirectory;
+		this.initCapacity = initCapacity;
+		this.segmentFileSizeMB = segmentFileSizeMB;
+		this.segmentFactory = segmentFactory;
+		this.batchSize = batchSize;
+		this.numSyncBatches = numSyncBatches;
+		try {
+			init();
+		} catch (Exception e) {
+			LOG.error("Error during initialization",e);
+		}
+	}
 
-	public void init() throws Exception{
+
+	public synchronized void init() throws Exception{
 		if(datas == null){
-			StoreConfig config = new StoreConfig(new File(storeDirectory), initCapacity);
-			config.setSegmentFactory(new MemorySegmentFactory());
-			config.setSegmentFileSizeMB(segmentFileSizeMB);
-			datas = StoreFactory.createDynamicDataStore(config);
+			datas = KratiDataStores.createDynamicDataStore(new File(storeDirectory), initCapacity,
+					segmentFactory, segmentFileSizeMB, batchSize, numSyncBatches);
 		}
 	}
 
-	public void destroy() throws Exception{
+	public synchronized void destroy() throws Exception{
 		if(datas!=null && datas.isOpen()){
 			datas.close();
 		}
+		datas = null;
+	}
+
+	/**
+	 * @return the data store, opened with the current settings if it is not open yet
+	 */
+	private DataStore<byte[], byte[]> datas() throws Exception {
+		DataStore<byte[], byte[]> result = datas;
+		if (result == null) {
+			init();
+			result = datas;
+		}
+		return result;
 	}
 	
 	public void delete(String key) {
 		try {
-			datas.delete(key.getBytes());
+			datas().delete(key.getBytes());
 		} catch (Exception e) {
 			LOG.error("Error deleting object with id:{}", key, e);
 		}
 		
 	}
 
+	/**
+	 * Deletes the objects while holding the lock of the data store, so that the deletes
+	 * go to Krati's update batches without being interleaved with other writers.
+	 */
 	public void deleteAll(Collection<String> entries) {
-		for(String key:entries){
-			try {
-				datas.delete(key.getBytes());
-			} catch (Exception e) {
-				LOG.error("Error deleting object with id:{}", key, e);
+		DataStore<byte[], byte[]> datas;
+		try {
+			datas = datas();
+		} catch (Exception e) {
+			LOG.error("Error deleting objects", e);
+			return;
+		}
+		synchronized (datas) {
+			for(String key:entries){
+				try {
+					datas.delete(key.getBytes());
+				} catch (Exception e) {
+					LOG.error("Error deleting object with id:{}", key, e);
+				}
 			}
 		}
-		
 	}
 
 	public void store(String key, Object value) {
 		try {
 			LOG.debug("Storing key: {}", key);
-			datas.put(key.getBytes(), writeObject(value));
+			datas().put(key.getBytes(), writeObject(value));
 		} catch (Exception e) {
 			LOG.error("Error storing object with id:{}", key, e);
 		}
 		
 	}
 
+	/**
+	 * Serializes the objects first, and then writes them while holding the lock of the
+	 * data store, so that they go to Krati's update batches without being interleaved
+	 * with other writers.
+	 */
 	public void storeAll(Map<String, Object> entries) {
-		for(String key: entries.keySet()){
-			store(key, entries.get(key));
+		Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+		for(Map.Entry<String, Object> entry : entries.entrySet()){
+			try {
+				values.put(entry.getKey(), writeObject(entry.getValue()));
+			} catch (Exception e) {
+				LOG.error("Error storing object with id:{}", entry.getKey(), e);
+			}
+		}
+		DataStore<byte[], byte[]> datas;
+		try {
+			datas = datas();
+		} catch (Exception e) {
+			LOG.error("Error storing objects", e);
+			return;
+		}
+		synchronized (datas) {
+			for(Map.Entry<String, byte[]> value : values.entrySet()){
+				try {
+					datas.put(value.getKey().getBytes(), value.getValue());
+				} catch (Exception e) {
+					LOG.error("Error storing object with id:{}", value.getKey(), e);
+				}
+			}
 		}
-		
 	}
 
 	public Object load(String key) {
 		Object result = null;
 		try {
-			result = readObject(datas.get(key.getBytes()));
+			result = readObject(datas().get(key.getBytes()));
 		} catch (Exception e) {
 			LOG.error("Error loading object with id: {}", key, e);
 		}
@@ -171,8 +249,15 @@ public class KratiPersistenceProvider implements MapLoader<String, Object>, MapS
 
 	public Set<String> loadAllKeys() {
 		Set<String> keys = null;
-		while(datas.keyIterator().hasNext()){
-			String key = new String(datas.keyIterator().next());
+		Iterator<byte[]> iterator;
+		try {
+			iterator = datas().keyIterator();
+		} catch (Exception e) {
+			LOG.error("Error loading keys", e);
+			return null;
+		}
+		while(iterator.hasNext()){
+			String key = new String(iterator.next());
 			if(keys == null){
 				keys = new HashSet<String>();
 			}
@@ -181,34 +266,52 @@ public class KratiPersistenceProvider implements MapLoader<String, Object>, MapS
 		return keys;
 	}
 	
-	private Object readObject(byte[] data) throws IOException, ClassNotFoundException {
-        Object result = null;
-        if (data != null) {
-            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-            try {
-                result = ois.readObject();
-            } finally {
-                ois.close();
-            }
-        }
-        return result;
+	private Object readObject(byte[] data) throws IOException {
+        return data != null ? serializer.deserialize(data) : null;
     }
 	
 	private byte[] writeObject(Object object) throws IOException{
-		byte[] result = null;
-		ByteArrayOutputStream buffer = null;
-		ObjectOutputStream out = null;
-		if (object != null) {
-			try {
-				buffer = new ByteArrayOutputStream();
-				out = new ObjectOutputStream(buffer);
-				out.writeObject(object);
-			} finally{
-				out.close();
-			}	
-			result = buffer.toByteArray();
-        }
-		return result;
+		return object != null ? serializer.serialize(object) : null;
+	}
+
+	public StoreSerializer getSerializer() {
+		return serializer;
+	}
+
+	public void setSerializer(StoreSerializer serializer) {
+		this.serializer = serializer;
+	}
+
+	public String getSegmentFactory() {
+		return segmentFactory;
+	}
+
+	/**
+	 * Sets the kind of segments holding the values, one of <code>memory</code> (the default),
+	 * <code>mapped</code>, <code>channel</code> or <code>write-buffer</code>.
+	 * Like the other settings, it only applies until the data store is opened by {@link #init()}
+	 * or on first use, or if it is opened again after {@link #destroy()}.
+	 * @param segmentFactory the name of the segment factory
+	 */
+	public void setSegmentFactory(String segmentFactory) {
+		KratiDataStores.createSegmentFactory(segmentFactory);
+		this.segmentFactory = segmentFactory;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getNumSyncBatches() {
+		return numSyncBatches;
+	}
+
+	public void setNumSyncBatches(int numSyncBatches) {
+		this.numSyncBatches = numSyncBatches;
 	}
 
 	public int getSegmentFileSizeMB() {
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.krati;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.servicemix.store.Entry;
+import org.apache.servicemix.store.StoreSerializer;
+
+/**
+ * The value written to Krati for each stored object: a fixed-size header followed by the
+ * serialized object.
+ * <p>
+ * The header holds a marker byte, the flags, the creation time and the expiration time of
+ * the object, so that its age can be checked without deserializing the object itself.
+ * Values written before the header was introduced are serialized {@link Entry} objects, and
+ * are still read, at the cost of their deserialization.
+ * </p>
+ */
+public final class KratiRecord {
+
+    /**
+     * The size of the header, in bytes.
+     */
+    public static final int HEADER_SIZE = 18;
+
+    /**
+     * Flag set when the object has its own time to live.
+     */
+    public static final byte FLAG_TIME_TO_LIVE = 1;
+
+    // neither the first byte of a java serialization stream nor a type tag of the compact serializer
+    private static final byte MARKER = (byte) 0x4B;
+
+    private final byte flags;
+    private final long created;
+    private final long expiration;
+    private final byte[] value;
+    private final Entry legacy;
+
+    private KratiRecord(byte flags, long created, long expiration, byte[] value, Entry legacy) {
+        this.flags = flags;
+        this.created = created;
+        this.expiration = expiration;
+        this.value = value;
+        this.legacy = legacy;
+    }
+
+    /**
+     * Serializes an object behind its header.
+     * @param data the object to store
+     * @param created the creation time of the object
+     * @param expiration the time after which the object is expired, or <code>0</code> if it
+     *                   expires according to the timeout of the store
+     * @param serializer the serializer of the store
+     * @return the value to write to Krati
+     * @throws IOException if the object can not be serialized
+     */
+    public static byte[] encode(Object data, long created, long expiration, StoreSerializer serializer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(MARKER);
+        out.write(expiration > 0 ? FLAG_TIME_TO_LIVE : 0);
+        writeLong(out, created);
+        writeLong(out, expiration);
+        serializer.serialize(data, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the header of a value, leaving the object serialized.
+     * @param value the value read from Krati, may be <code>null</code>
+     * @param serializer the serializer of the store, used for values without header
+     * @return the record, or <code>null</code> if the value is <code>null</code>
+     * @throws IOException if the value has no header and can not be deserialized
+     */
+    public static KratiRecord decode(byte[] value, StoreSerializer serializer) throws IOException {
+        if (value == null) {
+            return null;
+        }
+        if (value.length >= HEADER_SIZE && value[0] == MARKER) {
+            return new KratiRecord(value[1], readLong(value, 2), readLong(value, 10), value, null);
+        }
+        Object object = serializer.deserialize(value);
+        if (!(object instanceof Entry)) {
+            throw new IOException("Unexpected value in Krati store: " + object);
+        }
+        Entry entry = (Entry) object;
+        byte flags = entry.getExpiration() > 0 ? FLAG_TIME_TO_LIVE : 0;
+        return new KratiRecord(flags, entry.getTime(), entry.getExpiration(), value, entry);
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return the time after which the object is expired, or <code>0</code> if it expires
+     *         according to the timeout of the store
+     */
+    public long getExpiration() {
+        return expiration;
+    }
+
+    /**
+     * @param timeout the timeout of the store, or a negative value if objects do not time out
+     * @return the time after which the object is expired, or <code>0</code> if it never expires
+     */
+    public long getExpiration(long timeout) {
+        if ((flags & FLAG_TIME_TO_LIVE) != 0) {
+            return expiration;
+        }
+        return timeout > 0 ? created + timeout : 0;
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @param timeout the timeout of the store, or a negative value if objects do not time out
+     */
+    public boolean isExpired(long now, long timeout) {
+        long expires = getExpiration(timeout);
+        return expires > 0 && now > expires;
+    }
+
+    /**
+     * Deserializes the object behind the header.
+     * @param serializer the serializer of the store
+     * @return the stored object
+     * @throws IOException if the object can not be deserialized
+     */
+    public Object getData(StoreSerializer serializer) throws IOException {
+        if (legacy != null) {
+            return legacy.getData();
+        }
+        return serializer.deserialize(new ByteArrayInputStream(value, HEADER_SIZE, value.length - HEADER_SIZE));
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long v) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (v >>> shift));
+        }
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        long v = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            v = (v << 8) | (b[i] & 0xFF);
+        }
+        return v;
+    }
+
+}
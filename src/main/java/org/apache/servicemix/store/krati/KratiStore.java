@@ -16,20 +16,41 @@
  */
 package org.apache.servicemix.store.krati;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import krati.store.DataStore;
 import org.apache.servicemix.id.IdGenerator;
-import org.apache.servicemix.store.Entry;
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.store.AsyncStore;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
 import org.apache.servicemix.store.base.BaseStore;
+import org.apache.servicemix.store.base.BatchingAsyncStore;
+import org.apache.servicemix.store.base.ExpiryIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+/**
+ * A store based on a Krati {@link DataStore}.
+ * <p>
+ * Objects are written behind a {@link KratiRecord} header holding their creation and
+ * expiration times, so that their age is checked without deserializing them.
+ * Entries expiring, either after the timeout of the store or after their own time to live,
+ * are tracked in a {@link KratiTimeIndex} stored next to the data, or in an in-memory
+ * {@link ExpiryIndex} when no time index is given, so that eviction on load only visits
+ * expired entries.  The time index may be opened lazily, when the first entry expiring
+ * is stored.  When a timeout is set, the entries already in the data store are
+ * indexed on the first load, unless the time index already holds them.
+ * </p>
+ */
 public class KratiStore extends BaseStore{
 
 
@@ -38,6 +59,10 @@ public class KratiStore extends BaseStore{
     private DataStore<byte[], byte[]> datas;
     private IdGenerator idGenerator = new IdGenerator();
     private final long timeout;
+    private final ExpiryIndex index = new ExpiryIndex();
+    private volatile KratiTimeIndex timeIndex;
+    private final Callable<KratiTimeIndex> timeIndexFactory;
+    private volatile boolean indexed;
 
     /**
      * Constructor
@@ -46,6 +71,8 @@ public class KratiStore extends BaseStore{
     public KratiStore(DataStore<byte[], byte[]> store) {
         this.datas = store;
         this.timeout=-1;   
+        this.timeIndex = null;
+        this.timeIndexFactory = null;
     }
 
     /**
@@ -56,6 +83,8 @@ public class KratiStore extends BaseStore{
     public KratiStore(DataStore<byte[], byte[]> store, long timeout) {
         this.datas = store;
         this.timeout = timeout;   
+        this.timeIndex = null;
+        this.timeIndexFactory = null;
     }
     
     /**
@@ -67,6 +96,43 @@ public class KratiStore extends BaseStore{
         this.datas = store;
         this.timeout = timeout;   
         this.idGenerator = idGenerator;
+        this.timeIndex = null;
+        this.timeIndexFactory = null;
+    }
+
+    /**
+     * Constructor
+     * @param store
+     * @param timeIndex the on-disk index of the expiration times of the entries
+     * @param timeout
+     * @throws IOException if the time index can not be written
+     */
+    public KratiStore(DataStore<byte[], byte[]> store, KratiTimeIndex timeIndex, long timeout) throws IOException {
+        this.datas = store;
+        this.timeout = timeout;
+        this.timeIndex = timeIndex;
+        this.timeIndexFactory = null;
+        if (timeout <= 0) {
+            // entries stored from now on without time to live are not indexed
+            timeIndex.markIncomplete();
+        }
+    }
+
+    /**
+     * Constructor
+     * @param store
+     * @param timeIndexFactory opens the on-disk index of the expiration times of the entries,
+     *        when the first entry expiring is stored, or right away if a timeout is set
+     * @param timeout
+     * @throws IOException if the time index can not be opened
+     */
+    public KratiStore(DataStore<byte[], byte[]> store, Callable<KratiTimeIndex> timeIndexFactory, long timeout) throws IOException {
+        this.datas = store;
+        this.timeout = timeout;
+        this.timeIndexFactory = timeIndexFactory;
+        if (timeout > 0) {
+            openTimeIndex();
+        }
     }
 
 
@@ -97,14 +163,8 @@ public class KratiStore extends BaseStore{
      */
 	public void store(String key, Object value) {
 		LOG.debug("Storing object with key:{}, value:{}",key, value);
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         try {
-        	Entry entry = new Entry(value);
-			ObjectOutputStream out = new ObjectOutputStream(buffer);
-			out.writeObject(entry);
-			out.close();
-			
-			datas.put(key.getBytes(), buffer.toByteArray());
+        	put(key, value, -1);
 			fireAddedEvent(key, value);
 		} catch (IOException e) {
 			LOG.error("Error storing key:{}", key, e);
@@ -113,6 +173,27 @@ public class KratiStore extends BaseStore{
 		}
 	}
 
+    /**
+     * <p>
+     * Put an object in the store under the given id, for at most the given time.
+     * </p>
+     * @param key the id of the object to store
+     * @param value the object to store
+     * @param ttl the time to live of the object in milliseconds, or a negative value to use the timeout
+     * @throws IOException if an error occurs
+     */
+    public void store(String key, Object value, long ttl) throws IOException {
+        LOG.debug("Storing object with key:{} for {} ms", key, ttl);
+        try {
+            put(key, value, ttl);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error storing object").initCause(e);
+        }
+        fireAddedEvent(key, value);
+    }
+
     /**
      * <p>
      * Put an object into the store and return the unique id that
@@ -139,19 +220,26 @@ public class KratiStore extends BaseStore{
      */
     public Object load(String id) throws IOException {
         LOG.debug("Loading/Removing object with id: {}", id);
-        Object result = null;
-        if(timeout > 0) {
-            evict();
+        evict();
+        byte[] key = id.getBytes();
+        KratiRecord record = KratiRecord.decode(datas.get(key), serializer);
+        if (record == null) {
+            return null;
         }
-        result = peek(id);
+        boolean expired = record.isExpired(System.currentTimeMillis(), timeout);
+        Object data = expired && storeListeners.isEmpty() ? null : record.getData(serializer);
         try {
-			if(result != null && datas.delete(id.getBytes())) {
-			  fireRemovedEvent(id,result);
+			if(datas.delete(key)) {
+			  if (expired) {
+			      fireEvictedEvent(id, data);
+			      return null;
+			  }
+			  fireRemovedEvent(id, data);
 			}
 		} catch (Exception e) {
 			LOG.error("Error deleting object with id: {}", id);
 		} 
-		return result;
+		return expired ? null : data;
     }
 
     /**
@@ -165,16 +253,135 @@ public class KratiStore extends BaseStore{
      */
     public Object peek(String id) throws IOException {
         LOG.debug("Peeking object with id: {}", id);
-        byte[] value = datas.get(id.getBytes());
-        Entry result = null;
-        try {
-			result = (Entry)readObject(value);
-		} catch (ClassNotFoundException e) {
-			LOG.error("Error reading object with id: {}", id, e);
-		}
-		return result != null ? result.getData() : null;
+        KratiRecord record = KratiRecord.decode(datas.get(id.getBytes()), serializer);
+		return record != null && !record.isExpired(System.currentTimeMillis(), timeout) ? record.getData(serializer) : null;
     }
     
+    /**
+     * <p>
+     * Put several objects in the store.  The objects are serialized first, and then
+     * written while holding the lock of the data store, so that the batch goes to
+     * Krati's update batches without being interleaved with other writers.
+     * </p>
+     * @param entries the objects to store, keyed by their ids
+     * @throws IOException if an error occurs
+     */
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        LOG.debug("Storing {} objects", entries.size());
+        List<byte[]> keys = new ArrayList<byte[]>(entries.size());
+        List<byte[]> values = new ArrayList<byte[]>(entries.size());
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            keys.add(entry.getKey().getBytes());
+            values.add(KratiRecord.encode(entry.getValue(), now, 0, serializer));
+        }
+        try {
+            synchronized (datas) {
+                for (int i = 0; i < keys.size(); i++) {
+                    datas.put(keys.get(i), values.get(i));
+                }
+            }
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error storing objects").initCause(e);
+        }
+        if (timeout > 0) {
+            for (String id : entries.keySet()) {
+                index(id, now + timeout);
+            }
+        }
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            fireAddedEvent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * <p>
+     * Loads and removes several objects while holding the lock of the data store.
+     * </p>
+     * @param ids the ids of the objects
+     * @return the objects found, keyed by their ids
+     * @throws IOException if an error occurs
+     */
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        LOG.debug("Loading/Removing {} objects", ids.size());
+        evict();
+        Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+        try {
+            synchronized (datas) {
+                for (String id : ids) {
+                    byte[] key = id.getBytes();
+                    byte[] value = datas.get(key);
+                    if (value != null) {
+                        values.put(id, value);
+                        datas.delete(key);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error deleting objects").initCause(e);
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, byte[]> value : values.entrySet()) {
+            KratiRecord record = KratiRecord.decode(value.getValue(), serializer);
+            if (record.isExpired(now, timeout)) {
+                fireEvictedEvent(value.getKey(), storeListeners.isEmpty() ? null : record.getData(serializer));
+                continue;
+            }
+            Object data = record.getData(serializer);
+            result.put(value.getKey(), data);
+            fireRemovedEvent(value.getKey(), data);
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * Opens a cursor walking the keys of the data store with its key iterator.
+     * </p>
+     * @return the cursor
+     */
+    public StoreCursor<String> openIdCursor() throws IOException {
+        final Iterator<byte[]> keys = datas.keyIterator();
+        return new AbstractStoreCursor<String>() {
+            protected String fetch() {
+                return keys.hasNext() ? new String(keys.next()) : null;
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Opens a cursor walking the entries of the data store with its iterator, skipping the
+     * expired ones.
+     * </p>
+     * @return the cursor
+     */
+    public StoreCursor<Map.Entry<String, Object>> openEntryCursor() throws IOException {
+        final Iterator<Map.Entry<byte[], byte[]>> entries = datas.iterator();
+        return new AbstractStoreCursor<Map.Entry<String, Object>>() {
+            protected Map.Entry<String, Object> fetch() throws IOException {
+                long now = System.currentTimeMillis();
+                while (entries.hasNext()) {
+                    Map.Entry<byte[], byte[]> next = entries.next();
+                    KratiRecord record = KratiRecord.decode(next.getValue(), serializer);
+                    if (record != null && !record.isExpired(now, timeout)) {
+                        return new AbstractMap.SimpleImmutableEntry<String, Object>(
+                            new String(next.getKey()), record.getData(serializer));
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Pending asynchronous operations are coalesced into batches written under a single lock.
+     */
+    public AsyncStore createAsyncStore(Executor executor) {
+        return new BatchingAsyncStore(this, executor);
+    }
+
     /**
      * <p>
      * Deletes an object that has been previously stored under the specified key.
@@ -186,45 +393,143 @@ public class KratiStore extends BaseStore{
     	LOG.debug("Deleting object with id: {}", id);
     	datas.delete(id.getBytes());
     }
-    
-    private Object readObject(byte[] data) throws IOException, ClassNotFoundException {
-        Object result = null;
-        if (data != null) {
-            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-            try {
-                result = ois.readObject();
-            } finally {
-                ois.close();
+
+    /**
+     * <p>
+     * Deletes several objects while holding the lock of the data store, so that the deletes
+     * go to Krati's update batches without being interleaved with other writers.
+     * </p>
+     * @param ids the ids of the objects
+     * @throws IOException if an error occurs
+     */
+    public void deleteAll(Collection<String> ids) throws IOException {
+        LOG.debug("Deleting {} objects", ids.size());
+        try {
+            synchronized (datas) {
+                for (String id : ids) {
+                    datas.delete(id.getBytes());
+                }
             }
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error deleting objects").initCause(e);
         }
-        return result;
     }
     
+    private void put(String key, Object value, long ttl) throws Exception {
+        long now = System.currentTimeMillis();
+        long expiration = ttl > 0 ? now + ttl : 0;
+        datas.put(key.getBytes(), KratiRecord.encode(value, now, expiration, serializer));
+        index(key, ttl > 0 ? expiration : timeout > 0 ? now + timeout : 0);
+    }
+
+    private void index(String id, long expiration) throws IOException {
+        if (expiration <= 0) {
+            return;
+        }
+        KratiTimeIndex timeIndex = timeIndexFactory != null ? openTimeIndex() : this.timeIndex;
+        if (timeIndex != null) {
+            timeIndex.add(id, expiration);
+        } else {
+            index.add(id, expiration);
+        }
+    }
+
+    private KratiTimeIndex openTimeIndex() throws IOException {
+        if (timeIndex == null) {
+            synchronized (timeIndexFactory) {
+                if (timeIndex == null) {
+                    KratiTimeIndex opened;
+                    try {
+                        opened = timeIndexFactory.call();
+                    } catch (Exception e) {
+                        throw (IOException) new IOException("Error opening time index").initCause(e);
+                    }
+                    if (timeout <= 0) {
+                        // entries stored before without time to live are not indexed
+                        opened.markIncomplete();
+                    }
+                    timeIndex = opened;
+                }
+            }
+        }
+        return timeIndex;
+    }
+
+    /**
+     * Indexes the entries written before the store was opened, so that they time out too.
+     * Only their headers are read, except for entries written without header.
+     */
+    private synchronized void indexExisting() {
+        if (indexed) {
+            return;
+        }
+        if (timeIndex == null || !timeIndex.isComplete()) {
+            Iterator<Map.Entry<byte[], byte[]>> iter = datas.iterator();
+            while (iter.hasNext()) {
+                Map.Entry<byte[], byte[]> next = iter.next();
+                String id = new String(next.getKey());
+                try {
+                    KratiRecord record = KratiRecord.decode(next.getValue(), serializer);
+                    if (record != null) {
+                        index(id, record.getExpiration(timeout));
+                    }
+                } catch (Exception e) {
+                    LOG.error("Error reading object with id: {}", id, e);
+                }
+            }
+            if (timeIndex != null) {
+                try {
+                    timeIndex.markComplete();
+                } catch (IOException e) {
+                    LOG.error("Error writing time index", e);
+                }
+            }
+        }
+        indexed = true;
+    }
+
+    /**
+     * Removes the expired entries, visiting only the ids found in the elapsed buckets of the index
+     * and reading only their headers.
+     */
     private void evict() {
+        if (timeout > 0 && !indexed) {
+            indexExisting();
+        }
         long now = System.currentTimeMillis();
-        Iterator<byte[]> iter = datas.keyIterator();
-        while(iter.hasNext()){
-        	byte[] key = iter.next();
-        	String keyValue = null;
-        	Entry value = null;
-        	try {
-        		keyValue = new String(key);
-    			value = (Entry)readObject(datas.get(key));
-    		} catch (Exception e) {
-    			LOG.error("Error reading object with id: {}", key, e);
-    		}
-        	long age = now - value.getTime();
-        	if (age > timeout) {
-        		
-        		LOG.debug("Removing object with id {} from store after {} ms", keyValue, age);
-        		try {
-					if(datas.delete(key)){
-						fireEvictedEvent(keyValue,value.getData());
-					}
-				} catch (Exception e) {
-					LOG.error("Error deleting object with id {}", keyValue);
-				}
-        	}
+        List<String> expired;
+        try {
+            if (timeIndex != null) {
+                expired = timeIndex.expire(now);
+            } else if (index.hasExpired(now)) {
+                expired = index.expire(now);
+            } else {
+                return;
+            }
+        } catch (IOException e) {
+            LOG.error("Error reading time index", e);
+            return;
+        }
+        for (String id : expired) {
+            byte[] key = id.getBytes();
+            try {
+                KratiRecord record = KratiRecord.decode(datas.get(key), serializer);
+                if (record == null) {
+                    continue;
+                }
+                if (!record.isExpired(now, timeout)) {
+                    // stored again since it was indexed, or the timeout has been raised
+                    index(id, record.getExpiration(timeout));
+                    continue;
+                }
+                Object data = storeListeners.isEmpty() ? null : record.getData(serializer);
+                if (datas.delete(key)) {
+                    LOG.debug("Removing object with id {} from store after {} ms", id, now - record.getCreated());
+                    fireEvictedEvent(id, data);
+                }
+            } catch (Exception e) {
+                LOG.error("Error evicting object with id {}", id, e);
+            }
         }
     }
 
@@ -236,6 +541,14 @@ public class KratiStore extends BaseStore{
 		this.datas = datas;
 	}
 
+	/**
+	 * @return the on-disk index of the expiration times, or <code>null</code> if they are indexed in memory
+	 *         or if it has not been opened yet
+	 */
+	public KratiTimeIndex getTimeIndex() {
+		return timeIndex;
+	}
+
 	public IdGenerator getIdGenerator() {
 		return idGenerator;
 	}
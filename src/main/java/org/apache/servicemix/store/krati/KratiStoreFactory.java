@@ -20,10 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import krati.core.StoreConfig;
-import krati.core.StoreFactory;
-import krati.core.segment.MemorySegmentFactory;
-import krati.core.segment.Segment;
+import java.util.concurrent.Callable;
 import krati.store.DataStore;
 import org.apache.servicemix.store.Store;
 import org.apache.servicemix.store.StoreListener;
@@ -37,12 +34,17 @@ public class KratiStoreFactory extends BaseStoreFactory{
 	
 	private static final String DEFAULT_STORE_DIRECTORY = "/tmp/krati/";
 	private static final Integer INIT_CAPACITY = 10000;
+	private static final int TIME_INDEX_CAPACITY = 1000;
 	
 	private Map<String, KratiStore> stores = new HashMap<String, KratiStore>();
 
     private long timeout = -1;
     private String storeDirectory = DEFAULT_STORE_DIRECTORY;
     private int initCapacity = INIT_CAPACITY;
+    private String segmentFactory = KratiDataStores.DEFAULT_SEGMENT_FACTORY;
+    private int segmentFileSizeMB = KratiDataStores.DEFAULT_SEGMENT_FILE_SIZE_MB;
+    private int batchSize = KratiDataStores.DEFAULT_BATCH_SIZE;
+    private int numSyncBatches = KratiDataStores.DEFAULT_NUM_SYNC_BATCHES;
 
     public static final String STORE_PREFIX = "org.apache.servicemix.stores";
 
@@ -60,17 +62,26 @@ public class KratiStoreFactory extends BaseStoreFactory{
                 storeFolder.mkdir();
                 File file = new File(storeFolder,name);
 
-				StoreConfig config = new StoreConfig(file, initCapacity);
-				config.setSegmentFactory(new MemorySegmentFactory());
-				config.setSegmentFileSizeMB(Segment.minSegmentFileSizeMB);
-				dataStore = StoreFactory.createDynamicDataStore(config);
-
-				if (timeout <= 0) {
-					store = new KratiStore(dataStore);
+				dataStore = KratiDataStores.createDynamicDataStore(file, initCapacity,
+						segmentFactory, segmentFileSizeMB, batchSize, numSyncBatches);
+
+				// the time index is only opened once needed, unless it holds entries from a previous run
+				final File expiryFolder = new File(storeFolder, name + "-expiry");
+				Callable<KratiTimeIndex> timeIndexFactory = new Callable<KratiTimeIndex>() {
+					public KratiTimeIndex call() throws Exception {
+						return new KratiTimeIndex(KratiDataStores.createDynamicDataStore(
+								expiryFolder, TIME_INDEX_CAPACITY,
+								segmentFactory, segmentFileSizeMB, batchSize, numSyncBatches));
+					}
+				};
+				if (expiryFolder.exists()) {
+					store = new KratiStore(dataStore, timeIndexFactory.call(), timeout);
 				} else {
-					store = new KratiStore(dataStore, timeout);
+					store = new KratiStore(dataStore, timeIndexFactory, timeout);
 				}
 				stores.put(name, store);
+				store.setSerializer(serializer);
+				store.setEventDispatcher(getEventDispatcher());
 				for (StoreListener listener : storeListeners) {
 					store.addListener(listener);
 				}
@@ -79,18 +90,29 @@ public class KratiStoreFactory extends BaseStoreFactory{
 			}
 		}
 
-		return store;
+		return instrument(name, store);
 	}
 
     /* (non-Javadoc)
     * @see org.apache.servicemix.store.ExchangeStoreFactory#release(org.apache.servicemix.store.ExchangeStore)
     */
     public synchronized void close(Store store) throws IOException {
+    	store = release(store);
     	KratiStore kratiStore = (KratiStore)store;
+    	// Krati waits for its compactor to stop on close, so the time index is closed meanwhile
+    	IndexCloser indexCloser = null;
+    	KratiTimeIndex timeIndex = kratiStore.getTimeIndex();
+    	if (timeIndex != null && timeIndex.getIndex().isOpen()) {
+    		indexCloser = new IndexCloser(timeIndex.getIndex());
+    		indexCloser.start();
+    	}
     	if(kratiStore.getDatas() != null && kratiStore.getDatas().isOpen()){
     		kratiStore.getDatas().close();
     	}
-        stores.remove(store);
+    	if (indexCloser != null) {
+    		indexCloser.await();
+    	}
+        stores.values().remove(kratiStore);
     }
 
     public long getTimeout() {
@@ -116,6 +138,85 @@ public class KratiStoreFactory extends BaseStoreFactory{
 	public void setInitCapacity(int initCapacity) {
 		this.initCapacity = initCapacity;
 	}
+
+	public String getSegmentFactory() {
+		return segmentFactory;
+	}
+
+	/**
+	 * Sets the kind of segments holding the values: <code>memory</code> (the default) keeps
+	 * them on the heap, <code>mapped</code>, <code>channel</code> and <code>write-buffer</code>
+	 * keep them on disk.
+	 * @param segmentFactory the name of the segment factory
+	 */
+	public void setSegmentFactory(String segmentFactory) {
+		KratiDataStores.createSegmentFactory(segmentFactory);
+		this.segmentFactory = segmentFactory;
+	}
+
+	public int getSegmentFileSizeMB() {
+		return segmentFileSizeMB;
+	}
+
+	public void setSegmentFileSizeMB(int segmentFileSizeMB) {
+		this.segmentFileSizeMB = segmentFileSizeMB;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the number of updates Krati writes in a batch.
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getNumSyncBatches() {
+		return numSyncBatches;
+	}
+
+	/**
+	 * Sets the number of update batches written between two syncs to disk, so that up to
+	 * <code>batchSize * numSyncBatches</code> updates are written between syncs.
+	 * @param numSyncBatches
+	 */
+	public void setNumSyncBatches(int numSyncBatches) {
+		this.numSyncBatches = numSyncBatches;
+	}
+
+	private static class IndexCloser extends Thread {
+
+		private final DataStore<byte[], byte[]> index;
+		private IOException error;
+
+		IndexCloser(DataStore<byte[], byte[]> index) {
+			super("Krati time index closer");
+			this.index = index;
+		}
+
+		public void run() {
+			try {
+				index.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+
+		void await() throws IOException {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw (IOException) new IOException("Interrupted while closing time index").initCause(e);
+			}
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
 	
 	
     
@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.krati;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import krati.store.DataStore;
+import org.apache.servicemix.store.base.ExpiryIndex;
+
+/**
+ * An on-disk index of ids ordered by expiration time, kept in its own Krati {@link DataStore}.
+ * <p>
+ * Like the {@link ExpiryIndex}, ids are grouped in buckets of <code>resolution</code>
+ * milliseconds.  Each bucket is written as a few chunks of at most {@link #CHUNK_SIZE} ids,
+ * keyed by the bucket and the chunk number, so that indexing an id rewrites a bounded value.
+ * Only the number of chunks of each bucket is kept in memory, and it is rebuilt from the keys
+ * of the index when it is opened, without reading the data store.
+ * </p>
+ * <p>
+ * The index only holds ids: callers check the header of the entry before evicting it.
+ * </p>
+ */
+public class KratiTimeIndex {
+
+    /**
+     * The maximum number of ids written in a chunk.
+     */
+    public static final int CHUNK_SIZE = 64;
+
+    private static final int KEY_SIZE = 12;
+
+    // set once the entries already in the data store have been indexed
+    private static final byte[] COMPLETE = "complete".getBytes();
+
+    private final DataStore<byte[], byte[]> index;
+    private final long resolution;
+    private final ConcurrentSkipListMap<Long, Integer> chunks = new ConcurrentSkipListMap<Long, Integer>();
+
+    public KratiTimeIndex(DataStore<byte[], byte[]> index) {
+        this(index, ExpiryIndex.DEFAULT_RESOLUTION);
+    }
+
+    public KratiTimeIndex(DataStore<byte[], byte[]> index, long resolution) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("resolution must be > 0");
+        }
+        this.index = index;
+        this.resolution = resolution;
+        Iterator<byte[]> keys = index.keyIterator();
+        while (keys.hasNext()) {
+            byte[] key = keys.next();
+            if (key.length == KEY_SIZE) {
+                long bucket = readLong(key);
+                int count = readInt(key, 8) + 1;
+                Integer previous = chunks.get(bucket);
+                if (previous == null || previous < count) {
+                    chunks.put(bucket, count);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return <code>false</code> until {@link #markComplete()} has been called on this index,
+     *         possibly before the store was last closed
+     */
+    public boolean isComplete() {
+        return index.get(COMPLETE) != null;
+    }
+
+    /**
+     * Records that all the entries of the data store have been indexed.
+     * @throws IOException if the index can not be written
+     */
+    public void markComplete() throws IOException {
+        try {
+            index.put(COMPLETE, new byte[] {1});
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error writing time index").initCause(e);
+        }
+    }
+
+    /**
+     * Records that entries of the data store may not be indexed.
+     * @throws IOException if the index can not be written
+     */
+    public void markIncomplete() throws IOException {
+        try {
+            index.delete(COMPLETE);
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error writing time index").initCause(e);
+        }
+    }
+
+    /**
+     * Indexes an id under the given expiration time.
+     * @param id the id to index
+     * @param expiration the time, in milliseconds, after which the id is expired
+     * @throws IOException if the index can not be written
+     */
+    public synchronized void add(String id, long expiration) throws IOException {
+        long bucket = expiration / resolution;
+        Integer count = chunks.get(bucket);
+        int chunk = count != null ? count - 1 : 0;
+        byte[] key = key(bucket, chunk);
+        byte[] ids = index.get(key);
+        if (ids != null && countIds(ids) >= CHUNK_SIZE) {
+            key = key(bucket, ++chunk);
+            ids = null;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (ids != null) {
+            baos.write(ids);
+        }
+        new DataOutputStream(baos).writeUTF(id);
+        try {
+            index.put(key, baos.toByteArray());
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error writing time index").initCause(e);
+        }
+        chunks.put(bucket, chunk + 1);
+    }
+
+    /**
+     * Returns <code>true</code> if at least one bucket has fully elapsed at the given time.
+     * This check does not read the index.
+     * @param now the current time in milliseconds
+     */
+    public boolean hasExpired(long now) {
+        Map.Entry<Long, Integer> first = chunks.firstEntry();
+        return first != null && (first.getKey() + 1) * resolution <= now;
+    }
+
+    /**
+     * Removes and returns the ids of all the buckets that have fully elapsed at the given time.
+     * @param now the current time in milliseconds
+     * @return the candidate ids for eviction, never <code>null</code>
+     * @throws IOException if the index can not be read or written
+     */
+    public synchronized List<String> expire(long now) throws IOException {
+        if (!hasExpired(now)) {
+            return Collections.emptyList();
+        }
+        List<String> expired = new ArrayList<String>();
+        Map<Long, Integer> elapsed = chunks.headMap(now / resolution);
+        try {
+            for (Iterator<Map.Entry<Long, Integer>> it = elapsed.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Long, Integer> bucket = it.next();
+                for (int chunk = 0; chunk < bucket.getValue(); chunk++) {
+                    byte[] key = key(bucket.getKey(), chunk);
+                    readIds(index.get(key), expired);
+                    index.delete(key);
+                }
+                it.remove();
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error writing time index").initCause(e);
+        }
+        return expired;
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    public DataStore<byte[], byte[]> getIndex() {
+        return index;
+    }
+
+    private static void readIds(byte[] ids, List<String> result) throws IOException {
+        if (ids == null) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(ids));
+        try {
+            while (true) {
+                result.add(in.readUTF());
+            }
+        } catch (EOFException e) {
+            // end of the chunk
+        }
+    }
+
+    private static int countIds(byte[] ids) {
+        int count = 0;
+        for (int i = 0; i + 1 < ids.length; i += 2 + (((ids[i] & 0xFF) << 8) | (ids[i + 1] & 0xFF))) {
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] key(long bucket, int chunk) {
+        byte[] key = new byte[KEY_SIZE];
+        for (int i = 0; i < 8; i++) {
+            key[i] = (byte) (bucket >>> (56 - 8 * i));
+        }
+        for (int i = 0; i < 4; i++) {
+            key[8 + i] = (byte) (chunk >>> (24 - 8 * i));
+        }
+        return key;
+    }
+
+    private static long readLong(byte[] key) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (key[i] & 0xFF);
+        }
+        return v;
+    }
+
+    private static int readInt(byte[] key, int offset) {
+        int v = 0;
+        for (int i = offset; i < offset + 4; i++) {
+            v = (v << 8) | (key[i] & 0xFF);
+        }
+        return v;
+    }
+
+}
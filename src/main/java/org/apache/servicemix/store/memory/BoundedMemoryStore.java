@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link MemoryStore} holding at most a given number of entries and/or an approximate
+ * number of bytes.
+ * <p>
+ * When a store exceeds its bounds, the configured {@link EvictionPolicy} selects the
+ * entries to remove, and each of them is reported through
+ * {@link org.apache.servicemix.store.StoreListener#onEvict(String, Object)} so that the
+ * owner of the data can fail or redeliver it.
+ * </p>
+ * <p>
+ * The byte size of an entry is estimated with {@link #sizeOf(String, Object)}, which
+ * counts the length of byte arrays and character sequences, and a fixed size for other
+ * objects, unless a {@link SizeEstimator} is given for them.  Objects are only serialized
+ * to estimate their size when a {@link SerializedSizeEstimator} is given.
+ * </p>
+ */
+public class BoundedMemoryStore extends MemoryStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BoundedMemoryStore.class);
+
+    private static final long ENTRY_OVERHEAD = 64;
+    private static final long OBJECT_OVERHEAD = 16;
+
+    private final Map<String, Object> datas = new HashMap<String, Object>();
+    private final Map<String, Long> sizes = new HashMap<String, Long>();
+    private final EvictionPolicy evictionPolicy;
+    private final SizeEstimator sizeEstimator;
+    private final int maxEntries;
+    private final long maxBytes;
+    private long bytes;
+
+    /**
+     * @param idGenerator the id generator
+     * @param maxEntries the maximum number of entries, or a negative value for no limit
+     * @param maxBytes the approximate maximum size of the entries, or a negative value for no limit
+     * @param evictionPolicy the policy selecting the entries to evict
+     */
+    public BoundedMemoryStore(IdGenerator idGenerator, int maxEntries, long maxBytes, EvictionPolicy evictionPolicy) {
+        this(idGenerator, maxEntries, maxBytes, evictionPolicy, null);
+    }
+
+    /**
+     * @param idGenerator the id generator
+     * @param maxEntries the maximum number of entries, or a negative value for no limit
+     * @param maxBytes the approximate maximum size of the entries, or a negative value for no limit
+     * @param evictionPolicy the policy selecting the entries to evict
+     * @param sizeEstimator the estimator of the size of objects other than byte arrays, character
+     *                      sequences and boxed primitives, or <code>null</code> to use a fixed size
+     */
+    public BoundedMemoryStore(IdGenerator idGenerator, int maxEntries, long maxBytes, EvictionPolicy evictionPolicy,
+                              SizeEstimator sizeEstimator) {
+        super(idGenerator);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.evictionPolicy = evictionPolicy;
+        this.sizeEstimator = sizeEstimator;
+    }
+
+    public void store(String id, Object data) throws IOException {
+        LOG.debug("Storing object with id: " + id);
+        long size = maxBytes > 0 ? sizeOf(id, data) : 0;
+        Map<String, Object> evicted;
+        synchronized (this) {
+            if (datas.put(id, data) != null) {
+                release(id);
+            }
+            if (maxBytes > 0) {
+                sizes.put(id, size);
+                bytes += size;
+            }
+            evictionPolicy.recordInsert(id);
+            evicted = evict();
+        }
+        fireAddedEvent(id, data);
+        for (Map.Entry<String, Object> entry : evicted.entrySet()) {
+            fireEvictedEvent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Bounded stores evict objects according to their eviction policy only, so a time to
+     * live can not be given.
+     */
+    public void store(String id, Object data, long ttl) throws IOException {
+        if (ttl > 0) {
+            throw new IOException("A time to live can not be used with a bounded memory store");
+        }
+        store(id, data);
+    }
+
+    public Object load(String id) throws IOException {
+        LOG.debug("Loading/Removing object with id: " + id);
+        Object data;
+        synchronized (this) {
+            data = datas.remove(id);
+            if (data != null) {
+                evictionPolicy.recordRemoval(id);
+                release(id);
+            }
+        }
+        if (data != null) {
+            fireRemovedEvent(id, data);
+        }
+        return data;
+    }
+
+    public Object peek(String id) throws IOException {
+        LOG.debug("Peeking object with id: " + id);
+        synchronized (this) {
+            Object data = datas.get(id);
+            if (data != null) {
+                evictionPolicy.recordAccess(id);
+            }
+            return data;
+        }
+    }
+
+    /**
+     * The ids are copied when the cursor is opened.
+     */
+    public synchronized StoreCursor<String> openIdCursor() throws IOException {
+        return AbstractStoreCursor.of(new ArrayList<String>(datas.keySet()).iterator());
+    }
+
+    /**
+     * The entries are copied when the cursor is opened, and reading them does not count
+     * as an access for the eviction policy.
+     */
+    public synchronized StoreCursor<Map.Entry<String, Object>> openEntryCursor() throws IOException {
+        return AbstractStoreCursor.of(new LinkedHashMap<String, Object>(datas).entrySet().iterator());
+    }
+
+    /**
+     * @return the number of entries in the store
+     */
+    public synchronized int getSize() {
+        return datas.size();
+    }
+
+    /**
+     * @return the approximate size of the entries in bytes, if the store is bounded in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public SizeEstimator getSizeEstimator() {
+        return sizeEstimator;
+    }
+
+    /**
+     * Estimates the memory used by an entry.
+     * @param id the id of the entry
+     * @param data the data of the entry
+     * @return the approximate size of the entry in bytes
+     */
+    protected long sizeOf(String id, Object data) {
+        long size = ENTRY_OVERHEAD + 2L * id.length();
+        if (data instanceof byte[]) {
+            size += ((byte[]) data).length;
+        } else if (data instanceof CharSequence) {
+            size += 2L * ((CharSequence) data).length();
+        } else if (data instanceof Number || data instanceof Boolean || data instanceof Character) {
+            size += OBJECT_OVERHEAD;
+        } else if (sizeEstimator != null) {
+            size += sizeEstimator.sizeOf(data);
+        } else {
+            size += OBJECT_OVERHEAD;
+        }
+        return size;
+    }
+
+    private Map<String, Object> evict() {
+        Map<String, Object> evicted = new LinkedHashMap<String, Object>();
+        while ((maxEntries > 0 && datas.size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes)) {
+            String victim = evictionPolicy.nextVictim();
+            if (victim == null) {
+                break;
+            }
+            Object data = datas.remove(victim);
+            if (data != null) {
+                release(victim);
+                LOG.debug("Evicting object with id " + victim + " from bounded store");
+                evicted.put(victim, data);
+            }
+        }
+        return evicted;
+    }
+
+    private void release(String id) {
+        Long size = sizes.remove(id);
+        if (size != null) {
+            bytes -= size;
+        }
+    }
+
+}
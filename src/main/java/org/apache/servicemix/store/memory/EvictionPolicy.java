@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+/**
+ * Decides which entry a {@link BoundedMemoryStore} evicts when it exceeds its bounds.
+ * <p>
+ * The store records every insertion, access and removal, and asks for a victim
+ * until it is back within its bounds.  Implementations do not need to be thread-safe:
+ * the store always calls them while holding its own lock.
+ * </p>
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Records that a new id has been stored.
+     * @param id the stored id
+     */
+    void recordInsert(String id);
+
+    /**
+     * Records that a stored id has been accessed.
+     * @param id the accessed id
+     */
+    void recordAccess(String id);
+
+    /**
+     * Records that an id has been removed from the store by any other mean than
+     * {@link #nextVictim()}.
+     * @param id the removed id
+     */
+    void recordRemoval(String id);
+
+    /**
+     * Selects the next id to evict and stops tracking it.
+     * @return the id to evict, or <code>null</code> if no id is tracked
+     */
+    String nextVictim();
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link EvictionPolicy} evicting the least frequently used id.
+ * Ids with the same frequency are evicted in the order they reached it.
+ */
+public class LfuEvictionPolicy implements EvictionPolicy {
+
+    private final Map<String, Integer> frequencies = new HashMap<String, Integer>();
+    private final TreeMap<Integer, LinkedHashSet<String>> buckets = new TreeMap<Integer, LinkedHashSet<String>>();
+
+    public void recordInsert(String id) {
+        recordRemoval(id);
+        frequencies.put(id, 1);
+        bucket(1).add(id);
+    }
+
+    public void recordAccess(String id) {
+        Integer frequency = frequencies.get(id);
+        if (frequency != null) {
+            unlink(id, frequency);
+            frequencies.put(id, frequency + 1);
+            bucket(frequency + 1).add(id);
+        }
+    }
+
+    public void recordRemoval(String id) {
+        Integer frequency = frequencies.remove(id);
+        if (frequency != null) {
+            unlink(id, frequency);
+        }
+    }
+
+    public String nextVictim() {
+        if (buckets.isEmpty()) {
+            return null;
+        }
+        Iterator<String> it = buckets.firstEntry().getValue().iterator();
+        String victim = it.next();
+        recordRemoval(victim);
+        return victim;
+    }
+
+    private LinkedHashSet<String> bucket(int frequency) {
+        LinkedHashSet<String> ids = buckets.get(frequency);
+        if (ids == null) {
+            ids = new LinkedHashSet<String>();
+            buckets.put(frequency, ids);
+        }
+        return ids;
+    }
+
+    private void unlink(String id, int frequency) {
+        LinkedHashSet<String> ids = buckets.get(frequency);
+        ids.remove(id);
+        if (ids.isEmpty()) {
+            buckets.remove(frequency);
+        }
+    }
+
+}
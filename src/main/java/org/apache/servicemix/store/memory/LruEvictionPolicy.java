@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * {@link EvictionPolicy} evicting the least recently used id.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashMap<String, Boolean> ids = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+
+    public void recordInsert(String id) {
+        ids.put(id, Boolean.TRUE);
+    }
+
+    public void recordAccess(String id) {
+        ids.get(id);
+    }
+
+    public void recordRemoval(String id) {
+        ids.remove(id);
+    }
+
+    public String nextVictim() {
+        Iterator<String> it = ids.keySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        String victim = it.next();
+        it.remove();
+        return victim;
+    }
+
+}
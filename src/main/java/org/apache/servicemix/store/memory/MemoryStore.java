@@ -17,17 +17,26 @@
 package org.apache.servicemix.store.memory;
 
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
 import org.apache.servicemix.store.base.BaseStore;
+import org.apache.servicemix.store.base.ExpirationTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A simple memory store implementation based on a simple map.
  * This store is neither clusterable, nor persistent, nor transactional.
+ * <p>
+ * The expiration time of the objects stored with a time to live is tracked apart from
+ * the objects, and expired objects are evicted when an object is loaded.
+ * </p>
  * 
  * @author gnodet
  */
@@ -39,6 +48,8 @@ public class MemoryStore extends BaseStore {
 
     private IdGenerator idGenerator;
 
+    private final ExpirationTracker expirations = new ExpirationTracker();
+
     public MemoryStore(IdGenerator idGenerator) {
         this.idGenerator = idGenerator;
     }
@@ -49,10 +60,22 @@ public class MemoryStore extends BaseStore {
 
     public void store(String id, Object data) throws IOException {
         LOG.debug("Storing object with id: " + id);
+        expirations.untrack(id);
         datas.put(id, data);
         fireAddedEvent(id,data);
     }
 
+    public void store(String id, Object data, long ttl) throws IOException {
+        if (ttl <= 0) {
+            store(id, data);
+            return;
+        }
+        LOG.debug("Storing object with id: " + id + " for " + ttl + " ms");
+        expirations.track(id, System.currentTimeMillis() + ttl);
+        datas.put(id, data);
+        fireAddedEvent(id, data);
+    }
+
     public String store(Object data) throws IOException {
         String id = idGenerator.generateId();
         store(id, data);
@@ -61,14 +84,78 @@ public class MemoryStore extends BaseStore {
 
     public Object load(String id) throws IOException {
         LOG.debug("Loading/Removing object with id: " + id);
+        long now = System.currentTimeMillis();
+        evict(now);
+        boolean expired = expirations.isExpired(id, now);
+        expirations.untrack(id);
         Object data = datas.remove(id);
-        fireEvictedEvent(id,data);
+        if (data != null) {
+            if (expired) {
+                fireEvictedEvent(id, data);
+                return null;
+            }
+            fireRemovedEvent(id,data);
+        }
         return data;
     }
 
     public Object peek(String id) throws IOException {
         LOG.debug("Peeking object with id: " + id);
+        if (expirations.isExpired(id, System.currentTimeMillis())) {
+            return null;
+        }
         return datas.get(id);
     }
 
+    /**
+     * The cursor walks the map of the store, without copying it.
+     */
+    public StoreCursor<String> openIdCursor() throws IOException {
+        final Iterator<String> ids = datas.keySet().iterator();
+        return new AbstractStoreCursor<String>() {
+            protected String fetch() {
+                long now = System.currentTimeMillis();
+                while (ids.hasNext()) {
+                    String id = ids.next();
+                    if (!expirations.isExpired(id, now)) {
+                        return id;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * The cursor walks the map of the store, without copying it.
+     */
+    public StoreCursor<Map.Entry<String, Object>> openEntryCursor() throws IOException {
+        final Iterator<Map.Entry<String, Object>> entries = datas.entrySet().iterator();
+        return new AbstractStoreCursor<Map.Entry<String, Object>>() {
+            protected Map.Entry<String, Object> fetch() {
+                long now = System.currentTimeMillis();
+                while (entries.hasNext()) {
+                    Map.Entry<String, Object> entry = entries.next();
+                    if (!expirations.isExpired(entry.getKey(), now)) {
+                        return new AbstractMap.SimpleImmutableEntry<String, Object>(entry);
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Removes the objects whose time to live has elapsed.
+     */
+    private void evict(long now) {
+        for (String id : expirations.expire(now)) {
+            Object data = datas.remove(id);
+            if (data != null) {
+                LOG.debug("Removing expired object with id " + id + " from store");
+                fireEvictedEvent(id, data);
+            }
+        }
+    }
+
 }
@@ -18,54 +18,288 @@ package org.apache.servicemix.store.memory;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.apache.servicemix.id.IdGenerator;
 import org.apache.servicemix.store.Store;
 import org.apache.servicemix.store.StoreFactory;
 import org.apache.servicemix.store.StoreListener;
+import org.apache.servicemix.store.base.BaseStore;
 import org.apache.servicemix.store.base.BaseStoreFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * {@link StoreFactory} for creating memory-based {@link Store} implementations
  * 
  * If a timeout has been specified, a {@link TimeoutMemoryStore} will be created,
- * otherwise the factory will build a plain {@link MemoryStore}
+ * otherwise the factory will build a plain {@link MemoryStore}.
+ * 
+ * If a sweep interval is also specified, expired entries of {@link TimeoutMemoryStore}s
+ * are evicted by a background timer instead of on every load.
+ * 
+ * If a maximum number of entries or bytes has been specified, a {@link BoundedMemoryStore}
+ * using the configured eviction policy will be created instead.  Objects other than byte
+ * arrays and strings count for a fixed size against the maximum number of bytes, unless a
+ * size estimator is configured.
+ * 
+ * If off-heap storage is enabled, an {@link OffHeapMemoryStore} keeping serialized objects
+ * in direct memory will be created.
  */
 public class MemoryStoreFactory extends BaseStoreFactory {
 
+    private static final Logger LOG = LoggerFactory.getLogger(MemoryStoreFactory.class);
+
+    public static final String LRU = "LRU";
+    public static final String LFU = "LFU";
+    public static final String TINY_LFU = "TinyLFU";
+    public static final String SERIALIZED = "serialized";
+
     private IdGenerator idGenerator = new IdGenerator();
-    private Map<String, MemoryStore> stores = new HashMap<String, MemoryStore>();
+    private Map<String, Store> stores = new HashMap<String, Store>();
+    private Map<MemoryStore, TimerTask> sweepers = new HashMap<MemoryStore, TimerTask>();
     private long timeout = -1;
+    private long sweepInterval = -1;
+    private int maxEntries = -1;
+    private long maxBytes = -1;
+    private String evictionPolicy = LRU;
+    private String sizeEstimator;
+    private boolean offHeap;
+    private int slabSize = OffHeapMemoryStore.DEFAULT_SLAB_SIZE;
+    private long maxOffHeapBytes = -1;
+    private Timer timer;
     
     /* (non-Javadoc)
      * @see org.apache.servicemix.store.ExchangeStoreFactory#get(java.lang.String)
      */
     public synchronized Store open(String name) throws IOException {
-        MemoryStore store = stores.get(name);
+        Store store = stores.get(name);
         if (store == null) {
-            if (timeout <= 0) {
-                store = new MemoryStore(idGenerator);
+            BaseStore baseStore;
+            if (offHeap) {
+                if (timeout > 0 || maxEntries > 0 || maxBytes > 0) {
+                    throw new IOException("A timeout or bounds can not be used with an off-heap memory store");
+                }
+                baseStore = new OffHeapMemoryStore(idGenerator, slabSize, maxOffHeapBytes);
+            } else if (maxEntries > 0 || maxBytes > 0) {
+                if (timeout > 0) {
+                    throw new IOException("A timeout can not be used with a bounded memory store");
+                }
+                baseStore = new BoundedMemoryStore(idGenerator, maxEntries, maxBytes, createEvictionPolicy(),
+                                                   createSizeEstimator());
+            } else if (timeout <= 0) {
+                baseStore = new MemoryStore(idGenerator);
             } else {
-                store = new TimeoutMemoryStore(idGenerator, timeout);
+                TimeoutMemoryStore timeoutStore = new TimeoutMemoryStore(idGenerator, timeout);
+                if (sweepInterval > 0) {
+                    schedule(timeoutStore);
+                }
+                baseStore = timeoutStore;
             }
 
+            baseStore.setSerializer(serializer);
+            baseStore.setEventDispatcher(getEventDispatcher());
             for(StoreListener listener:storeListeners) {
-                store.addListener(listener);
+                baseStore.addListener(listener);
             }
-            stores.put(name, store);
+            stores.put(name, baseStore);
+            store = baseStore;
         }
-        return store;
+        return instrument(name, store);
     }
 
     /* (non-Javadoc)
      * @see org.apache.servicemix.store.ExchangeStoreFactory#release(org.apache.servicemix.store.ExchangeStore)
      */
     public synchronized void close(Store store) throws IOException {
-        stores.remove(store);
+        store = release(store);
+        for (Iterator<Store> it = stores.values().iterator(); it.hasNext();) {
+            if (it.next() == store) {
+                it.remove();
+            }
+        }
+        if (store instanceof OffHeapMemoryStore) {
+            ((OffHeapMemoryStore) store).destroy();
+        }
+        TimerTask sweeper = sweepers.remove(store);
+        if (sweeper != null) {
+            sweeper.cancel();
+        }
+        if (sweepers.isEmpty() && timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Creates the {@link EvictionPolicy} of a new bounded store.
+     * The policy is either one of {@link #LRU}, {@link #LFU}, {@link #TINY_LFU} or the
+     * name of a class implementing {@link EvictionPolicy}.
+     */
+    protected EvictionPolicy createEvictionPolicy() throws IOException {
+        return createEvictionPolicy(evictionPolicy, maxEntries, getClass().getClassLoader());
+    }
+
+    /**
+     * Creates an {@link EvictionPolicy} from its name.
+     * @param evictionPolicy {@link #LRU}, {@link #LFU}, {@link #TINY_LFU} or the name of a class
+     *                       implementing {@link EvictionPolicy}
+     * @param maxEntries the maximum number of entries of the store using the policy
+     * @param classLoader the class loader used to load custom policies
+     * @throws IOException if the policy can not be created
+     */
+    public static EvictionPolicy createEvictionPolicy(String evictionPolicy, int maxEntries,
+                                                      ClassLoader classLoader) throws IOException {
+        if (LRU.equalsIgnoreCase(evictionPolicy)) {
+            return new LruEvictionPolicy();
+        } else if (LFU.equalsIgnoreCase(evictionPolicy)) {
+            return new LfuEvictionPolicy();
+        } else if (TINY_LFU.equalsIgnoreCase(evictionPolicy)) {
+            return new TinyLfuEvictionPolicy(maxEntries);
+        }
+        try {
+            return (EvictionPolicy) classLoader.loadClass(evictionPolicy).newInstance();
+        } catch (Exception e) {
+            throw new IOException("Unable to create eviction policy " + evictionPolicy, e);
+        }
+    }
+
+    /**
+     * Creates the {@link SizeEstimator} of a new bounded store.
+     * The estimator is either {@link #SERIALIZED} or the name of a class implementing
+     * {@link SizeEstimator}.
+     * @return the estimator, or <code>null</code> if none is configured
+     * @throws IOException if the estimator can not be created
+     */
+    protected SizeEstimator createSizeEstimator() throws IOException {
+        if (sizeEstimator == null) {
+            return null;
+        } else if (SERIALIZED.equalsIgnoreCase(sizeEstimator)) {
+            return new SerializedSizeEstimator();
+        }
+        try {
+            return (SizeEstimator) getClass().getClassLoader().loadClass(sizeEstimator).newInstance();
+        } catch (Exception e) {
+            throw new IOException("Unable to create size estimator " + sizeEstimator, e);
+        }
+    }
+
+    private void schedule(final TimeoutMemoryStore store) {
+        if (timer == null) {
+            timer = new Timer("MemoryStoreFactory sweeper", true);
+        }
+        TimerTask sweeper = new TimerTask() {
+            public void run() {
+                try {
+                    store.evict();
+                } catch (Exception e) {
+                    LOG.warn("Error evicting expired objects", e);
+                }
+            }
+        };
+        store.setBackgroundEviction(true);
+        timer.schedule(sweeper, sweepInterval, sweepInterval);
+        sweepers.put(store, sweeper);
     }
     
     public void setTimeout(long timeout) {
         this.timeout = timeout;
     }
+
+    public long getSweepInterval() {
+        return sweepInterval;
+    }
+
+    /**
+     * @param sweepInterval the interval in milliseconds between background evictions of
+     *                      timed out entries, or a negative value to evict them on load
+     */
+    public void setSweepInterval(long sweepInterval) {
+        this.sweepInterval = sweepInterval;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @param maxEntries the maximum number of entries of a store, or a negative value for no limit
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes the approximate maximum size in bytes of the entries of a store,
+     *                 or a negative value for no limit
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public String getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * @param evictionPolicy {@link #LRU} (the default), {@link #LFU}, {@link #TINY_LFU} or the
+     *                       name of a class implementing {@link EvictionPolicy}
+     */
+    public void setEvictionPolicy(String evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    public String getSizeEstimator() {
+        return sizeEstimator;
+    }
+
+    /**
+     * @param sizeEstimator {@link #SERIALIZED} or the name of a class implementing {@link SizeEstimator},
+     *                      used by stores bounded in bytes to estimate the size of objects other than
+     *                      byte arrays, strings and boxed primitives
+     */
+    public void setSizeEstimator(String sizeEstimator) {
+        this.sizeEstimator = sizeEstimator;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @param offHeap <code>true</code> to keep the serialized objects outside of the java heap
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * @param slabSize the size in bytes of the direct memory slabs of off-heap stores
+     */
+    public void setSlabSize(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    public long getMaxOffHeapBytes() {
+        return maxOffHeapBytes;
+    }
+
+    /**
+     * @param maxOffHeapBytes the maximum amount of direct memory used by an off-heap store,
+     *                        or a negative value for no limit
+     */
+    public void setMaxOffHeapBytes(long maxOffHeapBytes) {
+        this.maxOffHeapBytes = maxOffHeapBytes;
+    }
 }
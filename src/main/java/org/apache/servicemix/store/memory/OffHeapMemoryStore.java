@@ -0,0 +1,302 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
+import org.apache.servicemix.store.base.BaseStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A memory store keeping serialized objects outside of the java heap.
+ * <p>
+ * Each entry is serialized into a chunk of direct memory obtained from a {@link SlabAllocator},
+ * and an open-addressing index made of primitive arrays maps the hash of its id to the chunk,
+ * so a large number of entries does not put any pressure on the garbage collector.
+ * The id is kept in the chunk along with the data to resolve hash collisions.  Objects are
+ * converted to bytes by the {@link #getSerializer() serializer} of the store.
+ * </p>
+ * This store is neither clusterable, nor persistent, nor transactional.
+ */
+public class OffHeapMemoryStore extends BaseStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapMemoryStore.class);
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private static final long EMPTY = -1L;
+    private static final int HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final IdGenerator idGenerator;
+    private final SlabAllocator allocator;
+
+    private int[] hashes;
+    private long[] handles;
+    private int size;
+
+    /**
+     * @param idGenerator the id generator
+     * @param slabSize the size of the direct memory slabs
+     * @param maxBytes the maximum amount of direct memory used by the store, or a negative value for no limit
+     */
+    public OffHeapMemoryStore(IdGenerator idGenerator, int slabSize, long maxBytes) {
+        this.idGenerator = idGenerator;
+        this.allocator = new SlabAllocator(slabSize, maxBytes);
+        this.hashes = new int[INITIAL_CAPACITY];
+        this.handles = new long[INITIAL_CAPACITY];
+        Arrays.fill(handles, EMPTY);
+    }
+
+    public OffHeapMemoryStore(IdGenerator idGenerator) {
+        this(idGenerator, DEFAULT_SLAB_SIZE, -1);
+    }
+
+    public boolean hasFeature(String name) {
+        return false;
+    }
+
+    public void store(String id, Object data) throws IOException {
+        LOG.debug("Storing object with id: " + id);
+        byte[] key = id.getBytes("UTF-8");
+        byte[] value = serializer.serialize(data);
+        int hash = hash(id);
+        synchronized (this) {
+            long handle = allocator.allocate(HEADER_SIZE + key.length + value.length);
+            if (handle == EMPTY) {
+                throw new IOException("Off-heap store is full, unable to store object with id " + id);
+            }
+            ByteBuffer buffer = allocator.buffer(handle);
+            buffer.putInt(key.length);
+            buffer.putInt(value.length);
+            buffer.put(key);
+            buffer.put(value);
+
+            int slot = find(hash, key);
+            if (slot >= 0) {
+                allocator.free(handles[slot]);
+                handles[slot] = handle;
+            } else {
+                slot = -slot - 1;
+                hashes[slot] = hash;
+                handles[slot] = handle;
+                if (++size > handles.length * 3 / 4) {
+                    resize();
+                }
+            }
+        }
+        fireAddedEvent(id, data);
+    }
+
+    public String store(Object data) throws IOException {
+        String id = idGenerator.generateId();
+        store(id, data);
+        return id;
+    }
+
+    public Object load(String id) throws IOException {
+        LOG.debug("Loading/Removing object with id: " + id);
+        byte[] key = id.getBytes("UTF-8");
+        byte[] value;
+        synchronized (this) {
+            int slot = find(hash(id), key);
+            if (slot < 0) {
+                return null;
+            }
+            long handle = handles[slot];
+            value = readValue(handle);
+            allocator.free(handle);
+            delete(slot);
+        }
+        Object data = serializer.deserialize(value);
+        fireRemovedEvent(id, data);
+        return data;
+    }
+
+    public Object peek(String id) throws IOException {
+        LOG.debug("Peeking object with id: " + id);
+        byte[] key = id.getBytes("UTF-8");
+        byte[] value;
+        synchronized (this) {
+            int slot = find(hash(id), key);
+            if (slot < 0) {
+                return null;
+            }
+            value = readValue(handles[slot]);
+        }
+        return serializer.deserialize(value);
+    }
+
+    /**
+     * The ids are copied onto the heap when the cursor is opened, the objects are read
+     * as the cursor moves forward.
+     */
+    public StoreCursor<String> openIdCursor() throws IOException {
+        List<String> ids;
+        synchronized (this) {
+            ids = new ArrayList<String>(size);
+            for (long handle : handles) {
+                if (handle != EMPTY) {
+                    ids.add(new String(readKey(handle), "UTF-8"));
+                }
+            }
+        }
+        return AbstractStoreCursor.of(ids.iterator());
+    }
+
+    /**
+     * @return the number of entries in the store
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of off-heap bytes used by the entries
+     */
+    public synchronized long getUsedBytes() {
+        return allocator.getUsedBytes();
+    }
+
+    /**
+     * @return the number of off-heap bytes allocated but not used by any entry
+     */
+    public synchronized long getFreeBytes() {
+        return allocator.getAllocatedBytes() - allocator.getUsedBytes();
+    }
+
+    /**
+     * @return the total number of off-heap bytes allocated by the store
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocator.getAllocatedBytes();
+    }
+
+    /**
+     * Removes all the entries and releases the direct memory.
+     */
+    public synchronized void destroy() {
+        allocator.clear();
+        hashes = new int[INITIAL_CAPACITY];
+        handles = new long[INITIAL_CAPACITY];
+        Arrays.fill(handles, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * Looks up the slot of a key using linear probing.
+     * @return the slot of the key, or <code>-(insertion slot + 1)</code> if it is not present
+     */
+    private int find(int hash, byte[] key) {
+        int mask = handles.length - 1;
+        int slot = hash & mask;
+        while (handles[slot] != EMPTY) {
+            if (hashes[slot] == hash && keyEquals(handles[slot], key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    /**
+     * Empties a slot, shifting back the following entries of the cluster so
+     * that lookups never need tombstones.
+     */
+    private void delete(int slot) {
+        int mask = handles.length - 1;
+        handles[slot] = EMPTY;
+        size--;
+        int next = (slot + 1) & mask;
+        while (handles[next] != EMPTY) {
+            int ideal = hashes[next] & mask;
+            boolean movable = slot <= next ? (ideal <= slot || ideal > next) : (ideal <= slot && ideal > next);
+            if (movable) {
+                hashes[slot] = hashes[next];
+                handles[slot] = handles[next];
+                handles[next] = EMPTY;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void resize() {
+        int[] oldHashes = hashes;
+        long[] oldHandles = handles;
+        hashes = new int[oldHandles.length * 2];
+        handles = new long[oldHandles.length * 2];
+        Arrays.fill(handles, EMPTY);
+        int mask = handles.length - 1;
+        for (int i = 0; i < oldHandles.length; i++) {
+            if (oldHandles[i] != EMPTY) {
+                int slot = oldHashes[i] & mask;
+                while (handles[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                handles[slot] = oldHandles[i];
+            }
+        }
+    }
+
+    private boolean keyEquals(long handle, byte[] key) {
+        ByteBuffer buffer = allocator.buffer(handle);
+        if (buffer.getInt() != key.length) {
+            return false;
+        }
+        buffer.getInt();
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get() != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] readKey(long handle) {
+        ByteBuffer buffer = allocator.buffer(handle);
+        byte[] key = new byte[buffer.getInt()];
+        buffer.getInt();
+        buffer.get(key);
+        return key;
+    }
+
+    private byte[] readValue(long handle) {
+        ByteBuffer buffer = allocator.buffer(handle);
+        int keyLength = buffer.getInt();
+        byte[] value = new byte[buffer.getInt()];
+        buffer.position(buffer.position() + keyLength);
+        buffer.get(value);
+        return value;
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+}
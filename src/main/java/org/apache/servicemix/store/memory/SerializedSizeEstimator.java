@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SizeEstimator} using the size of the serialized form of {@link Serializable} objects.
+ * <p>
+ * Every object is serialized when it is stored, so this estimator is only worth its cost
+ * when the objects are small or when the byte bound has to be accurate.
+ * </p>
+ */
+public class SerializedSizeEstimator implements SizeEstimator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SerializedSizeEstimator.class);
+
+    private static final long OBJECT_OVERHEAD = 16;
+
+    public long sizeOf(Object data) {
+        if (data instanceof Serializable) {
+            CountingOutputStream count = new CountingOutputStream();
+            try {
+                ObjectOutputStream out = new ObjectOutputStream(count);
+                out.writeObject(data);
+                out.close();
+                return count.count;
+            } catch (IOException e) {
+                LOG.debug("Unable to estimate the size of object: " + data, e);
+            }
+        }
+        return OBJECT_OVERHEAD;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
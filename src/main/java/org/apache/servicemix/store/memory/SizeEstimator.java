@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+/**
+ * Estimates the memory used by the objects of a {@link BoundedMemoryStore} bounded in bytes.
+ * <p>
+ * The store only asks for the size of objects it can not estimate by itself, that is
+ * anything but byte arrays, character sequences and boxed primitives.  Implementations
+ * are called outside of the lock of the store, and must be thread-safe.
+ * </p>
+ */
+public interface SizeEstimator {
+
+    /**
+     * Estimates the memory used by an object.
+     * @param data the object
+     * @return the approximate size of the object in bytes
+     */
+    long sizeOf(Object data);
+
+}
@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Allocates chunks of direct memory out of fixed-size slabs.
+ * <p>
+ * Chunk sizes are powers of two between {@link #MIN_CHUNK_SIZE} and the slab size.
+ * A slab is carved into chunks of a single size when it is first needed.  The free chunks
+ * of a slab are linked through their first four bytes, and each size class keeps the list
+ * of its slabs having free chunks.  Once all the chunks of a slab are free, the slab is
+ * put back with its buffer on the free slab list, so that another size class reuses its
+ * memory instead of allocating a new buffer, unless it is the last slab of its class having
+ * free chunks.  Free slabs still count as allocated memory.
+ * </p>
+ * <p>
+ * Allocations larger than a slab get a dedicated buffer, which is dropped when the chunk
+ * is freed, and free slabs are dropped when a dedicated buffer would not fit in the limit
+ * otherwise.  The direct memory of dropped buffers is only reclaimed once they are garbage
+ * collected.
+ * </p>
+ * <p>
+ * A chunk is identified by a handle holding the slab index in its upper 32 bits and the
+ * offset in the slab in its lower 32 bits.  This class is not thread-safe.
+ * </p>
+ */
+class SlabAllocator {
+
+    static final int MIN_CHUNK_SIZE = 64;
+
+    private static final int DEDICATED = -1;
+    private static final int NONE = -1;
+
+    private final int slabSize;
+    private final long maxBytes;
+    private final int classes;
+
+    private ByteBuffer[] slabs = new ByteBuffer[16];
+    private int[] slabClasses = new int[16];
+    // offset of the first free chunk of each slab, and number of free chunks
+    private int[] freeHeads = new int[16];
+    private int[] freeCounts = new int[16];
+    // position of each slab in the partial slab list of its class
+    private int[] partialPositions = new int[16];
+    private int slabCount;
+    // slots holding a free slab buffer, and slots without buffer
+    private final LongStack freeSlabs = new LongStack();
+    private final LongStack emptySlots = new LongStack();
+    private final LongStack[] partialSlabs;
+
+    private long allocatedBytes;
+    private long usedBytes;
+
+    /**
+     * @param slabSize the size of a slab, rounded up to a power of two
+     * @param maxBytes the maximum amount of direct memory to allocate, or a negative value for no limit
+     */
+    SlabAllocator(int slabSize, long maxBytes) {
+        this.slabSize = Integer.highestOneBit(Math.max(slabSize, MIN_CHUNK_SIZE) - 1) << 1;
+        this.maxBytes = maxBytes;
+        this.classes = classOf(this.slabSize) + 1;
+        this.partialSlabs = new LongStack[classes];
+        for (int i = 0; i < classes; i++) {
+            partialSlabs[i] = new LongStack();
+        }
+    }
+
+    /**
+     * Allocates a chunk of at least the given size.
+     * @return the handle of the chunk, or <code>-1</code> if the memory limit has been reached
+     */
+    long allocate(int size) {
+        if (size > slabSize) {
+            while (!reserve(size) && !freeSlabs.isEmpty()) {
+                dropSlab((int) freeSlabs.pop());
+            }
+            if (!reserve(size)) {
+                return -1;
+            }
+            int slab = newSlot();
+            slabs[slab] = ByteBuffer.allocateDirect(size);
+            slabClasses[slab] = DEDICATED;
+            allocatedBytes += size;
+            usedBytes += size;
+            return handle(slab, 0);
+        }
+        int sizeClass = classOf(size);
+        int chunkSize = chunkSize(sizeClass);
+        LongStack partial = partialSlabs[sizeClass];
+        int slab;
+        if (partial.isEmpty()) {
+            if (!freeSlabs.isEmpty()) {
+                slab = (int) freeSlabs.pop();
+            } else if (reserve(slabSize)) {
+                slab = newSlot();
+                slabs[slab] = ByteBuffer.allocateDirect(slabSize);
+                allocatedBytes += slabSize;
+            } else {
+                return -1;
+            }
+            slabClasses[slab] = sizeClass;
+            ByteBuffer buffer = slabs[slab];
+            for (int offset = 0; offset < slabSize; offset += chunkSize) {
+                buffer.putInt(offset, offset + chunkSize < slabSize ? offset + chunkSize : NONE);
+            }
+            freeHeads[slab] = 0;
+            freeCounts[slab] = slabSize / chunkSize;
+            addPartial(slab, sizeClass);
+        } else {
+            slab = (int) partial.peek();
+        }
+        int offset = freeHeads[slab];
+        freeHeads[slab] = slabs[slab].getInt(offset);
+        if (--freeCounts[slab] == 0) {
+            removePartial(slab, sizeClass);
+        }
+        usedBytes += chunkSize;
+        return handle(slab, offset);
+    }
+
+    /**
+     * Returns a chunk to the free chunks of its slab, and puts the slab back on the free slab
+     * list once all its chunks are free, or drops it if it was a dedicated one.
+     */
+    void free(long handle) {
+        int slab = slabOf(handle);
+        int sizeClass = slabClasses[slab];
+        if (sizeClass == DEDICATED) {
+            usedBytes -= slabs[slab].capacity();
+            dropSlab(slab);
+            return;
+        }
+        int offset = (int) handle;
+        int chunkSize = chunkSize(sizeClass);
+        usedBytes -= chunkSize;
+        slabs[slab].putInt(offset, freeHeads[slab]);
+        freeHeads[slab] = offset;
+        if (freeCounts[slab]++ == 0) {
+            addPartial(slab, sizeClass);
+        }
+        if (freeCounts[slab] == slabSize / chunkSize && partialSlabs[sizeClass].size() > 1) {
+            removePartial(slab, sizeClass);
+            freeSlabs.push(slab);
+        }
+    }
+
+    /**
+     * Returns a view of the given chunk positioned at its start.
+     */
+    ByteBuffer buffer(long handle) {
+        ByteBuffer buffer = slabs[slabOf(handle)].duplicate();
+        buffer.position((int) handle);
+        return buffer;
+    }
+
+    /**
+     * Releases all slabs.  The direct memory is reclaimed once the buffers are garbage collected.
+     */
+    void clear() {
+        slabs = new ByteBuffer[16];
+        slabClasses = new int[16];
+        freeHeads = new int[16];
+        freeCounts = new int[16];
+        partialPositions = new int[16];
+        slabCount = 0;
+        freeSlabs.clear();
+        emptySlots.clear();
+        for (LongStack partial : partialSlabs) {
+            partial.clear();
+        }
+        allocatedBytes = 0;
+        usedBytes = 0;
+    }
+
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private boolean reserve(int size) {
+        return maxBytes <= 0 || allocatedBytes + size <= maxBytes;
+    }
+
+    private int newSlot() {
+        int slab;
+        if (!emptySlots.isEmpty()) {
+            slab = (int) emptySlots.pop();
+        } else {
+            if (slabCount == slabs.length) {
+                int length = slabs.length * 2;
+                slabs = Arrays.copyOf(slabs, length);
+                slabClasses = Arrays.copyOf(slabClasses, length);
+                freeHeads = Arrays.copyOf(freeHeads, length);
+                freeCounts = Arrays.copyOf(freeCounts, length);
+                partialPositions = Arrays.copyOf(partialPositions, length);
+            }
+            slab = slabCount++;
+        }
+        return slab;
+    }
+
+    private void dropSlab(int slab) {
+        allocatedBytes -= slabs[slab].capacity();
+        slabs[slab] = null;
+        emptySlots.push(slab);
+    }
+
+    private void addPartial(int slab, int sizeClass) {
+        LongStack partial = partialSlabs[sizeClass];
+        partialPositions[slab] = partial.size();
+        partial.push(slab);
+    }
+
+    private void removePartial(int slab, int sizeClass) {
+        LongStack partial = partialSlabs[sizeClass];
+        int position = partialPositions[slab];
+        int last = (int) partial.pop();
+        if (last != slab) {
+            // the last slab of the list takes the place of the removed one
+            partial.set(position, last);
+            partialPositions[last] = position;
+        }
+    }
+
+    private static int classOf(int size) {
+        int chunkSize = Math.max(size, MIN_CHUNK_SIZE);
+        return 32 - Integer.numberOfLeadingZeros(chunkSize - 1) - 6;
+    }
+
+    private static int chunkSize(int sizeClass) {
+        return MIN_CHUNK_SIZE << sizeClass;
+    }
+
+    private static long handle(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slabOf(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    /**
+     * A growable stack of primitive longs.
+     */
+    static class LongStack {
+        private long[] values = new long[16];
+        private int size;
+
+        void push(long value) {
+            if (size == values.length) {
+                long[] newValues = new long[size * 2];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+            values[size++] = value;
+        }
+
+        long pop() {
+            return values[--size];
+        }
+
+        long peek() {
+            return values[size - 1];
+        }
+
+        void set(int index, long value) {
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+}
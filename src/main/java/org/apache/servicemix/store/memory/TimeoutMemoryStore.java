@@ -17,70 +17,188 @@
 package org.apache.servicemix.store.memory;
 
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import org.apache.servicemix.id.IdGenerator;
 import org.apache.servicemix.store.Entry;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
+import org.apache.servicemix.store.base.ExpiryIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * {@link MemoryStore} which removes entries from the store after the specified timeout
  * to free memory.
+ * <p>
+ * Entries are tracked in an {@link ExpiryIndex}, so an eviction pass only visits the
+ * entries that have actually expired.  Eviction is performed on {@link #load(String)}
+ * unless a background sweeper periodically calls {@link #evict()}, in which case
+ * {@link #setBackgroundEviction(boolean)} should be set to take it off the load path.
+ * Expired entries are never returned, even if they have not been evicted yet.
+ * </p>
+ * <p>
+ * Entries stored with their own time to live expire after it instead of the timeout.
+ * </p>
  */
 public class TimeoutMemoryStore extends MemoryStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(TimeoutMemoryStore.class);
     private ConcurrentMap<String, Entry> datas = new ConcurrentHashMap<String, Entry>();
     private final long timeout;
+    private final ExpiryIndex index;
+    private volatile boolean backgroundEviction;
 
     protected TimeoutMemoryStore(IdGenerator idGenerator, long timeout) {
+        this(idGenerator, timeout, defaultResolution(timeout));
+    }
+
+    protected TimeoutMemoryStore(IdGenerator idGenerator, long timeout, long resolution) {
         super(idGenerator);
         this.timeout = timeout;
+        this.index = new ExpiryIndex(resolution);
     }
 
     /**
      * {@inheritDoc}
      */
     public void store(String id, Object data) throws IOException {
+        store(id, data, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(String id, Object data, long ttl) throws IOException {
         LOG.debug("Storing object with id: " + id);
-        datas.put(id, new Entry(data));
+        Entry entry = new Entry(data, ttl);
+        Entry previous = datas.put(id, entry);
+        if (previous != null) {
+            index.remove(id, getExpiration(previous));
+            if (isExpired(previous, entry.getTime())) {
+                fireEvictedEvent(id, previous.getData());
+            }
+        }
+        index.add(id, getExpiration(entry));
         fireAddedEvent(id,data);
     }
 
     /**
      * {@inheritDoc}
      * 
-     * Before attempting to load the object, all data older than the specified timeout will first be 
-     * removed from the store.
+     * Unless eviction is done in the background, all data older than the specified timeout will first be
+     * removed from the store before attempting to load the object.
      */
     public Object load(String id) throws IOException {
-        evict();
+        if (!backgroundEviction) {
+            evict();
+        }
         LOG.debug("Loading object with id:" + id);
         Entry entry = datas.remove(id);
         if (entry != null) {
+            index.remove(id, getExpiration(entry));
             Object data = entry.getData();
+            if (isExpired(entry, System.currentTimeMillis())) {
+                fireEvictedEvent(id, data);
+                return null;
+            }
             fireRemovedEvent(id,data);
             return data;
         } else return null;
     }
 
-    /*
-     * Remove timed out entries from the data map.
+    /**
+     * {@inheritDoc}
      */
-    private void evict() {
-        long now = System.currentTimeMillis();
+    public Object peek(String id) throws IOException {
+        LOG.debug("Peeking object with id: " + id);
+        Entry entry = datas.get(id);
+        if (entry != null && !isExpired(entry, System.currentTimeMillis())) {
+            return entry.getData();
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public StoreCursor<String> openIdCursor() throws IOException {
+        final StoreCursor<Map.Entry<String, Object>> entries = openEntryCursor();
+        return new AbstractStoreCursor<String>() {
+            protected String fetch() throws IOException {
+                return entries.hasNext() ? entries.next().getKey() : null;
+            }
+        };
+    }
 
-        for (Map.Entry<String, Entry> entry : datas.entrySet()) {
-            long age = now - entry.getValue().getTime();
-            if (age > timeout) {
-                LOG.debug("Removing object with id " + entry.getKey() + " from store after " + age + " ms");
-                if(datas.remove(entry.getKey()) != null) {
-                    fireEvictedEvent(entry.getKey(), entry.getValue().getData());
+    /**
+     * {@inheritDoc}
+     */
+    public StoreCursor<Map.Entry<String, Object>> openEntryCursor() throws IOException {
+        final Iterator<Map.Entry<String, Entry>> entries = datas.entrySet().iterator();
+        return new AbstractStoreCursor<Map.Entry<String, Object>>() {
+            protected Map.Entry<String, Object> fetch() {
+                long now = System.currentTimeMillis();
+                while (entries.hasNext()) {
+                    Map.Entry<String, Entry> entry = entries.next();
+                    if (!isExpired(entry.getValue(), now)) {
+                        return new AbstractMap.SimpleImmutableEntry<String, Object>(
+                            entry.getKey(), entry.getValue().getData());
+                    }
                 }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Remove timed out entries from the data map.
+     * Only the entries found in the elapsed buckets of the expiry index are visited.
+     */
+    public void evict() {
+        long now = System.currentTimeMillis();
+        if (!index.hasExpired(now)) {
+            return;
+        }
+        for (String id : index.expire(now)) {
+            Entry entry = datas.get(id);
+            // the id may have been stored again since it was indexed
+            if (entry != null && isExpired(entry, now) && datas.remove(id, entry)) {
+                LOG.debug("Removing object with id " + id + " from store after " + (now - entry.getTime()) + " ms");
+                fireEvictedEvent(id, entry.getData());
             }
         }
     }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public boolean isBackgroundEviction() {
+        return backgroundEviction;
+    }
+
+    /**
+     * @param backgroundEviction <code>true</code> if {@link #evict()} is periodically called
+     *                           by a sweeper, so that it does not need to run on load
+     */
+    public void setBackgroundEviction(boolean backgroundEviction) {
+        this.backgroundEviction = backgroundEviction;
+    }
+
+    private long getExpiration(Entry entry) {
+        return entry.getExpiration() > 0 ? entry.getExpiration() : entry.getTime() + timeout;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return entry.isExpired(now, timeout);
+    }
+
+    private static long defaultResolution(long timeout) {
+        return Math.max(1L, Math.min(ExpiryIndex.DEFAULT_RESOLUTION, timeout / 8));
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Window TinyLFU {@link EvictionPolicy}.
+ * <p>
+ * New ids enter a small LRU window (1% of the tracked ids).  Ids leaving the window
+ * join the probation segment of a segmented LRU and are promoted to its protected
+ * segment (80% of the main space) when accessed again.  When an id has to be evicted,
+ * the last id admitted into probation competes with the probation LRU id, and the one
+ * a {@link FrequencySketch} has seen less often is evicted.  This keeps popular ids in
+ * the store even when bursts of one-off ids are stored.
+ * </p>
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+    private static final int DEFAULT_EXPECTED_SIZE = 1024;
+    private static final int WINDOW_PERCENTAGE = 1;
+    private static final int PROTECTED_PERCENTAGE = 80;
+
+    private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> protect = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private String candidate;
+
+    public TinyLfuEvictionPolicy() {
+        this(DEFAULT_EXPECTED_SIZE);
+    }
+
+    /**
+     * @param expectedSize the expected number of ids in the store, used to size the frequency sketch
+     */
+    public TinyLfuEvictionPolicy(int expectedSize) {
+        this.sketch = new FrequencySketch(expectedSize > 0 ? expectedSize : DEFAULT_EXPECTED_SIZE);
+    }
+
+    public void recordInsert(String id) {
+        recordRemoval(id);
+        sketch.increment(id);
+        window.put(id, Boolean.TRUE);
+        int size = size();
+        if (size > sketch.capacity()) {
+            sketch.ensureCapacity(size);
+        }
+        if (window.size() > Math.max(1, size * WINDOW_PERCENTAGE / 100)) {
+            String admitted = removeEldest(window);
+            probation.put(admitted, Boolean.TRUE);
+            candidate = admitted;
+        }
+    }
+
+    public void recordAccess(String id) {
+        sketch.increment(id);
+        if (window.get(id) != null || protect.get(id) != null) {
+            return;
+        }
+        if (probation.remove(id) != null) {
+            protect.put(id, Boolean.TRUE);
+            int main = probation.size() + protect.size();
+            if (protect.size() > Math.max(1, main * PROTECTED_PERCENTAGE / 100)) {
+                probation.put(removeEldest(protect), Boolean.TRUE);
+            }
+        }
+    }
+
+    public void recordRemoval(String id) {
+        if (window.remove(id) == null && probation.remove(id) == null) {
+            protect.remove(id);
+        }
+    }
+
+    public String nextVictim() {
+        if (!probation.isEmpty()) {
+            String victim = probation.keySet().iterator().next();
+            if (candidate != null && !candidate.equals(victim) && probation.containsKey(candidate)
+                    && sketch.frequency(candidate) <= sketch.frequency(victim)) {
+                // the newcomer is not more popular than the victim: reject it instead
+                victim = candidate;
+            }
+            probation.remove(victim);
+            candidate = null;
+            return victim;
+        }
+        if (!protect.isEmpty()) {
+            return removeEldest(protect);
+        }
+        if (!window.isEmpty()) {
+            return removeEldest(window);
+        }
+        return null;
+    }
+
+    private int size() {
+        return window.size() + probation.size() + protect.size();
+    }
+
+    private static String removeEldest(LinkedHashMap<String, Boolean> segment) {
+        Iterator<String> it = segment.keySet().iterator();
+        String eldest = it.next();
+        it.remove();
+        return eldest;
+    }
+
+}
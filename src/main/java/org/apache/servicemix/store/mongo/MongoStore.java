@@ -17,15 +17,53 @@
 package org.apache.servicemix.store.mongo;
 
 import com.mongodb.*;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.store.AsyncStore;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
 import org.apache.servicemix.store.base.BaseStore;
+import org.apache.servicemix.store.base.BatchingAsyncStore;
+import org.bson.types.ObjectId;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
  * A store which uses MongoDB.
  * </p>
+ * <p>
+ * Objects are removed by MongoDB itself through TTL indexes: one on the <code>_timestamp</code>
+ * creation date when the store has a timeout, and one on the <code>_expires</code> date of the
+ * objects stored with a time to live, which have no <code>_timestamp</code> so that their time
+ * to live overrides the timeout.  As the removal runs periodically on the server, expired
+ * objects which have not been removed yet are filtered out when read, and listeners are only
+ * notified of the evictions found by {@link #evict()}.
+ * </p>
+ * <p>
+ * Objects are loaded, alone or several at once, with a <code>findAndModify</code> command
+ * each, which removes and returns the document atomically, so that an object is loaded once
+ * even when several clients load it at the same time.
+ * </p>
+ * <p>
+ * Objects whose serialized form is larger than the GridFS threshold are saved as GridFS files,
+ * named after their id in a bucket named after the collection, as documents are limited to
+ * 16MB.  The TTL indexes do not cover these files, which are removed when their object is
+ * loaded or evicted.  Files carry the <code>_expires</code> date of their object, so that
+ * {@link #evict()} also removes the expired files whose document was removed by MongoDB.
+ * </p>
  *
  * @author iocanel
  * @author jbonofre
@@ -36,12 +74,21 @@ public class MongoStore extends BaseStore {
 
     private static final String ID = "_id";
     private static final String DATA = "data";
+    private static final String GRIDFS = "_gridfs";
     private static final String TIMESTAMP = "_timestamp";
+    private static final String EXPIRES = "_expires";
+    private static final String FILENAME = "filename";
+    private static final String UPLOAD_DATE = "uploadDate";
+
+    // keeps each insert message well below the 48MB limit of the wire protocol
+    private static final int MAX_INSERT_BYTES = 16 * 1024 * 1024;
 
     private DB db;
     DBCollection collection;
 
     private Long timeout;
+    private int gridFsThreshold = -1;
+    private GridFS gridFs;
 
     /**
      * <p>
@@ -52,24 +99,24 @@ public class MongoStore extends BaseStore {
      * @param collectionName the Mongo collection name.
      */
     public MongoStore(DB db, String collectionName) {
-        this.db = db;
-        this.collection = db.getCollection(collectionName);
+        this(db, collectionName, null);
     }
 
     /**
      * <p>
      * Constructor with the Mongo DB and collection name to use.
-     * This constructor defines a connection timeout too.
+     * This constructor defines a timeout too, after which objects are removed.
      * </p>
      *
      * @param db the Mongo DB.
      * @param collectionName the Mongo collection name.
-     * @param timeout the connection timeout.
+     * @param timeout the timeout in milliseconds, or <code>null</code>.
      */
     public MongoStore(DB db, String collectionName, Long timeout) {
         this.db = db;
         this.collection = db.getCollection(collectionName);
-        this.timeout = timeout;
+        this.timeout = timeout != null && timeout > 0 ? timeout : null;
+        ensureIndexes();
     }
 
     /**
@@ -96,23 +143,22 @@ public class MongoStore extends BaseStore {
      * @throws IOException
      */
     public void store(String id, Object data) throws IOException {
-        DBObject object = new BasicDBObject();
-        ObjectOutputStream out=null;
-        try {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            out = new ObjectOutputStream(buffer);
-            out.writeObject(data);
+        store(id, data, -1);
+    }
 
-            object.put(ID, id);
-            object.put(DATA, buffer.toByteArray());
-            object.put(TIMESTAMP, System.currentTimeMillis());
-        } catch (Exception e) {
-            throw (IOException) new IOException("Error storing object").initCause(e);
-        } finally {
-            if(out != null) {
-                out.close();
-            }
-        }
+    /**
+     * <p>
+     * Stores {@param data} to a {@link DBObject} with the given {@param id}, expiring after
+     * the given time to live.
+     * </p>
+     *
+     * @param id the id of the object to store
+     * @param data the object to store
+     * @param ttl the time to live of the object in milliseconds, or a negative value to use the timeout
+     * @throws IOException
+     */
+    public void store(String id, Object data, long ttl) throws IOException {
+        DBObject object = toObject(id, data, ttl, System.currentTimeMillis());
         WriteResult result = collection.insert(object);
         // check result for errors
         if (result.getError() != null) {
@@ -124,7 +170,7 @@ public class MongoStore extends BaseStore {
 
     /**
      * <p>
-     * Stores {@param data} to a {@link DBObject} and return the generated ID.
+     * Stores {@param data} under a new {@link ObjectId} and return it.
      * </p>
      * 
      * @param data the object to store
@@ -132,19 +178,15 @@ public class MongoStore extends BaseStore {
      * @throws IOException
      */
     public String store(Object data) throws IOException {
-        DBObject object = new BasicDBObject();
-        object.put(DATA, data);
-        WriteResult result = collection.insert(object);
-        // check result for errors
-        if (result.getError() != null) {
-            throw new IOException(result.getError());
-        }
-        return String.valueOf(result.getField(ID));
+        String id = new ObjectId().toString();
+        store(id, data);
+        return id;
     }
 
     /**
      * <p>
-     * Retrieves the data of the object with the given {@param id}.
+     * Retrieves and removes the object with the given {@param id} in a single
+     * <code>findAndModify</code> command.
      * </p>
      *
      * @param id the id of the object
@@ -152,29 +194,24 @@ public class MongoStore extends BaseStore {
      * @throws IOException
      */
     public Object load(String id) throws IOException {
-        evict();
-        Object obj = null;
+        Object obj;
+        boolean expired;
         try {
-            DBObject object = new BasicDBObject();
-            object.put(ID, id);
-            DBObject item = collection.findOne(object);
-            WriteResult result = collection.remove(object);
+            DBObject item = collection.findAndModify(new BasicDBObject(ID, id), null, null, true, null, false, false);
             if (item == null) {
-                throw new IOException("Could not find item with id " + id);
+                return null;
             }
-            byte[] data = (byte[]) item.get(DATA);
-            if (data != null) {
-                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-                try {
-                    obj = ois.readObject();
-                } finally {
-                    ois.close();
-                }
-            }
-            fireRemovedEvent(id,data);
+            expired = isExpired(item, System.currentTimeMillis());
+            obj = expired && storeListeners.isEmpty() ? null : getData(item);
+            removeFile(item);
         } catch (Exception e) {
             throw (IOException) new IOException("Error loading object").initCause(e);
         }
+        if (expired) {
+            fireEvictedEvent(id, obj);
+            return null;
+        }
+        fireRemovedEvent(id,obj);
         return obj;
     }
 
@@ -188,78 +225,355 @@ public class MongoStore extends BaseStore {
      * @throws IOException
      */
     public Object peek(String id) throws IOException {
-        evict();
-        Object obj = null;
         try {
-            DBObject object = new BasicDBObject();
-            object.put(ID, id);
-            DBObject item = collection.findOne(object);
-            byte[] data = (byte[]) item.get(DATA);
-            if (data != null) {
-                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-                try {
-                    obj = ois.readObject();
-                } finally {
-                ois.close();
-                }
+            DBObject item = collection.findOne(new BasicDBObject(ID, id));
+            if (item == null || isExpired(item, System.currentTimeMillis())) {
+                return null;
             }
+            return getData(item);
         } catch (Exception e) {
             throw (IOException) new IOException("Error loading object").initCause(e);
         }
-        return obj;
     }
 
     /**
      * <p>
-     * Removes objects that have been expired.
+     * Stores several objects with bulk inserts of {@link DBObject}s, each one holding up to
+     * 16MB of serialized objects.
      * </p>
+     *
+     * @param entries the objects to store, keyed by their ids
+     * @throws IOException
      */
-    protected void evict() {
-        if (timeout != null) {
-            DBObject object = new BasicDBObject();
-            object.put(TIMESTAMP, new BasicDBObject("&lt", System.currentTimeMillis() - timeout));
-            DBCursor items = collection.find(object);
-            WriteResult result = collection.remove(object);
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<DBObject> objects = new ArrayList<DBObject>();
+        int bytes = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            DBObject object = toObject(entry.getKey(), entry.getValue(), -1, now);
+            byte[] data = (byte[]) object.get(DATA);
+            int size = data != null ? data.length : 0;
+            if (!objects.isEmpty() && bytes + size > MAX_INSERT_BYTES) {
+                insert(objects);
+                objects.clear();
+                bytes = 0;
+            }
+            objects.add(object);
+            bytes += size;
+        }
+        insert(objects);
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            fireAddedEvent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void insert(List<DBObject> objects) throws IOException {
+        WriteResult result = collection.insert(objects);
+        // check result for errors
+        if (result.getError() != null) {
+            throw new IOException(result.getError());
+        }
+    }
 
+    /**
+     * Pending asynchronous stores and peeks are coalesced into bulk inserts and <code>$in</code>
+     * queries.
+     */
+    public AsyncStore createAsyncStore(Executor executor) {
+        return new BatchingAsyncStore(this, executor);
+    }
+
+    /**
+     * <p>
+     * Retrieves the objects with the given ids without removing them, using a single <code>$in</code> query.
+     * </p>
+     *
+     * @param ids the ids of the objects
+     * @return the objects found, keyed by their ids
+     * @throws IOException
+     */
+    public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+        Map<String, Object> found = new LinkedHashMap<String, Object>();
+        if (ids.isEmpty()) {
+            return found;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            for (DBObject item : collection.find(inQuery(ids))) {
+                if (isExpired(item, now)) {
+                    continue;
+                }
+                found.put((String) item.get(ID), getData(item));
+            }
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error loading objects").initCause(e);
+        }
+        // keep the order of the requested ids
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (String id : ids) {
+            if (found.containsKey(id)) {
+                result.put(id, found.get(id));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * Opens a server-side cursor returning only the ids of the documents.
+     * </p>
+     *
+     * @return the cursor
+     */
+    public StoreCursor<String> openIdCursor() throws IOException {
+        final DBCursor items = collection.find(new BasicDBObject(), new BasicDBObject(ID, 1))
+            .batchSize(CURSOR_BATCH_SIZE);
+        return new AbstractStoreCursor<String>() {
+            protected String fetch() {
+                return items.hasNext() ? (String) items.next().get(ID) : null;
+            }
+
+            public void close() {
+                items.close();
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Opens a server-side cursor over the documents, skipping the expired ones.
+     * </p>
+     *
+     * @return the cursor
+     */
+    public StoreCursor<Map.Entry<String, Object>> openEntryCursor() throws IOException {
+        final DBCursor items = collection.find().batchSize(CURSOR_BATCH_SIZE);
+        return new AbstractStoreCursor<Map.Entry<String, Object>>() {
+            protected Map.Entry<String, Object> fetch() throws IOException {
+                long now = System.currentTimeMillis();
+                while (items.hasNext()) {
+                    DBObject item = items.next();
+                    if (!isExpired(item, now)) {
+                        return new AbstractMap.SimpleImmutableEntry<String, Object>(
+                            (String) item.get(ID), getData(item));
+                    }
+                }
+                return null;
+            }
+
+            public void close() {
+                items.close();
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Removes the objects which have expired but have not been removed by MongoDB yet, and
+     * notifies the listeners of their eviction.  Each object is removed with its own
+     * <code>findAndModify</code> command, so that it is either evicted or loaded, but not both.
+     * Then removes the expired GridFS files whose document is gone.
+     * </p>
+     */
+    public void evict() {
+        long now = System.currentTimeMillis();
+        DBCursor items = collection.find(expiredQuery(now), new BasicDBObject(ID, 1));
+        try {
             for (DBObject item : items) {
-                String id = null;
-                Object data = null;
-                if (item != null) {
-
-                    byte[] idBytes = (byte[]) item.get(ID);
-                    byte[] dataBytes = (byte[]) item.get(DATA);
-
-                    if (data != null) {
-                        try {
-                            ObjectInputStream ois = null;
-
-                            ois = new ObjectInputStream(new ByteArrayInputStream(idBytes));
-                            try {
-                                id = (String) ois.readObject();
-                            } finally {
-                                ois.close();
-                            }
-
-                            ois = new ObjectInputStream(new ByteArrayInputStream(dataBytes));
-                            try {
-                                data = ois.readObject();
-                                ois.close();
-                            } finally {
-                                ois.close();
-                            }
-
-                            if(id != null) {
-                                fireEvictedEvent(id,data);
-                            }
-
-                        } catch (IOException e) {
-                            LOG.error("Error evicting object from store",e);
-                        } catch (ClassNotFoundException e) {
-                            LOG.error("Error evicting object from store",e);
+                String id = (String) item.get(ID);
+                DBObject removed = collection.findAndModify(new BasicDBObject(ID, id), null, null, true, null, false, false);
+                if (removed == null) {
+                    continue;
+                }
+                try {
+                    Object data = storeListeners.isEmpty() ? null : getData(removed);
+                    removeFile(removed);
+                    fireEvictedEvent(id, data);
+                } catch (IOException e) {
+                    LOG.error("Error evicting object from store", e);
+                }
+            }
+        } finally {
+            items.close();
+        }
+        if (gridFsThreshold >= 0) {
+            removeOrphanFiles(now);
+        }
+    }
+
+    /**
+     * Removes the expired GridFS files whose document has been removed by the TTL index,
+     * checking the documents by batches of ids.
+     */
+    private void removeOrphanFiles(long now) {
+        DBCursor files = getGridFs().getFileList(expiredFilesQuery(now));
+        try {
+            List<String> names = new ArrayList<String>();
+            while (files.hasNext()) {
+                names.add((String) files.next().get(FILENAME));
+                if (names.size() == CURSOR_BATCH_SIZE || !files.hasNext()) {
+                    DBCursor found = collection.find(inQuery(names), new BasicDBObject(ID, 1));
+                    try {
+                        for (DBObject item : found) {
+                            names.remove(item.get(ID));
                         }
+                    } finally {
+                        found.close();
+                    }
+                    for (String name : names) {
+                        LOG.debug("Removing GridFS file of expired object " + name);
+                        getGridFs().remove(name);
                     }
+                    names.clear();
+                }
+            }
+        } finally {
+            files.close();
+        }
+    }
+
+    /**
+     * @return the query matching the expired objects: those whose <code>_expires</code> date
+     *         has passed, and, if the store has a timeout, those stored longer ago than the timeout
+     */
+    DBObject expiredQuery(long now) {
+        BasicDBList expired = new BasicDBList();
+        expired.add(new BasicDBObject(EXPIRES, new BasicDBObject("$lt", new Date(now))));
+        if (timeout != null) {
+            expired.add(new BasicDBObject(TIMESTAMP, new BasicDBObject("$lt", new Date(now - timeout))));
+            // objects written by earlier versions have a numeric timestamp, which neither a
+            // date comparison nor the TTL index match
+            expired.add(new BasicDBObject(TIMESTAMP, new BasicDBObject("$lt", now - timeout)));
+        }
+        return new BasicDBObject("$or", expired);
+    }
+
+    /**
+     * @return the query matching the GridFS files of the expired objects: those whose
+     *         <code>_expires</code> date has passed, and, if the store has a timeout, those
+     *         without one uploaded longer ago than the timeout
+     */
+    DBObject expiredFilesQuery(long now) {
+        BasicDBList expired = new BasicDBList();
+        expired.add(new BasicDBObject(EXPIRES, new BasicDBObject("$lt", new Date(now))));
+        if (timeout != null) {
+            expired.add(new BasicDBObject(EXPIRES, new BasicDBObject("$exists", false))
+                .append(UPLOAD_DATE, new BasicDBObject("$lt", new Date(now - timeout))));
+        }
+        return new BasicDBObject("$or", expired);
+    }
+
+    public int getGridFsThreshold() {
+        return gridFsThreshold;
+    }
+
+    /**
+     * @param gridFsThreshold the size in bytes above which serialized objects are saved
+     *                        as GridFS files, or a negative value to never use GridFS
+     */
+    public void setGridFsThreshold(int gridFsThreshold) {
+        this.gridFsThreshold = gridFsThreshold;
+    }
+
+    private DBObject toObject(String id, Object data, long ttl, long now) throws IOException {
+        DBObject object = new BasicDBObject();
+        try {
+            byte[] bytes = serializer.serialize(data);
+            Date expires = ttl > 0 ? new Date(now + ttl) : null;
+            object.put(ID, id);
+            if (gridFsThreshold >= 0 && bytes.length > gridFsThreshold) {
+                GridFSInputFile file = getGridFs().createFile(bytes);
+                file.setFilename(id);
+                if (expires != null) {
+                    file.put(EXPIRES, expires);
                 }
+                file.save();
+                object.put(GRIDFS, Boolean.TRUE);
+            } else {
+                object.put(DATA, bytes);
+            }
+            if (expires != null) {
+                object.put(EXPIRES, expires);
+            } else {
+                object.put(TIMESTAMP, new Date(now));
             }
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error storing object").initCause(e);
         }
+        return object;
     }
+
+    private Object getData(DBObject item) throws IOException {
+        byte[] data = (byte[]) item.get(DATA);
+        if (data == null && Boolean.TRUE.equals(item.get(GRIDFS))) {
+            GridFSDBFile file = getGridFs().findOne((String) item.get(ID));
+            if (file == null) {
+                throw new IOException("Could not find GridFS file of object " + item.get(ID));
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) file.getLength());
+            InputStream is = file.getInputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = is.read(buffer)) >= 0) {
+                    baos.write(buffer, 0, read);
+                }
+            } finally {
+                is.close();
+            }
+            data = baos.toByteArray();
+        }
+        return data != null ? serializer.deserialize(data) : null;
+    }
+
+    private void removeFile(DBObject item) {
+        if (Boolean.TRUE.equals(item.get(GRIDFS))) {
+            getGridFs().remove((String) item.get(ID));
+        }
+    }
+
+    private synchronized GridFS getGridFs() {
+        if (gridFs == null) {
+            gridFs = new GridFS(db, collection.getName());
+        }
+        return gridFs;
+    }
+
+    private boolean isExpired(DBObject item, long now) {
+        Date expires = (Date) item.get(EXPIRES);
+        if (expires != null) {
+            return now > expires.getTime();
+        }
+        if (timeout != null) {
+            // objects written by earlier versions have a numeric timestamp
+            Object timestamp = item.get(TIMESTAMP);
+            if (timestamp instanceof Date) {
+                return now - ((Date) timestamp).getTime() > timeout;
+            } else if (timestamp instanceof Number) {
+                return now - ((Number) timestamp).longValue() > timeout;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates the TTL indexes removing the objects once their expiration date has passed,
+     * or once the timeout has elapsed since they were stored.
+     * An index on <code>_timestamp</code> created with another timeout is not changed.
+     */
+    private void ensureIndexes() {
+        collection.ensureIndex(new BasicDBObject(EXPIRES, 1), new BasicDBObject("expireAfterSeconds", 0));
+        if (timeout != null) {
+            long seconds = Math.max(1, (timeout + 999) / 1000);
+            collection.ensureIndex(new BasicDBObject(TIMESTAMP, 1), new BasicDBObject("expireAfterSeconds", seconds));
+        }
+    }
+
+    private static DBObject inQuery(Collection<String> ids) {
+        return new BasicDBObject(ID, new BasicDBObject("$in", new ArrayList<String>(ids)));
+    }
+
 }
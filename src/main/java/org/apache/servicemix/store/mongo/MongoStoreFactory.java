@@ -22,21 +22,32 @@ import org.apache.servicemix.store.Store;
 import org.apache.servicemix.store.StoreFactory;
 import org.apache.servicemix.store.StoreListener;
 import org.apache.servicemix.store.base.BaseStoreFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * <p>
  * A store factory which use MongoDB.
  * </p>
+ * <p>
+ * Expired objects are removed by MongoDB without notifying the listeners.  If a sweep
+ * interval is specified, a background timer evicts the expired objects it finds first
+ * and notifies the listeners.
+ * </p>
  *
  * @author iocanel
  * @author jbonofre
  */
 public class MongoStoreFactory extends BaseStoreFactory {
 
+    private static final Logger LOG = LoggerFactory.getLogger(MongoStoreFactory.class);
+
     private Mongo mongo;
     private DB db;
 
@@ -49,8 +60,12 @@ public class MongoStoreFactory extends BaseStoreFactory {
     private String database;
 
     private Long timeout;
+    private long sweepInterval = -1;
+    private int gridFsThreshold = -1;
 
     private Map<String, MongoStore> stores = new HashMap<String, MongoStore>();
+    private Map<MongoStore, TimerTask> sweepers = new HashMap<MongoStore, TimerTask>();
+    private Timer timer;
 
     /**
      * <p>
@@ -85,19 +100,52 @@ public class MongoStoreFactory extends BaseStoreFactory {
                 store = new MongoStore(db, collection, timeout);
             else store = new MongoStore(db, collection);
 
+             store.setGridFsThreshold(gridFsThreshold);
+             store.setSerializer(serializer);
+             store.setEventDispatcher(getEventDispatcher());
              for(StoreListener listener:storeListeners) {
                 store.addListener(listener);
             }
             stores.put(key, store);
+            if (sweepInterval > 0) {
+                schedule(store);
+            }
         }
-        return store;
+        return instrument(key, store);
     }
 
     public synchronized void close(Store store) throws IOException {
+        store = release(store);
+        stores.values().remove(store);
+        TimerTask sweeper = sweepers.remove(store);
+        if (sweeper != null) {
+            sweeper.cancel();
+        }
+        if (sweepers.isEmpty() && timer != null) {
+            timer.cancel();
+            timer = null;
+        }
         if (mongo != null)
             mongo.close();
     }
 
+    private void schedule(final MongoStore store) {
+        if (timer == null) {
+            timer = new Timer("MongoStoreFactory sweeper", true);
+        }
+        TimerTask sweeper = new TimerTask() {
+            public void run() {
+                try {
+                    store.evict();
+                } catch (Exception e) {
+                    LOG.warn("Error evicting expired objects", e);
+                }
+            }
+        };
+        timer.schedule(sweeper, sweepInterval, sweepInterval);
+        sweepers.put(store, sweeper);
+    }
+
     public Mongo getMongo() {
         return mongo;
     }
@@ -153,5 +201,30 @@ public class MongoStoreFactory extends BaseStoreFactory {
     public void setTimeout(Long timeout) {
         this.timeout = timeout;
     }
+
+    public long getSweepInterval() {
+        return sweepInterval;
+    }
+
+    /**
+     * @param sweepInterval the interval in milliseconds between background evictions of
+     *                      expired objects, or a negative value to leave them to MongoDB
+     */
+    public void setSweepInterval(long sweepInterval) {
+        this.sweepInterval = sweepInterval;
+    }
+
+    public int getGridFsThreshold() {
+        return gridFsThreshold;
+    }
+
+    /**
+     * @param gridFsThreshold the size in bytes above which serialized objects are saved as
+     *                        GridFS files, usually a little below the 16MB document limit,
+     *                        or a negative value to never use GridFS
+     */
+    public void setGridFsThreshold(int gridFsThreshold) {
+        this.gridFsThreshold = gridFsThreshold;
+    }
     
 }
@@ -0,0 +1,344 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.nearcache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreListener;
+import org.apache.servicemix.store.base.BaseStore;
+import org.apache.servicemix.store.base.DelegatingStore;
+import org.apache.servicemix.store.base.ExpirationTracker;
+import org.apache.servicemix.store.memory.EvictionPolicy;
+
+/**
+ * A {@link Store} decorator keeping the objects returned by {@link #peek(String)} in a
+ * bounded local cache, so that peeking the same entry again does not go to the backend
+ * nor deserialize it again.
+ * <p>
+ * Cached entries are invalidated when they are stored or loaded through this store, when
+ * the decorated store reports a change through its listeners and, for backends able to do so
+ * (see {@link BaseStore#addRemoteListener(StoreListener)}), when another node changes them.
+ * Peeked objects are shared between callers and must not be modified.
+ * </p>
+ * <p>
+ * The expiration time of the objects stored with a time to live through this store is
+ * tracked, so that they are not served from the cache once expired.  As objects may also be
+ * expired by the decorated store itself, without this store being told, entries are not
+ * served from the cache for longer than a maximum age.
+ * </p>
+ * <p>
+ * An object read from the decorated store is only cached if its entry has not been
+ * invalidated while it was read, so that a stale object is not cached, changes to other
+ * entries leaving it alone.
+ * </p>
+ */
+public class NearCacheStore extends DelegatingStore {
+
+    private final Object lock = new Object();
+    private final Map<String, CacheEntry> cache = new HashMap<String, CacheEntry>();
+    private final Map<String, Object> reads = new HashMap<String, Object>();
+    private final EvictionPolicy evictionPolicy;
+    private final int maxEntries;
+    private final long maxAge;
+    private final StoreListener invalidator = new Invalidator();
+    private final ExpirationTracker expirations = new ExpirationTracker();
+    private final boolean remoteInvalidation;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param delegate the decorated store
+     * @param maxEntries the maximum number of cached entries
+     * @param evictionPolicy the policy selecting the cached entries to discard
+     */
+    public NearCacheStore(Store delegate, int maxEntries, EvictionPolicy evictionPolicy) {
+        this(delegate, maxEntries, NearCacheStoreFactory.DEFAULT_MAX_AGE, evictionPolicy);
+    }
+
+    /**
+     * @param delegate the decorated store
+     * @param maxEntries the maximum number of cached entries
+     * @param maxAge the time in milliseconds after which a cached entry is read again from the
+     *               decorated store, or a negative value to serve it until invalidated
+     * @param evictionPolicy the policy selecting the cached entries to discard
+     */
+    public NearCacheStore(Store delegate, int maxEntries, long maxAge, EvictionPolicy evictionPolicy) {
+        super(delegate);
+        this.maxEntries = maxEntries;
+        this.maxAge = maxAge;
+        this.evictionPolicy = evictionPolicy;
+        delegate.addListener(invalidator);
+        remoteInvalidation = addRemoteListener(invalidator);
+    }
+
+    /**
+     * @return <code>true</code> if changes made by other nodes invalidate the cache
+     */
+    public boolean isRemoteInvalidation() {
+        return remoteInvalidation;
+    }
+
+    /**
+     * Stops listening to the decorated store and empties the cache.
+     */
+    public void detach() {
+        delegate.removeListener(invalidator);
+        removeRemoteListener(invalidator);
+        synchronized (lock) {
+            reads.clear();
+            while (evictionPolicy.nextVictim() != null) {
+                // drain the policy
+            }
+            cache.clear();
+        }
+    }
+
+    public void store(String id, Object data) throws IOException {
+        expirations.untrack(id);
+        invalidate(id);
+        delegate.store(id, data);
+    }
+
+    public void store(String id, Object data, long ttl) throws IOException {
+        if (ttl > 0) {
+            expirations.track(id, System.currentTimeMillis() + ttl);
+        } else {
+            expirations.untrack(id);
+        }
+        invalidate(id);
+        delegate.store(id, data, ttl);
+    }
+
+    public Object load(String id) throws IOException {
+        expirations.untrack(id);
+        invalidate(id);
+        return delegate.load(id);
+    }
+
+    public Object peek(String id) throws IOException {
+        long now = System.currentTimeMillis();
+        invalidateExpired(now);
+        Object read = new Object();
+        synchronized (lock) {
+            Object data = get(id, now);
+            if (data != null) {
+                hits.incrementAndGet();
+                return data;
+            }
+            reads.put(id, read);
+        }
+        misses.incrementAndGet();
+        Object data = null;
+        try {
+            data = delegate.peek(id);
+            return data;
+        } finally {
+            cache(id, data, read, now);
+        }
+    }
+
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        for (String id : entries.keySet()) {
+            expirations.untrack(id);
+            invalidate(id);
+        }
+        delegate.storeAll(entries);
+    }
+
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        for (String id : ids) {
+            expirations.untrack(id);
+            invalidate(id);
+        }
+        return delegate.loadAll(ids);
+    }
+
+    public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+        Map<String, Object> cached = new HashMap<String, Object>();
+        List<String> missing = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        invalidateExpired(now);
+        Object read = new Object();
+        synchronized (lock) {
+            for (String id : ids) {
+                Object data = get(id, now);
+                if (data != null) {
+                    cached.put(id, data);
+                } else {
+                    missing.add(id);
+                    reads.put(id, read);
+                }
+            }
+        }
+        hits.addAndGet(cached.size());
+        misses.addAndGet(missing.size());
+        Map<String, Object> fetched = new HashMap<String, Object>();
+        try {
+            if (!missing.isEmpty()) {
+                fetched = delegate.peekAll(missing);
+            }
+        } finally {
+            for (String id : missing) {
+                cache(id, fetched.get(id), read, now);
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (String id : ids) {
+            Object data = cached.containsKey(id) ? cached.get(id) : fetched.get(id);
+            if (data != null) {
+                result.put(id, data);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of peeks served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of peeks sent to the decorated store
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the ratio of peeks served from the cache, between 0 and 1
+     */
+    public double getHitRatio() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0.0 : (double) hit / total;
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public int getSize() {
+        synchronized (lock) {
+            return cache.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @return the cached object, unless it has expired or is older than the maximum age, in
+     *         which case it is discarded
+     */
+    private Object get(String id, long now) {
+        CacheEntry entry = cache.get(id);
+        if (entry == null) {
+            return null;
+        }
+        if (expirations.isExpired(id, now) || (maxAge >= 0 && now - entry.cached > maxAge)) {
+            cache.remove(id);
+            evictionPolicy.recordRemoval(id);
+            return null;
+        }
+        evictionPolicy.recordAccess(id);
+        return entry.data;
+    }
+
+    /**
+     * Ends a read from the decorated store started at <code>now</code>, and caches the object
+     * read, unless its entry has been invalidated or read again since, in which case the object
+     * may already be stale.
+     */
+    private void cache(String id, Object data, Object read, long now) {
+        synchronized (lock) {
+            if (reads.get(id) != read) {
+                return;
+            }
+            reads.remove(id);
+            if (data == null) {
+                return;
+            }
+            if (cache.put(id, new CacheEntry(data, now)) == null) {
+                evictionPolicy.recordInsert(id);
+            } else {
+                evictionPolicy.recordAccess(id);
+            }
+            while (cache.size() > maxEntries) {
+                String victim = evictionPolicy.nextVictim();
+                if (victim == null) {
+                    break;
+                }
+                cache.remove(victim);
+            }
+        }
+    }
+
+    private void invalidateExpired(long now) {
+        for (String id : expirations.expire(now)) {
+            invalidate(id);
+        }
+    }
+
+    private void invalidate(String id) {
+        synchronized (lock) {
+            reads.remove(id);
+            if (cache.remove(id) != null) {
+                evictionPolicy.recordRemoval(id);
+            }
+        }
+    }
+
+    private static class CacheEntry {
+        private final Object data;
+        private final long cached;
+
+        CacheEntry(Object data, long cached) {
+            this.data = data;
+            this.cached = cached;
+        }
+    }
+
+    private class Invalidator implements StoreListener {
+
+        public void onAdd(String id, Object data) {
+            invalidate(id);
+        }
+
+        public void onRemove(String id, Object data) {
+            invalidate(id);
+        }
+
+        public void onEvict(String id, Object data) {
+            invalidate(id);
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.nearcache;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreFactory;
+import org.apache.servicemix.store.memory.MemoryStoreFactory;
+
+/**
+ * {@link StoreFactory} wrapping the stores opened by another factory in a {@link NearCacheStore},
+ * to serve repeated peeks of remote stores from a local cache.
+ * <p>
+ * Serialization and listeners are configured on the wrapped factory.
+ * </p>
+ */
+public class NearCacheStoreFactory implements StoreFactory {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_AGE = 60000;
+
+    private StoreFactory factory;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxAge = DEFAULT_MAX_AGE;
+    private String evictionPolicy = MemoryStoreFactory.LRU;
+    private Map<String, NearCacheStore> stores = new HashMap<String, NearCacheStore>();
+
+    public NearCacheStoreFactory() {
+    }
+
+    public NearCacheStoreFactory(StoreFactory factory) {
+        this.factory = factory;
+    }
+
+    public synchronized Store open(String name) throws IOException {
+        NearCacheStore store = stores.get(name);
+        if (store == null) {
+            if (factory == null) {
+                throw new IOException("No store factory has been configured");
+            }
+            store = new NearCacheStore(factory.open(name), maxEntries, maxAge,
+                    MemoryStoreFactory.createEvictionPolicy(evictionPolicy, maxEntries, getClass().getClassLoader()));
+            stores.put(name, store);
+        }
+        return store;
+    }
+
+    public synchronized void close(Store store) throws IOException {
+        for (Iterator<NearCacheStore> it = stores.values().iterator(); it.hasNext();) {
+            NearCacheStore nearCacheStore = it.next();
+            if (nearCacheStore == store) {
+                it.remove();
+                nearCacheStore.detach();
+                factory.close(nearCacheStore.getDelegate());
+            }
+        }
+    }
+
+    /**
+     * @return the ratio of peeks served from the caches of the open stores, between 0 and 1
+     */
+    public synchronized double getHitRatio() {
+        long hits = 0;
+        long total = 0;
+        for (NearCacheStore store : stores.values()) {
+            hits += store.getHitCount();
+            total += store.getHitCount() + store.getMissCount();
+        }
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    public StoreFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * @param factory the factory opening the stores to cache
+     */
+    public void setFactory(StoreFactory factory) {
+        this.factory = factory;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @param maxEntries the maximum number of entries cached for each store
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @param maxAge the time in milliseconds after which cached entries are read again from the
+     *               wrapped stores, which bounds how long an entry expired by a wrapped store
+     *               is still served, or a negative value to serve entries until invalidated
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public String getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * @param evictionPolicy the eviction policy of the caches, as accepted by
+     *                       {@link MemoryStoreFactory#setEvictionPolicy(String)}
+     */
+    public void setEvictionPolicy(String evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+}
@@ -17,27 +17,72 @@
 package org.apache.servicemix.store.redis;
 
 
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.store.AsyncStore;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
 import org.apache.servicemix.store.base.BaseStore;
+import org.apache.servicemix.store.base.BatchingAsyncStore;
 import org.apache.servicemix.store.Entry;
+import org.idevlab.rjc.Pipeline;
+import org.idevlab.rjc.RedisCommands;
 import org.idevlab.rjc.RedisNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sun.misc.BASE64Decoder;
-import sun.misc.BASE64Encoder;
 
-import java.io.*;
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * A store based on a Redis database.
+ * <p>
+ * The client only exchanges UTF-8 strings with Redis, so the serialized bytes of the objects
+ * are mapped to characters.  Mapping each byte to the character of the same code is lossless,
+ * but bytes above 0x7F take two bytes once encoded in UTF-8, so random binary data grows by
+ * half.  Packing seven bits per character keeps every character a single byte, for a fixed
+ * growth of one seventh.  Each value uses whichever is shorter: serialized objects made mostly
+ * of class names and strings are stored almost as is, binary data grows by 14%, where the base
+ * 64 encoding of earlier versions grew by a third.  Objects stored with a time to
+ * live, or in a store with a timeout, are expired by Redis itself, so they are not reported
+ * to the listeners.  Keys are the ids of the objects prefixed with the name of the store and a
+ * colon, so that stores can share a database.  Loads read and delete the objects in a single
+ * <code>MULTI</code> transaction, pipelined in one round trip, and batch operations are
+ * pipelined too.
+ * </p>
+ * <p>
+ * Earlier versions stored the objects under their bare id.  When {@link #setLegacyKeys(boolean)
+ * legacy keys} are enabled, the objects not found under the prefixed key of their id are looked
+ * up under their bare id, by single and batch operations alike, and the values which are not
+ * objects written by an earlier version are ignored.  Once the objects stored by earlier
+ * versions have been loaded, legacy keys should be disabled, as each miss costs one more
+ * round trip.
+ * </p>
+ */
 public class RedisStore extends BaseStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(RedisStore.class);
 
+    // mapping bytes to the first 256 characters is lossless through the UTF-8 encoding of the client
+    private static final String CHARSET = "ISO-8859-1";
+
+    // start the values mapped byte per character and packed seven bits per character,
+    // and are not base 64 characters as the values written by earlier versions
+    private static final char MARKER = '#';
+    private static final char PACKED_MARKER = '~';
+
     private RedisNode redisNode;
     private String storeName;
     private String idgenName;
+    private String keyPrefix;
     private Long timeout = 0L;
-
-    private BASE64Encoder encoder = new BASE64Encoder();
-    private BASE64Decoder decoder = new BASE64Decoder();
+    private boolean legacyKeys;
 
     /**
      * Constructor
@@ -49,12 +94,14 @@ public class RedisStore extends BaseStore {
         this.redisNode = redisNode;
         this.storeName = storeName;
         this.idgenName = storeName + ".idgen";
+        this.keyPrefix = storeName + ":";
     }
 
     public RedisStore(RedisNode redisNode, String storeName, Long timeout) {
         this.redisNode = redisNode;
         this.storeName = storeName;
         this.idgenName = storeName + ".idgen";
+        this.keyPrefix = storeName + ":";
         this.timeout = timeout;
     }
 
@@ -77,6 +124,7 @@ public class RedisStore extends BaseStore {
      * Put an object in the store under the given id.
      * This method must be used with caution and the behavior is
      * unspecified if an object already exist for the same id.
+     * When the store has a timeout, the object is stored with a <code>SETEX</code> command.
      * </p>
      * @param id the id of the object to store
      * @param data the object to store
@@ -84,21 +132,45 @@ public class RedisStore extends BaseStore {
      */
     public void store(String id, Object data) throws IOException {
         LOG.debug("Storing object with id: " + id);
-        ObjectOutputStream out = null;
         try {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            out = new ObjectOutputStream(buffer);
-            out.writeObject(new Entry(data));
-            out.close();
-            redisNode.set(id, encoder.encode(buffer.toByteArray()));
-            fireAddedEvent(id,data);
+            if (timeout > 0) {
+                redisNode.setex(key(id), seconds(timeout), encode(data));
+            } else {
+                redisNode.set(key(id), encode(data));
+            }
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
             throw (IOException) new IOException("Error storing object").initCause(e);
-        } finally {
-            if(out != null) {
-                out.close();
-            }
         }
+        fireAddedEvent(id, data);
+    }
+
+    /**
+     * <p>
+     * Put an object in the store under the given id with a <code>SETEX</code> command,
+     * so that Redis expires it.  Redis counts times to live in seconds, so the given
+     * time is rounded up to the next second.
+     * </p>
+     * @param id the id of the object to store
+     * @param data the object to store
+     * @param ttl the time to live of the object in milliseconds, or a negative value to use the timeout
+     * @throws IOException if an error occurs
+     */
+    public void store(String id, Object data, long ttl) throws IOException {
+        if (ttl <= 0) {
+            store(id, data);
+            return;
+        }
+        LOG.debug("Storing object with id: " + id + " for " + ttl + " ms");
+        try {
+            redisNode.setex(key(id), seconds(ttl), encode(data));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error storing object").initCause(e);
+        }
+        fireAddedEvent(id, data);
     }
 
     /**
@@ -111,9 +183,14 @@ public class RedisStore extends BaseStore {
      * @throws IOException if an error occurs
      */
     public String store(Object data) throws IOException {
-        Long id = redisNode.incr(idgenName);
-        store(String.valueOf(id), data);
-        return null;
+        String id;
+        try {
+            id = String.valueOf(redisNode.incr(idgenName));
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error generating id").initCause(e);
+        }
+        store(id, data);
+        return id;
     }
 
     /**
@@ -127,17 +204,17 @@ public class RedisStore extends BaseStore {
      */
     public Object load(String id) throws IOException {
         LOG.debug("Loading/Removing object with id: " + id);
-        Entry result = removeEntry(id);
+        Object result = take(id);
         if(result != null) {
-            fireRemovedEvent(id,result.getData());
+            fireRemovedEvent(id, result);
         }
         return result;
     }
 
     /**
      * <p>
-     * Loads an object that has been previously stored under the specified key.
-     * The object is removed from the store.
+     * Removes an object that has been previously stored under the specified key,
+     * and notifies the listeners of its eviction.
      * </p>
      * @param id the id of the object
      * @return the object, or <code>null></code> if the object could not be found
@@ -145,9 +222,9 @@ public class RedisStore extends BaseStore {
      */
     public Object evict(String id) throws IOException {
         LOG.debug("Evicting object with id: " + id);
-        Entry result = removeEntry(id);
+        Object result = take(id);
         if(result != null) {
-            fireEvictedEvent(id, result.getData());
+            fireEvictedEvent(id, result);
         }
         return result;
     }
@@ -163,66 +240,346 @@ public class RedisStore extends BaseStore {
      */
     public Object peek(String id) throws IOException {
         LOG.debug("Peeking object with id: " + id);
-        Object result = null;
         try {
-            result = parseEntry(redisNode.get(id)).getData();
-        } catch (ClassNotFoundException e) {
-            throw new IOException("Could not load object from store", e);
+            Object result = decode(redisNode.get(key(id)));
+            return result != null || !legacyKeys ? result : legacy(id, false);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error reading object").initCause(e);
+        }
+    }
+
+    /**
+     * <p>
+     * Put several objects in the store with a single <code>MSET</code> command, or with
+     * pipelined <code>SETEX</code> commands when the store has a timeout.
+     * </p>
+     * @param entries the objects to store, keyed by their ids
+     * @throws IOException if an error occurs
+     */
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        LOG.debug("Storing " + entries.size() + " objects");
+        if (entries.isEmpty()) {
+            return;
+        }
+        final String[] keysValues = new String[entries.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            keysValues[i++] = key(entry.getKey());
+            keysValues[i++] = encode(entry.getValue());
+        }
+        try {
+            if (timeout > 0) {
+                final int seconds = seconds(timeout);
+                redisNode.pipeline(new Pipeline() {
+                    public void execute(RedisCommands commands) {
+                        for (int j = 0; j < keysValues.length; j += 2) {
+                            commands.setex(keysValues[j], seconds, keysValues[j + 1]);
+                        }
+                    }
+                });
+            } else {
+                redisNode.mset(keysValues);
+            }
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error storing objects").initCause(e);
+        }
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            fireAddedEvent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * <p>
+     * Loads and removes several objects in a single transaction made of a <code>MGET</code>
+     * and a <code>DEL</code> command, pipelined in one round trip.
+     * </p>
+     * @param ids the ids of the objects
+     * @return the objects found, keyed by their ids
+     * @throws IOException if an error occurs
+     */
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        LOG.debug("Loading/Removing " + ids.size() + " objects");
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        if (ids.isEmpty()) {
+            return result;
+        }
+        List<String> keys = new ArrayList<String>(ids);
+        final String[] array = keys(keys);
+        List<Object> replies = transaction(new Pipeline() {
+            public void execute(RedisCommands commands) {
+                commands.multi();
+                commands.mget(array);
+                commands.del(array);
+                commands.exec();
+            }
+        });
+        decodeAll(keys, (List<?>) replies.get(0), result);
+        result = legacyAll(keys, result, true);
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            fireRemovedEvent(entry.getKey(), entry.getValue());
         }
         return result;
     }
 
     /**
-     * Removes an object with the specified id.
-     * @param id
-     * @return
-     * @throws IOException
+     * Pending asynchronous operations are coalesced into <code>MSET</code> and <code>MGET</code> commands.
+     */
+    public AsyncStore createAsyncStore(Executor executor) {
+        return new BatchingAsyncStore(this, executor);
+    }
+
+    /**
+     * <p>
+     * Loads several objects with a single <code>MGET</code> command.
+     * </p>
+     * @param ids the ids of the objects
+     * @return the objects found, keyed by their ids
+     * @throws IOException if an error occurs
+     */
+    public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+        LOG.debug("Peeking " + ids.size() + " objects");
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        if (ids.isEmpty()) {
+            return result;
+        }
+        List<String> keys = new ArrayList<String>(ids);
+        List<String> values;
+        try {
+            values = redisNode.mget(keys(keys));
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error reading objects").initCause(e);
+        }
+        decodeAll(keys, values, result);
+        return legacyAll(keys, result, false);
+    }
+
+    /**
+     * <p>
+     * Opens a cursor over the ids of the store.  The client does not support the <code>SCAN</code>
+     * command, so the keys prefixed with the name of the store are listed at once with
+     * <code>KEYS</code>, and the objects are then read in batches of <code>MGET</code>.
+     * Objects stored under their bare id by earlier versions are not listed.
+     * </p>
+     * @return the cursor
+     * @throws IOException if an error occurs
      */
-    private Entry removeEntry(String id) throws IOException {
-        Entry result = null;
-        if (timeout > 0) {
-            evict();
+    public StoreCursor<String> openIdCursor() throws IOException {
+        StringBuilder pattern = new StringBuilder();
+        for (char c : keyPrefix.toCharArray()) {
+            if ("*?[]\\".indexOf(c) >= 0) {
+                pattern.append('\\');
+            }
+            pattern.append(c);
         }
+        final Iterator<String> keys;
         try {
-            result = parseEntry(redisNode.get(id));
-        } catch (ClassNotFoundException e) {
-            throw new IOException("Could not load object from store", e);
+            keys = redisNode.keys(pattern.append('*').toString()).iterator();
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error listing ids").initCause(e);
+        }
+        return new AbstractStoreCursor<String>() {
+            protected String fetch() {
+                return keys.hasNext() ? keys.next().substring(keyPrefix.length()) : null;
+            }
+        };
+    }
+
+    /**
+     * Reads and deletes an object in a single transaction.
+     */
+    private Object take(String id) throws IOException {
+        final String key = key(id);
+        List<Object> replies = transaction(new Pipeline() {
+            public void execute(RedisCommands commands) {
+                commands.multi();
+                commands.get(key);
+                commands.del(key);
+                commands.exec();
+            }
+        });
+        Object result = decode((String) replies.get(0));
+        return result != null || !legacyKeys ? result : legacy(id, true);
+    }
+
+    /**
+     * Looks up the objects not found under the prefixed key of their id under their bare id,
+     * if legacy keys are enabled.
+     * @return the objects found, in the order of the ids
+     */
+    private Map<String, Object> legacyAll(List<String> ids, Map<String, Object> found, boolean remove) throws IOException {
+        if (!legacyKeys || found.size() == ids.size()) {
+            return found;
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (String id : ids) {
+            Object data = found.containsKey(id) ? found.get(id) : legacy(id, remove);
+            if (data != null) {
+                result.put(id, data);
+            }
         }
-        redisNode.del(id);
         return result;
     }
 
+    /**
+     * Reads, and removes if asked to, an object stored under its bare id by an earlier version.
+     * Values written by this version under a key equal to the id, and values which are not
+     * objects written by an earlier version, such as the id counters of the stores, are left
+     * alone.
+     */
+    private Object legacy(String id, boolean remove) throws IOException {
+        String value;
+        try {
+            value = redisNode.get(id);
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error reading object").initCause(e);
+        }
+        if (value == null || value.startsWith(String.valueOf(MARKER))
+                || value.startsWith(String.valueOf(PACKED_MARKER))) {
+            return null;
+        }
+        Object data;
+        try {
+            data = decode(value);
+        } catch (Exception e) {
+            LOG.debug("Ignoring the value of key " + id + ", which is not an object stored by an earlier version");
+            return null;
+        }
+        try {
+            if (remove && redisNode.del(id) == 0) {
+                return null;
+            }
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error removing object").initCause(e);
+        }
+        return data;
+    }
+
+    public boolean isLegacyKeys() {
+        return legacyKeys;
+    }
 
     /**
-     * Decodes a String to an Entry.
-     * @param string
-     * @return
-     * @throws IOException
-     * @throws ClassNotFoundException
+     * Sets whether the objects not found are looked up under their bare id, as stored by
+     * earlier versions.  Disabled by default.
      */
-    private Entry parseEntry(String string) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream buffer = new ByteArrayInputStream(decoder.decodeBuffer(string));
-        ObjectInputStream out = new ObjectInputStream(buffer);
-        return (Entry) out.readObject();
+    public void setLegacyKeys(boolean legacyKeys) {
+        this.legacyKeys = legacyKeys;
+    }
+
+    private String key(String id) {
+        return keyPrefix + id;
+    }
+
+    private String[] keys(List<String> ids) {
+        String[] keys = new String[ids.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = key(ids.get(i));
+        }
+        return keys;
     }
 
     /**
-     * Check for Entries that have timed out.
-     * @throws IOException
+     * Runs a pipelined <code>MULTI</code> ... <code>EXEC</code> block.
+     * @return the replies of the commands of the transaction
      */
-    private void evict() throws IOException {
-        long now = System.currentTimeMillis();
-        for (String key : redisNode.keys("*")) {
-            long age = 0;
-            try {
-                age = now - parseEntry(redisNode.get(key)).getTime();
-            } catch (ClassNotFoundException e) {
-                throw new IOException("Could not load object from store", e);
+    @SuppressWarnings("unchecked")
+    private List<Object> transaction(Pipeline pipeline) throws IOException {
+        Object exec;
+        try {
+            List<Object> replies = redisNode.pipeline(pipeline);
+            exec = replies.get(replies.size() - 1);
+        } catch (Exception e) {
+            throw (IOException) new IOException("Error running transaction").initCause(e);
+        }
+        if (!(exec instanceof List)) {
+            throw new IOException("Transaction aborted: " + exec);
+        }
+        return (List<Object>) exec;
+    }
+
+    private void decodeAll(List<String> keys, List<?> values, Map<String, Object> result) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            Object data = decode((String) values.get(i));
+            if (data != null) {
+                result.put(keys.get(i), data);
             }
-            if (age > timeout) {
-                LOG.debug("Removing object with id " + key + " from store after " + age + " ms");
-                evict(key);
+        }
+    }
+
+    private String encode(Object data) throws IOException {
+        byte[] bytes = serializer.serialize(data);
+        int high = 0;
+        for (byte b : bytes) {
+            if (b < 0) {
+                high++;
             }
         }
+        // a byte per character costs one more byte per high byte, packing one per seven bytes
+        if (high * 7 <= bytes.length) {
+            return MARKER + new String(bytes, CHARSET);
+        }
+        return pack(bytes);
+    }
+
+    private static String pack(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(1 + (bytes.length * 8 + 6) / 7);
+        sb.append(PACKED_MARKER);
+        int bits = 0;
+        int acc = 0;
+        for (byte b : bytes) {
+            acc = (acc << 8) | (b & 0xFF);
+            bits += 8;
+            while (bits >= 7) {
+                bits -= 7;
+                sb.append((char) ((acc >>> bits) & 0x7F));
+            }
+            acc &= (1 << bits) - 1;
+        }
+        if (bits > 0) {
+            sb.append((char) ((acc << (7 - bits)) & 0x7F));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] unpack(String value) {
+        int chars = value.length() - 1;
+        byte[] bytes = new byte[chars * 7 / 8];
+        int bits = 0;
+        int acc = 0;
+        int n = 0;
+        for (int i = 1; i <= chars && n < bytes.length; i++) {
+            acc = (acc << 7) | (value.charAt(i) & 0x7F);
+            bits += 7;
+            if (bits >= 8) {
+                bits -= 8;
+                bytes[n++] = (byte) (acc >>> bits);
+                acc &= (1 << bits) - 1;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes a value, or a base 64 encoded {@link Entry} written by earlier versions.
+     */
+    private Object decode(String value) throws IOException {
+        if (value == null) {
+            return null;
+        }
+        if (value.length() > 0 && value.charAt(0) == MARKER) {
+            byte[] bytes = value.getBytes(CHARSET);
+            return serializer.deserialize(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+        }
+        if (value.length() > 0 && value.charAt(0) == PACKED_MARKER) {
+            return serializer.deserialize(unpack(value));
+        }
+        Entry entry = (Entry) serializer.deserialize(DatatypeConverter.parseBase64Binary(value));
+        return entry.isExpired(System.currentTimeMillis(), timeout) ? null : entry.getData();
+    }
+
+    private static int seconds(long millis) {
+        return (int) Math.min(Integer.MAX_VALUE, (millis + 999) / 1000);
     }
 }
@@ -32,6 +32,7 @@ public class RedisStoreFactory extends BaseStoreFactory {
 
     private RedisNode redisNode;
     private long timeout = -1;
+    private boolean legacyKeys;
 
     public static final String STORE_PREFIX = "org.apache.servicemix.stores";
 
@@ -49,19 +50,23 @@ public class RedisStoreFactory extends BaseStoreFactory {
                 store = new RedisStore(redisNode, storeName, timeout);
             }
 
+            store.setLegacyKeys(legacyKeys);
+            store.setSerializer(serializer);
+            store.setEventDispatcher(getEventDispatcher());
             for(StoreListener listener:storeListeners) {
                 store.addListener(listener);
             }
             stores.put(name, store);
         }
-        return store;
+        return instrument(name, store);
     }
 
     /* (non-Javadoc)
     * @see org.apache.servicemix.store.ExchangeStoreFactory#release(org.apache.servicemix.store.ExchangeStore)
     */
     public synchronized void close(Store store) throws IOException {
-        stores.remove(store);
+        store = release(store);
+        stores.values().remove(store);
     }
 
     public long getTimeout() {
@@ -71,4 +76,16 @@ public class RedisStoreFactory extends BaseStoreFactory {
     public void setTimeout(long timeout) {
         this.timeout = timeout;
     }
+
+    public boolean isLegacyKeys() {
+        return legacyKeys;
+    }
+
+    /**
+     * Sets whether the stores look up the objects not found under their bare id, as stored by
+     * earlier versions, until they have all been loaded.  Disabled by default.
+     */
+    public void setLegacyKeys(boolean legacyKeys) {
+        this.legacyKeys = legacyKeys;
+    }
 }
\ No newline at end of file
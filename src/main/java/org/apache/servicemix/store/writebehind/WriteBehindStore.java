@@ -0,0 +1,525 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.writebehind;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreCursor;
+import org.apache.servicemix.store.base.AbstractStoreCursor;
+import org.apache.servicemix.store.base.DelegatingStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Store} decorator acknowledging stores immediately and writing them to the
+ * decorated store later, in batches.
+ * <p>
+ * Pending objects are served by {@link #peek(String)} and {@link #load(String)}, and loading
+ * an object that has not been written yet simply discards it, so that short-lived entries
+ * never reach the decorated store.  Pending objects are flushed with
+ * {@link Store#storeAll(Map)} when a batch is full, and periodically when a timer is given.
+ * When the buffer is full, the calling thread flushes a batch before storing its object.
+ * </p>
+ * <p>
+ * A batch which can not be written is put back in front of the pending objects and retried
+ * by the next flushes.  Once it has been retried the maximum number of times, its objects
+ * are written one by one, and the ones which still fail are dropped, logged and counted,
+ * so that a single object rejected by the decorated store does not block the others.
+ * </p>
+ * <p>
+ * Objects still pending are lost if the process dies, so this store does not report the
+ * {@link Store#TRANSACTIONAL} feature.  Listeners are only notified when the decorated
+ * store is written to.
+ * </p>
+ */
+public class WriteBehindStore extends DelegatingStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindStore.class);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private final Object flushLock = new Object();
+    private final IdGenerator idGenerator;
+    private final int batchSize;
+    private final int maxPending;
+    private final int maxRetries;
+    private final Timer timer;
+    private final TimerTask periodicFlush;
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private LinkedHashMap<String, Object> pending = new LinkedHashMap<String, Object>();
+    private Map<String, Object> flushing = Collections.emptyMap();
+    private int failures;
+    private boolean flushScheduled;
+    private boolean closed;
+
+    /**
+     * @param delegate the decorated store
+     * @param idGenerator the generator of the ids of new objects
+     * @param batchSize the maximum number of objects written at once
+     * @param maxPending the maximum number of objects waiting to be written
+     * @param flushInterval the interval in milliseconds between periodic flushes, or a
+     *                      negative value to only flush full batches
+     * @param timer the timer running the flushes, or <code>null</code> to only flush
+     *              from the calling threads
+     */
+    public WriteBehindStore(Store delegate, IdGenerator idGenerator, int batchSize, int maxPending,
+                            long flushInterval, Timer timer) {
+        this(delegate, idGenerator, batchSize, maxPending, WriteBehindStoreFactory.DEFAULT_MAX_RETRIES,
+             flushInterval, timer);
+    }
+
+    /**
+     * @param delegate the decorated store
+     * @param idGenerator the generator of the ids of new objects
+     * @param batchSize the maximum number of objects written at once
+     * @param maxPending the maximum number of objects waiting to be written
+     * @param maxRetries the number of times a batch which can not be written is retried
+     *                   before its objects are written one by one
+     * @param flushInterval the interval in milliseconds between periodic flushes, or a
+     *                      negative value to only flush full batches
+     * @param timer the timer running the flushes, or <code>null</code> to only flush
+     *              from the calling threads
+     */
+    public WriteBehindStore(Store delegate, IdGenerator idGenerator, int batchSize, int maxPending,
+                            int maxRetries, long flushInterval, Timer timer) {
+        super(delegate);
+        this.idGenerator = idGenerator;
+        this.batchSize = batchSize;
+        this.maxPending = Math.max(maxPending, batchSize);
+        this.maxRetries = maxRetries;
+        this.timer = timer;
+        if (timer != null && flushInterval > 0) {
+            periodicFlush = new FlushTask();
+            timer.schedule(periodicFlush, flushInterval, flushInterval);
+        } else {
+            periodicFlush = null;
+        }
+    }
+
+    public boolean hasFeature(String name) {
+        return !TRANSACTIONAL.equals(name) && delegate.hasFeature(name);
+    }
+
+    public void store(String id, Object data) throws IOException {
+        lock.lock();
+        try {
+            while (pending.size() >= maxPending && !pending.containsKey(id)) {
+                checkClosed();
+                lock.unlock();
+                try {
+                    flush();
+                } finally {
+                    lock.lock();
+                }
+            }
+            checkClosed();
+            pending.put(id, data);
+            if (pending.size() >= batchSize && timer != null && !flushScheduled) {
+                flushScheduled = true;
+                timer.schedule(new FlushTask(), 0);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Objects stored with a time to live are written through, as their expiration is left
+     * to the decorated store.  A pending object with the same id is discarded.
+     */
+    public void store(String id, Object data, long ttl) throws IOException {
+        if (ttl <= 0) {
+            store(id, data);
+            return;
+        }
+        lock.lock();
+        try {
+            checkClosed();
+            pending.remove(id);
+            while (flushing.containsKey(id)) {
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        delegate.store(id, data, ttl);
+    }
+
+    public String store(Object data) throws IOException {
+        String id = idGenerator.generateId();
+        store(id, data);
+        return id;
+    }
+
+    public Object load(String id) throws IOException {
+        lock.lock();
+        try {
+            while (true) {
+                if (pending.containsKey(id)) {
+                    coalesced.incrementAndGet();
+                    return pending.remove(id);
+                }
+                if (!flushing.containsKey(id)) {
+                    break;
+                }
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return delegate.load(id);
+    }
+
+    public Object peek(String id) throws IOException {
+        lock.lock();
+        try {
+            Object data = pending.get(id);
+            if (data == null) {
+                data = flushing.get(id);
+            }
+            if (data != null) {
+                return data;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return delegate.peek(id);
+    }
+
+    public void storeAll(Map<String, Object> entries) throws IOException {
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            store(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        List<String> missing = new ArrayList<String>();
+        for (String id : ids) {
+            Object data = loadPending(id);
+            if (data != null) {
+                result.put(id, data);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            result.putAll(delegate.loadAll(missing));
+        }
+        return result;
+    }
+
+    public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        List<String> missing = new ArrayList<String>();
+        lock.lock();
+        try {
+            for (String id : ids) {
+                Object data = pending.get(id);
+                if (data == null) {
+                    data = flushing.get(id);
+                }
+                if (data != null) {
+                    result.put(id, data);
+                } else {
+                    missing.add(id);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!missing.isEmpty()) {
+            result.putAll(delegate.peekAll(missing));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ids of the objects not written yet, as of the opening of the cursor,
+     * followed by the ids of the decorated store.
+     */
+    public StoreCursor<String> openIdCursor() throws IOException {
+        final Set<String> unwritten = snapshot().keySet();
+        final Iterator<String> first = unwritten.iterator();
+        final StoreCursor<String> then = delegate.openIdCursor();
+        return new AbstractStoreCursor<String>() {
+            protected String fetch() throws IOException {
+                if (first.hasNext()) {
+                    return first.next();
+                }
+                while (then.hasNext()) {
+                    String id = then.next();
+                    if (!unwritten.contains(id)) {
+                        return id;
+                    }
+                }
+                return null;
+            }
+
+            public void close() throws IOException {
+                then.close();
+            }
+        };
+    }
+
+    /**
+     * Returns the objects not written yet, as of the opening of the cursor, followed by
+     * the objects of the decorated store.
+     */
+    public StoreCursor<Map.Entry<String, Object>> openEntryCursor() throws IOException {
+        Map<String, Object> snapshot = snapshot();
+        final Set<String> unwritten = new HashSet<String>(snapshot.keySet());
+        final Iterator<Map.Entry<String, Object>> first = snapshot.entrySet().iterator();
+        final StoreCursor<Map.Entry<String, Object>> then = delegate.openEntryCursor();
+        return new AbstractStoreCursor<Map.Entry<String, Object>>() {
+            protected Map.Entry<String, Object> fetch() throws IOException {
+                if (first.hasNext()) {
+                    return first.next();
+                }
+                while (then.hasNext()) {
+                    Map.Entry<String, Object> entry = then.next();
+                    if (!unwritten.contains(entry.getKey())) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+
+            public void close() throws IOException {
+                then.close();
+            }
+        };
+    }
+
+    private Map<String, Object> snapshot() {
+        lock.lock();
+        try {
+            Map<String, Object> snapshot = new LinkedHashMap<String, Object>(flushing);
+            snapshot.putAll(pending);
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the oldest pending objects, at most one batch, to the decorated store.
+     * If the write fails, the objects stay pending, unless the batch has already been retried
+     * the maximum number of times, in which case its objects are written one by one and the
+     * ones which fail are dropped.
+     * @return <code>false</code> if there was nothing to write
+     * @throws IOException if the decorated store fails
+     */
+    public boolean flush() throws IOException {
+        synchronized (flushLock) {
+            Map<String, Object> batch = new LinkedHashMap<String, Object>();
+            lock.lock();
+            try {
+                for (Iterator<Map.Entry<String, Object>> it = pending.entrySet().iterator();
+                     it.hasNext() && batch.size() < batchSize;) {
+                    Map.Entry<String, Object> entry = it.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    it.remove();
+                }
+                if (batch.isEmpty()) {
+                    return false;
+                }
+                flushing = batch;
+            } finally {
+                lock.unlock();
+            }
+            boolean written = false;
+            try {
+                if (failures <= maxRetries) {
+                    delegate.storeAll(batch);
+                } else {
+                    storeEach(batch);
+                }
+                written = true;
+                flushes.incrementAndGet();
+            } finally {
+                failures = written ? 0 : failures + 1;
+                lock.lock();
+                try {
+                    if (!written) {
+                        requeue(batch);
+                    }
+                    flushing = Collections.emptyMap();
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes the objects of a batch one by one, dropping the ones which can not be written.
+     */
+    private void storeEach(Map<String, Object> batch) {
+        for (Map.Entry<String, Object> entry : batch.entrySet()) {
+            try {
+                delegate.store(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                dropped.incrementAndGet();
+                LOG.error("Dropping object with id " + entry.getKey() + " which could not be written after "
+                          + maxRetries + " retries", e);
+            }
+        }
+    }
+
+    /**
+     * Writes all the pending objects to the decorated store.
+     * @throws IOException if the decorated store fails
+     */
+    public void flushAll() throws IOException {
+        while (flush()) {
+            // continue until the buffer is empty
+        }
+    }
+
+    /**
+     * Rejects new objects and writes all the pending ones to the decorated store.
+     * @throws IOException if the decorated store fails, in which case the objects are still pending
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        if (periodicFlush != null) {
+            periodicFlush.cancel();
+        }
+        flushAll();
+    }
+
+    /**
+     * @return the number of objects waiting to be written
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of objects loaded before being written
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of batches written to the decorated store
+     */
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    /**
+     * @return the number of objects dropped because they could not be written
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    private Object loadPending(String id) {
+        lock.lock();
+        try {
+            while (!pending.containsKey(id) && flushing.containsKey(id)) {
+                flushed.awaitUninterruptibly();
+            }
+            if (pending.containsKey(id)) {
+                coalesced.incrementAndGet();
+                return pending.remove(id);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts a batch that could not be written back in front of the pending objects,
+     * unless its objects have been stored again in the meantime.
+     */
+    private void requeue(Map<String, Object> batch) {
+        LinkedHashMap<String, Object> requeued = new LinkedHashMap<String, Object>(batch);
+        requeued.keySet().removeAll(pending.keySet());
+        requeued.putAll(pending);
+        pending = requeued;
+    }
+
+    private void checkClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Write-behind store has been closed");
+        }
+    }
+
+    private class FlushTask extends TimerTask {
+        public void run() {
+            lock.lock();
+            try {
+                flushScheduled = false;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                flushAll();
+            } catch (Exception e) {
+                LOG.warn("Unable to flush write-behind store, pending objects will be retried", e);
+            }
+        }
+    }
+
+}
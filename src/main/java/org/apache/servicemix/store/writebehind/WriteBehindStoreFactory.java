@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.writebehind;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreFactory;
+
+/**
+ * {@link StoreFactory} wrapping the stores opened by another factory in a {@link WriteBehindStore}.
+ * <p>
+ * The pending objects of a store are written to the wrapped store by a background timer,
+ * and all of them are flushed when the store is closed through this factory.
+ * </p>
+ */
+public class WriteBehindStoreFactory implements StoreFactory {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_PENDING = 10000;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    private StoreFactory factory;
+    private IdGenerator idGenerator = new IdGenerator();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int maxPending = DEFAULT_MAX_PENDING;
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private Map<String, WriteBehindStore> stores = new HashMap<String, WriteBehindStore>();
+    private Timer timer;
+
+    public WriteBehindStoreFactory() {
+    }
+
+    public WriteBehindStoreFactory(StoreFactory factory) {
+        this.factory = factory;
+    }
+
+    public synchronized Store open(String name) throws IOException {
+        WriteBehindStore store = stores.get(name);
+        if (store == null) {
+            if (factory == null) {
+                throw new IOException("No store factory has been configured");
+            }
+            if (timer == null) {
+                timer = new Timer("WriteBehindStoreFactory flusher", true);
+            }
+            store = new WriteBehindStore(factory.open(name), idGenerator, batchSize, maxPending, maxRetries,
+                                         flushInterval, timer);
+            stores.put(name, store);
+        }
+        return store;
+    }
+
+    /**
+     * Flushes all the pending objects of the store before closing the wrapped store.
+     * If the flush fails, the objects stay pending and the error is thrown, so that closing
+     * the store can be retried.
+     */
+    public synchronized void close(Store store) throws IOException {
+        for (Iterator<WriteBehindStore> it = stores.values().iterator(); it.hasNext();) {
+            WriteBehindStore writeBehindStore = it.next();
+            if (writeBehindStore == store) {
+                writeBehindStore.close();
+                it.remove();
+                factory.close(writeBehindStore.getDelegate());
+            }
+        }
+        if (stores.isEmpty() && timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    public StoreFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * @param factory the factory opening the stores written to
+     */
+    public void setFactory(StoreFactory factory) {
+        this.factory = factory;
+    }
+
+    public IdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    public void setIdGenerator(IdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the maximum number of objects written at once, a flush being
+     *                  triggered as soon as that many objects are pending
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * @param maxPending the maximum number of pending objects of a store, beyond which the
+     *                   threads storing objects have to flush a batch themselves
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries the number of times a batch which can not be written is retried by the
+     *                   next flushes, before its objects are written one by one and the ones
+     *                   which still fail are dropped
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * @param flushInterval the interval in milliseconds between periodic flushes, or a negative
+     *                      value to only flush full batches
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mongodb;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.types.ObjectId;
+
+/**
+ * An in-memory stand-in for a MongoDB database, used to test the stores without a server.
+ * <p>
+ * Its collections keep their documents in memory and evaluate the queries used by the stores:
+ * equality, <code>$in</code>, <code>$lt</code>, <code>$exists</code> and <code>$or</code>,
+ * values of different types never comparing, as on the server.  It answers the
+ * <code>findandmodify</code> command, records the queries and the indexes, and does not
+ * remove documents on its own, so that tests play the part of the TTL monitor.
+ * </p>
+ * <p>
+ * It lives in the driver package as collections find documents through a package-private
+ * method.  The client it is built on never connects, but the driver monitors its address in
+ * the background, so its warnings are silenced.
+ * </p>
+ */
+public class FakeDB extends DB {
+
+    private final Map<String, FakeCollection> collections = new HashMap<String, FakeCollection>();
+    private final List<DBObject> queries = Collections.synchronizedList(new ArrayList<DBObject>());
+    private final List<DBObject> indexes = Collections.synchronizedList(new ArrayList<DBObject>());
+
+    public FakeDB(String name) throws UnknownHostException {
+        super(client(), name);
+    }
+
+    private static Mongo client() throws UnknownHostException {
+        Logger.getLogger("com.mongodb").setLevel(Level.SEVERE);
+        return new Mongo(Collections.singletonList(new ServerAddress("localhost", 1)));
+    }
+
+    public void close() {
+        getMongo().close();
+    }
+
+    /**
+     * @return the queries run so far on the collections, not counting the commands
+     */
+    public List<DBObject> getQueries() {
+        synchronized (queries) {
+            return new ArrayList<DBObject>(queries);
+        }
+    }
+
+    /**
+     * @return the keys and options of the indexes created so far
+     */
+    public List<DBObject> getIndexes() {
+        synchronized (indexes) {
+            return new ArrayList<DBObject>(indexes);
+        }
+    }
+
+    public void requestStart() {
+    }
+
+    public void requestDone() {
+    }
+
+    public void requestEnsureConnection() {
+    }
+
+    protected synchronized DBCollection doGetCollection(String name) {
+        FakeCollection collection = collections.get(name);
+        if (collection == null) {
+            collection = new FakeCollection(name);
+            collections.put(name, collection);
+        }
+        return collection;
+    }
+
+    private synchronized FakeCollection existing(String name) {
+        return collections.get(name);
+    }
+
+    private static CommandResult result(String key, Object value) {
+        CommandResult result = new CommandResult();
+        result.put("ok", 1.0);
+        if (key != null) {
+            result.put(key, value);
+        }
+        return result;
+    }
+
+    static boolean matches(DBObject document, DBObject query) {
+        for (String key : query.keySet()) {
+            Object condition = query.get(key);
+            if ("$or".equals(key)) {
+                boolean any = false;
+                for (Object clause : (Collection<?>) condition) {
+                    any |= matches(document, (DBObject) clause);
+                }
+                if (!any) {
+                    return false;
+                }
+            } else if (!matches(document.containsField(key), document.get(key), condition)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(boolean exists, Object value, Object condition) {
+        if (!(condition instanceof DBObject) || !isOperators((DBObject) condition)) {
+            return condition == null ? value == null : condition.equals(value);
+        }
+        DBObject operators = (DBObject) condition;
+        for (String operator : operators.keySet()) {
+            Object operand = operators.get(operator);
+            if ("$in".equals(operator)) {
+                if (!exists || !((Collection<?>) operand).contains(value)) {
+                    return false;
+                }
+            } else if ("$lt".equals(operator)) {
+                if (!lessThan(value, operand)) {
+                    return false;
+                }
+            } else if ("$exists".equals(operator)) {
+                if (exists != (Boolean) operand) {
+                    return false;
+                }
+            } else {
+                throw new UnsupportedOperationException("Operator " + operator);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isOperators(DBObject condition) {
+        Iterator<String> keys = condition.keySet().iterator();
+        return keys.hasNext() && keys.next().startsWith("$");
+    }
+
+    private static boolean lessThan(Object value, Object operand) {
+        if (value instanceof Date && operand instanceof Date) {
+            return ((Date) value).before((Date) operand);
+        }
+        if (value instanceof Number && operand instanceof Number) {
+            return ((Number) value).doubleValue() < ((Number) operand).doubleValue();
+        }
+        return false;
+    }
+
+    private static DBObject copy(DBObject document, DBObject target) {
+        for (String key : document.keySet()) {
+            target.put(key, document.get(key));
+        }
+        return target;
+    }
+
+    private class FakeCollection extends DBCollection {
+
+        private final List<DBObject> documents = new ArrayList<DBObject>();
+
+        FakeCollection(String name) {
+            super(FakeDB.this, name);
+        }
+
+        // the write concerns are qualified as DB declares an older WriteConcern of its own
+        public synchronized WriteResult insert(DBObject[] objects, com.mongodb.WriteConcern concern) {
+            for (DBObject object : objects) {
+                if (object.get("_id") == null) {
+                    object.put("_id", new ObjectId());
+                }
+                documents.add(copy(object, new BasicDBObject()));
+            }
+            return new WriteResult(result("err", null), concern);
+        }
+
+        public synchronized WriteResult update(DBObject query, DBObject object, boolean upsert, boolean multi,
+                                               com.mongodb.WriteConcern concern) {
+            int updated = 0;
+            for (int i = 0; i < documents.size() && (multi || updated == 0); i++) {
+                if (matches(documents.get(i), query)) {
+                    documents.set(i, copy(object, new BasicDBObject("_id", documents.get(i).get("_id"))));
+                    updated++;
+                }
+            }
+            if (updated == 0 && upsert) {
+                insert(new DBObject[] {object}, concern);
+            }
+            return new WriteResult(result("err", null), concern);
+        }
+
+        public synchronized WriteResult remove(DBObject query, com.mongodb.WriteConcern concern) {
+            for (Iterator<DBObject> it = documents.iterator(); it.hasNext();) {
+                if (matches(it.next(), query)) {
+                    it.remove();
+                }
+            }
+            return new WriteResult(result("err", null), concern);
+        }
+
+        public void createIndex(DBObject keys, DBObject options) {
+            indexes.add(new BasicDBObject("key", keys).append("options", options));
+        }
+
+        protected void doapply(DBObject object) {
+        }
+
+        Iterator<DBObject> __find(DBObject query, DBObject fields, int skip, int batchSize, int options) {
+            if ("$cmd".equals(getName())) {
+                return Collections.<DBObject>singletonList(command(query)).iterator();
+            }
+            if (query.get("query") instanceof DBObject) {
+                // cursors with a sort wrap their query
+                query = (DBObject) query.get("query");
+            }
+            queries.add(query);
+            List<DBObject> found = new ArrayList<DBObject>();
+            synchronized (this) {
+                for (DBObject document : documents) {
+                    if (matches(document, query)) {
+                        found.add(copy(document, newObject()));
+                    }
+                }
+            }
+            return found.iterator();
+        }
+
+        private DBObject newObject() {
+            try {
+                return _objectClass != null ? (DBObject) _objectClass.newInstance() : new BasicDBObject();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private CommandResult command(DBObject command) {
+            String name = command.keySet().iterator().next();
+            if (!"findandmodify".equals(name)) {
+                return result(null, null);
+            }
+            FakeCollection collection = existing((String) command.get(name));
+            if (collection == null) {
+                return result("value", null);
+            }
+            DBObject query = (DBObject) command.get("query");
+            synchronized (collection) {
+                for (Iterator<DBObject> it = collection.documents.iterator(); it.hasNext();) {
+                    DBObject document = it.next();
+                    if (query == null || matches(document, query)) {
+                        if (Boolean.TRUE.equals(command.get("remove"))) {
+                            it.remove();
+                        }
+                        return result("value", document);
+                    }
+                }
+            }
+            return result("value", null);
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.jdbc.adapter;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.apache.servicemix.jdbc.DataWriter;
+import org.apache.servicemix.jdbc.Statements;
+
+public class BlobJDBCAdapterTest extends TestCase {
+
+    private Connection connection;
+    private int createdBlobs;
+    private DefaultJDBCAdapter adapter;
+
+    protected void setUp() throws Exception {
+        EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName("target/adapterdb");
+        ds.setCreateDatabase("create");
+        final Connection target = ds.getConnection();
+        // counts the temporary Blobs created by the adapter
+        connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] {Connection.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("createBlob")) {
+                            createdBlobs++;
+                        }
+                        try {
+                            return method.invoke(target, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    protected void tearDown() throws Exception {
+        if (adapter != null) {
+            adapter.doDropTables(connection);
+        }
+        connection.close();
+    }
+
+    public void testSmallDataIsNotWrittenToBlob() throws Exception {
+        BlobJDBCAdapter blobAdapter = new BlobJDBCAdapter();
+        blobAdapter.setBlobThreshold(1024);
+        init(blobAdapter, "BLOB_SMALL");
+        byte[] data = createData(1024);
+        adapter.doStoreData(connection, "id", writer(data), 0);
+        assertEquals(0, createdBlobs);
+        assertTrue(Arrays.equals(data, adapter.doLoadData(connection, "id")));
+    }
+
+    public void testLargeDataIsWrittenToBlob() throws Exception {
+        BlobJDBCAdapter blobAdapter = new BlobJDBCAdapter();
+        blobAdapter.setBlobThreshold(1024);
+        init(blobAdapter, "BLOB_LARGE");
+        byte[] data = createData(100 * 1024);
+        adapter.doStoreData(connection, "id", writer(data), 0);
+        assertEquals(1, createdBlobs);
+        assertTrue(Arrays.equals(data, adapter.doLoadData(connection, "id")));
+    }
+
+    public void testNegativeThresholdNeverCreatesBlobs() throws Exception {
+        BlobJDBCAdapter blobAdapter = new BlobJDBCAdapter();
+        blobAdapter.setBlobThreshold(-1);
+        init(blobAdapter, "BLOB_NONE");
+        byte[] data = createData(100 * 1024);
+        adapter.doStoreData(connection, "id", writer(data), 0);
+        assertEquals(0, createdBlobs);
+        assertTrue(Arrays.equals(data, adapter.doLoadData(connection, "id")));
+    }
+
+    public void testStreamAdapter() throws Exception {
+        init(new StreamJDBCAdapter(), "STREAM");
+        byte[] data = createData(100 * 1024);
+        adapter.doStoreData(connection, "id", writer(data), 0);
+        adapter.doStoreData(connection, "other", data);
+        assertTrue(Arrays.equals(data, adapter.doLoadData(connection, "id")));
+        assertTrue(Arrays.equals(data, adapter.doLoadData(connection, "other")));
+    }
+
+    public void testStreamAdapterSpillsToFile() throws Exception {
+        StreamJDBCAdapter streamAdapter = new StreamJDBCAdapter();
+        streamAdapter.setSpillThreshold(1024);
+        init(streamAdapter, "STREAM_SPILL");
+        final int files = countSpillFiles();
+        byte[] data = createData(100 * 1024);
+        final DataWriter writer = writer(data);
+        adapter.doStoreData(connection, "id", new DataWriter() {
+            public void write(OutputStream out) throws IOException {
+                writer.write(out);
+                out.flush();
+                assertEquals(files + 1, countSpillFiles());
+            }
+        }, 0);
+        // the temporary file is deleted once inserted
+        assertEquals(files, countSpillFiles());
+        assertTrue(Arrays.equals(data, adapter.doLoadData(connection, "id")));
+    }
+
+    public void testRemoveExpiredDataWithoutData() throws Exception {
+        init(new BlobJDBCAdapter(), "BLOB_EXPIRED");
+        byte[] data = createData(1024);
+        adapter.doStoreData(connection, "id", writer(data), 1);
+        Map<String, byte[]> expired = adapter.doRemoveExpiredData(connection, "a", "z", 2, 10, false);
+        assertEquals(1, expired.size());
+        assertTrue(expired.containsKey("id"));
+        assertNull(expired.get("id"));
+        assertNull(adapter.doLoadData(connection, "id"));
+    }
+
+    private static int countSpillFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("servicemix-store");
+            }
+        });
+        return names != null ? names.length : 0;
+    }
+
+    private void init(DefaultJDBCAdapter adapter, String tableName) throws Exception {
+        Statements statements = new Statements();
+        statements.setStoreTableName(tableName);
+        statements.setExpiresColumn(true);
+        adapter.setStatements(statements);
+        adapter.doCreateTables(connection);
+        this.adapter = adapter;
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        new Random(0).nextBytes(data);
+        return data;
+    }
+
+    private static DataWriter writer(final byte[] data) {
+        return new DataWriter() {
+            public void write(OutputStream out) throws IOException {
+                // write in chunks, so that the threshold is crossed in the middle of the data
+                for (int i = 0; i < data.length; i += 1000) {
+                    out.write(data, i, Math.min(1000, data.length - i));
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.memory.MemoryStore;
+
+public class BatchingAsyncStoreTest extends TestCase {
+
+    private RecordingStore store;
+    private ManualExecutor executor;
+    private BatchingAsyncStore asyncStore;
+
+    protected void setUp() throws Exception {
+        store = new RecordingStore();
+        executor = new ManualExecutor();
+        asyncStore = new BatchingAsyncStore(store, executor, 3);
+    }
+
+    public void testCoalescing() throws Exception {
+        List<Future<Void>> stores = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 5; i++) {
+            stores.add(asyncStore.store("id" + i, "data" + i));
+        }
+        Future<Object> peek = asyncStore.peek("id1");
+        Future<Object> load1 = asyncStore.load("id1");
+        Future<Object> load2 = asyncStore.load("id2");
+        Future<Object> loadAgain = asyncStore.load("id1");
+        Future<String> generated = asyncStore.store("generated");
+
+        // a single drain task is scheduled, whatever the number of requests
+        assertEquals(1, executor.tasks.size());
+        assertFalse(load1.isDone());
+        executor.runAll();
+
+        for (Future<Void> future : stores) {
+            assertTrue(future.isDone());
+        }
+        assertEquals("data1", peek.get());
+        assertEquals("data1", load1.get());
+        assertEquals("data2", load2.get());
+        assertNull(loadAgain.get());
+        assertEquals("generated", store.peek(generated.get()));
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("storeAll:3");
+        expected.add("storeAll:2");
+        expected.add("peekAll:1");
+        expected.add("loadAll:2");
+        expected.add("loadAll:1");
+        expected.add("store");
+        assertEquals(expected, store.calls);
+    }
+
+    public void testFailure() throws Exception {
+        store.failure = new IOException("failure");
+        Future<Void> future = asyncStore.store("id", "data");
+        executor.runAll();
+        try {
+            future.get();
+            fail("Expected an ExecutionException");
+        } catch (ExecutionException e) {
+            assertSame(store.failure, e.getCause());
+        }
+        store.failure = null;
+        future = asyncStore.store("id", "data");
+        executor.runAll();
+        future.get();
+        assertEquals("data", store.peek("id"));
+    }
+
+    private static class RecordingStore extends MemoryStore {
+        private final List<String> calls = new ArrayList<String>();
+        private IOException failure;
+
+        RecordingStore() {
+            super(new IdGenerator());
+        }
+
+        public String store(Object data) throws IOException {
+            calls.add("store");
+            return super.store(data);
+        }
+
+        public void storeAll(Map<String, Object> entries) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            calls.add("storeAll:" + entries.size());
+            super.storeAll(entries);
+        }
+
+        public Map<String, Object> loadAll(Collection<String> ids) throws IOException {
+            calls.add("loadAll:" + ids.size());
+            return super.loadAll(ids);
+        }
+
+        public Map<String, Object> peekAll(Collection<String> ids) throws IOException {
+            calls.add("peekAll:" + ids.size());
+            return super.peekAll(ids);
+        }
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.removeFirst().run();
+            }
+        }
+
+        public void shutdown() {
+        }
+
+        public int capacity() {
+            return 0;
+        }
+
+        public int size() {
+            return tasks.size();
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.memory.MemoryStore;
+import org.apache.servicemix.store.memory.MemoryStoreFactory;
+
+public class BloomFilterStoreTest extends TestCase {
+
+    public void testFilter() throws Exception {
+        CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("id" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("id" + i));
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 50);
+        for (int i = 0; i < 1000; i++) {
+            filter.remove("id" + i);
+        }
+        assertFalse(filter.mightContain("id0"));
+        assertEquals(0.0, filter.getExpectedFalsePositiveRate(), 0.0);
+    }
+
+    public void testLookups() throws Exception {
+        MemoryStore memory = new MemoryStore(new IdGenerator());
+        memory.store("existing", "data");
+        BloomFilterStore store = new BloomFilterStore(memory, 1000, 0.01);
+
+        assertEquals("data", store.peek("existing"));
+        assertNull(store.peek("missing"));
+        store.store("added", "data");
+        assertEquals("data", store.load("added"));
+        assertNull(store.load("added"));
+        assertEquals(1, store.loadAll(Arrays.asList("existing", "missing")).size());
+        assertEquals(3, store.getSkippedCount());
+        assertEquals(0.0, store.getFalsePositiveRate(), 0.0);
+
+        memory.store("behind", "data");
+        assertNull("Objects not stored through the filter are not seen", store.peek("behind"));
+        store.rebuild();
+        assertEquals("data", store.peek("behind"));
+        store.detach();
+    }
+
+    public void testFactory() throws Exception {
+        MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        MemoryStoreFactory factory = new MemoryStoreFactory();
+        factory.setBloomFilterEnabled(true);
+        factory.setBloomFilterExpectedEntries(100);
+        factory.setStatisticsEnabled(true);
+        factory.setMbeanServer(mbeanServer);
+
+        InstrumentedStore store = (InstrumentedStore) factory.open("test");
+        assertTrue(store.getDelegate() instanceof BloomFilterStore);
+        assertSame(store, factory.open("test"));
+        assertNull(store.load("missing"));
+
+        ObjectName name = new ObjectName("org.apache.servicemix:ContainerName=ServiceMix,Name=Stores,"
+                + "Type=MemoryStoreFactory,SubType=test");
+        assertEquals(1L, mbeanServer.getAttribute(name, "BloomFilterSkippedCount"));
+        assertEquals(0.0, mbeanServer.getAttribute(name, "BloomFilterFalsePositiveRate"));
+
+        factory.close(store);
+        Store reopened = factory.open("test");
+        assertNotSame(store, reopened);
+    }
+
+}
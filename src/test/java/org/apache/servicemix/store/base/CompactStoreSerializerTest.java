@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.servicemix.store.Entry;
+
+public class CompactStoreSerializerTest extends TestCase {
+
+    private CompactStoreSerializer serializer;
+
+    protected void setUp() throws Exception {
+        serializer = new CompactStoreSerializer();
+    }
+
+    public void testSimpleTypes() throws Exception {
+        assertNull(roundTrip(null));
+        assertEquals("h\u00e9llo", roundTrip("h\u00e9llo"));
+        assertEquals(Integer.valueOf(42), roundTrip(42));
+        assertEquals(Long.valueOf(-7L), roundTrip(-7L));
+        assertEquals(Boolean.TRUE, roundTrip(Boolean.TRUE));
+        assertEquals(Double.valueOf(1.5), roundTrip(1.5));
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3}, (byte[]) roundTrip(new byte[] {1, 2, 3})));
+        // tag, length and the utf-8 bytes
+        assertEquals(10, serializer.serialize("hello").length);
+    }
+
+    public void testObjects() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("list", new ArrayList<Object>(Arrays.asList("a", 1, 2L)));
+        map.put("value", new Value("v", 3));
+        assertEquals(map, roundTrip(map));
+
+        Entry entry = (Entry) roundTrip(new Entry("data"));
+        assertEquals("data", entry.getData());
+    }
+
+    public void testSmallerThanJavaSerialization() throws Exception {
+        JavaStoreSerializer java = new JavaStoreSerializer();
+        Object[] samples = {"hello", 42, new Entry("data"), new Value("v", 3)};
+        for (Object sample : samples) {
+            assertTrue(sample.toString(), serializer.serialize(sample).length < java.serialize(sample).length);
+        }
+    }
+
+    public void testRegisteredClasses() throws Exception {
+        byte[] unregistered = serializer.serialize(new Value("v", 3));
+        serializer.register(Value.class);
+        byte[] registered = serializer.serialize(new Value("v", 3));
+        assertTrue(registered.length < unregistered.length);
+        assertEquals(new Value("v", 3), serializer.deserialize(registered));
+        assertEquals(new Value("v", 3), serializer.deserialize(unregistered));
+
+        CompactStoreSerializer other = new CompactStoreSerializer();
+        List<String> names = new ArrayList<String>();
+        names.add(Value.class.getName());
+        other.setRegisteredClasses(names);
+        assertEquals(serializer.getRegisteredClasses(), other.getRegisteredClasses());
+        assertEquals(new Value("v", 3), other.deserialize(registered));
+    }
+
+    private Object roundTrip(Object object) throws Exception {
+        return serializer.deserialize(serializer.serialize(object));
+    }
+
+    public static class Value implements Serializable {
+        private final String name;
+        private final int count;
+
+        public Value(String name, int count) {
+            this.name = name;
+            this.count = count;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Value && ((Value) o).name.equals(name) && ((Value) o).count == count;
+        }
+
+        public int hashCode() {
+            return name.hashCode() + count;
+        }
+
+        public String toString() {
+            return name + count;
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.memory.MemoryStoreFactory;
+import org.apache.servicemix.store.memory.OffHeapMemoryStore;
+import org.apache.servicemix.store.memory.TimeoutMemoryStore;
+
+public class InstrumentedStoreTest extends TestCase {
+
+    private MBeanServer mbeanServer;
+    private MemoryStoreFactory factory;
+
+    protected void setUp() throws Exception {
+        mbeanServer = MBeanServerFactory.newMBeanServer();
+        factory = new MemoryStoreFactory();
+        factory.setStatisticsEnabled(true);
+        factory.setMbeanServer(mbeanServer);
+    }
+
+    public void testOperations() throws Exception {
+        InstrumentedStore store = (InstrumentedStore) factory.open("test");
+        assertSame(store, factory.open("test"));
+
+        String id = store.store("data");
+        store.store("other", "data");
+        assertEquals("data", store.peek(id));
+        assertEquals("data", store.load(id));
+        assertNull(store.load(id));
+
+        StoreStatistics statistics = store.getStatistics();
+        assertEquals(2, statistics.getStores().getCount());
+        assertEquals(2, statistics.getLoads().getCount());
+        assertEquals(1, statistics.getPeeks().getCount());
+        assertEquals(1, statistics.getLiveEntries());
+        assertTrue(statistics.getLoads().getLatencyPercentile(99) > 0);
+
+        ObjectName name = new ObjectName("org.apache.servicemix:ContainerName=ServiceMix,Name=Stores,"
+                                         + "Type=MemoryStoreFactory,SubType=test");
+        assertEquals(2L, mbeanServer.getAttribute(name, "StoreCount"));
+        assertEquals(1L, mbeanServer.getAttribute(name, "LiveEntries"));
+        mbeanServer.invoke(name, "reset", null, null);
+        assertEquals(0L, mbeanServer.getAttribute(name, "StoreCount"));
+
+        factory.close(store);
+        assertFalse(mbeanServer.isRegistered(name));
+    }
+
+    public void testEvictionsAndBytes() throws Exception {
+        factory.setTimeout(10);
+        InstrumentedStore store = (InstrumentedStore) factory.open("timeout");
+        assertTrue(store.getDelegate() instanceof TimeoutMemoryStore);
+        store.store("id", "data");
+        Thread.sleep(50);
+        assertNull(store.load("id"));
+        assertEquals(1, store.getStatistics().getEvictionCount());
+        assertEquals(0, store.getStatistics().getLiveEntries());
+
+        factory.setTimeout(-1);
+        factory.setOffHeap(true);
+        store = (InstrumentedStore) factory.open("offheap");
+        assertTrue(store.getDelegate() instanceof OffHeapMemoryStore);
+        store.store("id", "some data");
+        assertEquals("some data", store.load("id"));
+        long written = store.getStatistics().getSerializedBytesWritten();
+        assertTrue(written > 0);
+        assertEquals(written, store.getStatistics().getSerializedBytesRead());
+
+        factory.close(store);
+        assertFalse(((BaseStore) store.getDelegate()).getSerializer() instanceof CountingStoreSerializer);
+    }
+
+    public void testConcurrentUpdates() throws Exception {
+        final Store store = factory.open("concurrent");
+        final int threads = 8;
+        final int operations = 1000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < operations; i++) {
+                            store.store(thread + ":" + i, "data");
+                        }
+                    } catch (Exception e) {
+                        fail(e.getMessage());
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        StoreStatistics statistics = ((InstrumentedStore) store).getStatistics();
+        assertEquals(threads * operations, statistics.getStores().getCount());
+        assertEquals(threads * operations, statistics.getLiveEntries());
+    }
+
+}
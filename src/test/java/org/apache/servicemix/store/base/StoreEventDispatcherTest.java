@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreListener;
+import org.apache.servicemix.store.memory.MemoryStore;
+import org.apache.servicemix.store.memory.MemoryStoreFactory;
+
+public class StoreEventDispatcherTest extends TestCase {
+
+    private ManualExecutor executor;
+    private MemoryStore store;
+    private RecordingListener listener;
+
+    protected void setUp() throws Exception {
+        executor = new ManualExecutor();
+        store = new MemoryStore(new IdGenerator());
+        listener = new RecordingListener();
+        store.addListener(listener);
+    }
+
+    public void testOrderedDelivery() throws Exception {
+        store.setEventDispatcher(new StoreEventDispatcher(executor, 16));
+        store.store("1", "one");
+        store.store("2", "two");
+        store.load("1");
+        assertTrue(listener.events.isEmpty());
+        assertEquals(1, executor.size());
+
+        executor.runAll();
+        assertEquals(Arrays.asList("add:1", "add:2", "remove:1"), listener.events);
+    }
+
+    public void testDroppedEvents() throws Exception {
+        StoreEventDispatcher dispatcher = new StoreEventDispatcher(executor, 2);
+        store.setEventDispatcher(dispatcher);
+        for (int i = 0; i < 5; i++) {
+            store.store(Integer.toString(i), "data");
+        }
+        assertEquals(3, dispatcher.getDroppedEventCount());
+        assertEquals(2, dispatcher.getPendingEventCount());
+
+        executor.runAll();
+        assertEquals(Arrays.asList("add:0", "add:1"), listener.events);
+        assertEquals(0, dispatcher.getPendingEventCount());
+    }
+
+    public void testDroppedEventsAreLogged() throws Exception {
+        final List<String> warnings = new ArrayList<String>();
+        AppenderSkeleton appender = new AppenderSkeleton() {
+            protected void append(LoggingEvent event) {
+                if (event.getLevel().isGreaterOrEqual(Level.WARN)) {
+                    warnings.add(event.getRenderedMessage());
+                }
+            }
+            public boolean requiresLayout() {
+                return false;
+            }
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(StoreEventDispatcher.class);
+        logger.addAppender(appender);
+        try {
+            StoreEventDispatcher dispatcher = new StoreEventDispatcher(executor, 1);
+            for (int i = 0; i < 3; i++) {
+                dispatcher.fireAddedEvent(listener, Integer.toString(i), "data");
+            }
+            assertEquals("An overflow should be reported once", 1, warnings.size());
+            dispatcher.fireEvictedEvent(listener, "3", "data");
+            dispatcher.fireEvictedEvent(listener, "4", "data");
+            assertEquals("Every dropped eviction should be reported", 3, warnings.size());
+            assertTrue(warnings.get(2).contains("4"));
+
+            executor.runAll();
+            dispatcher.fireAddedEvent(listener, "5", "data");
+            dispatcher.fireAddedEvent(listener, "6", "data");
+            assertEquals("A new overflow should be reported", 4, warnings.size());
+        } finally {
+            logger.removeAppender(appender);
+        }
+    }
+
+    public void testFailingListener() throws Exception {
+        store.setEventDispatcher(new StoreEventDispatcher(executor, 16));
+        store.addListener(new RecordingListener() {
+            public void onAdd(String id, Object data) {
+                throw new IllegalStateException("failing listener");
+            }
+        });
+        store.store("1", "one");
+        executor.runAll();
+        assertEquals(Arrays.asList("add:1"), listener.events);
+    }
+
+    public void testRegistrationDuringNotification() throws Exception {
+        final RecordingListener added = new RecordingListener();
+        store.addListener(new RecordingListener() {
+            public void onAdd(String id, Object data) {
+                store.addListener(added);
+            }
+        });
+        store.store("1", "one");
+        store.store("2", "two");
+        assertEquals(Arrays.asList("add:1", "add:2"), listener.events);
+        assertEquals(Arrays.asList("add:2"), added.events);
+    }
+
+    public void testFactory() throws Exception {
+        MemoryStoreFactory factory = new MemoryStoreFactory();
+        factory.setAsyncListeners(true);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        factory.getStoreListeners().add(new RecordingListener() {
+            public void onAdd(String id, Object data) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+        Store store = factory.open("test");
+        store.store("1", "one");
+        store.store("2", "two");
+        assertEquals(2, done.getCount());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, factory.getDroppedEventCount());
+        factory.shutdownAsyncExecutor();
+    }
+
+    public void testShutdown() throws Exception {
+        StoreEventDispatcher dispatcher = new StoreEventDispatcher(executor, 16);
+        store.setEventDispatcher(dispatcher);
+        store.store("1", "one");
+        dispatcher.shutdown();
+        store.store("2", "two");
+        // the queued event is delivered first, on the calling thread
+        assertEquals(Arrays.asList("add:1", "add:2"), listener.events);
+    }
+
+    public void testFactoryShutdownKeepsOpenStoresNotifying() throws Exception {
+        MemoryStoreFactory factory = new MemoryStoreFactory();
+        factory.setAsyncListeners(true);
+        RecordingListener recording = new RecordingListener();
+        factory.getStoreListeners().add(recording);
+        Store opened = factory.open("test");
+        factory.shutdownAsyncExecutor();
+        opened.store("1", "one");
+        assertEquals(Arrays.asList("add:1"), recording.events);
+    }
+
+    private static class RecordingListener implements StoreListener {
+        final List<String> events = new ArrayList<String>();
+
+        public void onAdd(String id, Object data) {
+            events.add("add:" + id);
+        }
+
+        public void onRemove(String id, Object data) {
+            events.add("remove:" + id);
+        }
+
+        public void onEvict(String id, Object data) {
+            events.add("evict:" + id);
+        }
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.removeFirst().run();
+            }
+        }
+
+        public void shutdown() {
+        }
+
+        public int capacity() {
+            return 0;
+        }
+
+        public int size() {
+            return tasks.size();
+        }
+    }
+
+}
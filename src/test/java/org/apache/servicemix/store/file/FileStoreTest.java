@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.file;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.Store;
+
+public class FileStoreTest extends TestCase {
+
+    private File directory;
+    private IdGenerator idGenerator = new IdGenerator();
+
+    protected void setUp() throws Exception {
+        directory = new File("target/file-store/" + getName());
+        delete(directory);
+    }
+
+    public void testStoreLoad() throws Exception {
+        FileStore store = open(SyncPolicy.ALWAYS, 4096);
+        assertTrue(store.hasFeature(Store.PERSISTENT));
+        String id = store.store("data");
+        assertEquals("data", store.peek(id));
+        assertEquals("data", store.load(id));
+        assertNull(store.load(id));
+        assertNull(store.peek("unknown"));
+        store.close();
+    }
+
+    public void testStoreAllLoadAll() throws Exception {
+        FileStore store = open(SyncPolicy.GROUP, 4096);
+        Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        entries.put("1", "one");
+        entries.put("2", "two");
+        store.storeAll(entries);
+        Map<String, Object> loaded = store.loadAll(Arrays.asList("2", "3", "1"));
+        assertEquals(Arrays.asList("2", "1"), Arrays.asList(loaded.keySet().toArray()));
+        assertEquals(0, store.getSize());
+        store.close();
+    }
+
+    public void testReopen() throws Exception {
+        FileStore store = open(SyncPolicy.GROUP, 256);
+        for (int i = 0; i < 20; i++) {
+            store.store(Integer.toString(i), "data " + i);
+        }
+        for (int i = 0; i < 20; i += 2) {
+            store.load(Integer.toString(i));
+        }
+        assertTrue(store.getSegmentCount() > 1);
+        store.close();
+
+        store = open(SyncPolicy.GROUP, 256);
+        assertEquals(10, store.getSize());
+        assertNull(store.peek("0"));
+        assertEquals("data 19", store.peek("19"));
+        store.store("20", "data 20");
+        store.close();
+
+        store = open(SyncPolicy.GROUP, 256);
+        assertEquals(11, store.getSize());
+        assertEquals("data 20", store.load("20"));
+        store.close();
+    }
+
+    public void testRecoveryWithoutClose() throws Exception {
+        FileStore store = open(SyncPolicy.ALWAYS, 4096);
+        store.store("1", "one");
+        store.store("2", "two");
+        store.load("1");
+
+        // simulate a crash: the store is not closed, so the active segment has no hint file
+        FileStore recovered = open(SyncPolicy.ALWAYS, 4096);
+        assertEquals(1, recovered.getSize());
+        assertNull(recovered.peek("1"));
+        assertEquals("two", recovered.peek("2"));
+        recovered.close();
+    }
+
+    public void testRecoveryStopsAtCorruptedRecord() throws Exception {
+        FileStore store = open(SyncPolicy.ALWAYS, 4096);
+        store.store("1", "one");
+        store.store("2", "two");
+        File segment = new File(directory, Segment.name(0) + Segment.SEGMENT_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            // damage the last byte of the second record
+            int end = 0;
+            for (int i = 0; i < 2; i++) {
+                raf.seek(end);
+                end += 4 + raf.readInt();
+            }
+            raf.seek(end - 1);
+            int last = raf.read();
+            raf.seek(end - 1);
+            raf.write(last ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        FileStore recovered = open(SyncPolicy.ALWAYS, 4096);
+        assertEquals("one", recovered.peek("1"));
+        assertNull(recovered.peek("2"));
+        recovered.store("3", "three");
+        recovered.close();
+
+        recovered = open(SyncPolicy.ALWAYS, 4096);
+        assertEquals(2, recovered.getSize());
+        assertEquals("three", recovered.peek("3"));
+        recovered.close();
+    }
+
+    public void testCompaction() throws Exception {
+        FileStore store = open(SyncPolicy.GROUP, 512);
+        for (int i = 0; i < 100; i++) {
+            store.store(Integer.toString(i), "data " + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            if (i % 10 != 0) {
+                store.load(Integer.toString(i));
+            }
+        }
+        int segments = store.getSegmentCount();
+        assertTrue(store.compact() > 0);
+        assertTrue(store.getSegmentCount() < segments);
+        assertEquals(10, store.getSize());
+        for (int i = 0; i < 100; i += 10) {
+            assertEquals("data " + i, store.peek(Integer.toString(i)));
+        }
+        store.close();
+
+        store = open(SyncPolicy.GROUP, 512);
+        assertEquals(10, store.getSize());
+        assertNull(store.peek("1"));
+        assertEquals("data 90", store.peek("90"));
+        store.close();
+    }
+
+    public void testCompactionDropsTombstonesOfCompactedPuts() throws Exception {
+        FileStore store = open(SyncPolicy.GROUP, 256);
+        for (int i = 0; i < 5; i++) {
+            store.store("keep" + i, "data " + i);
+        }
+        for (int i = 0; i < 30; i++) {
+            store.store(Integer.toString(i), "data " + i);
+        }
+        for (int i = 0; i < 30; i++) {
+            store.load(Integer.toString(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            store.store("tail" + i, "data " + i);
+        }
+        // rewritten tombstones would make every compaction find a segment to compact
+        int rounds = 0;
+        while (store.compact() > 0) {
+            assertTrue("Compaction does not converge", ++rounds < 10);
+        }
+        store.close();
+
+        // every tombstone left must hide a put still written in an older record
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        final Set<String> puts = new HashSet<String>();
+        for (File file : files) {
+            if (!file.getName().endsWith(Segment.SEGMENT_SUFFIX)) {
+                continue;
+            }
+            Segment segment = new Segment(directory, Segment.sequenceOf(file.getName()), 0);
+            try {
+                segment.scan(new Segment.RecordVisitor() {
+                    public void visit(byte type, String id, int offset, int size) {
+                        if (type == Segment.PUT) {
+                            puts.add(id);
+                        } else {
+                            assertTrue("Useless tombstone for " + id, puts.contains(id));
+                        }
+                    }
+                });
+            } finally {
+                segment.close();
+            }
+        }
+
+        store = open(SyncPolicy.GROUP, 256);
+        assertEquals(15, store.getSize());
+        assertNull(store.peek("0"));
+        assertEquals("data 4", store.peek("keep4"));
+        store.close();
+    }
+
+    public void testConcurrentGroupSync() throws Exception {
+        final FileStore store = open(SyncPolicy.GROUP, 64 * 1024);
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            store.store(thread + ":" + i, "data");
+                        }
+                    } catch (Exception e) {
+                        fail(e.getMessage());
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(threads * 100, store.getSize());
+        store.close();
+    }
+
+    public void testFactory() throws Exception {
+        FileStoreFactory factory = new FileStoreFactory();
+        factory.setDirectory(directory);
+        factory.setSyncPolicy(SyncPolicy.PERIODIC);
+        factory.setSyncInterval(10);
+        factory.setCompactionInterval(10);
+        Store store = factory.open("store");
+        assertTrue(store instanceof FileStore);
+        assertSame(store, factory.open("store"));
+        store.store("id", "data");
+        factory.close(store);
+
+        store = factory.open("store");
+        assertEquals("data", store.load("id"));
+        factory.close(store);
+    }
+
+    private FileStore open(SyncPolicy syncPolicy, int segmentSize) throws Exception {
+        return new FileStore(directory, idGenerator, segmentSize, syncPolicy, 0.5);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
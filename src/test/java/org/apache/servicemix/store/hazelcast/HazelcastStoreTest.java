@@ -17,15 +17,21 @@
 
 package org.apache.servicemix.store.hazelcast;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import junit.framework.TestCase;
 
 import org.apache.servicemix.store.Entry;
 import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.base.StoreStatistics;
 import org.apache.servicemix.store.krati.KratiPersistenceProvider;
+import org.apache.servicemix.store.memory.LruEvictionPolicy;
+import org.apache.servicemix.store.nearcache.NearCacheStore;
 
 import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
 import com.hazelcast.config.MapStoreConfig;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
@@ -78,6 +84,54 @@ public class HazelcastStoreTest extends TestCase {
         assertNull("Data should have been removed from store after timeout", store.load(id));
     }
 
+    public void testEvictionEvents() throws Exception {
+        // a single member owns all the entries, and so reports all the evictions
+        Config single = new Config();
+        single.getGroupConfig().setName("testgroup-eviction");
+        single.getGroupConfig().setPassword("testpwd");
+        single.setProperty("hazelcast.map.cleanup.delay.seconds", "1");
+        HazelcastInstance instance = Hazelcast.newHazelcastInstance(single);
+        try {
+            HazelcastStoreFactory evicting = new HazelcastStoreFactory();
+            evicting.setHazelcastInstance(instance);
+            evicting.setTimeout(TIMEOUT);
+            Store store = evicting.open("evicting");
+            StoreStatistics statistics = new StoreStatistics();
+            store.addListener(statistics);
+            store.store("evicted", "data");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (statistics.getEvictionCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, statistics.getEvictionCount());
+            assertNull(store.peek("evicted"));
+            store.removeListener(statistics);
+            evicting.close(store);
+        } finally {
+            instance.getLifecycleService().shutdown();
+        }
+    }
+
+    public void testMapSettings() throws Exception {
+        HazelcastStoreFactory settings = new HazelcastStoreFactory();
+        settings.setHazelcastInstance(hazelcastInstance);
+        settings.setBackupCount(0);
+        settings.setNearCache(true);
+        settings.setInMemoryFormat(HazelcastStoreFactory.OBJECT);
+        Store configured = settings.open("configured");
+        MapConfig mapConfig = hazelcastInstance.getConfig().getMapConfigs()
+            .get(HazelcastStoreFactory.STORE_PREFIX + ".configured");
+        assertNotNull(mapConfig);
+        assertEquals(0, mapConfig.getBackupCount());
+        assertNotNull(mapConfig.getNearCacheConfig());
+        assertTrue(mapConfig.isCacheValue());
+        configured.store("id", "data");
+        assertEquals("data", configured.peek("id"));
+        assertEquals("data", configured.load("id"));
+        assertSame(configured, settings.open("configured"));
+        settings.close(configured);
+    }
+
     public void testDistributesStoreAndLoad() throws Exception {        
         //Create a new Hazelcast instance
         HazelcastInstance instance = Hazelcast.newHazelcastInstance(config);
@@ -123,6 +177,33 @@ public class HazelcastStoreTest extends TestCase {
 		provider.destroy();
 
 	}
-    
-    
+
+    public void testStoreAllLoadAll() throws Exception {
+        Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        entries.put("a", "data a");
+        entries.put("b", "data b");
+        store.storeAll(entries);
+        assertEquals(entries, store.peekAll(Arrays.asList("a", "b", "c")));
+        assertEquals(entries, store.loadAll(Arrays.asList("a", "b", "c")));
+        assertNull(store.peek("a"));
+    }
+
+    public void testNearCacheRemoteInvalidation() throws Exception {
+        NearCacheStore nearCache = new NearCacheStore(store, 10, new LruEvictionPolicy());
+        assertTrue(nearCache.isRemoteInvalidation());
+        nearCache.store("id", "first");
+        assertEquals("first", nearCache.peek("id"));
+
+        // another store on the same map does not notify the local listeners of the first one
+        Store other = new HazelcastStore(hazelcastInstance, HazelcastStoreFactory.STORE_PREFIX + ".test");
+        other.store("id", "second");
+        long deadline = System.currentTimeMillis() + 5000;
+        while ("first".equals(nearCache.peek("id")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("second", nearCache.peek("id"));
+        nearCache.detach();
+        other.load("id");
+    }
+
 }
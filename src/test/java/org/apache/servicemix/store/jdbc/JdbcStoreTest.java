@@ -16,14 +16,33 @@
  */
 package org.apache.servicemix.store.jdbc;
 
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
 import junit.framework.TestCase;
 
+import org.apache.servicemix.jdbc.Statements;
+import org.apache.servicemix.jdbc.adapter.HsqldbJDBCAdapter;
+import org.apache.servicemix.store.AsyncStore;
 import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreCursor;
 import org.apache.servicemix.store.StoreFactory;
+import org.apache.servicemix.store.StoreListener;
+import org.apache.servicemix.store.base.CompactStoreSerializer;
+import org.apache.servicemix.store.base.JavaStoreSerializer;
 import org.hsqldb.jdbc.jdbcDataSource;
 
 public class JdbcStoreTest extends TestCase {
@@ -56,4 +75,356 @@ public class JdbcStoreTest extends TestCase {
         assertEquals(10, i.intValue());
         assertNull(store.load("a"));
     }
+
+    public void testStoreLoadWithCompactSerializer() throws Exception {
+        JdbcStoreFactory f = new JdbcStoreFactory();
+        f.setDataSource(dataSource);
+        f.setSerializer(new CompactStoreSerializer());
+        Store store = f.open("compact");
+        String id = store.store("a string");
+        assertEquals("a string", store.peek(id));
+        assertEquals("a string", store.load(id));
+        assertNull(store.load(id));
+    }
+
+    public void testTimeToLive() throws Exception {
+        JdbcStoreFactory f = new JdbcStoreFactory();
+        f.setDataSource(dataSource);
+        f.setExpiresColumn(true);
+        Store store = f.open("ttl");
+        store.store("short", new Integer(1), 50);
+        store.store("long", new Integer(2), 60000);
+        Thread.sleep(250);
+        assertNull(store.peek("short"));
+        assertEquals(new Integer(2), store.load("long"));
+        assertNull(store.load("short"));
+        f.close(store);
+    }
+
+    public void testWithoutExpiresColumn() throws Exception {
+        // without a timeout, an existing table is used as it is
+        Statements statements = new Statements();
+        statements.setStoreTableName("PLAIN_STORE");
+        HsqldbJDBCAdapter adapter = new HsqldbJDBCAdapter();
+        adapter.setStatements(statements);
+        adapter.doCreateTables(connection);
+
+        JdbcStoreFactory f = new JdbcStoreFactory();
+        f.setDataSource(dataSource);
+        f.setTableName("PLAIN_STORE");
+        f.setCreateDataBase(false);
+        JdbcStore store = (JdbcStore) f.open("plain");
+        assertFalse(f.getAdapter().getStatements().isExpiresColumn());
+        store.store("id", "data");
+        assertEquals("data", store.peek("id"));
+        store.sweep();
+        assertEquals("data", store.load("id"));
+        try {
+            store.store("ttl", "data", 60000);
+            fail("A time to live needs an EXPIRES column");
+        } catch (IOException e) {
+            // expected
+        }
+        f.close(store);
+    }
+
+    public void testCursors() throws Exception {
+        Store store = factory.open("cursor");
+        Store other = factory.open("cursor2");
+        Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < 250; i++) {
+            entries.put("id" + i, new Integer(i));
+        }
+        store.storeAll(entries);
+        other.store("id0", "other");
+
+        Map<String, Object> found = new LinkedHashMap<String, Object>();
+        StoreCursor<Map.Entry<String, Object>> cursor = store.openEntryCursor();
+        try {
+            while (cursor.hasNext()) {
+                Map.Entry<String, Object> entry = cursor.next();
+                found.put(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(entries, found);
+
+        List<String> ids = new ArrayList<String>();
+        StoreCursor<String> idCursor = other.openIdCursor();
+        try {
+            while (idCursor.hasNext()) {
+                ids.add(idCursor.next());
+            }
+        } finally {
+            idCursor.close();
+        }
+        assertEquals(Arrays.asList("id0"), ids);
+        assertEquals(new Integer(0), store.peek("id0"));
+    }
+
+    public void testStoreAllLoadAll() throws Exception {
+        Store store = factory.open("batch");
+        Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < 10; i++) {
+            entries.put("id" + i, new Integer(i));
+        }
+        store.storeAll(entries);
+        Map<String, Object> peeked = store.peekAll(Arrays.asList("id1", "id2", "unknown"));
+        assertEquals(2, peeked.size());
+        assertEquals(new Integer(2), peeked.get("id2"));
+        assertEquals(entries, store.loadAll(entries.keySet()));
+        assertTrue(store.loadAll(entries.keySet()).isEmpty());
+        assertNull(store.peek("id1"));
+    }
+
+    public void testChunkedBatches() throws Exception {
+        JdbcStoreFactory f = new JdbcStoreFactory();
+        f.setDataSource(dataSource);
+        f.setMaxInListSize(7);
+        f.setMaxBatchSize(5);
+        Store store = f.open("chunked");
+        Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < 50; i++) {
+            entries.put("id" + i, new Integer(i));
+        }
+        store.storeAll(entries);
+        List<String> ids = new ArrayList<String>(entries.keySet());
+        ids.add(3, "unknown");
+        assertEquals(entries, store.peekAll(ids));
+        assertEquals(1, store.peekAll(Arrays.asList("id49")).size());
+
+        String[] keys = new String[] {"chunked:id1", "chunked:id2"};
+        byte[][] datas = new byte[][] {"one".getBytes(), "two".getBytes()};
+        Connection c = dataSource.getConnection();
+        try {
+            f.getAdapter().doUpdateData(c, keys, datas);
+            byte[][] updated = f.getAdapter().doLoadData(c, new String[] {"chunked:id2", "chunked:unknown", "chunked:id1"});
+            assertEquals("two", new String(updated[0]));
+            assertNull(updated[1]);
+            assertEquals("one", new String(updated[2]));
+            f.getAdapter().doRemoveData(c, keys);
+        } finally {
+            c.close();
+        }
+
+        entries.remove("id1");
+        entries.remove("id2");
+        assertEquals(entries, store.loadAll(ids));
+        assertTrue(store.peekAll(ids).isEmpty());
+    }
+
+    public void testPagedIds() throws Exception {
+        JdbcStoreFactory f = new JdbcStoreFactory();
+        f.setDataSource(dataSource);
+        f.setTableName("PAGED_STORE");
+        Store store = f.open("paged");
+        for (int i = 0; i < 25; i++) {
+            store.store("id" + (char) ('a' + i), new Integer(i));
+        }
+        Connection c = dataSource.getConnection();
+        try {
+            List<String> ids = new ArrayList<String>();
+            String[] page = f.getAdapter().doGetIds(c, null, 10);
+            while (page.length > 0) {
+                assertTrue(page.length <= 10);
+                ids.addAll(Arrays.asList(page));
+                page = f.getAdapter().doGetIds(c, page[page.length - 1], 10);
+            }
+            assertEquals(25, ids.size());
+            assertEquals("paged:ida", ids.get(0));
+            assertEquals("paged:idy", ids.get(24));
+            assertEquals(Arrays.asList("paged:idf", "paged:idg", "paged:idh"),
+                         Arrays.asList(f.getAdapter().doGetIds(c, 5, 8)));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testLargeData() throws Exception {
+        Store store = factory.open("large");
+        byte[] data = new byte[3 * 1024 * 1024];
+        new Random(0).nextBytes(data);
+        store.store("id", data);
+        assertTrue(Arrays.equals(data, (byte[]) store.peek("id")));
+        StoreCursor<Map.Entry<String, Object>> cursor = store.openEntryCursor();
+        try {
+            assertTrue(cursor.hasNext());
+            assertTrue(Arrays.equals(data, (byte[]) cursor.next().getValue()));
+        } finally {
+            cursor.close();
+        }
+        assertTrue(Arrays.equals(data, (byte[]) store.load("id")));
+        assertNull(store.load("id"));
+    }
+
+    public void testTimeoutSweep() throws Exception {
+        // a table created without an EXPIRES column is upgraded, and its rows expire after the timeout
+        Statements statements = new Statements();
+        statements.setStoreTableName("EXPIRING_STORE");
+        HsqldbJDBCAdapter adapter = new HsqldbJDBCAdapter();
+        adapter.setStatements(statements);
+        adapter.doCreateTables(connection);
+        adapter.doStoreData(connection, "expiring:old", new JavaStoreSerializer().serialize("old data"));
+
+        JdbcStoreFactory f = new JdbcStoreFactory();
+        f.setDataSource(dataSource);
+        f.setTableName("EXPIRING_STORE");
+        f.setTimeout(200);
+        f.setSweepInterval(60 * 60 * 1000);
+        f.setMaxBatchSize(2);
+        JdbcStore store = (JdbcStore) f.open("expiring");
+        JdbcStore other = (JdbcStore) f.open("other");
+        final Map<String, Object> evicted = new LinkedHashMap<String, Object>();
+        store.addListener(new StoreListener() {
+            public void onAdd(String id, Object data) {
+            }
+            public void onRemove(String id, Object data) {
+            }
+            public void onEvict(String id, Object data) {
+                evicted.put(id, data);
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            store.store("id" + i, "data" + i);
+        }
+        other.store("id", "other data");
+        // a time to live overrides the timeout
+        store.store("ttl", "ttl data", 60000);
+        store.sweep();
+        assertTrue(evicted.isEmpty());
+
+        Thread.sleep(300);
+        store.store("new", "new data");
+        store.sweep();
+        assertEquals(6, evicted.size());
+        assertEquals("ttl data", store.peek("ttl"));
+        assertEquals("old data", evicted.get("old"));
+        assertEquals("data4", evicted.get("id4"));
+        assertNull(store.peek("id0"));
+        assertEquals("new data", store.peek("new"));
+        // the sweep only deletes the rows of its store, reads skip the other expired rows
+        assertNull(other.peek("id"));
+        assertEquals(1, count("EXPIRING_STORE", "other:id"));
+        other.sweep();
+        assertEquals(0, count("EXPIRING_STORE", "other:id"));
+        f.close(store);
+        f.close(other);
+    }
+
+    public void testInListStatements() throws Exception {
+        Statements statements = new Statements();
+        statements.setStoreTableName("T");
+        assertEquals("SELECT ID, DATA FROM T WHERE ID IN (?, ?, ?)", statements.getFindDataInListStatement(3));
+        assertEquals("DELETE FROM T WHERE ID IN (?)", statements.getRemoveDataInListStatement(1));
+        statements.setExpiresColumn(true);
+        assertEquals("SELECT ID, DATA FROM T WHERE ID IN (?) AND (EXPIRES IS NULL OR EXPIRES >= ?)",
+                     statements.getFindDataInListStatement(1));
+    }
+
+    private int count(String table, String id) throws Exception {
+        PreparedStatement s = connection.prepareStatement("SELECT COUNT(*) FROM " + table + " WHERE ID=?");
+        try {
+            s.setString(1, id);
+            ResultSet rs = s.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            s.close();
+        }
+    }
+
+    public void testConcurrentLoads() throws Exception {
+        final Store store = factory.open("concurrent");
+        for (int i = 0; i < 100; i++) {
+            store.store("id" + i, new Integer(i));
+        }
+        final AtomicInteger loaded = new AtomicInteger();
+        final List<Exception> errors = new CopyOnWriteArrayList<Exception>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            if (store.load("id" + i) != null) {
+                                loaded.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(100, loaded.get());
+    }
+
+    public void testConcurrentLoadAlls() throws Exception {
+        final Store store = factory.open("concurrentAll");
+        final List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            ids.add("id" + i);
+            store.store("id" + i, new Integer(i));
+        }
+        final AtomicInteger loaded = new AtomicInteger();
+        final List<Exception> errors = new CopyOnWriteArrayList<Exception>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < ids.size(); i += 10) {
+                            loaded.addAndGet(store.loadAll(ids.subList(i, i + 10)).size());
+                        }
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(100, loaded.get());
+    }
+
+    public void testLoadAndRemoveStatement() throws Exception {
+        JdbcStoreFactory f = (JdbcStoreFactory) factory;
+        Store store = f.open("statement");
+        store.store("id", "data");
+        // a statement which does not delete shows that the load uses it
+        Statements statements = f.getAdapter().getStatements();
+        statements.setLoadAndRemoveDataStatement("SELECT DATA FROM " + statements.getFullStoreTableName() + " WHERE ID=?");
+        assertEquals("data", store.load("id"));
+        assertEquals("data", store.peek("id"));
+        statements.setLoadAndRemoveDataStatement(null);
+        assertEquals("data", store.load("id"));
+        assertNull(store.peek("id"));
+    }
+
+    public void testAsyncStore() throws Exception {
+        JdbcStoreFactory f = (JdbcStoreFactory) factory;
+        AsyncStore store = f.openAsync("async");
+        List<Future<Void>> stored = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 50; i++) {
+            stored.add(store.store("id" + i, new Integer(i)));
+        }
+        for (Future<Void> future : stored) {
+            future.get();
+        }
+        Future<Object> peeked = store.peek("id7");
+        Future<Object> loaded = store.load("id7");
+        assertEquals(new Integer(7), peeked.get());
+        assertEquals(new Integer(7), loaded.get());
+        assertNull(store.getStore().peek("id7"));
+        f.shutdownAsyncExecutor();
+    }
 }
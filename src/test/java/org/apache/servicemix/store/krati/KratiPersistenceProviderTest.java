@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.krati;
+
+import java.io.File;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+public class KratiPersistenceProviderTest extends TestCase {
+
+    public void testSettersApplyBeforeFirstUse() throws Exception {
+        File directory = new File("target/krati-provider/");
+        delete(directory);
+        KratiPersistenceProvider provider = new KratiPersistenceProvider();
+        provider.setStoreDirectory(directory.getPath());
+        provider.setSegmentFactory(KratiDataStores.MAPPED);
+        provider.setBatchSize(100);
+        provider.setNumSyncBatches(2);
+        assertFalse("The data store should only be opened on first use", directory.exists());
+        try {
+            provider.store("id", "data");
+            assertTrue(directory.exists());
+            assertEquals("data", provider.load("id"));
+            assertEquals(Collections.singleton("id"), provider.loadAllKeys());
+            provider.delete("id");
+            assertNull(provider.load("id"));
+        } finally {
+            provider.destroy();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
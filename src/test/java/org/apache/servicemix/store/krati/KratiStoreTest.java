@@ -17,8 +17,15 @@
 package org.apache.servicemix.store.krati;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import junit.framework.TestCase;
 import krati.store.DataStore;
+import org.apache.servicemix.store.Entry;
+import org.apache.servicemix.store.StoreCursor;
 
 import org.slf4j.LoggerFactory;
 
@@ -76,5 +83,134 @@ public class KratiStoreTest extends TestCase {
         assertNull("Data should have been removed from store after timeout", store.load(id));
     }
 
+    public void testTimeToLive() throws Exception {
+        store.store("short", "data", TIMEOUT / 10);
+        store.store("long", "data", TIMEOUT * 10);
+        synchronized (this) {
+            wait(TIMEOUT * 2);
+        }
+        assertNull("Data should have expired after its time to live", store.peek("short"));
+        assertEquals("Data should outlive the timeout of the store", "data", store.load("long"));
+        assertNull(store.load("short"));
+    }
+
+    public void testEntryWithoutHeader() throws Exception {
+        store.getDatas().put("legacy".getBytes(), store.getSerializer().serialize(new Entry("old data")));
+        assertEquals("old data", store.peek("legacy"));
+        assertEquals("old data", store.load("legacy"));
+    }
+
+    public void testTimeIndexSurvivesReopen() throws Exception {
+        store.store("stale", "data", TIMEOUT / 10);
+        storeFactory.close(store);
+        store = (KratiStore) storeFactory.open(TEST_CACHE_NAME);
+        assertTrue(store.getTimeIndex().isComplete());
+        synchronized (this) {
+            wait(TIMEOUT / 2);
+        }
+        assertNull(store.load("unknown"));
+        assertNull("Expired entry should have been evicted from disk", store.getDatas().get("stale".getBytes()));
+    }
+
+    public void testTimeIndexOpenedLazily() throws Exception {
+        File directory = new File("target/krati-lazy-store/");
+        delete(directory);
+        KratiStoreFactory lazyFactory = new KratiStoreFactory();
+        lazyFactory.setStoreDirectory(directory.getPath());
+        KratiStore lazy = (KratiStore) lazyFactory.open(TEST_CACHE_NAME);
+        try {
+            lazy.store("id", "data");
+            assertNull("No time index is needed without timeout", lazy.getTimeIndex());
+            assertFalse(new File(directory, TEST_CACHE_NAME + "-expiry").exists());
+            lazy.store("short", "data", TIMEOUT / 10);
+            assertNotNull(lazy.getTimeIndex());
+        } finally {
+            lazyFactory.close(lazy);
+        }
+        lazy = (KratiStore) lazyFactory.open(TEST_CACHE_NAME);
+        try {
+            assertNotNull("The time index of a previous run is reopened", lazy.getTimeIndex());
+            synchronized (this) {
+                wait(TIMEOUT / 2);
+            }
+            assertNull(lazy.load("unknown"));
+            assertNull(lazy.getDatas().get("short".getBytes()));
+            assertEquals("data", lazy.load("id"));
+        } finally {
+            lazyFactory.close(lazy);
+        }
+    }
 
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    public void testCursors() throws Exception {
+        Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        entries.put("x", "data x");
+        entries.put("y", "data y");
+        store.storeAll(entries);
+
+        Set<String> ids = new HashSet<String>();
+        StoreCursor<String> idCursor = store.openIdCursor();
+        while (idCursor.hasNext()) {
+            ids.add(idCursor.next());
+        }
+        idCursor.close();
+        assertTrue(ids.containsAll(entries.keySet()));
+
+        Map<String, Object> found = new LinkedHashMap<String, Object>();
+        StoreCursor<Map.Entry<String, Object>> cursor = store.openEntryCursor();
+        while (cursor.hasNext()) {
+            Map.Entry<String, Object> entry = cursor.next();
+            found.put(entry.getKey(), entry.getValue());
+        }
+        cursor.close();
+        assertEquals("data x", found.get("x"));
+        assertEquals("data y", found.get("y"));
+        store.loadAll(entries.keySet());
+    }
+
+    public void testMappedSegments() throws Exception {
+        KratiStoreFactory mappedFactory = new KratiStoreFactory();
+        mappedFactory.setStoreDirectory("target/krati-mapped-store/");
+        mappedFactory.setSegmentFactory(KratiDataStores.MAPPED);
+        mappedFactory.setBatchSize(100);
+        mappedFactory.setNumSyncBatches(2);
+        KratiStore mapped = (KratiStore) mappedFactory.open(TEST_CACHE_NAME);
+        try {
+            Map<String, Object> entries = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < 250; i++) {
+                entries.put("id" + i, "data " + i);
+            }
+            mapped.storeAll(entries);
+            assertEquals("data 42", mapped.peek("id42"));
+            mapped.deleteAll(entries.keySet());
+            assertNull(mapped.peek("id42"));
+        } finally {
+            mappedFactory.close(mapped);
+        }
+        try {
+            mappedFactory.setSegmentFactory("unknown");
+            fail("Unknown segment factories should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testStoreAllLoadAll() throws Exception {
+        Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        entries.put("a", "data a");
+        entries.put("b", "data b");
+        store.storeAll(entries);
+        assertEquals(entries, store.peekAll(Arrays.asList("a", "b", "c")));
+        assertEquals(entries, store.loadAll(Arrays.asList("a", "b", "c")));
+        assertNull(store.peek("a"));
+    }
 }
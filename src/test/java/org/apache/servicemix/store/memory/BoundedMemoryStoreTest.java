@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreListener;
+import org.easymock.EasyMock;
+
+import static org.easymock.EasyMock.*;
+
+/**
+ * Test case for {@link BoundedMemoryStore}
+ */
+public class BoundedMemoryStoreTest extends TestCase {
+
+    private final MemoryStoreFactory factory = new MemoryStoreFactory();
+
+    private StoreListener listener = createMock(StoreListener.class);
+
+    public BoundedMemoryStoreTest() {
+        super();
+        Set<StoreListener> listeners = new LinkedHashSet<StoreListener>();
+        listeners.add(listener);
+        factory.setStoreListeners(listeners);
+    }
+
+    public void testLruEviction() throws Exception {
+        factory.setMaxEntries(2);
+        Store store = factory.open("lru");
+
+        //Record behavior
+        listener.onAdd(EasyMock.<String>anyObject(), EasyMock.<Object>anyObject());
+        expectLastCall().times(3);
+        listener.onEvict("2", "two");
+        expectLastCall().once();
+        replay(listener);
+
+        store.store("1", "one");
+        store.store("2", "two");
+        store.peek("1");
+        store.store("3", "three");
+
+        assertEquals("one", store.peek("1"));
+        assertNull(store.peek("2"));
+        assertEquals("three", store.peek("3"));
+        verify(listener);
+    }
+
+    public void testLfuEviction() throws Exception {
+        factory.setMaxEntries(2);
+        factory.setEvictionPolicy(MemoryStoreFactory.LFU);
+        Store store = factory.open("lfu");
+
+        store.store("1", "one");
+        store.store("2", "two");
+        store.peek("1");
+        store.peek("1");
+        store.peek("2");
+        // the new entry is the least frequently used one
+        store.store("3", "three");
+        assertNull(store.peek("3"));
+
+        store.load("2");
+        store.store("4", "four");
+        store.peek("4");
+        store.peek("4");
+        store.store("5", "five");
+
+        assertEquals("one", store.peek("1"));
+        assertEquals("four", store.peek("4"));
+        assertNull(store.peek("5"));
+    }
+
+    public void testTinyLfuKeepsPopularEntries() throws Exception {
+        factory.setMaxEntries(100);
+        factory.setEvictionPolicy(MemoryStoreFactory.TINY_LFU);
+        BoundedMemoryStore store = (BoundedMemoryStore) factory.open("tinylfu");
+
+        for (int i = 0; i < 100; i++) {
+            store.store("hot" + i, i);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                store.peek("hot" + i);
+            }
+        }
+        // a burst of entries that are never read again
+        for (int i = 0; i < 1000; i++) {
+            store.store("cold" + i, i);
+        }
+
+        assertEquals(100, store.getSize());
+        int hot = 0;
+        for (int i = 0; i < 100; i++) {
+            if (store.peek("hot" + i) != null) {
+                hot++;
+            }
+        }
+        assertTrue("Most popular entries should have been kept, only " + hot + " were", hot >= 90);
+    }
+
+    public void testByteBound() throws Exception {
+        factory.setMaxBytes(10 * 1024);
+        BoundedMemoryStore store = (BoundedMemoryStore) factory.open("bytes");
+
+        for (int i = 0; i < 100; i++) {
+            store.store(Integer.toString(i), new byte[1024]);
+            assertTrue(store.getBytes() <= 10 * 1024);
+        }
+        assertTrue(store.getSize() < 10);
+        assertNotNull(store.peek("99"));
+        assertNull(store.peek("0"));
+
+        store.load("99");
+        assertTrue(store.getSize() < 9);
+    }
+
+    public void testObjectsAreNotSerializedByDefault() throws Exception {
+        factory.setMaxBytes(10 * 1024);
+        BoundedMemoryStore store = (BoundedMemoryStore) factory.open("default");
+        Payload.serializations = 0;
+        store.store("id", new Payload());
+        assertEquals(0, Payload.serializations);
+        assertTrue(store.getBytes() < 1024);
+    }
+
+    public void testSerializedSizeEstimator() throws Exception {
+        factory.setMaxBytes(10 * 1024);
+        factory.setSizeEstimator(MemoryStoreFactory.SERIALIZED);
+        BoundedMemoryStore store = (BoundedMemoryStore) factory.open("serialized");
+        Payload.serializations = 0;
+        store.store("id", new Payload());
+        assertEquals(1, Payload.serializations);
+        assertTrue(store.getBytes() > 4096);
+        store.store("bytes", new byte[1024]);
+        assertEquals("Byte arrays should not be serialized", 1, Payload.serializations);
+    }
+
+    public void testTimeoutIsRejected() throws Exception {
+        factory.setMaxEntries(10);
+        factory.setTimeout(1000);
+        try {
+            factory.open("timeout");
+            fail("A bounded store does not support timeouts");
+        } catch (java.io.IOException e) {
+            // expected
+        }
+    }
+
+    public static class Payload implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private static int serializations;
+        private final byte[] data = new byte[4096];
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            serializations++;
+            out.defaultWriteObject();
+        }
+    }
+
+}
@@ -16,8 +16,14 @@
  */
 package org.apache.servicemix.store.memory;
 
+import java.io.IOException;
+import java.util.Map;
+
 import junit.framework.TestCase;
 
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreCursor;
+
 /**
  * Test case for {@link MemoryStoreFactory}
  */
@@ -36,6 +42,46 @@ public class MemoryStoreFactoryTest extends TestCase {
         factory.setTimeout(500);
         assertTrue(factory.open("store1") instanceof MemoryStore);
         assertTrue(factory.open("store2") instanceof TimeoutMemoryStore);
+        factory.setTimeout(-1);
+        factory.setMaxEntries(100);
+        assertTrue(factory.open("store3") instanceof BoundedMemoryStore);
+    }
+
+    public void testCursors() throws Exception {
+        factory.setTimeout(60000);
+        Store store = factory.open("cursor");
+        store.store("a", "data a");
+        store.store("b", "data b", 50);
+        Thread.sleep(250);
+        StoreCursor<Map.Entry<String, Object>> cursor = store.openEntryCursor();
+        assertTrue(cursor.hasNext());
+        Map.Entry<String, Object> entry = cursor.next();
+        assertEquals("a", entry.getKey());
+        assertEquals("data a", entry.getValue());
+        assertFalse("Expired objects should be skipped", cursor.hasNext());
+        cursor.close();
+        assertEquals("data a", store.peek("a"));
+    }
+
+    public void testTimeToLive() throws Exception {
+        Store store = factory.open("store1");
+        store.store("short", "data", 50);
+        store.store("long", "data", 60000);
+        store.store("none", "data");
+        Thread.sleep(250);
+        assertNull(store.peek("short"));
+        assertEquals("data", store.peek("long"));
+        assertEquals("data", store.load("none"));
+        assertNull(store.load("short"));
+        assertEquals("data", store.load("long"));
+
+        factory.setMaxEntries(100);
+        try {
+            factory.open("bounded").store("id", "data", 50);
+            fail("A bounded store should not accept a time to live");
+        } catch (IOException e) {
+            // expected
+        }
     }
 
 }
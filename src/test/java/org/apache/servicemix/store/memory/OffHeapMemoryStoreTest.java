@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.memory;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.servicemix.id.IdGenerator;
+
+/**
+ * Test case for {@link OffHeapMemoryStore}
+ */
+public class OffHeapMemoryStoreTest extends TestCase {
+
+    private static final int SLAB_SIZE = 64 * 1024;
+
+    private OffHeapMemoryStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = new OffHeapMemoryStore(new IdGenerator(), SLAB_SIZE, 4 * SLAB_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        store.destroy();
+    }
+
+    public void testStoreLoad() throws Exception {
+        String id = store.store("Any kind of data...");
+        assertEquals("Any kind of data...", store.peek(id));
+        assertEquals("Any kind of data...", store.load(id));
+        assertNull(store.peek(id));
+        assertNull(store.load(id));
+    }
+
+    public void testManyEntries() throws Exception {
+        store = new OffHeapMemoryStore(new IdGenerator(), SLAB_SIZE, -1);
+        for (int i = 0; i < 5000; i++) {
+            store.store("id" + i, i);
+        }
+        assertEquals(5000, store.getSize());
+        // remove every other entry to exercise the deletion of the index
+        for (int i = 0; i < 5000; i += 2) {
+            assertEquals(i, store.load("id" + i));
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), store.peek("id" + i));
+        }
+        for (int i = 1; i < 5000; i += 2) {
+            assertEquals(i, store.load("id" + i));
+        }
+        assertEquals(0, store.getSize());
+        assertEquals(0, store.getUsedBytes());
+        assertEquals(store.getAllocatedBytes(), store.getFreeBytes());
+    }
+
+    public void testReplace() throws Exception {
+        store.store("1", "first");
+        long used = store.getUsedBytes();
+        store.store("1", "second");
+        assertEquals(1, store.getSize());
+        assertEquals(used, store.getUsedBytes());
+        assertEquals("second", store.load("1"));
+    }
+
+    public void testFreedChunksAreReused() throws Exception {
+        long allocated = -1;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                store.store(Integer.toString(i), new byte[500]);
+            }
+            for (int i = 0; i < 100; i++) {
+                store.load(Integer.toString(i));
+            }
+            if (allocated < 0) {
+                allocated = store.getAllocatedBytes();
+            }
+        }
+        assertEquals(allocated, store.getAllocatedBytes());
+        assertEquals(allocated, store.getFreeBytes());
+    }
+
+    public void testEmptySlabsAreReused() throws Exception {
+        // fill three slabs with chunks of one size class
+        int count = 0;
+        while (store.getAllocatedBytes() < 3 * SLAB_SIZE) {
+            store.store("small" + count++, new byte[500]);
+        }
+        for (int i = 0; i < count; i++) {
+            store.load("small" + i);
+        }
+        assertEquals("Free slabs should be kept for reuse", 3 * SLAB_SIZE, store.getAllocatedBytes());
+        assertEquals(0, store.getUsedBytes());
+        // the free slabs are used by another size class within the limit, 8 chunks per slab
+        for (int i = 0; i < 24; i++) {
+            store.store("large" + i, new byte[5000]);
+        }
+        assertEquals(4 * SLAB_SIZE, store.getAllocatedBytes());
+    }
+
+    public void testFreeSlabsAreDroppedForDedicatedSlabs() throws Exception {
+        int count = 0;
+        while (store.getAllocatedBytes() < 3 * SLAB_SIZE) {
+            store.store("small" + count++, new byte[500]);
+        }
+        for (int i = 0; i < count; i++) {
+            store.load("small" + i);
+        }
+        store.store("big", new byte[2 * SLAB_SIZE]);
+        assertEquals(2 * SLAB_SIZE, ((byte[]) store.load("big")).length);
+    }
+
+    public void testDedicatedSlabs() throws Exception {
+        store.store("big", new byte[2 * SLAB_SIZE]);
+        assertTrue(store.getAllocatedBytes() > 2 * SLAB_SIZE);
+        assertEquals(2 * SLAB_SIZE, ((byte[]) store.load("big")).length);
+        assertEquals(0, store.getAllocatedBytes());
+        // the freed slab slot is reused
+        store.store("big", new byte[2 * SLAB_SIZE]);
+        assertEquals(2 * SLAB_SIZE, ((byte[]) store.peek("big")).length);
+    }
+
+    public void testLimit() throws Exception {
+        try {
+            store.store("huge", new byte[8 * SLAB_SIZE]);
+            fail("The store should be full");
+        } catch (IOException e) {
+            // expected
+        }
+        assertNull(store.peek("huge"));
+    }
+
+    public void testFactory() throws Exception {
+        MemoryStoreFactory factory = new MemoryStoreFactory();
+        factory.setOffHeap(true);
+        factory.setSlabSize(SLAB_SIZE);
+        OffHeapMemoryStore offHeapStore = (OffHeapMemoryStore) factory.open("offheap");
+        offHeapStore.store("1", "data");
+        assertEquals("data", offHeapStore.load("1"));
+        factory.close(offHeapStore);
+    }
+
+}
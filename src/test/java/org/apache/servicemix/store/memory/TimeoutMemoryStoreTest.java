@@ -24,6 +24,8 @@ import org.easymock.EasyMock;
 
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.easymock.EasyMock.*;
 
@@ -100,4 +102,111 @@ public class TimeoutMemoryStoreTest extends TestCase {
         assertNull("Data should have been removed from store after timeout", store.load(id));
         verify(listener);
     }
+
+    public void testStoreAgainAfterExpiry() throws Exception {
+        String id = "1";
+
+        //Record behavior
+        listener.onAdd(EasyMock.<String>anyObject(),EasyMock.<Object>anyObject());
+        expectLastCall().times(2);
+        listener.onEvict(id, "first");
+        expectLastCall().once();
+        listener.onRemove(id, "second");
+        expectLastCall().once();
+        replay(listener);
+
+        store.store(id, "first");
+        synchronized (this) {
+            wait(TIMEOUT * 2);
+        }
+        assertNull("Expired data should not be returned", store.peek(id));
+        //the expired entry is replaced, its index entry must not evict the new one
+        store.store(id, "second");
+        assertEquals("second", store.peek(id));
+        assertEquals("second", store.load(id));
+        verify(listener);
+    }
+
+    public void testTimeToLive() throws Exception {
+        //Record behavior
+        listener.onAdd(EasyMock.<String>anyObject(),EasyMock.<Object>anyObject());
+        expectLastCall().times(2);
+        listener.onEvict("short", "data");
+        expectLastCall().once();
+        listener.onRemove("long", "data");
+        expectLastCall().once();
+        replay(listener);
+
+        store.store("short", "data", TIMEOUT / 5);
+        store.store("long", "data", TIMEOUT * 8);
+        synchronized (this) {
+            wait(TIMEOUT * 2);
+        }
+        assertNull("Data should have expired after its time to live", store.peek("short"));
+        assertEquals("Data should outlive the timeout of the store", "data", store.load("long"));
+        verify(listener);
+    }
+
+    public void testBackgroundEviction() throws Exception {
+        MemoryStoreFactory sweepingFactory = new MemoryStoreFactory();
+        sweepingFactory.setTimeout(TIMEOUT);
+        sweepingFactory.setSweepInterval(TIMEOUT / 5);
+        Set<StoreListener> listeners = new LinkedHashSet<StoreListener>();
+        listeners.add(listener);
+        sweepingFactory.setStoreListeners(listeners);
+        Store sweptStore = sweepingFactory.open("swept");
+
+        //Record behavior
+        listener.onAdd("1", "Any kind of data...");
+        expectLastCall().once();
+        listener.onEvict("1", "Any kind of data...");
+        expectLastCall().once();
+        replay(listener);
+
+        sweptStore.store("1", "Any kind of data...");
+        synchronized (this) {
+            wait(TIMEOUT * 3);
+        }
+        //evicted without any load being issued on the store
+        verify(listener);
+        assertNull(sweptStore.load("1"));
+        sweepingFactory.close(sweptStore);
+    }
+
+    public void testFailingListenerDoesNotStopSweeper() throws Exception {
+        MemoryStoreFactory sweepingFactory = new MemoryStoreFactory();
+        sweepingFactory.setTimeout(TIMEOUT);
+        sweepingFactory.setSweepInterval(TIMEOUT / 5);
+        Store failing = sweepingFactory.open("failing");
+        Store swept = sweepingFactory.open("swept");
+        failing.addListener(new StoreListener() {
+            public void onAdd(String id, Object data) {
+            }
+            public void onRemove(String id, Object data) {
+            }
+            public void onEvict(String id, Object data) {
+                throw new IllegalStateException("listener failure");
+            }
+        });
+
+        failing.store("1", "data");
+        synchronized (this) {
+            wait(TIMEOUT * 2);
+        }
+        // the sweeper keeps running for the other store, without any load being issued
+        final CountDownLatch evicted = new CountDownLatch(1);
+        swept.addListener(new StoreListener() {
+            public void onAdd(String id, Object data) {
+            }
+            public void onRemove(String id, Object data) {
+            }
+            public void onEvict(String id, Object data) {
+                evicted.countDown();
+            }
+        });
+        swept.store("2", "data");
+        assertTrue(evicted.await(TIMEOUT * 4, TimeUnit.MILLISECONDS));
+        sweepingFactory.close(failing);
+        sweepingFactory.close(swept);
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.FakeDB;
+import com.mongodb.gridfs.GridFS;
+import junit.framework.TestCase;
+import org.apache.servicemix.store.StoreListener;
+import org.apache.servicemix.store.base.JavaStoreSerializer;
+
+public class MongoStoreTest extends TestCase {
+
+    private FakeDB db;
+    private Map<String, Object> evicted;
+
+    protected void setUp() throws Exception {
+        db = new FakeDB("test");
+        evicted = new LinkedHashMap<String, Object>();
+    }
+
+    protected void tearDown() throws Exception {
+        db.close();
+    }
+
+    public void testStoreLoad() throws Exception {
+        MongoStore store = new MongoStore(db, "store");
+        String id = store.store("data");
+        assertEquals("data", store.peek(id));
+        assertEquals("data", store.load(id));
+        assertNull(store.load(id));
+    }
+
+    public void testLoadAll() throws Exception {
+        MongoStore store = new MongoStore(db, "loadAll");
+        store.store("a", "data a");
+        store.store("b", "data b");
+        Map<String, Object> loaded = store.loadAll(Arrays.asList("b", "missing", "a"));
+        assertEquals(Arrays.asList("b", "a"), new ArrayList<String>(loaded.keySet()));
+        assertEquals("data a", loaded.get("a"));
+        assertTrue(store.loadAll(Arrays.asList("a", "b")).isEmpty());
+        assertNull(store.peek("a"));
+    }
+
+    public void testDocuments() throws Exception {
+        MongoStore store = new MongoStore(db, "documents", 60000L);
+        long before = System.currentTimeMillis();
+        store.store("plain", "plain data");
+        store.store("ttl", "ttl data", 1000);
+
+        DBObject plain = store.collection.findOne(new BasicDBObject("_id", "plain"));
+        assertTrue(plain.get("_timestamp") instanceof Date);
+        assertFalse(plain.containsField("_expires"));
+        DBObject ttl = store.collection.findOne(new BasicDBObject("_id", "ttl"));
+        assertFalse(ttl.containsField("_timestamp"));
+        assertTrue(((Date) ttl.get("_expires")).getTime() >= before + 1000);
+
+        List<DBObject> indexes = db.getIndexes();
+        assertEquals(2, indexes.size());
+        assertEquals(new BasicDBObject("_expires", 1), indexes.get(0).get("key"));
+        assertEquals(0, ((DBObject) indexes.get(0).get("options")).get("expireAfterSeconds"));
+        assertEquals(new BasicDBObject("_timestamp", 1), indexes.get(1).get("key"));
+        assertEquals(60L, ((DBObject) indexes.get(1).get("options")).get("expireAfterSeconds"));
+    }
+
+    public void testExpiredQuery() throws Exception {
+        MongoStore store = new MongoStore(db, "query", 60000L);
+        List<?> clauses = (List<?>) store.expiredQuery(100000L).get("$or");
+        assertEquals(3, clauses.size());
+        assertEquals(new BasicDBObject("_expires", new BasicDBObject("$lt", new Date(100000L))), clauses.get(0));
+        assertEquals(new BasicDBObject("_timestamp", new BasicDBObject("$lt", new Date(40000L))), clauses.get(1));
+        assertEquals(new BasicDBObject("_timestamp", new BasicDBObject("$lt", 40000L)), clauses.get(2));
+
+        store = new MongoStore(db, "query");
+        clauses = (List<?>) store.expiredQuery(100000L).get("$or");
+        assertEquals(1, clauses.size());
+    }
+
+    public void testEvictLegacyTimestamps() throws Exception {
+        MongoStore store = new MongoStore(db, "legacy", 60000L);
+        store.addListener(new EvictionListener());
+        long now = System.currentTimeMillis();
+        byte[] data = new JavaStoreSerializer().serialize("legacy data");
+        // earlier versions stored the creation time as a number
+        store.collection.insert(new BasicDBObject("_id", "old").append("data", data).append("_timestamp", now - 120000));
+        store.collection.insert(new BasicDBObject("_id", "recent").append("data", data).append("_timestamp", now));
+        store.store("current", "current data");
+
+        store.evict();
+        assertEquals(1, evicted.size());
+        assertEquals("legacy data", evicted.get("old"));
+        assertNull(store.collection.findOne(new BasicDBObject("_id", "old")));
+        assertEquals("legacy data", store.peek("recent"));
+        assertEquals("current data", store.peek("current"));
+    }
+
+    public void testEvictOrphanFiles() throws Exception {
+        MongoStore store = new MongoStore(db, "files");
+        store.setGridFsThreshold(0);
+        store.store("expiring", "expiring data", 1);
+        store.store("kept", "kept data");
+        store.store("live", "live data", 60000);
+        GridFS files = new GridFS(db, "files");
+        assertNotNull(files.findOne("expiring"));
+        assertNotNull(files.findOne("kept"));
+
+        Thread.sleep(10);
+        // the TTL monitor removes the document but not its file
+        store.collection.remove(new BasicDBObject("_id", "expiring"));
+        store.evict();
+        assertNull(files.findOne("expiring"));
+        assertEquals("kept data", store.load("kept"));
+        assertNull(files.findOne("kept"));
+        assertEquals("live data", store.peek("live"));
+    }
+
+    private class EvictionListener implements StoreListener {
+        public void onAdd(String id, Object data) {
+        }
+
+        public void onRemove(String id, Object data) {
+        }
+
+        public void onEvict(String id, Object data) {
+            evicted.put(id, data);
+        }
+    }
+
+}
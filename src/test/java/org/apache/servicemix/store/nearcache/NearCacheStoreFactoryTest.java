@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.nearcache;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.memory.LruEvictionPolicy;
+import org.apache.servicemix.store.memory.MemoryStore;
+import org.apache.servicemix.store.memory.MemoryStoreFactory;
+import org.apache.servicemix.store.memory.OffHeapMemoryStore;
+
+public class NearCacheStoreFactoryTest extends TestCase {
+
+    private MemoryStoreFactory memoryFactory;
+    private NearCacheStoreFactory factory;
+
+    protected void setUp() throws Exception {
+        memoryFactory = new MemoryStoreFactory();
+        memoryFactory.setOffHeap(true);
+        factory = new NearCacheStoreFactory(memoryFactory);
+        factory.setMaxEntries(2);
+    }
+
+    public void testPeekFromCache() throws Exception {
+        NearCacheStore store = (NearCacheStore) factory.open("test");
+        assertSame(store, factory.open("test"));
+        assertTrue(store.getDelegate() instanceof OffHeapMemoryStore);
+        assertFalse(store.isRemoteInvalidation());
+
+        String id = store.store("data");
+        Object data = store.peek(id);
+        assertEquals("data", data);
+        assertSame(data, store.peek(id));
+        assertEquals(1, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+        assertEquals(0.5, factory.getHitRatio(), 0.0);
+
+        assertEquals("data", store.load(id));
+        assertNull(store.peek(id));
+        assertEquals(0, store.getSize());
+    }
+
+    public void testInvalidation() throws Exception {
+        NearCacheStore store = (NearCacheStore) factory.open("test");
+        Store backend = store.getDelegate();
+        store.store("id", "first");
+        assertEquals("first", store.peek("id"));
+
+        backend.store("id", "second");
+        assertEquals("second", store.peek("id"));
+        backend.load("id");
+        assertNull(store.peek("id"));
+    }
+
+    public void testTimeToLive() throws Exception {
+        NearCacheStore store = (NearCacheStore) new NearCacheStoreFactory(new MemoryStoreFactory()).open("ttl");
+        store.store("id", "data", 50);
+        assertEquals("data", store.peek("id"));
+        assertEquals("data", store.peek("id"));
+        assertEquals(1, store.getHitCount());
+        Thread.sleep(250);
+        assertNull("Expired data should not be served from the cache", store.peek("id"));
+        assertEquals(0, store.getSize());
+    }
+
+    public void testMaxAge() throws Exception {
+        factory.setMaxAge(50);
+        NearCacheStore store = (NearCacheStore) factory.open("test");
+        store.store("id", "data");
+        assertEquals("data", store.peek("id"));
+        assertEquals("data", store.peek("id"));
+        assertEquals(1, store.getHitCount());
+        Thread.sleep(100);
+        assertEquals("data", store.peek("id"));
+        assertEquals(1, store.getHitCount());
+        assertEquals(2, store.getMissCount());
+    }
+
+    public void testChangesToOtherEntriesDuringRead() throws Exception {
+        final NearCacheStore[] holder = new NearCacheStore[1];
+        MemoryStore backend = new MemoryStore(new IdGenerator()) {
+            public Object peek(String id) throws IOException {
+                Object data = super.peek(id);
+                if (id.equals("id")) {
+                    // another entry changes while the entry is read
+                    holder[0].store("other", "data");
+                } else {
+                    // the entry itself changes while it is read
+                    holder[0].store(id, "changed");
+                }
+                return data;
+            }
+        };
+        NearCacheStore store = new NearCacheStore(backend, 10, -1, new LruEvictionPolicy());
+        holder[0] = store;
+        backend.store("id", "data");
+        backend.store("stale", "data");
+        assertEquals("data", store.peek("id"));
+        assertEquals(1, store.getSize());
+        assertEquals("data", store.peek("stale"));
+        assertEquals(1, store.getSize());
+        assertEquals("changed", store.peek("stale"));
+    }
+
+    public void testBounded() throws Exception {
+        NearCacheStore store = (NearCacheStore) factory.open("test");
+        store.store("1", "one");
+        store.store("2", "two");
+        store.store("3", "three");
+        Map<String, Object> result = store.peekAll(Arrays.asList("1", "2", "3", "4"));
+        assertEquals(Arrays.asList("1", "2", "3"), Arrays.asList(result.keySet().toArray()));
+        assertEquals(2, store.getSize());
+        assertEquals("three", store.peek("3"));
+        assertEquals(1, store.getHitCount());
+    }
+
+    public void testClose() throws Exception {
+        NearCacheStore store = (NearCacheStore) factory.open("test");
+        store.store("id", "data");
+        store.peek("id");
+        factory.close(store);
+        assertEquals(0, store.getSize());
+        assertTrue(store.getStoreListeners().isEmpty());
+        assertNotSame(store, factory.open("test"));
+    }
+
+}
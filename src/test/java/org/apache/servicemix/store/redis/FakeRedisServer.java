@@ -0,0 +1,388 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for a Redis server, speaking the Redis protocol on a local port.
+ * <p>
+ * It implements the commands used by the {@link RedisStore}, including expiration and
+ * <code>MULTI</code> transactions, and records the names of the commands it receives.
+ * Values are kept as raw bytes.
+ * </p>
+ */
+public class FakeRedisServer {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final ServerSocket serverSocket;
+    private final Map<String, byte[]> values = new HashMap<String, byte[]>();
+    private final Map<String, Long> expirations = new HashMap<String, Long>();
+    private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    public FakeRedisServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+        Thread acceptor = new Thread("fake-redis") {
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the names of the commands received so far, in upper case
+     */
+    public List<String> getCommands() {
+        synchronized (commands) {
+            return new ArrayList<String>(commands);
+        }
+    }
+
+    /**
+     * @return the bytes stored under the given key, or <code>null</code>
+     */
+    public synchronized byte[] getRaw(String key) {
+        expire(key);
+        return values.get(key);
+    }
+
+    private static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                if (c == '\\' && i + 1 < glob.length()) {
+                    c = glob.charAt(++i);
+                }
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                Thread handler = new Thread("fake-redis-connection") {
+                    public void run() {
+                        serve(socket);
+                    }
+                };
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            List<List<byte[]>> queued = null;
+            while (true) {
+                List<byte[]> request = readRequest(in);
+                if (request == null) {
+                    break;
+                }
+                String name = new String(request.get(0), "UTF-8").toUpperCase();
+                commands.add(name);
+                if ("MULTI".equals(name)) {
+                    queued = new ArrayList<List<byte[]>>();
+                    writeStatus(out, "OK");
+                } else if ("EXEC".equals(name)) {
+                    List<Object> replies = new ArrayList<Object>();
+                    synchronized (this) {
+                        for (List<byte[]> command : queued) {
+                            replies.add(execute(command));
+                        }
+                    }
+                    queued = null;
+                    writeReply(out, replies);
+                } else if ("DISCARD".equals(name)) {
+                    queued = null;
+                    writeStatus(out, "OK");
+                } else if ("QUIT".equals(name)) {
+                    writeStatus(out, "OK");
+                    out.flush();
+                    break;
+                } else if (queued != null) {
+                    queued.add(request);
+                    writeStatus(out, "QUEUED");
+                } else {
+                    Object reply;
+                    synchronized (this) {
+                        reply = execute(request);
+                    }
+                    writeReply(out, reply);
+                }
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // connection closed
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private Object execute(List<byte[]> request) throws IOException {
+        String name = string(request.get(0)).toUpperCase();
+        if ("PING".equals(name)) {
+            return new Status("PONG");
+        } else if ("GET".equals(name)) {
+            String key = string(request.get(1));
+            expire(key);
+            return values.get(key);
+        } else if ("SET".equals(name)) {
+            put(string(request.get(1)), request.get(2), 0);
+            return new Status("OK");
+        } else if ("SETEX".equals(name)) {
+            long seconds = Long.parseLong(string(request.get(2)));
+            put(string(request.get(1)), request.get(3), System.currentTimeMillis() + seconds * 1000);
+            return new Status("OK");
+        } else if ("MSET".equals(name)) {
+            for (int i = 1; i < request.size(); i += 2) {
+                put(string(request.get(i)), request.get(i + 1), 0);
+            }
+            return new Status("OK");
+        } else if ("MGET".equals(name)) {
+            List<Object> result = new ArrayList<Object>();
+            for (int i = 1; i < request.size(); i++) {
+                String key = string(request.get(i));
+                expire(key);
+                result.add(values.get(key));
+            }
+            return result;
+        } else if ("DEL".equals(name)) {
+            long count = 0;
+            for (int i = 1; i < request.size(); i++) {
+                String key = string(request.get(i));
+                expire(key);
+                expirations.remove(key);
+                if (values.remove(key) != null) {
+                    count++;
+                }
+            }
+            return count;
+        } else if ("EXISTS".equals(name)) {
+            String key = string(request.get(1));
+            expire(key);
+            return values.containsKey(key) ? 1L : 0L;
+        } else if ("INCR".equals(name)) {
+            String key = string(request.get(1));
+            expire(key);
+            byte[] value = values.get(key);
+            long next = (value != null ? Long.parseLong(string(value)) : 0) + 1;
+            values.put(key, String.valueOf(next).getBytes("UTF-8"));
+            return next;
+        } else if ("EXPIRE".equals(name)) {
+            String key = string(request.get(1));
+            expire(key);
+            if (!values.containsKey(key)) {
+                return 0L;
+            }
+            expirations.put(key, System.currentTimeMillis() + Long.parseLong(string(request.get(2))) * 1000);
+            return 1L;
+        } else if ("TTL".equals(name)) {
+            String key = string(request.get(1));
+            expire(key);
+            Long expiration = expirations.get(key);
+            if (!values.containsKey(key)) {
+                return -2L;
+            }
+            return expiration == null ? -1L : (expiration - System.currentTimeMillis() + 999) / 1000;
+        } else if ("KEYS".equals(name)) {
+            Pattern pattern = glob(string(request.get(1)));
+            List<Object> result = new ArrayList<Object>();
+            for (String key : new ArrayList<String>(values.keySet())) {
+                expire(key);
+                if (values.containsKey(key) && pattern.matcher(key).matches()) {
+                    result.add(key.getBytes("UTF-8"));
+                }
+            }
+            return result;
+        } else if ("FLUSHDB".equals(name) || "FLUSHALL".equals(name)) {
+            values.clear();
+            expirations.clear();
+            return new Status("OK");
+        }
+        return new Error("ERR unknown command '" + name + "'");
+    }
+
+    private void put(String key, byte[] value, long expiration) {
+        values.put(key, value);
+        if (expiration > 0) {
+            expirations.put(key, expiration);
+        } else {
+            expirations.remove(key);
+        }
+    }
+
+    private void expire(String key) {
+        Long expiration = expirations.get(key);
+        if (expiration != null && System.currentTimeMillis() >= expiration) {
+            expirations.remove(key);
+            values.remove(key);
+        }
+    }
+
+    private static String string(byte[] bytes) throws IOException {
+        return new String(bytes, "UTF-8");
+    }
+
+    private static List<byte[]> readRequest(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            return null;
+        }
+        if (!line.startsWith("*")) {
+            List<byte[]> inline = new ArrayList<byte[]>();
+            for (String arg : line.trim().split(" +")) {
+                inline.add(arg.getBytes("UTF-8"));
+            }
+            return inline;
+        }
+        int count = Integer.parseInt(line.substring(1));
+        List<byte[]> args = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            String header = readLine(in);
+            int length = Integer.parseInt(header.substring(1));
+            byte[] arg = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(arg, read, length - read);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                read += n;
+            }
+            in.read();
+            in.read();
+            args.add(arg);
+        }
+        return args;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("UTF-8");
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        writeReply(out, new Status(status));
+    }
+
+    private static void writeReply(OutputStream out, Object reply) throws IOException {
+        if (reply instanceof Status) {
+            out.write(("+" + ((Status) reply).text).getBytes("UTF-8"));
+            out.write(CRLF);
+        } else if (reply instanceof Error) {
+            out.write(("-" + ((Error) reply).text).getBytes("UTF-8"));
+            out.write(CRLF);
+        } else if (reply instanceof Long) {
+            out.write((":" + reply).getBytes("UTF-8"));
+            out.write(CRLF);
+        } else if (reply == null) {
+            out.write("$-1".getBytes("UTF-8"));
+            out.write(CRLF);
+        } else if (reply instanceof byte[]) {
+            byte[] bytes = (byte[]) reply;
+            out.write(("$" + bytes.length).getBytes("UTF-8"));
+            out.write(CRLF);
+            out.write(bytes);
+            out.write(CRLF);
+        } else {
+            List<?> list = (List<?>) reply;
+            out.write(("*" + list.size()).getBytes("UTF-8"));
+            out.write(CRLF);
+            for (Iterator<?> it = list.iterator(); it.hasNext();) {
+                writeReply(out, it.next());
+            }
+        }
+    }
+
+    private static class Status {
+        private final String text;
+
+        Status(String text) {
+            this.text = text;
+        }
+    }
+
+    private static class Error {
+        private final String text;
+
+        Error(String text) {
+            this.text = text;
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.bind.DatatypeConverter;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.store.Entry;
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.StoreCursor;
+import org.idevlab.rjc.RedisNode;
+import org.idevlab.rjc.ds.SimpleDataSource;
+
+public class RedisStoreTest extends TestCase {
+
+    private FakeRedisServer server;
+    private RedisStoreFactory factory;
+
+    protected void setUp() throws Exception {
+        server = new FakeRedisServer();
+        factory = new RedisStoreFactory(new RedisNode(new SimpleDataSource("localhost", server.getPort())));
+    }
+
+    protected void tearDown() throws Exception {
+        server.close();
+    }
+
+    private byte[] raw(String store, String id) {
+        return server.getRaw(RedisStoreFactory.STORE_PREFIX + "." + store + ":" + id);
+    }
+
+    public void testBinaryValues() throws Exception {
+        Store store = factory.open("binary");
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        store.store("id", data);
+        byte[] raw = raw("binary", "id");
+        assertNotNull(raw);
+        assertEquals('~', raw[0]);
+        assertTrue(Arrays.equals(data, (byte[]) store.peek("id")));
+        assertTrue(Arrays.equals(data, (byte[]) store.load("id")));
+        assertNull(store.load("id"));
+        assertNull(store.peek("id"));
+    }
+
+    public void testEncodingSize() throws Exception {
+        Store store = factory.open("size");
+        byte[] data = new byte[10000];
+        new Random(0).nextBytes(data);
+        store.store("random", data);
+        byte[] raw = raw("size", "random");
+        assertEquals('~', raw[0]);
+        // the serialized array is packed seven bits per byte on the wire
+        assertTrue(raw.length < data.length * 8 / 7 + 100);
+        assertTrue(Arrays.equals(data, (byte[]) store.load("random")));
+
+        store.store("text", "a mostly ascii string \u00e9");
+        assertEquals('#', raw("size", "text")[0]);
+        assertEquals("a mostly ascii string \u00e9", store.load("text"));
+
+        for (int length = 0; length < 20; length++) {
+            byte[] small = new byte[length];
+            Arrays.fill(small, (byte) 0xFF);
+            store.store("small", small);
+            assertTrue(Arrays.equals(small, (byte[]) store.load("small")));
+        }
+    }
+
+    public void testLoadIsAtomic() throws Exception {
+        Store store = factory.open("atomic");
+        String id = store.store("value");
+        assertNotNull(id);
+        assertEquals("value", store.load(id));
+        assertNull(raw("atomic", id));
+        assertTrue(server.getCommands().contains("MULTI"));
+        assertTrue(server.getCommands().contains("EXEC"));
+        assertFalse(server.getCommands().contains("KEYS"));
+    }
+
+    public void testExpiration() throws Exception {
+        factory.setTimeout(1000);
+        Store store = factory.open("timeout");
+        store.store("timeout", "value");
+        store.store("ttl", "value", 5000);
+        assertEquals("value", store.peek("timeout"));
+        Thread.sleep(1100);
+        assertNull(store.peek("timeout"));
+        assertEquals("value", store.load("ttl"));
+        assertTrue(server.getCommands().contains("SETEX"));
+        assertFalse(server.getCommands().contains("KEYS"));
+    }
+
+    public void testBatchOperations() throws Exception {
+        Store store = factory.open("batch");
+        Map<String, Object> entries = new HashMap<String, Object>();
+        for (int i = 0; i < 10; i++) {
+            entries.put("id" + i, "value" + i);
+        }
+        store.storeAll(entries);
+        assertEquals(entries, store.peekAll(entries.keySet()));
+        Map<String, Object> loaded = store.loadAll(Arrays.asList("id0", "id1", "unknown"));
+        assertEquals(2, loaded.size());
+        assertEquals("value0", loaded.get("id0"));
+        assertNull(store.peek("id0"));
+        assertEquals("value2", store.peek("id2"));
+    }
+
+    public void testCursorsOnlyListTheStore() throws Exception {
+        Store store = factory.open("cursor");
+        Store other = factory.open("cursor*");
+        store.store("a", "value a");
+        String generated = store.store("value b");
+        other.store("c", "value c");
+        other.store("value d");
+        Set<String> ids = new HashSet<String>();
+        StoreCursor<String> cursor = store.openIdCursor();
+        try {
+            while (cursor.hasNext()) {
+                ids.add(cursor.next());
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("a", generated)), ids);
+        Map<String, Object> entries = new HashMap<String, Object>();
+        StoreCursor<Map.Entry<String, Object>> entryCursor = other.openEntryCursor();
+        try {
+            while (entryCursor.hasNext()) {
+                Map.Entry<String, Object> entry = entryCursor.next();
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            entryCursor.close();
+        }
+        assertEquals(2, entries.size());
+        assertEquals("value c", entries.get("c"));
+    }
+
+    public void testLegacyValue() throws Exception {
+        RedisNode node = new RedisNode(new SimpleDataSource("localhost", server.getPort()));
+        node.set("legacy", legacy("value"));
+        node.set("other", legacy("other value"));
+        node.set("counter", "5");
+        Store store = factory.open("legacy");
+        // legacy keys are only looked up when enabled
+        assertNull(store.peek("legacy"));
+        assertTrue(store.peekAll(Arrays.asList("legacy", "other")).isEmpty());
+
+        factory.setLegacyKeys(true);
+        store = factory.open("migrated");
+        store.store("new", "new value");
+        assertNull(store.load("counter"));
+        assertEquals("5", new String(server.getRaw("counter"), "UTF-8"));
+        assertEquals("value", store.peek("legacy"));
+        assertEquals("value", store.load("legacy"));
+        assertNull(server.getRaw("legacy"));
+        Map<String, Object> entries = store.loadAll(Arrays.asList("other", "counter", "new"));
+        assertEquals(Arrays.asList("other", "new"), Arrays.asList(entries.keySet().toArray()));
+        assertEquals("other value", entries.get("other"));
+        assertNull(server.getRaw("other"));
+        assertNotNull(server.getRaw("counter"));
+    }
+
+    private static String legacy(Object data) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(new Entry(data));
+        out.close();
+        return DatatypeConverter.printBase64Binary(baos.toByteArray());
+    }
+
+}
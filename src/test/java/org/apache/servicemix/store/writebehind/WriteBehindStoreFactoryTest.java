@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.store.writebehind;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.servicemix.id.IdGenerator;
+import org.apache.servicemix.store.Store;
+import org.apache.servicemix.store.memory.MemoryStore;
+import org.apache.servicemix.store.memory.MemoryStoreFactory;
+
+public class WriteBehindStoreFactoryTest extends TestCase {
+
+    private WriteBehindStoreFactory factory;
+
+    protected void setUp() throws Exception {
+        factory = new WriteBehindStoreFactory(new MemoryStoreFactory());
+        factory.setBatchSize(10);
+        factory.setFlushInterval(-1);
+    }
+
+    public void testPendingAndCoalesced() throws Exception {
+        WriteBehindStore store = (WriteBehindStore) factory.open("test");
+        assertFalse(store.hasFeature(Store.TRANSACTIONAL));
+        Store backend = store.getDelegate();
+
+        String id = store.store("data");
+        assertEquals(1, store.getPendingCount());
+        assertNull(backend.peek(id));
+        assertEquals("data", store.peek(id));
+        assertEquals("data", store.load(id));
+        assertEquals(0, store.getPendingCount());
+        assertEquals(1, store.getCoalescedCount());
+
+        store.store("id", "other");
+        assertTrue(store.flush());
+        assertFalse(store.flush());
+        assertEquals("other", backend.peek("id"));
+        assertEquals("other", store.load("id"));
+        assertNull(backend.peek("id"));
+    }
+
+    public void testFlushOnBatchSize() throws Exception {
+        WriteBehindStore store = (WriteBehindStore) factory.open("test");
+        for (int i = 0; i < 10; i++) {
+            store.store(Integer.toString(i), "data");
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getFlushCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, store.getFlushCount());
+        assertEquals(0, store.getPendingCount());
+        Map<String, Object> result = store.getDelegate().peekAll(Arrays.asList("0", "9"));
+        assertEquals(2, result.size());
+    }
+
+    public void testFlushOnInterval() throws Exception {
+        factory.setFlushInterval(20);
+        WriteBehindStore store = (WriteBehindStore) factory.open("test");
+        store.store("id", "data");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getFlushCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("data", store.getDelegate().peek("id"));
+    }
+
+    public void testBackpressure() throws Exception {
+        WriteBehindStore store = new WriteBehindStore(new MemoryStore(new IdGenerator()), new IdGenerator(), 2, 4, -1, null);
+        for (int i = 0; i < 5; i++) {
+            store.store(Integer.toString(i), "data");
+        }
+        assertEquals(3, store.getPendingCount());
+        assertEquals(1, store.getFlushCount());
+        assertEquals("data", store.getDelegate().peek("0"));
+    }
+
+    public void testFailedFlushIsRetried() throws Exception {
+        FailingStore backend = new FailingStore();
+        WriteBehindStore store = new WriteBehindStore(backend, new IdGenerator(), 10, 10, -1, null);
+        store.store("id", "data");
+        backend.failing = true;
+        try {
+            store.close();
+            fail("Flush should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, store.getPendingCount());
+        assertEquals("data", store.peek("id"));
+        try {
+            store.store("other", "data");
+            fail("Store should have been closed");
+        } catch (IOException e) {
+            // expected
+        }
+        backend.failing = false;
+        store.close();
+        assertEquals(0, store.getPendingCount());
+        assertEquals("data", backend.peek("id"));
+    }
+
+    public void testFailingObjectsAreDropped() throws Exception {
+        FailingStore backend = new FailingStore();
+        WriteBehindStore store = new WriteBehindStore(backend, new IdGenerator(), 10, 10, 1, -1, null);
+        store.store("id", "data");
+        store.store("poison", "data");
+        backend.poison = "poison";
+        for (int i = 0; i < 2; i++) {
+            try {
+                store.flush();
+                fail("Flush should have failed");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(2, store.getPendingCount());
+        }
+        assertTrue(store.flush());
+        assertEquals(0, store.getPendingCount());
+        assertEquals(1, store.getDroppedCount());
+        assertEquals("data", backend.peek("id"));
+        assertNull(backend.peek("poison"));
+        // the next batches are written at once again
+        store.store("other", "data");
+        assertTrue(store.flush());
+        assertEquals("data", backend.peek("other"));
+    }
+
+    public void testCloseFlushes() throws Exception {
+        factory.setFlushInterval(60000);
+        WriteBehindStore store = (WriteBehindStore) factory.open("test");
+        Store backend = store.getDelegate();
+        store.store("id", "data");
+        factory.close(store);
+        assertEquals("data", backend.peek("id"));
+        assertNotSame(store, factory.open("test"));
+    }
+
+    private static class FailingStore extends MemoryStore {
+        private volatile boolean failing;
+        private volatile String poison;
+
+        FailingStore() {
+            super(new IdGenerator());
+        }
+
+        public void storeAll(Map<String, Object> entries) throws IOException {
+            if (failing || entries.containsKey(poison)) {
+                throw new IOException("Backend unavailable");
+            }
+            super.storeAll(entries);
+        }
+
+        public void store(String id, Object data) throws IOException {
+            if (id.equals(poison)) {
+                throw new IOException("Rejected object");
+            }
+            super.store(id, data);
+        }
+    }
+
+}